@@ -13,17 +13,20 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
 
   private static final org.apache.thrift.protocol.TField CONTINUE_BUILDING_FIELD_DESC = new org.apache.thrift.protocol.TField("continueBuilding", org.apache.thrift.protocol.TType.BOOL, (short)1);
   private static final org.apache.thrift.protocol.TField WORK_UNITS_FIELD_DESC = new org.apache.thrift.protocol.TField("workUnits", org.apache.thrift.protocol.TType.LIST, (short)2);
+  private static final org.apache.thrift.protocol.TField STOLEN_TARGETS_FIELD_DESC = new org.apache.thrift.protocol.TField("stolenTargets", org.apache.thrift.protocol.TType.LIST, (short)3);
 
   private static final org.apache.thrift.scheme.SchemeFactory STANDARD_SCHEME_FACTORY = new GetWorkResponseStandardSchemeFactory();
   private static final org.apache.thrift.scheme.SchemeFactory TUPLE_SCHEME_FACTORY = new GetWorkResponseTupleSchemeFactory();
 
   public boolean continueBuilding; // optional
   public java.util.List<WorkUnit> workUnits; // optional
+  public java.util.List<java.lang.String> stolenTargets; // optional
 
   /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
   public enum _Fields implements org.apache.thrift.TFieldIdEnum {
     CONTINUE_BUILDING((short)1, "continueBuilding"),
-    WORK_UNITS((short)2, "workUnits");
+    WORK_UNITS((short)2, "workUnits"),
+    STOLEN_TARGETS((short)3, "stolenTargets");
 
     private static final java.util.Map<java.lang.String, _Fields> byName = new java.util.HashMap<java.lang.String, _Fields>();
 
@@ -42,6 +45,8 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
           return CONTINUE_BUILDING;
         case 2: // WORK_UNITS
           return WORK_UNITS;
+        case 3: // STOLEN_TARGETS
+          return STOLEN_TARGETS;
         default:
           return null;
       }
@@ -84,7 +89,7 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
   // isset id assignments
   private static final int __CONTINUEBUILDING_ISSET_ID = 0;
   private byte __isset_bitfield = 0;
-  private static final _Fields optionals[] = {_Fields.CONTINUE_BUILDING,_Fields.WORK_UNITS};
+  private static final _Fields optionals[] = {_Fields.CONTINUE_BUILDING,_Fields.WORK_UNITS,_Fields.STOLEN_TARGETS};
   public static final java.util.Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
   static {
     java.util.Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new java.util.EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
@@ -93,6 +98,9 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
     tmpMap.put(_Fields.WORK_UNITS, new org.apache.thrift.meta_data.FieldMetaData("workUnits", org.apache.thrift.TFieldRequirementType.OPTIONAL, 
         new org.apache.thrift.meta_data.ListMetaData(org.apache.thrift.protocol.TType.LIST, 
             new org.apache.thrift.meta_data.StructMetaData(org.apache.thrift.protocol.TType.STRUCT, WorkUnit.class))));
+    tmpMap.put(_Fields.STOLEN_TARGETS, new org.apache.thrift.meta_data.FieldMetaData("stolenTargets", org.apache.thrift.TFieldRequirementType.OPTIONAL, 
+        new org.apache.thrift.meta_data.ListMetaData(org.apache.thrift.protocol.TType.LIST, 
+            new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING))));
     metaDataMap = java.util.Collections.unmodifiableMap(tmpMap);
     org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(GetWorkResponse.class, metaDataMap);
   }
@@ -113,6 +121,10 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
       }
       this.workUnits = __this__workUnits;
     }
+    if (other.isSetStolenTargets()) {
+      java.util.List<java.lang.String> __this__stolenTargets = new java.util.ArrayList<java.lang.String>(other.stolenTargets);
+      this.stolenTargets = __this__stolenTargets;
+    }
   }
 
   public GetWorkResponse deepCopy() {
@@ -124,6 +136,7 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
     setContinueBuildingIsSet(false);
     this.continueBuilding = false;
     this.workUnits = null;
+    this.stolenTargets = null;
   }
 
   public boolean isContinueBuilding() {
@@ -188,6 +201,45 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
     }
   }
 
+  public int getStolenTargetsSize() {
+    return (this.stolenTargets == null) ? 0 : this.stolenTargets.size();
+  }
+
+  public java.util.Iterator<java.lang.String> getStolenTargetsIterator() {
+    return (this.stolenTargets == null) ? null : this.stolenTargets.iterator();
+  }
+
+  public void addToStolenTargets(java.lang.String elem) {
+    if (this.stolenTargets == null) {
+      this.stolenTargets = new java.util.ArrayList<java.lang.String>();
+    }
+    this.stolenTargets.add(elem);
+  }
+
+  public java.util.List<java.lang.String> getStolenTargets() {
+    return this.stolenTargets;
+  }
+
+  public GetWorkResponse setStolenTargets(java.util.List<java.lang.String> stolenTargets) {
+    this.stolenTargets = stolenTargets;
+    return this;
+  }
+
+  public void unsetStolenTargets() {
+    this.stolenTargets = null;
+  }
+
+  /** Returns true if field stolenTargets is set (has been assigned a value) and false otherwise */
+  public boolean isSetStolenTargets() {
+    return this.stolenTargets != null;
+  }
+
+  public void setStolenTargetsIsSet(boolean value) {
+    if (!value) {
+      this.stolenTargets = null;
+    }
+  }
+
   public void setFieldValue(_Fields field, java.lang.Object value) {
     switch (field) {
     case CONTINUE_BUILDING:
@@ -206,6 +258,14 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
       }
       break;
 
+    case STOLEN_TARGETS:
+      if (value == null) {
+        unsetStolenTargets();
+      } else {
+        setStolenTargets((java.util.List<java.lang.String>)value);
+      }
+      break;
+
     }
   }
 
@@ -217,6 +277,9 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
     case WORK_UNITS:
       return getWorkUnits();
 
+    case STOLEN_TARGETS:
+      return getStolenTargets();
+
     }
     throw new java.lang.IllegalStateException();
   }
@@ -232,6 +295,8 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
       return isSetContinueBuilding();
     case WORK_UNITS:
       return isSetWorkUnits();
+    case STOLEN_TARGETS:
+      return isSetStolenTargets();
     }
     throw new java.lang.IllegalStateException();
   }
@@ -269,6 +334,15 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
         return false;
     }
 
+    boolean this_present_stolenTargets = true && this.isSetStolenTargets();
+    boolean that_present_stolenTargets = true && that.isSetStolenTargets();
+    if (this_present_stolenTargets || that_present_stolenTargets) {
+      if (!(this_present_stolenTargets && that_present_stolenTargets))
+        return false;
+      if (!this.stolenTargets.equals(that.stolenTargets))
+        return false;
+    }
+
     return true;
   }
 
@@ -284,6 +358,10 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
     if (isSetWorkUnits())
       hashCode = hashCode * 8191 + workUnits.hashCode();
 
+    hashCode = hashCode * 8191 + ((isSetStolenTargets()) ? 131071 : 524287);
+    if (isSetStolenTargets())
+      hashCode = hashCode * 8191 + stolenTargets.hashCode();
+
     return hashCode;
   }
 
@@ -315,6 +393,16 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
         return lastComparison;
       }
     }
+    lastComparison = java.lang.Boolean.valueOf(isSetStolenTargets()).compareTo(other.isSetStolenTargets());
+    if (lastComparison != 0) {
+      return lastComparison;
+    }
+    if (isSetStolenTargets()) {
+      lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.stolenTargets, other.stolenTargets);
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+    }
     return 0;
   }
 
@@ -350,6 +438,16 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
       }
       first = false;
     }
+    if (isSetStolenTargets()) {
+      if (!first) sb.append(", ");
+      sb.append("stolenTargets:");
+      if (this.stolenTargets == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.stolenTargets);
+      }
+      first = false;
+    }
     sb.append(")");
     return sb.toString();
   }
@@ -422,6 +520,24 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
               org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
             }
             break;
+          case 3: // STOLEN_TARGETS
+            if (schemeField.type == org.apache.thrift.protocol.TType.LIST) {
+              {
+                org.apache.thrift.protocol.TList _list24 = iprot.readListBegin();
+                struct.stolenTargets = new java.util.ArrayList<java.lang.String>(_list24.size);
+                java.lang.String _elem25;
+                for (int _i26 = 0; _i26 < _list24.size; ++_i26)
+                {
+                  _elem25 = iprot.readString();
+                  struct.stolenTargets.add(_elem25);
+                }
+                iprot.readListEnd();
+              }
+              struct.setStolenTargetsIsSet(true);
+            } else { 
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+            }
+            break;
           default:
             org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
         }
@@ -456,6 +572,20 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
           oprot.writeFieldEnd();
         }
       }
+      if (struct.stolenTargets != null) {
+        if (struct.isSetStolenTargets()) {
+          oprot.writeFieldBegin(STOLEN_TARGETS_FIELD_DESC);
+          {
+            oprot.writeListBegin(new org.apache.thrift.protocol.TList(org.apache.thrift.protocol.TType.STRING, struct.stolenTargets.size()));
+            for (java.lang.String _iter27 : struct.stolenTargets)
+            {
+              oprot.writeString(_iter27);
+            }
+            oprot.writeListEnd();
+          }
+          oprot.writeFieldEnd();
+        }
+      }
       oprot.writeFieldStop();
       oprot.writeStructEnd();
     }
@@ -480,7 +610,10 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
       if (struct.isSetWorkUnits()) {
         optionals.set(1);
       }
-      oprot.writeBitSet(optionals, 2);
+      if (struct.isSetStolenTargets()) {
+        optionals.set(2);
+      }
+      oprot.writeBitSet(optionals, 3);
       if (struct.isSetContinueBuilding()) {
         oprot.writeBool(struct.continueBuilding);
       }
@@ -493,12 +626,21 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
           }
         }
       }
+      if (struct.isSetStolenTargets()) {
+        {
+          oprot.writeI32(struct.stolenTargets.size());
+          for (java.lang.String _iter28 : struct.stolenTargets)
+          {
+            oprot.writeString(_iter28);
+          }
+        }
+      }
     }
 
     @Override
     public void read(org.apache.thrift.protocol.TProtocol prot, GetWorkResponse struct) throws org.apache.thrift.TException {
       org.apache.thrift.protocol.TTupleProtocol iprot = (org.apache.thrift.protocol.TTupleProtocol) prot;
-      java.util.BitSet incoming = iprot.readBitSet(2);
+      java.util.BitSet incoming = iprot.readBitSet(3);
       if (incoming.get(0)) {
         struct.continueBuilding = iprot.readBool();
         struct.setContinueBuildingIsSet(true);
@@ -517,6 +659,19 @@ public class GetWorkResponse implements org.apache.thrift.TBase<GetWorkResponse,
         }
         struct.setWorkUnitsIsSet(true);
       }
+      if (incoming.get(2)) {
+        {
+          org.apache.thrift.protocol.TList _list29 = new org.apache.thrift.protocol.TList(org.apache.thrift.protocol.TType.STRING, iprot.readI32());
+          struct.stolenTargets = new java.util.ArrayList<java.lang.String>(_list29.size);
+          java.lang.String _elem30;
+          for (int _i31 = 0; _i31 < _list29.size; ++_i31)
+          {
+            _elem30 = iprot.readString();
+            struct.stolenTargets.add(_elem30);
+          }
+        }
+        struct.setStolenTargetsIsSet(true);
+      }
     }
   }
 
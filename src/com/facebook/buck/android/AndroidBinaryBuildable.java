@@ -423,7 +423,8 @@ class AndroidBinaryBuildable implements AddsToRuleKey {
               getProjectFilesystem(),
               libOutputBlob,
               libSubdirectory.resolve(SOLID_COMPRESSED_ASSET_LIBRARY_FILENAME),
-              compressionLevel));
+              compressionLevel,
+              /* multiThreaded */ true));
     }
   }
 
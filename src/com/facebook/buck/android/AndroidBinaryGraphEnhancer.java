@@ -681,7 +681,8 @@ public class AndroidBinaryGraphEnhancer {
                     androidPlatformTarget,
                     paramsForPreDex,
                     javaLibrary,
-                    dexTool);
+                    dexTool,
+                    dxConfig.shouldReuseClassDexFiles());
               });
       preDexDeps.put(
           apkModuleGraph.findModuleForTarget(buildTarget), (DexProducedFromJavaLibrary) preDexRule);
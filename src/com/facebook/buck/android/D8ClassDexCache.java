@@ -0,0 +1,342 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.android.tools.r8.ClassFileResourceProvider;
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
+import com.android.tools.r8.DexFilePerClassFileConsumer;
+import com.android.tools.r8.DiagnosticsHandler;
+import com.android.tools.r8.ProgramResource;
+import com.android.tools.r8.origin.ArchiveEntryOrigin;
+import com.android.tools.r8.origin.Origin;
+import com.android.tools.r8.origin.PathOrigin;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Dexes classes with D8 one class at a time, and keeps the dex file of each class in memory for as
+ * long as the process lives, so that a daemon rebuilding a large library only dexes the classes
+ * that changed.
+ *
+ * <p>A class is keyed by its bytecode and by the keys of its supertypes that are dexed along with
+ * it, since desugaring copies default interface methods into implementing classes. The dex files of
+ * the classes are always merged by a separate D8 invocation, whether they were cached or not, so
+ * the merged output does not depend on the state of the cache.
+ *
+ * <p>{@link DxStep} only uses it when {@code dx.reuse_class_dex_files} is set. Outside of the
+ * daemon, the cache starts out empty on every build.
+ */
+class D8ClassDexCache {
+
+  private static final Logger LOG = Logger.get(D8ClassDexCache.class);
+
+  /** Bounds the memory held by the cache, since it lives as long as the daemon. */
+  private static final long MAX_CACHED_DEX_BYTES = 256L * 1024 * 1024;
+
+  static final D8ClassDexCache INSTANCE = new D8ClassDexCache(MAX_CACHED_DEX_BYTES);
+
+  private final Cache<HashCode, byte[]> dexFilesByClassKey;
+
+  /**
+   * Hashes of the android.jar files dexed against, so that an SDK updated in place doesn't reuse
+   * dex files. Only hashed again when the file's size or modification time change.
+   */
+  private final Map<Path, AndroidJarHash> androidJarHashes = new ConcurrentHashMap<>();
+
+  @VisibleForTesting
+  D8ClassDexCache(long maxCachedDexBytes) {
+    this.dexFilesByClassKey =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxCachedDexBytes)
+            .weigher((HashCode key, byte[] dexFile) -> dexFile.length)
+            .build();
+  }
+
+  @VisibleForTesting
+  void invalidateAll() {
+    dexFilesByClassKey.invalidateAll();
+  }
+
+  /**
+   * Dexes each class of the given inputs into an intermediate dex file of its own, reusing the dex
+   * files of the classes that were dexed before with the same library and mode.
+   *
+   * @param inputs class files and archives of class files.
+   * @return the dex file of each class, by class descriptor, or empty if the inputs hold anything
+   *     but class files or hold a class twice, or if D8 did not produce one dex file per class. The
+   *     inputs should then be dexed as a whole.
+   */
+  Optional<ImmutableSortedMap<String, byte[]>> dexClasses(
+      Collection<Path> inputs,
+      Path androidJar,
+      CompilationMode mode,
+      DiagnosticsHandler diagnosticsHandler)
+      throws CompilationFailedException, IOException {
+    Optional<Map<String, ClassInput>> classes = readClasses(inputs);
+    if (!classes.isPresent()) {
+      return Optional.empty();
+    }
+
+    HashCode configurationKey =
+        Hashing.sha1()
+            .newHasher()
+            .putBytes(getAndroidJarHash(androidJar).asBytes())
+            .putString(mode.name(), Charsets.UTF_8)
+            .hash();
+    Map<String, HashCode> classKeys = new HashMap<>();
+    ImmutableSortedMap.Builder<String, byte[]> dexFiles = ImmutableSortedMap.naturalOrder();
+    Map<String, ClassInput> classesToDex = new HashMap<>();
+    Map<String, ClassInput> dexedClasses = new HashMap<>();
+    for (ClassInput classInput : classes.get().values()) {
+      HashCode key = getClassKey(classInput.descriptor, classes.get(), classKeys, configurationKey);
+      byte[] dexFile = dexFilesByClassKey.getIfPresent(key);
+      if (dexFile == null) {
+        classesToDex.put(classInput.descriptor, classInput);
+      } else {
+        dexedClasses.put(classInput.descriptor, classInput);
+        dexFiles.put(classInput.descriptor, dexFile);
+      }
+    }
+    LOG.debug("Reusing the dex files of %d of %d classes.", dexedClasses.size(), classKeys.size());
+
+    if (!classesToDex.isEmpty()) {
+      Map<String, byte[]> newDexFiles =
+          dexClassesOnePerFile(
+              classesToDex.values(), dexedClasses, androidJar, mode, diagnosticsHandler);
+      // D8 places synthesized classes, such as desugared lambdas, in the dex file of the class
+      // they come from. Give up if it did otherwise, as they could not be attributed to a class.
+      if (!newDexFiles.keySet().equals(classesToDex.keySet())) {
+        LOG.warn("D8 did not produce one dex file per class, dexing all classes together.");
+        return Optional.empty();
+      }
+      for (Map.Entry<String, byte[]> newDexFile : newDexFiles.entrySet()) {
+        dexFilesByClassKey.put(classKeys.get(newDexFile.getKey()), newDexFile.getValue());
+        dexFiles.put(newDexFile.getKey(), newDexFile.getValue());
+      }
+    }
+    return Optional.of(dexFiles.build());
+  }
+
+  private HashCode getAndroidJarHash(Path androidJar) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(androidJar, BasicFileAttributes.class);
+    AndroidJarHash cached = androidJarHashes.get(androidJar);
+    if (cached != null
+        && cached.size == attributes.size()
+        && cached.lastModifiedTime.equals(attributes.lastModifiedTime())) {
+      return cached.hash;
+    }
+    HashCode hash = MoreFiles.asByteSource(androidJar).hash(Hashing.sha1());
+    androidJarHashes.put(
+        androidJar, new AndroidJarHash(attributes.size(), attributes.lastModifiedTime(), hash));
+    return hash;
+  }
+
+  private static Map<String, byte[]> dexClassesOnePerFile(
+      Collection<ClassInput> classesToDex,
+      Map<String, ClassInput> classpath,
+      Path androidJar,
+      CompilationMode mode,
+      DiagnosticsHandler diagnosticsHandler)
+      throws CompilationFailedException {
+    Map<String, byte[]> dexFiles = new ConcurrentHashMap<>();
+    D8Command.Builder builder =
+        D8Command.builder(diagnosticsHandler)
+            .setIntermediate(true)
+            .addLibraryFiles(androidJar)
+            // The classes that are not dexed again may still be needed to desugar the others.
+            .addClasspathResourceProvider(
+                new ClassFileResourceProvider() {
+                  @Override
+                  public Set<String> getClassDescriptors() {
+                    return classpath.keySet();
+                  }
+
+                  @Override
+                  public ProgramResource getProgramResource(String descriptor) {
+                    ClassInput classInput = classpath.get(descriptor);
+                    return classInput == null ? null : classInput.toProgramResource();
+                  }
+                })
+            .setMode(mode)
+            .setProgramConsumer(
+                new DexFilePerClassFileConsumer() {
+                  @Override
+                  public void accept(
+                      String primaryClassDescriptor,
+                      byte[] data,
+                      Set<String> descriptors,
+                      DiagnosticsHandler handler) {
+                    dexFiles.put(primaryClassDescriptor, data);
+                  }
+
+                  @Override
+                  public void finished(DiagnosticsHandler handler) {}
+                });
+    for (ClassInput classInput : classesToDex) {
+      builder.addClassProgramData(classInput.bytes, classInput.origin);
+    }
+    D8.run(builder.build());
+    return dexFiles;
+  }
+
+  /**
+   * The key of a class covers the keys of its supertypes, as long as they are in the inputs. Those
+   * which are not are not available to D8 either.
+   */
+  private static HashCode getClassKey(
+      String descriptor,
+      Map<String, ClassInput> classes,
+      Map<String, HashCode> classKeys,
+      HashCode configurationKey) {
+    HashCode key = classKeys.get(descriptor);
+    if (key != null) {
+      return key;
+    }
+    // Placeholder which ends the recursion on cyclic hierarchies, which D8 rejects anyway.
+    classKeys.put(descriptor, configurationKey);
+
+    ClassInput classInput = classes.get(descriptor);
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putBytes(configurationKey.asBytes());
+    hasher.putBytes(classInput.bytes);
+    for (String supertype : classInput.supertypes) {
+      if (classes.containsKey(supertype)) {
+        hasher.putString(supertype, Charsets.UTF_8);
+        hasher.putBytes(getClassKey(supertype, classes, classKeys, configurationKey).asBytes());
+      }
+    }
+    key = hasher.hash();
+    classKeys.put(descriptor, key);
+    return key;
+  }
+
+  private static Optional<Map<String, ClassInput>> readClasses(Collection<Path> inputs)
+      throws IOException {
+    Map<String, ClassInput> classes = new HashMap<>();
+    for (Path input : inputs) {
+      String fileName = input.getFileName().toString();
+      if (fileName.endsWith(".class")) {
+        if (!addClass(classes, Files.readAllBytes(input), new PathOrigin(input))) {
+          return Optional.empty();
+        }
+      } else if (fileName.endsWith(".jar") || fileName.endsWith(".zip")) {
+        Origin archiveOrigin = new PathOrigin(input);
+        try (ZipFile zipFile = new ZipFile(input.toFile())) {
+          for (ZipEntry entry : Collections.list(zipFile.entries())) {
+            if (entry.getName().endsWith(".dex")) {
+              return Optional.empty();
+            }
+            if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+              continue;
+            }
+            byte[] bytes;
+            try (InputStream entryStream = zipFile.getInputStream(entry)) {
+              bytes = ByteStreams.toByteArray(entryStream);
+            }
+            if (!addClass(
+                classes, bytes, new ArchiveEntryOrigin(entry.getName(), archiveOrigin))) {
+              return Optional.empty();
+            }
+          }
+        }
+      } else {
+        return Optional.empty();
+      }
+    }
+    return Optional.of(classes);
+  }
+
+  private static boolean addClass(Map<String, ClassInput> classes, byte[] bytes, Origin origin) {
+    ClassReader reader = new ClassReader(bytes);
+    ImmutableList.Builder<String> supertypes = ImmutableList.builder();
+    if (reader.getSuperName() != null) {
+      supertypes.add(toDescriptor(reader.getSuperName()));
+    }
+    for (String interfaceName : reader.getInterfaces()) {
+      supertypes.add(toDescriptor(interfaceName));
+    }
+    ClassInput classInput =
+        new ClassInput(toDescriptor(reader.getClassName()), bytes, origin, supertypes.build());
+    return classes.putIfAbsent(classInput.descriptor, classInput) == null;
+  }
+
+  private static String toDescriptor(String internalName) {
+    return "L" + internalName + ";";
+  }
+
+  private static class AndroidJarHash {
+    private final long size;
+    private final FileTime lastModifiedTime;
+    private final HashCode hash;
+
+    private AndroidJarHash(long size, FileTime lastModifiedTime, HashCode hash) {
+      this.size = size;
+      this.lastModifiedTime = lastModifiedTime;
+      this.hash = hash;
+    }
+  }
+
+  private static class ClassInput {
+    private final String descriptor;
+    private final byte[] bytes;
+    private final Origin origin;
+    private final ImmutableList<String> supertypes;
+
+    private ClassInput(
+        String descriptor, byte[] bytes, Origin origin, ImmutableList<String> supertypes) {
+      this.descriptor = descriptor;
+      this.bytes = bytes;
+      this.origin = origin;
+      this.supertypes = supertypes;
+    }
+
+    private ProgramResource toProgramResource() {
+      return ProgramResource.fromBytes(
+          origin, ProgramResource.Kind.CF, bytes, ImmutableSet.of(descriptor));
+    }
+  }
+}
@@ -88,6 +88,11 @@ public class DexProducedFromJavaLibrary extends AbstractBuildRuleWithDeclaredAnd
 
   private final AndroidPlatformTarget androidPlatformTarget;
   private final JavaLibrary javaLibrary;
+  /**
+   * Dexing class by class and merging the result doesn't produce the same bytes as dexing the
+   * library at once, so this has to be part of the rule key.
+   */
+  @AddToRuleKey private final boolean reuseClassDexFiles;
   private final BuildOutputInitializer<BuildOutput> buildOutputInitializer;
 
   DexProducedFromJavaLibrary(
@@ -106,10 +111,23 @@ public class DexProducedFromJavaLibrary extends AbstractBuildRuleWithDeclaredAnd
       BuildRuleParams params,
       JavaLibrary javaLibrary,
       String dexTool) {
+    this(
+        buildTarget, projectFilesystem, androidPlatformTarget, params, javaLibrary, dexTool, false);
+  }
+
+  DexProducedFromJavaLibrary(
+      BuildTarget buildTarget,
+      ProjectFilesystem projectFilesystem,
+      AndroidPlatformTarget androidPlatformTarget,
+      BuildRuleParams params,
+      JavaLibrary javaLibrary,
+      String dexTool,
+      boolean reuseClassDexFiles) {
     super(buildTarget, projectFilesystem, params);
     this.androidPlatformTarget = androidPlatformTarget;
     this.javaLibrary = javaLibrary;
     this.dexTool = dexTool;
+    this.reuseClassDexFiles = reuseClassDexFiles;
     this.javaLibrarySourcePath = javaLibrary.getSourcePathToOutput();
     this.buildOutputInitializer = new BuildOutputInitializer<>(buildTarget, this);
   }
@@ -149,6 +167,15 @@ public class DexProducedFromJavaLibrary extends AbstractBuildRuleWithDeclaredAnd
 
       // To be conservative, use --force-jumbo for these intermediate .dex files so that they can be
       // merged into a final classes.dex that uses jumbo instructions.
+      EnumSet<DxStep.Option> options =
+          EnumSet.of(
+              DxStep.Option.USE_CUSTOM_DX_IF_AVAILABLE,
+              DxStep.Option.RUN_IN_PROCESS,
+              DxStep.Option.NO_OPTIMIZE,
+              DxStep.Option.FORCE_JUMBO);
+      if (reuseClassDexFiles) {
+        options.add(DxStep.Option.REUSE_CLASS_DEX_FILES);
+      }
       dx =
           new DxStep(
               getBuildTarget(),
@@ -156,11 +183,7 @@ public class DexProducedFromJavaLibrary extends AbstractBuildRuleWithDeclaredAnd
               androidPlatformTarget,
               getPathToDex(),
               Collections.singleton(pathToOutputFile),
-              EnumSet.of(
-                  DxStep.Option.USE_CUSTOM_DX_IF_AVAILABLE,
-                  DxStep.Option.RUN_IN_PROCESS,
-                  DxStep.Option.NO_OPTIMIZE,
-                  DxStep.Option.FORCE_JUMBO),
+              options,
               Optional.empty(),
               dexTool,
               dexTool.equals(DxStep.D8));
@@ -46,4 +46,12 @@ public class DxConfig {
   public OptionalInt getDxMaxThreadCount() {
     return delegate.getInteger("dx", "max_threads");
   }
+
+  /**
+   * @return Whether pre-dexing with D8 should dex classes one by one, so that the daemon can reuse
+   *     the dex files of the classes that did not change since an earlier build.
+   */
+  public boolean shouldReuseClassDexFiles() {
+    return delegate.getBooleanValue("dx", "reuse_class_dex_files", false);
+  }
 }
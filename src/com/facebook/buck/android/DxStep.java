@@ -22,6 +22,7 @@ import com.android.tools.r8.D8Command;
 import com.android.tools.r8.Diagnostic;
 import com.android.tools.r8.DiagnosticsHandler;
 import com.android.tools.r8.OutputMode;
+import com.android.tools.r8.origin.Origin;
 import com.facebook.buck.android.toolchain.AndroidPlatformTarget;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.event.ConsoleEvent;
@@ -34,6 +35,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Sets;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -73,6 +75,12 @@ public class DxStep extends ShellStep {
 
     /** Run DX with the --no-locals flag. */
     NO_LOCALS,
+
+    /**
+     * When running D8, dex the classes one by one and merge them, reusing the dex files of the
+     * classes dexed by earlier builds in this process, see {@link D8ClassDexCache}.
+     */
+    REUSE_CLASS_DEX_FILES,
     ;
   }
 
@@ -263,16 +271,32 @@ public class DxStep extends ShellStep {
         boolean outputToDex = outputDexFile.getFileName().toString().endsWith(".dex");
         Path output = outputToDex ? Files.createTempDirectory("buck-d8") : outputDexFile;
 
+        CompilationMode mode =
+            options.contains(Option.NO_OPTIMIZE) ? CompilationMode.DEBUG : CompilationMode.RELEASE;
         D8Command.Builder builder =
             D8Command.builder(diagnosticsHandler)
-                .addProgramFiles(inputs)
                 .setIntermediate(intermediate)
                 .addLibraryFiles(androidPlatformTarget.getAndroidJar())
-                .setMode(
-                    options.contains(Option.NO_OPTIMIZE)
-                        ? CompilationMode.DEBUG
-                        : CompilationMode.RELEASE)
+                .setMode(mode)
                 .setOutput(output, OutputMode.DexIndexed);
+
+        // Dex the classes one by one, reusing those dexed by earlier builds, and merge them. Fall
+        // back to dexing the inputs as a whole if they are not all class files. This is done even
+        // when nothing can be reused, e.g. outside of the daemon, so that the output only depends
+        // on the option.
+        Optional<ImmutableSortedMap<String, byte[]>> classDexFiles = Optional.empty();
+        if (options.contains(Option.REUSE_CLASS_DEX_FILES)) {
+          classDexFiles =
+              D8ClassDexCache.INSTANCE.dexClasses(
+                  inputs, androidPlatformTarget.getAndroidJar(), mode, diagnosticsHandler);
+        }
+        if (classDexFiles.isPresent()) {
+          for (byte[] classDexFile : classDexFiles.get().values()) {
+            builder.addDexProgramData(classDexFile, Origin.unknown());
+          }
+        } else {
+          builder.addProgramFiles(inputs);
+        }
         D8Command d8Command = builder.build();
         com.android.tools.r8.D8.run(d8Command);
 
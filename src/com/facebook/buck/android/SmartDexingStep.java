@@ -209,7 +209,8 @@ public class SmartDexingStep implements Step {
                     filesystem,
                     secondaryBlobOutput,
                     secondaryCompressedBlobOutput,
-                    xzCompressionLevel.orElse(XzStep.DEFAULT_COMPRESSION_LEVEL));
+                    xzCompressionLevel.orElse(XzStep.DEFAULT_COMPRESSION_LEVEL),
+                    /* multiThreaded */ true);
             stepRunner.runStepForBuildTarget(context, concatStep, Optional.empty());
             stepRunner.runStepForBuildTarget(context, xzStep, Optional.empty());
           }
@@ -29,8 +29,11 @@ import com.google.common.io.ByteStreams;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -45,6 +48,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -122,7 +126,10 @@ public class ExoResourcesRewriter {
 
   static ReferenceMapper rewriteResources(Path inputPath, Path primaryResources, Path exoResources)
       throws IOException {
-    try (ApkZip apkZip = new ApkZip(inputPath)) {
+    // The resource table is extracted next to the exo resources and rewritten there in place.
+    Path resourceTablePath =
+        exoResources.resolveSibling(exoResources.getFileName() + ".resources.arsc");
+    try (ApkZip apkZip = new ApkZip(inputPath, resourceTablePath)) {
       UsedResourcesFinder.ResourceClosure closure =
           UsedResourcesFinder.computePrimaryApkClosure(apkZip);
       ReferenceMapper resMapping =
@@ -136,12 +143,18 @@ public class ExoResourcesRewriter {
       // Write the full (rearranged) resources to the exo resources.
       try (ResourcesZipBuilder zipBuilder = new ResourcesZipBuilder(exoResources)) {
         for (ZipEntry entry : apkZip.getEntries()) {
-          addEntry(
-              zipBuilder,
-              entry.getName(),
-              apkZip.getContent(entry.getName()),
-              entry.getMethod() == ZipEntry.STORED ? 0 : Deflater.BEST_COMPRESSION,
-              false);
+          int compressionLevel =
+              entry.getMethod() == ZipEntry.STORED ? 0 : Deflater.BEST_COMPRESSION;
+          if (entry.getName().equals("resources.arsc")) {
+            addEntry(zipBuilder, entry.getName(), resourceTablePath, compressionLevel);
+          } else {
+            addEntry(
+                zipBuilder,
+                entry.getName(),
+                apkZip.getContent(entry.getName()),
+                compressionLevel,
+                false);
+          }
         }
       }
       // Then, slice out the resources needed for the primary apk.
@@ -258,15 +271,30 @@ public class ExoResourcesRewriter {
         isDirectory);
   }
 
+  private static void addEntry(
+      ResourcesZipBuilder zipBuilder, String name, Path content, int compressionLevel)
+      throws IOException {
+    CRC32 crc32 = new CRC32();
+    try (InputStream stream = new CheckedInputStream(Files.newInputStream(content), crc32)) {
+      ByteStreams.exhaust(stream);
+    }
+    try (InputStream stream = Files.newInputStream(content)) {
+      zipBuilder.addEntry(
+          stream, Files.size(content), crc32.getValue(), name, compressionLevel, false);
+    }
+  }
+
   private static class ApkZip implements Closeable, UsedResourcesFinder.ApkContentProvider {
     private final ZipFile zipFile;
+    private final Path resourceTablePath;
     private final SortedMap<String, ZipEntry> entries;
     private final Map<String, byte[]> entryContents;
     private final Map<String, ResourcesXml> xmlEntries;
     private final Supplier<ResourceTable> resourceTable;
 
-    public ApkZip(Path inputPath) throws IOException {
+    public ApkZip(Path inputPath, Path resourceTablePath) throws IOException {
       this.zipFile = new ZipFile(inputPath.toFile());
+      this.resourceTablePath = resourceTablePath;
       this.entries =
           Collections.list(zipFile.entries())
               .stream()
@@ -275,9 +303,7 @@ public class ExoResourcesRewriter {
                       Ordering.natural(), ZipEntry::getName, e -> e));
       this.entryContents = new HashMap<>();
       this.xmlEntries = new HashMap<>();
-      this.resourceTable =
-          MoreSuppliers.memoize(
-              () -> ResourceTable.get(ResChunk.wrap(getContent("resources.arsc"))));
+      this.resourceTable = MoreSuppliers.memoize(this::mapResourceTable);
     }
 
     @Override
@@ -334,6 +360,21 @@ public class ExoResourcesRewriter {
       }
     }
 
+    /**
+     * Extracts resources.arsc to {@code resourceTablePath} and maps it, so that the table is not
+     * read onto the heap and rewriting its ids only touches the pages that hold them.
+     */
+    private ResourceTable mapResourceTable() {
+      try {
+        try (InputStream stream = zipFile.getInputStream(entries.get("resources.arsc"))) {
+          Files.copy(stream, resourceTablePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return ResourceTable.map(resourceTablePath, MapMode.READ_WRITE);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
     private ResourcesXml extractXml(String path) {
       try {
         return ResourcesXml.get(ResChunk.wrap(getContent(path)));
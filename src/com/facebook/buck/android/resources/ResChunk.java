@@ -20,7 +20,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.primitives.Shorts;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
 
 /**
  * ResChunk is the base of most structures in Android's .arsc and compiled .xml files. It consists
@@ -130,10 +129,12 @@ public abstract class ResChunk {
     }
   }
 
-  // These are some utilities used widely by subclasses for dealing with ByteBuffers.
+  // These are some utilities used widely by subclasses for dealing with ByteBuffers. They don't
+  // assume that buffers are backed by arrays, as memory-mapped tables are not.
   static ByteBuffer copy(ByteBuffer buf) {
-    return wrap(
-        Arrays.copyOfRange(buf.array(), buf.arrayOffset(), buf.arrayOffset() + buf.limit()));
+    byte[] data = new byte[buf.limit()];
+    slice(buf, 0).get(data);
+    return wrap(data);
   }
 
   public static ByteBuffer wrap(byte[] data) {
@@ -50,10 +50,10 @@ public class ResTablePackage extends ResChunk {
   private final Supplier<String> name;
   private final StringPool types;
   private final StringPool keys;
-  private final List<ResTableTypeSpec> typeSpecs;
+  private final Supplier<List<ResTableTypeSpec>> typeSpecs;
 
   public void reassignIds(ReferenceMapper refMapping) {
-    for (ResTableTypeSpec spec : typeSpecs) {
+    for (ResTableTypeSpec spec : getTypeSpecs()) {
       spec.reassignIds(refMapping);
     }
   }
@@ -137,18 +137,30 @@ public class ResTablePackage extends ResChunk {
     Preconditions.checkState(lastPublicKey == keys.getStringCount() || lastPublicKey == 0);
     Preconditions.checkState(keyStringOffset == HEADER_SIZE + types.getChunkSize());
 
+    // The type specs hold nearly all of the data, so only decode them when they are needed.
+    ByteBuffer typeSpecsBuf = slice(buf, 0, chunkSize);
+    int typeSpecsOffset = keyStringOffset + keys.getChunkSize();
+    return new ResTablePackage(
+        chunkSize,
+        packageId,
+        nameData,
+        types,
+        keys,
+        MoreSuppliers.memoize(() -> readTypeSpecs(typeSpecsBuf, typeSpecsOffset)));
+  }
+
+  private static List<ResTableTypeSpec> readTypeSpecs(ByteBuffer buf, int offset) {
     ImmutableList.Builder<ResTableTypeSpec> typeSpecs = ImmutableList.builder();
-    buf.position(keyStringOffset + keys.getChunkSize());
-    while (buf.position() < chunkSize) {
+    buf.position(offset);
+    while (buf.position() < buf.limit()) {
       ByteBuffer specBuf = slice(buf, buf.position());
       ResTableTypeSpec spec = ResTableTypeSpec.get(specBuf);
       typeSpecs.add(spec);
       buf.position(buf.position() + spec.getTotalSize());
     }
 
-    Preconditions.checkState(buf.position() == chunkSize);
-
-    return new ResTablePackage(chunkSize, packageId, nameData, types, keys, typeSpecs.build());
+    Preconditions.checkState(buf.position() == buf.limit());
+    return typeSpecs.build();
   }
 
   @Override
@@ -169,7 +181,7 @@ public class ResTablePackage extends ResChunk {
     keys.put(output);
     Preconditions.checkState(
         output.position() == start + HEADER_SIZE + types.getChunkSize() + keys.getChunkSize());
-    typeSpecs.forEach(s -> s.put(output));
+    getTypeSpecs().forEach(s -> s.put(output));
     Preconditions.checkState(output.position() == start + getChunkSize());
   }
 
@@ -180,6 +192,16 @@ public class ResTablePackage extends ResChunk {
       StringPool types,
       StringPool keys,
       List<ResTableTypeSpec> typeSpecs) {
+    this(chunkSize, packageId, nameData, types, keys, () -> typeSpecs);
+  }
+
+  private ResTablePackage(
+      int chunkSize,
+      int packageId,
+      byte[] nameData,
+      StringPool types,
+      StringPool keys,
+      Supplier<List<ResTableTypeSpec>> typeSpecs) {
     super(CHUNK_RES_TABLE_PACKAGE, HEADER_SIZE, chunkSize);
     this.packageId = packageId;
     this.nameData = nameData;
@@ -200,7 +222,7 @@ public class ResTablePackage extends ResChunk {
   public void dump(StringPool strings, PrintStream out) {
     out.format("Package Group 0 id=0x%02x packageCount=1 name=%s\n", packageId, getPackageName());
     out.format("  Package 0 id=0x%02x name=%s\n", packageId, getPackageName());
-    for (ResTableTypeSpec spec : typeSpecs) {
+    for (ResTableTypeSpec spec : getTypeSpecs()) {
       spec.dump(strings, this, out);
     }
   }
@@ -210,7 +232,7 @@ public class ResTablePackage extends ResChunk {
   }
 
   public List<ResTableTypeSpec> getTypeSpecs() {
-    return typeSpecs;
+    return typeSpecs.get();
   }
 
   public StringPool getKeys() {
@@ -218,7 +240,7 @@ public class ResTablePackage extends ResChunk {
   }
 
   public ResTableTypeSpec getTypeSpec(int type) {
-    for (ResTableTypeSpec spec : typeSpecs) {
+    for (ResTableTypeSpec spec : getTypeSpecs()) {
       if (spec.getResourceType() == type) {
         return spec;
       }
@@ -235,17 +257,17 @@ public class ResTablePackage extends ResChunk {
   }
 
   public void transformStringReferences(RefTransformer visitor) {
-    typeSpecs.forEach(c -> c.transformStringReferences(visitor));
+    getTypeSpecs().forEach(c -> c.transformStringReferences(visitor));
   }
 
   public void visitStringReferences(RefVisitor visitor) {
-    typeSpecs.forEach(c -> c.visitStringReferences(visitor));
+    getTypeSpecs().forEach(c -> c.visitStringReferences(visitor));
   }
 
   public String getRefName(int i) {
     int type = (i >> 16) & 0xFF;
     int idx = i & 0xFFFF;
-    ResTableTypeSpec spec = typeSpecs.get(type - 1);
+    ResTableTypeSpec spec = getTypeSpecs().get(type - 1);
     Preconditions.checkState(spec.getResourceType() == type);
     return spec.getResourceName(this, idx);
   }
@@ -17,7 +17,6 @@
 package com.facebook.buck.android.resources;
 
 import com.google.common.base.Preconditions;
-import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
@@ -58,30 +57,34 @@ public class ResTableType extends ResChunk {
 
   @Nullable
   public static ResTableType slice(ResTableType type, int count) {
-    ByteArrayOutputStream output = new ByteArrayOutputStream();
-    int currentOffset = 0;
+    int entryDataSize = 0;
     ByteBuffer entryOffsets = wrap(new byte[count * 4]);
     for (int i = 0; i < count; i++) {
       int offset = type.getEntryValueOffset(i);
       if (offset == -1) {
         entryOffsets.putInt(i * 4, -1);
       } else {
-        entryOffsets.putInt(i * 4, currentOffset);
-        int dataSize = type.getEntrySizeAtOffset(offset);
-        currentOffset += dataSize;
-        output.write(type.entryData.array(), type.entryData.arrayOffset() + offset, dataSize);
+        entryOffsets.putInt(i * 4, entryDataSize);
+        entryDataSize += type.getEntrySizeAtOffset(offset);
       }
     }
 
-    byte[] entryData = output.toByteArray();
-    if (entryData.length == 0) {
+    if (entryDataSize == 0) {
       return null;
     }
+    ByteBuffer entryData = wrap(new byte[entryDataSize]);
+    for (int i = 0; i < count; i++) {
+      int offset = type.getEntryValueOffset(i);
+      if (offset != -1) {
+        entryData.put(slice(type.entryData, offset, type.getEntrySizeAtOffset(offset)));
+      }
+    }
+    entryData.rewind();
     int headerSize = type.getHeaderSize();
-    int chunkSize = headerSize + count * 4 + entryData.length;
+    int chunkSize = headerSize + count * 4 + entryDataSize;
 
     return new ResTableType(
-        headerSize, chunkSize, type.id, count, copy(type.config), entryOffsets, wrap(entryData));
+        headerSize, chunkSize, type.id, count, copy(type.config), entryOffsets, entryData);
   }
 
   private int getEntrySizeAtOffset(int offset) {
@@ -454,6 +457,21 @@ public class ResTableType extends ResChunk {
   }
 
   private void sortAttributesAt(ByteBuffer entryData, int attrCount, int attrStart) {
+    // Most maps are still sorted after their ids are reassigned. Leave those untouched, so that
+    // memory-mapped tables are not copied or written to for nothing.
+    int entryOffset = attrStart;
+    int previousResId = Integer.MIN_VALUE;
+    boolean sorted = true;
+    for (int j = 0; j < attrCount && sorted; j++) {
+      int resId = entryData.getInt(entryOffset + ATTRIBUTE_NAME_REF_OFFSET);
+      sorted = previousResId <= resId;
+      previousResId = resId;
+      entryOffset += 4 + entryData.getShort(entryOffset + ATTRIBUTE_SIZE_OFFSET);
+    }
+    if (sorted) {
+      return;
+    }
+
     class AttrRef implements Comparable<AttrRef> {
       final int offset;
       final int size;
@@ -471,7 +489,7 @@ public class ResTableType extends ResChunk {
       }
     }
     Stream.Builder<AttrRef> builder = Stream.builder();
-    int entryOffset = attrStart;
+    entryOffset = attrStart;
     for (int j = 0; j < attrCount; j++) {
       AttrRef ref = new AttrRef(entryOffset);
       builder.add(ref);
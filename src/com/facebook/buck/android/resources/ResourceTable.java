@@ -21,8 +21,15 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Maps;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.stream.IntStream;
@@ -70,6 +77,23 @@ public class ResourceTable extends ResChunk {
     return new ResourceTable(strings, resPackage);
   }
 
+  /**
+   * Maps a resources.arsc file into memory and reads it lazily, so that only the chunks that are
+   * used are paged in. Changes made to the table, like {@link #reassignIds}, are made in place: in
+   * the file with {@link MapMode#READ_WRITE}, or in a copy-on-write view of it with {@link
+   * MapMode#PRIVATE}, which only copies the pages that are changed.
+   */
+  public static ResourceTable map(Path path, MapMode mode) throws IOException {
+    try (FileChannel channel =
+        mode == MapMode.READ_ONLY
+            ? FileChannel.open(path, StandardOpenOption.READ)
+            : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buf = channel.map(mode, 0, channel.size());
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      return get(buf);
+    }
+  }
+
   @Override
   public void put(ByteBuffer buf) {
     putChunkHeader(buf);
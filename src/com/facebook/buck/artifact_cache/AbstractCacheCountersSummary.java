@@ -17,6 +17,7 @@
 package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode.CacheType;
 import com.facebook.buck.core.util.immutables.BuckStyleImmutable;
 import com.facebook.buck.log.views.JsonViews;
 import com.fasterxml.jackson.annotation.JsonView;
@@ -69,4 +70,11 @@ abstract class AbstractCacheCountersSummary {
   @Value.Parameter
   @JsonView(JsonViews.MachineReadableLog.class)
   public abstract AtomicInteger getFailureUploadCount();
+
+  /** Per-tier lookup statistics, only populated when the tiered artifact cache is in use. */
+  @Value.Default
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public ImmutableMap<CacheType, CacheTierStats> getCacheTierStats() {
+    return ImmutableMap.of();
+  }
 }
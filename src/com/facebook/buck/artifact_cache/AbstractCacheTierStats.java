@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.util.immutables.BuckStyleImmutable;
+import com.facebook.buck.log.views.JsonViews;
+import com.fasterxml.jackson.annotation.JsonView;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import org.immutables.value.Value;
+
+/** Lookup statistics for one tier of a tiered artifact cache, as written to the machine log. */
+@Value.Immutable
+@BuckStyleImmutable
+@JsonDeserialize(as = CacheTierStats.class)
+abstract class AbstractCacheTierStats {
+
+  @Value.Parameter
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public abstract int getHits();
+
+  @Value.Parameter
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public abstract int getMisses();
+
+  @Value.Parameter
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public abstract int getErrors();
+
+  /** Fraction of lookups against this tier that were hits, or 0 if there were no lookups. */
+  @Value.Parameter
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public abstract double getHitRatio();
+
+  @Value.Parameter
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public abstract long getTotalLatencyMillis();
+
+  /** Mean time spent in a lookup against this tier, or 0 if there were no lookups. */
+  @Value.Parameter
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public abstract long getAverageLatencyMillis();
+}
@@ -56,4 +56,11 @@ interface AbstractNetworkCacheArgs {
   int getErrorTextLimit();
 
   Optional<Long> getMaxStoreSizeBytes();
+
+  Optional<Long> getFetchChunkSizeBytes();
+
+  @Value.Default
+  default int getMaxParallelChunkFetches() {
+    return 4;
+  }
 }
@@ -39,6 +39,7 @@ import com.facebook.buck.slb.HttpService;
 import com.facebook.buck.slb.LoadBalancedService;
 import com.facebook.buck.slb.RetryingHttpService;
 import com.facebook.buck.slb.SingleUriService;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.randomizedtrial.RandomizedTrial;
 import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.base.CharMatcher;
@@ -47,6 +48,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
@@ -244,12 +246,15 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
       return new NoopArtifactCache();
     }
     ArtifactCacheEntries cacheEntries = buckConfig.getCacheEntries();
-    ImmutableList.Builder<ArtifactCache> builder = ImmutableList.builder();
+    ImmutableList.Builder<ArtifactCache> allCaches = ImmutableList.builder();
+    ImmutableList.Builder<ArtifactCache> localCaches = ImmutableList.builder();
+    ImmutableList.Builder<ArtifactCache> remoteCaches = ImmutableList.builder();
     for (ArtifactCacheMode mode : modes) {
       if (cacheTypeBlacklist.contains(mode.getCacheType())) {
         continue;
       }
 
+      ImmutableList.Builder<ArtifactCache> builder = ImmutableList.builder();
       switch (mode) {
         case unknown:
           break;
@@ -296,15 +301,30 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               mode);
           break;
       }
+      ImmutableList<ArtifactCache> modeCaches = builder.build();
+      allCaches.addAll(modeCaches);
+      if (mode.getCacheType() == local) {
+        localCaches.addAll(modeCaches);
+      } else {
+        remoteCaches.addAll(modeCaches);
+      }
     }
-    ImmutableList<ArtifactCache> artifactCaches = builder.build();
     ArtifactCache result;
 
-    if (artifactCaches.size() == 1) {
-      // Don't bother wrapping a single artifact cache
-      result = artifactCaches.get(0);
+    ImmutableList<ArtifactCache> localTier = localCaches.build();
+    ImmutableList<ArtifactCache> remoteTier = remoteCaches.build();
+    if (buckConfig.getTieredCachingEnabled() && !localTier.isEmpty() && !remoteTier.isEmpty()) {
+      result =
+          new TieredArtifactCache(
+              buckEventBus,
+              combineCaches(localTier),
+              combineCaches(remoteTier),
+              MoreExecutors.listeningDecorator(
+                  MostExecutors.newSingleThreadExecutor("Artifact cache promotion")),
+              new DefaultClock(),
+              buckConfig.getTieredCachingMaxPendingPromotionSize());
     } else {
-      result = new MultiArtifactCache(artifactCaches);
+      result = combineCaches(allCaches.build());
     }
 
     // Always support reading two-level cache stores (in case we performed any in the past).
@@ -320,6 +340,14 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
     return result;
   }
 
+  private static ArtifactCache combineCaches(ImmutableList<ArtifactCache> artifactCaches) {
+    if (artifactCaches.size() == 1) {
+      // Don't bother wrapping a single artifact cache
+      return artifactCaches.get(0);
+    }
+    return new MultiArtifactCache(artifactCaches);
+  }
+
   private static void initializeDirCaches(
       ArtifactCacheEntries artifactCacheEntries,
       BuckEventBus buckEventBus,
@@ -392,7 +420,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               projectFilesystem,
               cacheDir,
               dirCacheConfig.getCacheReadMode(),
-              dirCacheConfig.getMaxSizeBytes());
+              dirCacheConfig.getMaxSizeBytes(),
+              dirCacheConfig.getLayout());
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -564,6 +593,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             .setHttpFetchExecutorService(httpFetchExecutorService)
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
             .setErrorTextLimit(cacheDescription.getErrorMessageLimit())
+            .setFetchChunkSizeBytes(cacheDescription.getFetchChunkSizeBytes())
+            .setMaxParallelChunkFetches(cacheDescription.getMaxParallelChunkFetches())
             .build());
   }
 
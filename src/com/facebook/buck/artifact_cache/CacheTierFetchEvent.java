@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode.CacheType;
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.EventKey;
+
+/**
+ * Reports the outcome and latency of a single lookup against one tier of a tiered artifact cache,
+ * so that listeners can aggregate per-tier hit ratios.
+ */
+public class CacheTierFetchEvent extends AbstractBuckEvent {
+  private final CacheType tier;
+  private final CacheResultType resultType;
+  private final long latencyMillis;
+
+  public static CacheTierFetchEvent of(
+      CacheType tier, CacheResultType resultType, long latencyMillis) {
+    return new CacheTierFetchEvent(EventKey.unique(), tier, resultType, latencyMillis);
+  }
+
+  private CacheTierFetchEvent(
+      EventKey eventKey, CacheType tier, CacheResultType resultType, long latencyMillis) {
+    super(eventKey);
+    this.tier = tier;
+    this.resultType = resultType;
+    this.latencyMillis = latencyMillis;
+  }
+
+  public CacheType getTier() {
+    return tier;
+  }
+
+  public CacheResultType getResultType() {
+    return resultType;
+  }
+
+  public long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  @Override
+  protected String getValueString() {
+    return String.format("%s:%s", tier, resultType);
+  }
+
+  @Override
+  public String getEventName() {
+    return "CacheTierFetch";
+  }
+}
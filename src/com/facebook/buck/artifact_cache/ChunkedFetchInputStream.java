@@ -0,0 +1,254 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An {@link InputStream} over a fetch response which is downloaded as a series of byte ranges
+ * ("chunks"), several of them in parallel.
+ *
+ * <p>Chunks are downloaded ahead of the reader, with at most a fixed number of them buffered or in
+ * flight at any time, so the reader can process the response (e.g. hash it and write it to disk)
+ * while the rest of it is still being downloaded. A chunk whose download fails part way is resumed
+ * from where it stopped, rather than starting the whole fetch over.
+ */
+class ChunkedFetchInputStream extends InputStream {
+
+  private static final Logger LOG = Logger.get(ChunkedFetchInputStream.class);
+
+  /** Fetches a range of the response. */
+  interface RangeFetcher {
+    /** Writes bytes {@code start} to {@code end} (inclusive) of the response to {@code sink}. */
+    void fetch(long start, long end, OutputStream sink) throws IOException;
+  }
+
+  private final long totalLength;
+  private final int chunkSize;
+  private final int maxChunksAhead;
+  private final int maxRetriesPerChunk;
+  private final RangeFetcher fetcher;
+  private final ListeningExecutorService executor;
+
+  private final Deque<ListenableFuture<byte[]>> pendingChunks = new ArrayDeque<>();
+  private int nextChunkToSchedule;
+
+  private byte[] currentChunk;
+  private int currentChunkPosition = 0;
+
+  private ChunkedFetchInputStream(
+      long totalLength,
+      int chunkSize,
+      int maxChunksAhead,
+      int maxRetriesPerChunk,
+      RangeFetcher fetcher,
+      ListeningExecutorService executor) {
+    this.totalLength = totalLength;
+    this.chunkSize = chunkSize;
+    this.maxChunksAhead = maxChunksAhead;
+    this.maxRetriesPerChunk = maxRetriesPerChunk;
+    this.fetcher = fetcher;
+    this.executor = executor;
+    this.nextChunkToSchedule = 1;
+    this.currentChunk = new byte[0];
+  }
+
+  /**
+   * Starts downloading the chunks after the first one, then reads the first one from the given
+   * response body on the calling thread.
+   *
+   * @param firstChunk the body of a response for the first {@code chunkSize} bytes.
+   * @param totalLength the length of the whole response.
+   * @param maxChunksAhead the maximum number of chunks downloaded ahead of the reader.
+   */
+  static ChunkedFetchInputStream start(
+      InputStream firstChunk,
+      long totalLength,
+      int chunkSize,
+      int maxChunksAhead,
+      int maxRetriesPerChunk,
+      RangeFetcher fetcher,
+      ListeningExecutorService executor)
+      throws IOException {
+    Preconditions.checkArgument(chunkSize > 0);
+    Preconditions.checkArgument(maxChunksAhead > 0);
+    ChunkedFetchInputStream stream =
+        new ChunkedFetchInputStream(
+            totalLength, chunkSize, maxChunksAhead, maxRetriesPerChunk, fetcher, executor);
+    try {
+      stream.scheduleChunks();
+      stream.currentChunk = stream.downloadChunk(0, firstChunk);
+    } catch (IOException | RuntimeException e) {
+      stream.close();
+      throw e;
+    }
+    return stream;
+  }
+
+  private int getChunkCount() {
+    return (int) ((totalLength + chunkSize - 1) / chunkSize);
+  }
+
+  private void scheduleChunks() {
+    while (pendingChunks.size() < maxChunksAhead && nextChunkToSchedule < getChunkCount()) {
+      int chunk = nextChunkToSchedule++;
+      pendingChunks.add(executor.submit(() -> downloadChunk(chunk, null)));
+    }
+  }
+
+  /**
+   * Downloads a whole chunk, resuming from the last byte received if the download fails.
+   *
+   * @param initialBody an already requested body for the chunk, if any.
+   */
+  private byte[] downloadChunk(int chunk, InputStream initialBody) throws IOException {
+    long start = (long) chunk * chunkSize;
+    byte[] buffer = new byte[(int) Math.min(chunkSize, totalLength - start)];
+    ChunkSink sink = new ChunkSink(buffer);
+    int attempt = 0;
+    while (true) {
+      try {
+        if (attempt == 0 && initialBody != null) {
+          try (InputStream body = initialBody) {
+            copy(body, sink);
+          }
+        } else {
+          fetcher.fetch(start + sink.position, start + buffer.length - 1, sink);
+        }
+        if (sink.position == buffer.length) {
+          return buffer;
+        }
+        throw new IOException(
+            String.format(
+                "Chunk %d ended after %d of %d bytes", chunk, sink.position, buffer.length));
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        if (++attempt > maxRetriesPerChunk) {
+          throw e;
+        }
+        LOG.debug(e, "Resuming chunk %d at byte %d", chunk, sink.position);
+      }
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  /** Moves on to the next chunk, waiting for it to be downloaded if needed. */
+  private boolean nextChunk() throws IOException {
+    ListenableFuture<byte[]> next = pendingChunks.poll();
+    if (next == null) {
+      return false;
+    }
+    try {
+      currentChunk = next.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a chunk");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    currentChunkPosition = 0;
+    scheduleChunks();
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (currentChunkPosition == currentChunk.length) {
+      if (!nextChunk()) {
+        return -1;
+      }
+    }
+    return currentChunk[currentChunkPosition++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (currentChunkPosition == currentChunk.length) {
+      if (!nextChunk()) {
+        return -1;
+      }
+    }
+    int read = Math.min(len, currentChunk.length - currentChunkPosition);
+    System.arraycopy(currentChunk, currentChunkPosition, b, off, read);
+    currentChunkPosition += read;
+    return read;
+  }
+
+  @Override
+  public int available() {
+    return currentChunk.length - currentChunkPosition;
+  }
+
+  @Override
+  public void close() {
+    for (ListenableFuture<byte[]> chunk : pendingChunks) {
+      chunk.cancel(true);
+    }
+    pendingChunks.clear();
+    nextChunkToSchedule = getChunkCount();
+    currentChunk = new byte[0];
+    currentChunkPosition = 0;
+  }
+
+  /** Writes into a fixed size buffer, failing if more bytes are written than fit. */
+  private static class ChunkSink extends OutputStream {
+    private final byte[] buffer;
+    private int position = 0;
+
+    private ChunkSink(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > buffer.length - position) {
+        throw new IOException("Received more bytes than requested for chunk");
+      }
+      System.arraycopy(b, off, buffer, position, len);
+      position += len;
+    }
+  }
+}
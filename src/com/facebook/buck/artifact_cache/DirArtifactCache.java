@@ -18,6 +18,7 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.artifact_cache.config.DirCacheLayout;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.io.file.BorrowablePath;
@@ -28,6 +29,7 @@ import com.facebook.buck.util.DirectoryCleaner;
 import com.facebook.buck.util.DirectoryCleanerArgs;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -37,6 +39,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -46,6 +49,8 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -63,14 +68,21 @@ public class DirArtifactCache implements ArtifactCache {
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String METADATA_EXTENSION = ".metadata";
+  private static final String BLOB_FOLDER = "cas";
+  private static final String LRU_INDEX_FILE = "lru.journal";
 
   private final String name;
   private final ProjectFilesystem filesystem;
   private final Path cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final CacheReadMode cacheReadMode;
+  private final DirCacheLayout layout;
   private long bytesSinceLastDeleteOldFiles;
 
+  /** Only maintained by writable caches using the content addressed layout. */
+  @Nullable private final DirArtifactCacheLruIndex lruIndex;
+
   public DirArtifactCache(
       String name,
       ProjectFilesystem filesystem,
@@ -78,17 +90,37 @@ public class DirArtifactCache implements ArtifactCache {
       CacheReadMode cacheReadMode,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(name, filesystem, cacheDir, cacheReadMode, maxCacheSizeBytes, DirCacheLayout.RULE_KEY);
+  }
+
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      DirCacheLayout layout)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
     this.maxCacheSizeBytes = maxCacheSizeBytes;
     this.cacheReadMode = cacheReadMode;
+    this.layout = layout;
     this.bytesSinceLastDeleteOldFiles = 0L;
 
     // Check first, as mkdirs will fail if the path is a symlink.
     if (!filesystem.isDirectory(cacheDir)) {
       filesystem.mkdirs(cacheDir);
     }
+
+    if (layout == DirCacheLayout.CONTENT_ADDRESSED && cacheReadMode.isWritable()) {
+      Path journal = filesystem.resolve(getPathToBlobFolder().resolve(LRU_INDEX_FILE));
+      Optional<DirArtifactCacheLruIndex> loaded = DirArtifactCacheLruIndex.load(journal);
+      this.lruIndex = loaded.isPresent() ? loaded.get() : rebuildLruIndex(journal);
+    } else {
+      this.lruIndex = null;
+    }
   }
 
   @Override
@@ -110,7 +142,7 @@ public class DirArtifactCache implements ArtifactCache {
       try (DataInputStream in =
           new DataInputStream(
               filesystem.newFileInputStream(
-                  getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
+                  getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))))) {
         int sz = in.readInt();
         for (int i = 0; i < sz; i++) {
           String key = in.readUTF();
@@ -126,6 +158,9 @@ public class DirArtifactCache implements ArtifactCache {
 
       result =
           CacheResult.hit(name, CACHE_MODE, metadata.build(), filesystem.getFileSize(output.get()));
+      if (lruIndex != null) {
+        lruIndex.access(ruleKey.toString());
+      }
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
     } catch (IOException e) {
@@ -148,11 +183,15 @@ public class DirArtifactCache implements ArtifactCache {
       return Futures.immediateFuture(null);
     }
 
+    if (layout == DirCacheLayout.CONTENT_ADDRESSED) {
+      return storeContentAddressed(info, output);
+    }
+
     try {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.empty();
       for (RuleKey ruleKey : info.getRuleKeys()) {
         Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
         if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
           continue;
@@ -176,22 +215,7 @@ public class DirArtifactCache implements ArtifactCache {
         bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
 
         // Now, write the meta data artifact.
-        Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
-        try {
-          try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
-            out.writeInt(info.getMetadata().size());
-            for (Map.Entry<String, String> ent : info.getMetadata().entrySet()) {
-              out.writeUTF(ent.getKey());
-              byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
-              out.writeInt(val.length);
-              out.write(val);
-            }
-          }
-          filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
-          bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
-        } finally {
-          filesystem.deleteFileAtPathIfExists(tmp);
-        }
+        bytesSinceLastDeleteOldFiles += writeMetadata(info, metadataPath, Optional.empty());
       }
 
     } catch (IOException e) {
@@ -208,6 +232,185 @@ public class DirArtifactCache implements ArtifactCache {
     return Futures.immediateFuture(null);
   }
 
+  /**
+   * Stores the artifact once under its content hash, and hardlinks it from each rule key, so that
+   * identical artifacts stored under different rule keys only take up space once. The hash is
+   * also appended to the metadata of each rule key, so that the blob can be found from it.
+   */
+  private ListenableFuture<Void> storeContentAddressed(ArtifactInfo info, BorrowablePath output) {
+    try {
+      // Don't create a blob nothing would reference, as only rule keys in the index keep blobs
+      // alive.
+      if (getRuleKeysToStore(info).isEmpty()) {
+        return Futures.immediateFuture(null);
+      }
+      String contentHash = filesystem.computeSha1(output.getPath()).getHash();
+      Path blobPath = getPathForContentHash(contentHash);
+      DirArtifactCacheLruIndex index = Preconditions.checkNotNull(lruIndex);
+
+      // Copying the artifact is the slow part, so do it before taking the index lock.
+      Optional<Path> staged = Optional.empty();
+      if (!output.canBorrow() && !filesystem.exists(blobPath)) {
+        staged =
+            Optional.of(
+                filesystem.createTempFile(getPreparedTempFolder(), "artifact", TMP_EXTENSION));
+        filesystem.copyFile(output.getPath(), staged.get());
+      }
+      try {
+        // Unused blobs are deleted under the index lock, so holding it from checking the blob to
+        // referencing it from the index keeps a concurrent eviction from deleting it in between.
+        synchronized (index) {
+          // A concurrent store may have stored the rule keys since we last checked.
+          ImmutableList<RuleKey> ruleKeysToStore = getRuleKeysToStore(info);
+          if (ruleKeysToStore.isEmpty()) {
+            return Futures.immediateFuture(null);
+          }
+          if (!filesystem.exists(blobPath)) {
+            filesystem.mkdirs(blobPath.getParent());
+            if (staged.isPresent()) {
+              filesystem.move(staged.get(), blobPath, StandardCopyOption.REPLACE_EXISTING);
+            } else if (output.canBorrow()) {
+              filesystem.move(output.getPath(), blobPath, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+              // The blob was evicted after we looked for it above.
+              storeArtifactOutput(output.getPath(), blobPath);
+            }
+          }
+          long artifactSize = filesystem.getFileSize(blobPath);
+
+          for (RuleKey ruleKey : ruleKeysToStore) {
+            Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+            Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
+            filesystem.mkdirs(getParentDirForRuleKey(ruleKey));
+            linkOrCopy(blobPath, artifactPath);
+            long metadataSize = writeMetadata(info, metadataPath, Optional.of(contentHash));
+            index.add(ruleKey.toString(), contentHash, artifactSize, metadataSize);
+          }
+        }
+      } finally {
+        if (staged.isPresent()) {
+          filesystem.deleteFileAtPathIfExists(staged.get());
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
+    }
+
+    if (maxCacheSizeBytes.isPresent()
+        && Preconditions.checkNotNull(lruIndex).getTotalSizeBytes() > maxCacheSizeBytes.get()) {
+      deleteOldFiles();
+    }
+
+    return Futures.immediateFuture(null);
+  }
+
+  /** @return the rule keys of {@code info} which don't have an artifact and metadata yet. */
+  private ImmutableList<RuleKey> getRuleKeysToStore(ArtifactInfo info) {
+    ImmutableList.Builder<RuleKey> ruleKeys = ImmutableList.builder();
+    for (RuleKey ruleKey : info.getRuleKeys()) {
+      if (!filesystem.exists(getPathForRuleKey(ruleKey, Optional.empty()))
+          || !filesystem.exists(getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION)))) {
+        ruleKeys.add(ruleKey);
+      }
+    }
+    return ruleKeys.build();
+  }
+
+  private void linkOrCopy(Path blobPath, Path artifactPath) throws IOException {
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "artifact", TMP_EXTENSION);
+    try {
+      filesystem.deleteFileAtPathIfExists(tmp);
+      try {
+        Files.createLink(filesystem.resolve(tmp), filesystem.resolve(blobPath));
+      } catch (IOException | UnsupportedOperationException e) {
+        // E.g. the filesystem doesn't support hardlinks, or the blob is on another device.
+        LOG.verbose(e, "Failed to hardlink %s, copying it instead", blobPath);
+        filesystem.copyFile(blobPath, tmp);
+      }
+      filesystem.move(tmp, artifactPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /** @return the size of the written metadata. */
+  private long writeMetadata(ArtifactInfo info, Path metadataPath, Optional<String> contentHash)
+      throws IOException {
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
+    try {
+      try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
+        out.writeInt(info.getMetadata().size());
+        for (Map.Entry<String, String> ent : info.getMetadata().entrySet()) {
+          out.writeUTF(ent.getKey());
+          byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
+          out.writeInt(val.length);
+          out.write(val);
+        }
+        // Readers which don't know about the content addressed layout ignore trailing data.
+        if (contentHash.isPresent()) {
+          out.writeUTF(contentHash.get());
+        }
+      }
+      filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
+      return filesystem.getFileSize(metadataPath);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /** @return the content hash recorded in a metadata file by the content addressed layout. */
+  private Optional<String> readMetadataContentHash(Path metadataPath) throws IOException {
+    try (DataInputStream in = new DataInputStream(filesystem.newFileInputStream(metadataPath))) {
+      int sz = in.readInt();
+      for (int i = 0; i < sz; i++) {
+        in.readUTF();
+        ByteStreams.skipFully(in, in.readInt());
+      }
+      return Optional.of(in.readUTF());
+    } catch (EOFException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Builds up the LRU index from the contents of the cache, using modification times of metadata
+   * as an approximation of access times. This only happens once, when switching an existing cache
+   * over to the content addressed layout or if the index was lost.
+   */
+  private DirArtifactCacheLruIndex rebuildLruIndex(Path journal) throws IOException {
+    LOG.info("Rebuilding LRU index of %s", cacheDir);
+    List<Path> metadataPaths = new ArrayList<>();
+    for (Path path : getAllFilesInCache()) {
+      if (path.getFileName().toString().endsWith(METADATA_EXTENSION)
+          && !path.startsWith(filesystem.resolve(getPathToBlobFolder()))) {
+        metadataPaths.add(path);
+      }
+    }
+    Map<Path, Long> modificationTimes = new HashMap<>();
+    for (Path path : metadataPaths) {
+      modificationTimes.put(path, Files.getLastModifiedTime(path).toMillis());
+    }
+    metadataPaths.sort(Comparator.comparing(modificationTimes::get));
+
+    DirArtifactCacheLruIndex index = DirArtifactCacheLruIndex.create(journal);
+    for (Path metadataPath : metadataPaths) {
+      String fileName = metadataPath.getFileName().toString();
+      Path artifactPath =
+          metadataPath.resolveSibling(
+              fileName.substring(0, fileName.length() - METADATA_EXTENSION.length()));
+      if (!Files.exists(artifactPath)) {
+        continue;
+      }
+      Optional<String> contentHash = readMetadataContentHash(metadataPath);
+      index.add(
+          artifactPath.getFileName().toString(),
+          contentHash.orElse(null),
+          Files.size(artifactPath),
+          Files.size(metadataPath));
+    }
+    return index;
+  }
+
   @Override
   public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
       ImmutableSet<RuleKey> ruleKeys) {
@@ -219,7 +422,7 @@ public class DirArtifactCache implements ArtifactCache {
 
     for (RuleKey ruleKey : ruleKeys) {
       Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-      Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+      Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
       boolean contains = filesystem.exists(artifactPath) && filesystem.exists(metadataPath);
       results.put(ruleKey, contains ? CacheResult.contains(name, CACHE_MODE) : CacheResult.miss());
@@ -233,11 +436,19 @@ public class DirArtifactCache implements ArtifactCache {
 
   private void deleteSync(RuleKey ruleKey) {
     Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-    Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+    Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
     try {
       filesystem.deleteFileAtPathIfExists(metadataPath);
       filesystem.deleteFileAtPathIfExists(artifactPath);
+      if (lruIndex != null) {
+        synchronized (lruIndex) {
+          Optional<String> unusedBlob = lruIndex.remove(ruleKey.toString());
+          if (unusedBlob.isPresent()) {
+            filesystem.deleteFileAtPathIfExists(getPathForContentHash(unusedBlob.get()));
+          }
+        }
+      }
     } catch (IOException e) {
       String message =
           String.format("Failed to delete artifact for rule key [%s] from local cache", ruleKey);
@@ -258,6 +469,18 @@ public class DirArtifactCache implements ArtifactCache {
     return cacheDir.resolve("tmp");
   }
 
+  private Path getPathToBlobFolder() {
+    return cacheDir.resolve(BLOB_FOLDER);
+  }
+
+  @VisibleForTesting
+  Path getPathForContentHash(String contentHash) {
+    return getPathToBlobFolder()
+        .resolve(contentHash.substring(0, 2))
+        .resolve(contentHash.substring(2, 4))
+        .resolve(contentHash);
+  }
+
   private Path getPreparedTempFolder() throws IOException {
     Path tmp = getPathToTempFolder();
     if (!filesystem.exists(tmp)) {
@@ -324,6 +547,11 @@ public class DirArtifactCache implements ArtifactCache {
       return;
     }
 
+    if (lruIndex != null) {
+      evictLeastRecentlyUsed();
+      return;
+    }
+
     Path cacheDirInFs = filesystem.resolve(cacheDir);
     try {
       synchronized (this) {
@@ -334,6 +562,32 @@ public class DirArtifactCache implements ArtifactCache {
     }
   }
 
+  private void evictLeastRecentlyUsed() {
+    DirArtifactCacheLruIndex index = Preconditions.checkNotNull(lruIndex);
+    DirArtifactCacheLruIndex.Eviction eviction;
+    // Delete the files under the index lock, so that a concurrent store can't add the same rule
+    // keys or blobs back to the index before their files are gone.
+    synchronized (index) {
+      eviction = index.evict((long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO));
+      try {
+        for (String ruleKey : eviction.ruleKeys) {
+          RuleKey key = new RuleKey(ruleKey);
+          filesystem.deleteFileAtPathIfExists(
+              getPathForRuleKey(key, Optional.of(METADATA_EXTENSION)));
+          filesystem.deleteFileAtPathIfExists(getPathForRuleKey(key, Optional.empty()));
+        }
+        for (String contentHash : eviction.unusedBlobs) {
+          filesystem.deleteFileAtPathIfExists(getPathForContentHash(contentHash));
+        }
+      } catch (IOException e) {
+        LOG.error(e, "Failed to evict artifacts from [%s].", cacheDir);
+      }
+    }
+    LOG.debug(
+        "Evicted %d rule keys and %d artifacts from %s",
+        eviction.ruleKeys.size(), eviction.unusedBlobs.size(), cacheDir);
+  }
+
   @VisibleForTesting
   List<Path> getAllFilesInCache() {
     List<Path> allFiles = new ArrayList<>();
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * An LRU index of the rule keys stored in a content addressed {@link DirArtifactCache}, along with
+ * the content blobs they point to, so that eviction doesn't need to walk the whole cache.
+ *
+ * <p>The index is kept in memory and persisted as an append-only journal of stores, accesses and
+ * removals, which is replayed on startup and compacted once it's mostly made up of stale records.
+ * Processes sharing a cache append to the same journal while holding a lock on a file next to it.
+ * Before evicting or compacting, the journal is replayed again under that lock, so that the
+ * records of other processes are taken into account rather than dropped.
+ *
+ * <p>The index only tracks files, it doesn't create or delete them. Callers synchronize on the
+ * index while creating or deleting blobs, so that the files agree with the reference counts.
+ */
+class DirArtifactCacheLruIndex {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheLruIndex.class);
+
+  private static final String STORE = "+";
+  private static final String ACCESS = "*";
+  private static final String REMOVE = "-";
+  private static final String NO_BLOB = "_";
+
+  /** Compact the journal once it has this many more records than live rule keys. */
+  private static final int MIN_STALE_RECORDS_FOR_COMPACTION = 10000;
+
+  /** Serializes journal locking within this process, as overlapping file locks would throw. */
+  private static final ConcurrentMap<Path, Object> JOURNAL_MONITORS = new ConcurrentHashMap<>();
+
+  private final Path journal;
+  private final Path journalLock;
+  private final Object journalMonitor;
+  private final int minStaleRecordsForCompaction;
+  private boolean journalLocked = false;
+
+  /** Rule keys, from least to most recently used. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final Map<String, Blob> blobs = new HashMap<>();
+  private long totalSizeBytes = 0;
+  private int journalRecords = 0;
+
+  private DirArtifactCacheLruIndex(Path journal, int minStaleRecordsForCompaction) {
+    this.journal = journal;
+    this.journalLock = journal.resolveSibling(journal.getFileName() + ".lock");
+    this.journalMonitor =
+        JOURNAL_MONITORS.computeIfAbsent(journal.toAbsolutePath().normalize(), p -> new Object());
+    this.minStaleRecordsForCompaction = minStaleRecordsForCompaction;
+  }
+
+  /** @return the index persisted in {@code journal}, if it exists. */
+  static Optional<DirArtifactCacheLruIndex> load(Path journal) throws IOException {
+    return load(journal, MIN_STALE_RECORDS_FOR_COMPACTION);
+  }
+
+  @VisibleForTesting
+  static Optional<DirArtifactCacheLruIndex> load(Path journal, int minStaleRecordsForCompaction)
+      throws IOException {
+    if (!Files.exists(journal)) {
+      return Optional.empty();
+    }
+    DirArtifactCacheLruIndex index =
+        new DirArtifactCacheLruIndex(journal, minStaleRecordsForCompaction);
+    synchronized (index) {
+      index.withJournalLock(index::replayJournal);
+      index.maybeCompact();
+    }
+    return Optional.of(index);
+  }
+
+  /** Creates a new index, replacing the one persisted in {@code journal}, if any. */
+  static DirArtifactCacheLruIndex create(Path journal) throws IOException {
+    return create(journal, MIN_STALE_RECORDS_FOR_COMPACTION);
+  }
+
+  @VisibleForTesting
+  static DirArtifactCacheLruIndex create(Path journal, int minStaleRecordsForCompaction)
+      throws IOException {
+    Files.createDirectories(journal.getParent());
+    DirArtifactCacheLruIndex index =
+        new DirArtifactCacheLruIndex(journal, minStaleRecordsForCompaction);
+    synchronized (index) {
+      index.withJournalLock(
+          () -> {
+            Files.write(journal, new byte[0]);
+            return null;
+          });
+    }
+    return index;
+  }
+
+  /**
+   * Records a stored rule key.
+   *
+   * @param contentHash the hash of the blob storing the artifact, or null if the artifact isn't
+   *     shared with other rule keys.
+   * @param artifactSizeBytes the size of the artifact.
+   * @param metadataSizeBytes the size of the rule key's metadata.
+   */
+  synchronized void add(
+      String ruleKey,
+      @Nullable String contentHash,
+      long artifactSizeBytes,
+      long metadataSizeBytes) {
+    addEntry(ruleKey, contentHash, artifactSizeBytes, metadataSizeBytes);
+    append(
+        String.join(
+            " ",
+            STORE,
+            ruleKey,
+            contentHash == null ? NO_BLOB : contentHash,
+            String.valueOf(artifactSizeBytes),
+            String.valueOf(metadataSizeBytes)));
+    maybeCompact();
+  }
+
+  /** Marks a rule key as most recently used. */
+  synchronized void access(String ruleKey) {
+    if (entries.get(ruleKey) != null) {
+      append(ACCESS + " " + ruleKey);
+      maybeCompact();
+    }
+  }
+
+  /**
+   * Removes a rule key.
+   *
+   * @return the hash of the blob which was only used by the rule key, and so should be deleted.
+   */
+  synchronized Optional<String> remove(String ruleKey) {
+    if (!entries.containsKey(ruleKey)) {
+      return Optional.empty();
+    }
+    append(REMOVE + " " + ruleKey);
+    return Optional.ofNullable(removeEntry(ruleKey));
+  }
+
+  /**
+   * Removes the least recently used rule keys, until the total size is at most {@code
+   * maxSizeBytes}.
+   *
+   * @return the removed rule keys, along with the hashes of blobs no longer used by any rule key.
+   */
+  synchronized Eviction evict(long maxSizeBytes) {
+    try {
+      return withJournalLock(
+          () -> {
+            // Pick up the records of other processes, so that their blobs are neither deleted
+            // while still referenced nor left behind once they aren't.
+            replayJournal();
+            return evictEntries(maxSizeBytes);
+          });
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to read LRU index %s, evicting from memory", journal);
+      return evictEntries(maxSizeBytes);
+    }
+  }
+
+  private Eviction evictEntries(long maxSizeBytes) {
+    ImmutableList.Builder<String> ruleKeys = ImmutableList.builder();
+    ImmutableList.Builder<String> unusedBlobs = ImmutableList.builder();
+    // Iterate over entries rather than keys, as looking keys up would count as an access.
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (totalSizeBytes > maxSizeBytes && iterator.hasNext()) {
+      Map.Entry<String, Entry> entry = iterator.next();
+      ruleKeys.add(entry.getKey());
+      append(REMOVE + " " + entry.getKey());
+      String unusedBlob = releaseEntry(entry.getValue());
+      if (unusedBlob != null) {
+        unusedBlobs.add(unusedBlob);
+      }
+      iterator.remove();
+    }
+    maybeCompact();
+    return new Eviction(ruleKeys.build(), unusedBlobs.build());
+  }
+
+  synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private void addEntry(
+      String ruleKey,
+      @Nullable String contentHash,
+      long artifactSizeBytes,
+      long metadataSizeBytes) {
+    removeEntry(ruleKey);
+    entries.put(ruleKey, new Entry(contentHash, artifactSizeBytes, metadataSizeBytes));
+    totalSizeBytes += metadataSizeBytes;
+    if (contentHash == null) {
+      totalSizeBytes += artifactSizeBytes;
+      return;
+    }
+    Blob blob = blobs.get(contentHash);
+    if (blob == null) {
+      blob = new Blob(artifactSizeBytes);
+      blobs.put(contentHash, blob);
+      totalSizeBytes += artifactSizeBytes;
+    }
+    blob.references++;
+  }
+
+  @Nullable
+  private String removeEntry(String ruleKey) {
+    Entry entry = entries.remove(ruleKey);
+    return entry == null ? null : releaseEntry(entry);
+  }
+
+  /** @return the hash of the entry's blob, if it is no longer referenced. */
+  @Nullable
+  private String releaseEntry(Entry entry) {
+    totalSizeBytes -= entry.metadataSizeBytes;
+    if (entry.contentHash == null) {
+      totalSizeBytes -= entry.artifactSizeBytes;
+      return null;
+    }
+    Blob blob = blobs.get(entry.contentHash);
+    if (blob == null || --blob.references > 0) {
+      return null;
+    }
+    blobs.remove(entry.contentHash);
+    totalSizeBytes -= blob.sizeBytes;
+    return entry.contentHash;
+  }
+
+  /** Runs {@code operation} holding the journal lock, unless this index holds it already. */
+  private <T> T withJournalLock(JournalOperation<T> operation) throws IOException {
+    if (journalLocked) {
+      return operation.run();
+    }
+    synchronized (journalMonitor) {
+      try (FileChannel channel =
+              FileChannel.open(
+                  journalLock, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+          FileLock lock = channel.lock()) {
+        journalLocked = true;
+        try {
+          return operation.run();
+        } finally {
+          journalLocked = false;
+        }
+      }
+    }
+  }
+
+  /** Replaces the in-memory index with the one persisted in the journal. */
+  private Void replayJournal() throws IOException {
+    byte[] contents = Files.exists(journal) ? Files.readAllBytes(journal) : new byte[0];
+    if (contents.length > 0 && contents[contents.length - 1] != '\n') {
+      // Terminate a record cut short by a crash, so that it doesn't swallow the next one.
+      Files.write(journal, new byte[] {'\n'}, StandardOpenOption.APPEND);
+    }
+    entries.clear();
+    blobs.clear();
+    totalSizeBytes = 0;
+    journalRecords = 0;
+    Splitter splitter = Splitter.on(' ');
+    for (String line :
+        Splitter.on('\n').omitEmptyStrings().split(new String(contents, StandardCharsets.UTF_8))) {
+      List<String> fields = splitter.splitToList(line);
+      try {
+        switch (fields.get(0)) {
+          case STORE:
+            addEntry(
+                fields.get(1),
+                fields.get(2).equals(NO_BLOB) ? null : fields.get(2),
+                Long.parseLong(fields.get(3)),
+                Long.parseLong(fields.get(4)));
+            break;
+          case ACCESS:
+            entries.get(fields.get(1));
+            break;
+          case REMOVE:
+            removeEntry(fields.get(1));
+            break;
+          default:
+            throw new IllegalArgumentException();
+        }
+      } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+        // Most likely a record cut short by a crash, so ignore it.
+        LOG.debug("Ignoring malformed record in %s: %s", journal, line);
+      }
+      journalRecords++;
+    }
+    return null;
+  }
+
+  private void append(String record) {
+    try {
+      withJournalLock(
+          () -> {
+            Files.write(
+                journal,
+                (record + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+            return null;
+          });
+      journalRecords++;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to update LRU index %s", journal);
+    }
+  }
+
+  private void maybeCompact() {
+    if (journalRecords - entries.size() < minStaleRecordsForCompaction) {
+      return;
+    }
+    try {
+      withJournalLock(
+          () -> {
+            // Other processes may have appended records since we last read the journal, so
+            // rewrite it from what it contains now rather than from our view of it.
+            replayJournal();
+            if (journalRecords - entries.size() >= minStaleRecordsForCompaction) {
+              compact();
+            }
+            return null;
+          });
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to compact LRU index %s", journal);
+    }
+  }
+
+  private void compact() throws IOException {
+    Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        Entry value = entry.getValue();
+        writer.write(
+            String.join(
+                " ",
+                STORE,
+                entry.getKey(),
+                value.contentHash == null ? NO_BLOB : value.contentHash,
+                String.valueOf(value.artifactSizeBytes),
+                String.valueOf(value.metadataSizeBytes)));
+        writer.newLine();
+      }
+    }
+    Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    journalRecords = entries.size();
+  }
+
+  private interface JournalOperation<T> {
+    T run() throws IOException;
+  }
+
+  /** Rule keys removed from the index by {@link #evict(long)}. */
+  static class Eviction {
+    final ImmutableList<String> ruleKeys;
+    final ImmutableList<String> unusedBlobs;
+
+    private Eviction(ImmutableList<String> ruleKeys, ImmutableList<String> unusedBlobs) {
+      this.ruleKeys = ruleKeys;
+      this.unusedBlobs = unusedBlobs;
+    }
+  }
+
+  private static class Entry {
+    @Nullable private final String contentHash;
+    private final long artifactSizeBytes;
+    private final long metadataSizeBytes;
+
+    private Entry(@Nullable String contentHash, long artifactSizeBytes, long metadataSizeBytes) {
+      this.contentHash = contentHash;
+      this.artifactSizeBytes = artifactSizeBytes;
+      this.metadataSizeBytes = metadataSizeBytes;
+    }
+  }
+
+  private static class Blob {
+    private final long sizeBytes;
+    private int references = 0;
+
+    private Blob(long sizeBytes) {
+      this.sizeBytes = sizeBytes;
+    }
+  }
+}
@@ -20,8 +20,12 @@ import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.slb.HttpResponse;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,6 +34,11 @@ import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -47,27 +56,53 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
    */
   private static final Logger LOG = Logger.get(HttpArtifactCache.class);
 
+  /** Number of times a failed chunk of a chunked fetch is resumed before giving up. */
+  private static final int MAX_CHUNK_FETCH_RETRIES = 3;
+
+  private static final Pattern CONTENT_RANGE_PATTERN =
+      Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+  private final Optional<Long> fetchChunkSizeBytes;
+  private final int maxParallelChunkFetches;
+  private final Optional<ListeningExecutorService> chunkFetchExecutor;
+
   public HttpArtifactCache(NetworkCacheArgs args) {
     super(args);
+    this.fetchChunkSizeBytes = args.getFetchChunkSizeBytes();
+    this.maxParallelChunkFetches = Math.max(1, args.getMaxParallelChunkFetches());
+    // Chunks get a pool of their own, as waiting on them from a fetch thread could otherwise
+    // starve the fetch executor. Each fetch has at most maxParallelChunkFetches chunks in flight,
+    // so the pool grows with the fetches the network executor runs at the same time, rather than
+    // making concurrent fetches queue behind each other.
+    this.chunkFetchExecutor =
+        fetchChunkSizeBytes.map(
+            size ->
+                MoreExecutors.listeningDecorator(
+                    Executors.newCachedThreadPool(
+                        new MostExecutors.NamedThreadFactory("HttpArtifactCache chunk fetch"))));
   }
 
   @Override
   protected FetchResult fetchImpl(RuleKey ruleKey, LazyPath output) throws IOException {
     FetchResult.Builder resultBuilder = FetchResult.builder();
+    String path = "/artifacts/key/" + ruleKey;
     Request.Builder requestBuilder = new Request.Builder().get();
-    try (HttpResponse response =
-        fetchClient.makeRequest("/artifacts/key/" + ruleKey, requestBuilder)) {
+    if (fetchChunkSizeBytes.isPresent()) {
+      // Servers which don't support ranges ignore the header and send the whole artifact.
+      requestBuilder.header("Range", "bytes=0-" + (fetchChunkSizeBytes.get() - 1));
+    }
+    try (HttpResponse response = fetchClient.makeRequest(path, requestBuilder)) {
       resultBuilder.setResponseSizeBytes(response.contentLength());
 
-      try (DataInputStream input =
-          new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+      try (DataInputStream input = new DataInputStream(openBody(path, response, resultBuilder))) {
 
         if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
           LOG.info("fetch(%s, %s): cache miss", response.requestUrl(), ruleKey);
           return resultBuilder.setCacheResult(CacheResult.miss()).build();
         }
 
-        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+        if (response.statusCode() != HttpURLConnection.HTTP_OK
+            && response.statusCode() != HttpURLConnection.HTTP_PARTIAL) {
           String msg =
               String.format(
                   "unexpected server response: [%d:%s]",
@@ -127,6 +162,79 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
     }
   }
 
+  /**
+   * @return the body of a fetch response. If the server returned the first chunk of a chunked
+   *     fetch, the returned stream downloads the remaining chunks as it's read.
+   */
+  private InputStream openBody(
+      String path, HttpResponse response, FetchResult.Builder resultBuilder) throws IOException {
+    if (response.statusCode() != HttpURLConnection.HTTP_PARTIAL) {
+      return new FullyReadOnCloseInputStream(response.getBody());
+    }
+    String contentRange = response.header("Content-Range").orElse("");
+    Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange);
+    if (!matcher.matches() || Long.parseLong(matcher.group(1)) != 0) {
+      throw new IOException(
+          String.format("Unexpected Content-Range for %s: '%s'", path, contentRange));
+    }
+    long totalLength = Long.parseLong(matcher.group(3));
+    resultBuilder.setResponseSizeBytes(totalLength);
+    // Later ranges must come from the same version of the artifact as the first one, otherwise
+    // the fetched artifact would be spliced together from several versions.
+    Optional<String> validator = getValidator(response);
+    return ChunkedFetchInputStream.start(
+        response.getBody(),
+        totalLength,
+        (int) Math.min(fetchChunkSizeBytes.get(), Integer.MAX_VALUE),
+        maxParallelChunkFetches,
+        MAX_CHUNK_FETCH_RETRIES,
+        (start, end, sink) -> fetchRange(path, start, end, totalLength, validator, sink),
+        chunkFetchExecutor.get());
+  }
+
+  private void fetchRange(
+      String path,
+      long start,
+      long end,
+      long totalLength,
+      Optional<String> validator,
+      OutputStream sink)
+      throws IOException {
+    Request.Builder requestBuilder =
+        new Request.Builder().get().header("Range", String.format("bytes=%d-%d", start, end));
+    // If the artifact changed, the server ignores the range and sends all of it with a 200.
+    validator.ifPresent(value -> requestBuilder.header("If-Range", value));
+    try (HttpResponse response = fetchClient.makeRequest(path, requestBuilder)) {
+      if (response.statusCode() != HttpURLConnection.HTTP_PARTIAL) {
+        throw new IOException(
+            String.format(
+                "unexpected server response for range %d-%d of %s: [%d:%s]",
+                start, end, path, response.statusCode(), response.statusMessage()));
+      }
+      String contentRange = response.header("Content-Range").orElse("");
+      Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange);
+      Optional<String> rangeValidator = getValidator(response);
+      if (!matcher.matches()
+          || Long.parseLong(matcher.group(1)) != start
+          || Long.parseLong(matcher.group(3)) != totalLength
+          || (rangeValidator.isPresent() && !rangeValidator.equals(validator))) {
+        throw new IOException(
+            String.format(
+                "%s changed during the fetch, got Content-Range '%s' for range %d-%d",
+                path, contentRange, start, end));
+      }
+      try (InputStream body = response.getBody()) {
+        ByteStreams.copy(body, sink);
+      }
+    }
+  }
+
+  /** @return the value identifying the version of the artifact sent in a response, if any. */
+  private static Optional<String> getValidator(HttpResponse response) {
+    Optional<String> etag = response.header("ETag");
+    return etag.isPresent() ? etag : response.header("Last-Modified");
+  }
+
   @Override
   protected MultiContainsResult multiContainsImpl(ImmutableSet<RuleKey> ruleKeys) {
     throw new UnsupportedOperationException("multiContains is not supported");
@@ -198,4 +306,10 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
       Iterable<AbstractAsynchronousCache.FetchRequest> requests) {
     throw new RuntimeException("multiFetch not supported");
   }
+
+  @Override
+  public void close() {
+    super.close();
+    chunkFetchExecutor.ifPresent(ExecutorService::shutdownNow);
+  }
 }
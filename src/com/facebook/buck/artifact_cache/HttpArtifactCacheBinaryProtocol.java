@@ -37,6 +37,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import org.immutables.value.Value;
 
@@ -252,6 +253,21 @@ public class HttpArtifactCacheBinaryProtocol {
         payloadSource.copyTo(responseSink);
       }
     }
+
+    /** Writes {@code length} bytes of the response, starting at byte {@code offset}. */
+    public void writeRange(OutputStream responseSink, long offset, long length)
+        throws IOException {
+      byte[] header =
+          ByteBuffer.allocate(Integer.SIZE / Byte.SIZE + rawMetadata.length)
+              .putInt(rawMetadata.length)
+              .put(rawMetadata)
+              .array();
+      try (OutputStream sink = responseSink) {
+        ByteSource.concat(ByteSource.wrap(header), payloadSource)
+            .slice(offset, length)
+            .copyTo(sink);
+      }
+    }
   }
 
   abstract static class MetadataAndPayloadReadResult {
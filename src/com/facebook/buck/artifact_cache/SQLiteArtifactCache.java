@@ -29,12 +29,14 @@ import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.file.MostFiles;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.Threads;
 import com.facebook.buck.util.sqlite.RetryBusyHandler;
 import com.facebook.buck.util.sqlite.SQLiteUtils;
 import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Functions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -42,6 +44,8 @@ import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -58,12 +62,21 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import org.sqlite.BusyHandler;
 import org.sqlite.SQLiteConfig;
@@ -85,6 +98,10 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private static final String TMP_EXTENSION = ".tmp";
   private static final long DEFAULT_MAX_INLINED_BYTES = 40;
   private static final Duration DEFAULT_EVICTION_TIME = Duration.ofDays(7);
+  private static final int MAX_READERS = 8;
+  private static final int MAX_WRITE_BATCH_SIZE = 256;
+  // Access times only need to be accurate enough for eviction, so updates are committed lazily.
+  private static final long ACCESS_TIME_FLUSH_INTERVAL_MS = 100;
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -95,7 +112,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private final long maxInlinedBytes;
   private final CacheReadMode cacheMode;
 
-  private final ConnectionInfo db;
+  private final Database db;
 
   static {
     SQLiteUtils.initialize();
@@ -134,7 +151,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
           String.format("Cache path [%s] already exists and is not a directory.", cacheDir));
     }
 
-    this.db = new ConnectionInfo(cacheDir);
+    this.db = new Database(cacheDir);
   }
 
   @Override
@@ -277,8 +294,11 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     try {
-      db.storeMetadata(info.getRuleKeys(), marshalMetadata(metadata));
-    } catch (IOException | SQLException e) {
+      return logStoreErrors(
+          db.storeMetadata(info.getRuleKeys(), marshalMetadata(metadata)),
+          "Metadata store(%s) error",
+          info.getRuleKeys());
+    } catch (IOException e) {
       LOG.warn(e, "Metadata store(%s) error", info.getRuleKeys());
     }
 
@@ -296,7 +316,11 @@ public class SQLiteArtifactCache implements ArtifactCache {
       long size = filesystem.getFileSize(content.getPath());
       if (size <= maxInlinedBytes) {
         // artifact is small enough to inline in the database
-        db.storeArtifact(toStore, Files.readAllBytes(content.getPath()), size);
+        return logStoreErrors(
+            db.storeArtifact(toStore, Files.readAllBytes(content.getPath()), size),
+            "Artifact store(%s, %s) error",
+            contentHashes,
+            content);
       } else if (!toStore.isEmpty()) {
         // artifact is too large to inline, store on disk and put path in database
         Path artifactPath = getArtifactPath(toStore.iterator().next());
@@ -308,7 +332,11 @@ public class SQLiteArtifactCache implements ArtifactCache {
           storeArtifactOutput(content.getPath(), artifactPath);
         }
 
-        db.storeFilepath(toStore, artifactPath.toString(), size);
+        return logStoreErrors(
+            db.storeFilepath(toStore, artifactPath.toString(), size),
+            "Artifact store(%s, %s) error",
+            contentHashes,
+            content);
       }
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", contentHashes, content);
@@ -317,6 +345,19 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return Futures.immediateFuture(null);
   }
 
+  /** Stores are best effort, so failures of queued writes are only logged. */
+  private static ListenableFuture<Void> logStoreErrors(
+      ListenableFuture<Void> future, String format, Object... args) {
+    return Futures.catching(
+        future,
+        SQLException.class,
+        e -> {
+          LOG.warn(e, format, args);
+          return null;
+        },
+        MoreExecutors.directExecutor());
+  }
+
   private ImmutableSet<RuleKey> notPreexisting(ImmutableSet<RuleKey> contentHashes)
       throws SQLException {
     ImmutableSet.Builder<RuleKey> builder = ImmutableSet.builder();
@@ -466,82 +507,323 @@ public class SQLiteArtifactCache implements ArtifactCache {
   @VisibleForTesting
   void insertMetadata(RuleKey ruleKey, ImmutableMap<String, String> metadata, Timestamp time)
       throws IOException, SQLException {
-    PreparedStatement stmt =
-        db.connection.prepareStatement(
-            "INSERT INTO metadata (rulekey, data, accessed) VALUES (?, ?, ?)");
-    stmt.setBytes(1, ConnectionInfo.getBytes(ruleKey));
-    stmt.setBytes(2, marshalMetadata(metadata));
-    stmt.setTimestamp(3, time);
-    stmt.executeUpdate();
+    byte[] data = marshalMetadata(metadata);
+    db.withWriteConnection(
+        connection -> {
+          PreparedStatement stmt =
+              connection.prepareStatement(
+                  "INSERT INTO metadata (rulekey, data, accessed) VALUES (?, ?, ?)");
+          stmt.setBytes(1, Database.getBytes(ruleKey));
+          stmt.setBytes(2, data);
+          stmt.setTimestamp(3, time);
+          return stmt.executeUpdate();
+        });
   }
 
   @VisibleForTesting
   void insertContent(RuleKey contentHash, BorrowablePath file, Timestamp time)
       throws IOException, SQLException {
     long size = filesystem.getFileSize(file.getPath());
-    PreparedStatement stmt =
-        db.connection.prepareStatement(
-            "INSERT INTO content (sha1, artifact, filepath, size, accessed, created) "
-                + "VALUES (?, ?, ?, ?, ?, ?)");
-
-    stmt.setBytes(1, ConnectionInfo.getBytes(contentHash));
-    if (size <= maxInlinedBytes) {
-      stmt.setBytes(2, Files.readAllBytes(file.getPath()));
-    } else {
-      stmt.setString(3, file.getPath().toString());
-    }
-    stmt.setLong(4, size);
-    stmt.setTimestamp(5, time);
-    stmt.setTimestamp(6, time);
-    stmt.executeUpdate();
+    byte[] artifact = size <= maxInlinedBytes ? Files.readAllBytes(file.getPath()) : null;
+    db.withWriteConnection(
+        connection -> {
+          PreparedStatement stmt =
+              connection.prepareStatement(
+                  "INSERT INTO content (sha1, artifact, filepath, size, accessed, created) "
+                      + "VALUES (?, ?, ?, ?, ?, ?)");
+
+          stmt.setBytes(1, Database.getBytes(contentHash));
+          if (artifact != null) {
+            stmt.setBytes(2, artifact);
+          } else {
+            stmt.setString(3, file.getPath().toString());
+          }
+          stmt.setLong(4, size);
+          stmt.setTimestamp(5, time);
+          stmt.setTimestamp(6, time);
+          return stmt.executeUpdate();
+        });
   }
 
   @VisibleForTesting
   ImmutableList<RuleKey> directoryFileContentHashes() throws SQLException {
-    ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
-    try (ResultSet rs =
-        db.connection
-            .createStatement()
-            .executeQuery("SELECT sha1 FROM content WHERE filepath NOTNULL")) {
-      while (rs.next()) {
-        keys.add(new RuleKey(HashCode.fromBytes(rs.getBytes(1))));
-      }
-    }
-    return keys.build();
+    return selectRuleKeys("SELECT sha1 FROM content WHERE filepath NOTNULL");
   }
 
   @VisibleForTesting
   ImmutableList<RuleKey> inlinedArtifactContentHashes() throws SQLException {
-    ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
-    try (ResultSet rs =
-        db.connection
-            .createStatement()
-            .executeQuery("SELECT sha1 FROM content WHERE artifact NOTNULL")) {
-      while (rs.next()) {
-        keys.add(new RuleKey(HashCode.fromBytes(rs.getBytes(1))));
-      }
-    }
-    return keys.build();
+    return selectRuleKeys("SELECT sha1 FROM content WHERE artifact NOTNULL");
   }
 
   @VisibleForTesting
   ImmutableList<RuleKey> metadataRuleKeys() throws SQLException {
-    ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
-    try (ResultSet rs =
-        db.connection.createStatement().executeQuery("SELECT rulekey FROM metadata")) {
-      while (rs.next()) {
-        keys.add(new RuleKey(HashCode.fromBytes(rs.getBytes(1))));
+    return selectRuleKeys("SELECT rulekey FROM metadata");
+  }
+
+  private ImmutableList<RuleKey> selectRuleKeys(String query) throws SQLException {
+    return db.withWriteConnection(
+        connection -> {
+          ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
+          try (ResultSet rs = connection.createStatement().executeQuery(query)) {
+            while (rs.next()) {
+              keys.add(new RuleKey(HashCode.fromBytes(rs.getBytes(1))));
+            }
+          }
+          return keys.build();
+        });
+  }
+
+  private static Connection openConnection(Path cacheDir) throws SQLException {
+    // date format must be set to match CURRENT_TIMESTAMP
+    Properties properties = new SQLiteConfig().toProperties();
+    properties.setProperty(
+        SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
+    Connection connection =
+        DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
+    connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+    connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+    BusyHandler.setHandler(connection, new RetryBusyHandler());
+    return connection;
+  }
+
+  /**
+   * Access to the cache database, which is used in WAL mode so that reads don't block on writes.
+   *
+   * <p>Reads borrow one of a pool of connections, so they run concurrently. All writes go through
+   * a single connection owned by a writer thread, which commits them in batches, as SQLite only
+   * allows a single writer at a time and committing is the expensive part of a write. Writes which
+   * are still queued are visible to reads through an in-memory overlay, and updates of access
+   * times are coalesced, as they only need to be accurate enough for eviction.
+   */
+  private static class Database {
+    private final BlockingQueue<ReadConnection> readers;
+    private final ImmutableList<ReadConnection> allReaders;
+    private final Writer writer;
+
+    private final ConcurrentMap<RuleKey, byte[]> pendingMetadata = new ConcurrentHashMap<>();
+    private final ConcurrentMap<RuleKey, Content> pendingContent = new ConcurrentHashMap<>();
+
+    private Database(Path cacheDir) throws SQLException {
+      // The writer creates the tables, so it must be opened before any reader.
+      writer = new Writer(openConnection(cacheDir));
+      int readerCount =
+          Math.max(1, Math.min(MAX_READERS, Runtime.getRuntime().availableProcessors()));
+      ImmutableList.Builder<ReadConnection> builder = ImmutableList.builder();
+      for (int i = 0; i < readerCount; i++) {
+        builder.add(new ReadConnection(openConnection(cacheDir)));
+      }
+      allReaders = builder.build();
+      readers = new ArrayBlockingQueue<>(readerCount, false, allReaders);
+      writer.start();
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      byte[] pending = pendingMetadata.get(ruleKey);
+      if (pending != null) {
+        return Optional.of(pending);
+      }
+      ReadConnection reader = borrowReader();
+      try {
+        return reader.selectMetadata(ruleKey);
+      } finally {
+        readers.add(reader);
+      }
+    }
+
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      Content pending = pendingContent.get(contentHash);
+      if (pending != null) {
+        return Optional.of(pending);
+      }
+      ReadConnection reader = borrowReader();
+      try {
+        return reader.selectContent(contentHash);
+      } finally {
+        readers.add(reader);
+      }
+    }
+
+    private ReadConnection borrowReader() throws SQLException {
+      try {
+        return readers.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a database connection", e);
+      }
+    }
+
+    private void accessMetadata(RuleKey ruleKey) {
+      writer.accessedMetadata.add(ruleKey);
+    }
+
+    private void accessContent(RuleKey contentHash) {
+      writer.accessedContent.add(contentHash);
+    }
+
+    private ListenableFuture<Void> storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata) {
+      for (RuleKey ruleKey : ruleKeys) {
+        pendingMetadata.put(ruleKey, metadata);
       }
+      return writer.submit(
+          () -> writer.storeMetadata(ruleKeys, metadata),
+          () -> ruleKeys.forEach(ruleKey -> pendingMetadata.remove(ruleKey, metadata)));
+    }
+
+    private ListenableFuture<Void> storeArtifact(
+        ImmutableSet<RuleKey> hashes, byte[] artifact, long size) {
+      return storeContent(
+          hashes,
+          new Content(artifact, null, size),
+          () -> writer.storeArtifact(hashes, artifact, size));
+    }
+
+    private ListenableFuture<Void> storeFilepath(
+        ImmutableSet<RuleKey> hashes, String filepath, long size) {
+      return storeContent(
+          hashes,
+          new Content(null, filepath, size),
+          () -> writer.storeFilepath(hashes, filepath, size));
+    }
+
+    private ListenableFuture<Void> storeContent(
+        ImmutableSet<RuleKey> hashes, Content content, WriteOperation operation) {
+      for (RuleKey contentHash : hashes) {
+        pendingContent.put(contentHash, content);
+      }
+      return writer.submit(
+          operation,
+          () -> hashes.forEach(contentHash -> pendingContent.remove(contentHash, content)));
+    }
+
+    private void deleteContent(RuleKey contentHash) {
+      writer.submit(() -> writer.deleteContent(contentHash), () -> {});
+    }
+
+    private int deleteMetadata(Timestamp evictionCutoff) throws SQLException {
+      writer.flush();
+      return writer.deleteMetadata(evictionCutoff);
+    }
+
+    private int deleteContent(Timestamp evictionCutoff) throws SQLException {
+      writer.flush();
+      return writer.deleteContent(evictionCutoff);
+    }
+
+    private long totalSize() throws SQLException {
+      writer.flush();
+      return writer.totalSize();
+    }
+
+    private Pair<Iterable<String>, Timestamp> getContentToEvict(long minToDelete)
+        throws SQLException {
+      writer.flush();
+      return writer.getContentToEvict(minToDelete);
+    }
+
+    /** Runs {@code function} on the write connection, once all queued writes are committed. */
+    private <T> T withWriteConnection(SqlFunction<T> function) throws SQLException {
+      writer.flush();
+      synchronized (writer) {
+        return function.apply(writer.connection);
+      }
+    }
+
+    private void close() {
+      writer.close();
+      try {
+        for (ReadConnection reader : allReaders) {
+          reader.connection.close();
+        }
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private static byte[] getBytes(RuleKey ruleKey) {
+      return ruleKey.getHashCode().asBytes();
     }
-    return keys.build();
   }
 
-  private static class ConnectionInfo {
+  /** A pooled connection used for lookups. */
+  private static class ReadConnection {
     private final Connection connection;
 
     private final PreparedStatement fetchMetadata;
     private final PreparedStatement fetchContent;
 
+    private ReadConnection(Connection connection) throws SQLException {
+      this.connection = connection;
+      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
+      fetchContent =
+          connection.prepareStatement(
+              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      fetchMetadata.setBytes(1, Database.getBytes(ruleKey));
+      try (ResultSet rs = fetchMetadata.executeQuery()) {
+        return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+      }
+    }
+
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      fetchContent.setBytes(1, Database.getBytes(contentHash));
+      try (ResultSet rs = fetchContent.executeQuery()) {
+        return rs.next()
+            ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
+            : Optional.empty();
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface SqlFunction<T> {
+    T apply(Connection connection) throws SQLException;
+  }
+
+  @FunctionalInterface
+  private interface WriteOperation {
+    void run() throws SQLException;
+  }
+
+  /** A queued write, along with what to do once it's been committed or failed. */
+  private static class QueuedWrite {
+    private final WriteOperation operation;
+    private final Runnable onDone;
+    private final SettableFuture<Void> future = SettableFuture.create();
+
+    private QueuedWrite(WriteOperation operation, Runnable onDone) {
+      this.operation = operation;
+      this.onDone = onDone;
+    }
+
+    private void succeeded() {
+      onDone.run();
+      future.set(null);
+    }
+
+    private void failed(SQLException e) {
+      onDone.run();
+      future.setException(e);
+    }
+  }
+
+  /**
+   * The single write connection, and the thread which commits queued writes and access time
+   * updates through it in batches. Maintenance operations run on the calling thread, but never
+   * concurrently with a batch.
+   */
+  private static class Writer {
+    private final Connection connection;
+    private final BlockingQueue<QueuedWrite> queue = new LinkedBlockingQueue<>();
+    private final Set<RuleKey> accessedMetadata = ConcurrentHashMap.newKeySet();
+    private final Set<RuleKey> accessedContent = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+    // Guards the closed check and the enqueue in submit() against close(), so that no write can be
+    // queued after the writer thread has drained the queue for the last time.
+    private final Object closeLock = new Object();
+    private volatile boolean closed = false;
+
     private final PreparedStatement updateMetadataTime;
     private final PreparedStatement updateContentTime;
 
@@ -557,15 +839,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
     private final PreparedStatement contentSize;
 
-    private ConnectionInfo(Path cacheDir) throws SQLException {
-      // date format must be set to match CURRENT_TIMESTAMP
-      Properties properties = new SQLiteConfig().toProperties();
-      properties.setProperty(
-          SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
-      connection =
-          DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
-      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
-      connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+    private Writer(Connection connection) throws SQLException {
+      this.connection = connection;
 
       /*
        * This cache is used for two different layers, so we use two separate databases to encode these
@@ -599,11 +874,6 @@ public class SQLiteArtifactCache implements ArtifactCache {
                   + "OR artifact ISNULL AND filepath NOT NULL)) "
                   + "WITHOUT ROWID");
 
-      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
-      fetchContent =
-          connection.prepareStatement(
-              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
-
       updateMetadataTime =
           connection.prepareStatement(
               "UPDATE metadata SET accessed = CURRENT_TIMESTAMP WHERE rulekey = ?");
@@ -613,12 +883,14 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
       storeMetadata =
           connection.prepareStatement("REPLACE INTO metadata (rulekey, data) VALUES (?, ?)");
+      // Concurrent stores of the same content may both have been queued before either was
+      // committed, so later ones simply replace earlier ones rather than failing the batch.
       storeArtifact =
           connection.prepareStatement(
-              "INSERT INTO content (sha1, artifact, size) VALUES (?, ?, ?)");
+              "REPLACE INTO content (sha1, artifact, size) VALUES (?, ?, ?)");
       storeFilepath =
           connection.prepareStatement(
-              "INSERT INTO content (sha1, filepath, size) VALUES (?, ?, ?)");
+              "REPLACE INTO content (sha1, filepath, size) VALUES (?, ?, ?)");
 
       selectContentByTime =
           connection.prepareStatement(
@@ -632,47 +904,144 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
       contentSize = connection.prepareStatement("SELECT sum(size) FROM content");
 
-      BusyHandler.setHandler(connection, new RetryBusyHandler());
+      thread = Threads.namedThread("SQLiteArtifactCache writer", this::run);
+      thread.setDaemon(true);
     }
 
-    private synchronized Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
-      fetchMetadata.setBytes(1, getBytes(ruleKey));
-      ResultSet rs = fetchMetadata.executeQuery();
-      return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+    private void start() {
+      thread.start();
     }
 
-    private synchronized Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
-      fetchContent.setBytes(1, getBytes(contentHash));
-      ResultSet rs = fetchContent.executeQuery();
-      return rs.next()
-          ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
-          : Optional.empty();
+    private ListenableFuture<Void> submit(WriteOperation operation, Runnable onDone) {
+      QueuedWrite write = new QueuedWrite(operation, onDone);
+      synchronized (closeLock) {
+        if (!closed) {
+          queue.add(write);
+          return write.future;
+        }
+      }
+      write.failed(new SQLException("SQLite artifact cache is closed"));
+      return write.future;
     }
 
-    private synchronized void accessMetadata(RuleKey ruleKey) throws SQLException {
-      updateMetadataTime.setBytes(1, getBytes(ruleKey));
-      updateMetadataTime.executeUpdate();
+    /** Blocks until all writes queued so far and all pending access times are committed. */
+    private void flush() throws SQLException {
+      try {
+        submit(() -> {}, () -> {}).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while flushing writes", e);
+      } catch (ExecutionException e) {
+        Throwables.throwIfInstanceOf(e.getCause(), SQLException.class);
+        throw new SQLException(e.getCause());
+      }
     }
 
-    private synchronized void accessContent(RuleKey contentHash) throws SQLException {
-      updateContentTime.setBytes(1, getBytes(contentHash));
-      updateContentTime.executeUpdate();
+    private void run() {
+      List<QueuedWrite> batch = new ArrayList<>(MAX_WRITE_BATCH_SIZE);
+      while (!closed) {
+        try {
+          QueuedWrite first = queue.poll(ACCESS_TIME_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+          if (first != null) {
+            batch.add(first);
+            queue.drainTo(batch, MAX_WRITE_BATCH_SIZE - 1);
+          }
+        } catch (InterruptedException e) {
+          break;
+        }
+        commit(batch);
+        batch.clear();
+      }
+
+      // Commit everything queued or accessed before the cache was closed.
+      queue.drainTo(batch);
+      commit(batch);
     }
 
-    private synchronized void storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata)
+    private synchronized void commit(List<QueuedWrite> batch) {
+      List<RuleKey> metadata = drain(accessedMetadata);
+      List<RuleKey> content = drain(accessedContent);
+      if (batch.isEmpty() && metadata.isEmpty() && content.isEmpty()) {
+        return;
+      }
+
+      try {
+        connection.setAutoCommit(false);
+        try {
+          for (QueuedWrite write : batch) {
+            write.operation.run();
+          }
+          updateAccessTimes(metadata, content);
+          connection.commit();
+          batch.forEach(QueuedWrite::succeeded);
+          return;
+        } catch (SQLException e) {
+          connection.rollback();
+          LOG.debug(e, "Batch of %d writes failed, retrying them one by one", batch.size());
+        } finally {
+          connection.setAutoCommit(true);
+        }
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to commit writes");
+      }
+
+      // Commit writes separately, so that a single bad write doesn't fail all others.
+      for (QueuedWrite write : batch) {
+        try {
+          write.operation.run();
+          write.succeeded();
+        } catch (SQLException e) {
+          write.failed(e);
+        }
+      }
+      try {
+        updateAccessTimes(metadata, content);
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to update access times");
+      }
+    }
+
+    private static List<RuleKey> drain(Set<RuleKey> keys) {
+      List<RuleKey> drained = new ArrayList<>();
+      for (Iterator<RuleKey> iterator = keys.iterator(); iterator.hasNext(); ) {
+        drained.add(iterator.next());
+        iterator.remove();
+      }
+      return drained;
+    }
+
+    private void updateAccessTimes(List<RuleKey> metadata, List<RuleKey> content)
+        throws SQLException {
+      if (!metadata.isEmpty()) {
+        for (RuleKey ruleKey : metadata) {
+          updateMetadataTime.setBytes(1, Database.getBytes(ruleKey));
+          updateMetadataTime.addBatch();
+        }
+        updateMetadataTime.executeBatch();
+      }
+      if (!content.isEmpty()) {
+        for (RuleKey contentHash : content) {
+          updateContentTime.setBytes(1, Database.getBytes(contentHash));
+          updateContentTime.addBatch();
+        }
+        updateContentTime.executeBatch();
+      }
+    }
+
+    private void storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata)
         throws SQLException {
       for (RuleKey ruleKey : ruleKeys) {
-        storeMetadata.setBytes(1, getBytes(ruleKey));
+        storeMetadata.setBytes(1, Database.getBytes(ruleKey));
         storeMetadata.setBytes(2, metadata);
         storeMetadata.addBatch();
       }
       storeMetadata.executeBatch();
     }
 
-    private synchronized void storeArtifact(Iterable<RuleKey> hashes, byte[] artifact, long size)
+    private void storeArtifact(Iterable<RuleKey> hashes, byte[] artifact, long size)
         throws SQLException {
       for (RuleKey contentHash : hashes) {
-        storeArtifact.setBytes(1, getBytes(contentHash));
+        storeArtifact.setBytes(1, Database.getBytes(contentHash));
         storeArtifact.setBytes(2, artifact);
         storeArtifact.setLong(3, size);
         storeArtifact.addBatch();
@@ -680,10 +1049,10 @@ public class SQLiteArtifactCache implements ArtifactCache {
       storeArtifact.executeBatch();
     }
 
-    private synchronized void storeFilepath(Iterable<RuleKey> ruleKeys, String filepath, long size)
+    private void storeFilepath(Iterable<RuleKey> ruleKeys, String filepath, long size)
         throws SQLException {
       for (RuleKey ruleKey : ruleKeys) {
-        storeFilepath.setBytes(1, getBytes(ruleKey));
+        storeFilepath.setBytes(1, Database.getBytes(ruleKey));
         storeFilepath.setString(2, filepath);
         storeFilepath.setLong(3, size);
         storeFilepath.addBatch();
@@ -691,6 +1060,11 @@ public class SQLiteArtifactCache implements ArtifactCache {
       storeFilepath.executeBatch();
     }
 
+    private void deleteContent(RuleKey contentHash) throws SQLException {
+      deleteContentForHash.setBytes(1, Database.getBytes(contentHash));
+      deleteContentForHash.executeUpdate();
+    }
+
     private synchronized int deleteMetadata(Timestamp evictionCutoff) throws SQLException {
       deleteMetadataBeforeCutoff.setTimestamp(1, evictionCutoff);
       return deleteMetadataBeforeCutoff.executeUpdate();
@@ -701,11 +1075,6 @@ public class SQLiteArtifactCache implements ArtifactCache {
       return deleteContentBeforeCutoff.executeUpdate();
     }
 
-    private synchronized void deleteContent(RuleKey contentHash) throws SQLException {
-      deleteContentForHash.setBytes(1, getBytes(contentHash));
-      deleteContentForHash.executeUpdate();
-    }
-
     private synchronized long totalSize() throws SQLException {
       ResultSet rs = contentSize.executeQuery();
       if (!rs.next()) {
@@ -746,13 +1115,22 @@ public class SQLiteArtifactCache implements ArtifactCache {
       return new Pair<>(filepaths.build(), evictionCutoff);
     }
 
-    private static byte[] getBytes(RuleKey ruleKey) {
-      return ruleKey.getHashCode().asBytes();
-    }
-
     private void close() {
+      synchronized (closeLock) {
+        closed = true;
+      }
       try {
+        thread.join();
+        // The writer thread commits everything queued before it saw the cache closed. Anything
+        // still left, e.g. because it was interrupted, must not be waited on forever.
+        List<QueuedWrite> abandoned = new ArrayList<>();
+        queue.drainTo(abandoned);
+        for (QueuedWrite write : abandoned) {
+          write.failed(new SQLException("SQLite artifact cache is closed"));
+        }
         connection.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       } catch (SQLException e) {
         throw new RuntimeException(e);
       }
@@ -760,11 +1138,11 @@ public class SQLiteArtifactCache implements ArtifactCache {
   }
 
   private static class Content {
-    private final byte[] artifact;
-    private final String filepath;
+    @Nullable private final byte[] artifact;
+    @Nullable private final String filepath;
     private final long size;
 
-    Content(byte[] artifact, String filepath, long size) {
+    Content(@Nullable byte[] artifact, @Nullable String filepath, long size) {
       this.artifact = artifact;
       this.filepath = filepath;
       this.size = size;
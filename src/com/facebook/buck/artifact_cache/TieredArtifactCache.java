@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode.CacheType;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link ArtifactCache} that treats the local (dir/sqlite) caches as a first tier in front of
+ * the remote caches.
+ *
+ * <p>Fetches only go to the remote tier on a local miss. Remote hits are written back to the local
+ * tier on a dedicated executor so that the build does not wait on the extra disk write. Each
+ * promotion keeps a staged copy of the artifact alive until it lands in the local tier, so the
+ * total size of in-flight promotions is capped; hits that do not fit are simply not promoted.
+ * Every lookup is reported as a {@link CacheTierFetchEvent}.
+ */
+public class TieredArtifactCache implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(TieredArtifactCache.class);
+
+  private static final long PROMOTION_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+  private final BuckEventBus eventBus;
+  private final ArtifactCache localCache;
+  private final ArtifactCache remoteCache;
+  private final MultiArtifactCache allTiers;
+  private final ListeningExecutorService promotionExecutor;
+  private final Clock clock;
+  private final long maxPendingPromotionBytes;
+
+  private final AtomicLong pendingPromotionBytes = new AtomicLong();
+  private final Set<ListenableFuture<Void>> pendingPromotions = Sets.newConcurrentHashSet();
+  private final AtomicInteger promotedCount = new AtomicInteger();
+  private final AtomicInteger droppedPromotionCount = new AtomicInteger();
+
+  /**
+   * @param promotionExecutor executor on which promotions are written to the local tier. It is
+   *     owned by this cache and shut down on {@link #close()}.
+   * @param maxPendingPromotionBytes upper bound on the total size of artifacts staged for promotion
+   *     at any one time.
+   */
+  public TieredArtifactCache(
+      BuckEventBus eventBus,
+      ArtifactCache localCache,
+      ArtifactCache remoteCache,
+      ListeningExecutorService promotionExecutor,
+      Clock clock,
+      long maxPendingPromotionBytes) {
+    this.eventBus = eventBus;
+    this.localCache = localCache;
+    this.remoteCache = remoteCache;
+    this.allTiers = new MultiArtifactCache(ImmutableList.of(localCache, remoteCache));
+    this.promotionExecutor = promotionExecutor;
+    this.clock = clock;
+    this.maxPendingPromotionBytes = maxPendingPromotionBytes;
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    long localStartNanos = clock.nanoTime();
+    return Futures.transformAsync(
+        localCache.fetchAsync(target, ruleKey, output),
+        localResult -> {
+          recordFetch(CacheType.local, localResult, localStartNanos);
+          if (localResult.getType().isSuccess()) {
+            return Futures.immediateFuture(localResult);
+          }
+          long remoteStartNanos = clock.nanoTime();
+          return Futures.transform(
+              remoteCache.fetchAsync(target, ruleKey, output),
+              remoteResult -> {
+                recordFetch(CacheType.remote, remoteResult, remoteStartNanos);
+                if (remoteResult.getType() == CacheResultType.HIT) {
+                  promote(ruleKey, remoteResult, output.getUnchecked());
+                }
+                return remoteResult;
+              },
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private void recordFetch(CacheType tier, CacheResult result, long startNanos) {
+    eventBus.post(
+        CacheTierFetchEvent.of(
+            tier,
+            result.getType(),
+            TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - startNanos)));
+  }
+
+  private void promote(RuleKey ruleKey, CacheResult result, Path artifact) {
+    if (!localCache.getCacheReadMode().isWritable()) {
+      return;
+    }
+
+    long size;
+    try {
+      size = Files.size(artifact);
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to promote %s: cannot stat %s", ruleKey, artifact);
+      return;
+    }
+    if (!reservePromotionBytes(size)) {
+      droppedPromotionCount.incrementAndGet();
+      LOG.debug("Not promoting %s (%d bytes): too many pending promotions", ruleKey, size);
+      return;
+    }
+
+    Path staged;
+    try {
+      staged = stageForPromotion(artifact);
+    } catch (IOException e) {
+      pendingPromotionBytes.addAndGet(-size);
+      LOG.warn(e, "Unable to promote %s: cannot stage %s", ruleKey, artifact);
+      return;
+    }
+
+    ArtifactInfo info =
+        ArtifactInfo.builder().addRuleKeys(ruleKey).setMetadata(result.getMetadata()).build();
+    ListenableFuture<Void> stored;
+    try {
+      stored =
+          Futures.submitAsync(
+              () -> localCache.store(info, BorrowablePath.borrowablePath(staged)),
+              promotionExecutor);
+    } catch (RejectedExecutionException e) {
+      stored = Futures.immediateFailedFuture(e);
+    }
+
+    pendingPromotions.add(stored);
+    ListenableFuture<Void> promotion = stored;
+    Futures.addCallback(
+        promotion,
+        new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(@Nullable Void unused) {
+            promotedCount.incrementAndGet();
+            finish();
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            LOG.warn(t, "Failed to promote %s to the local cache", ruleKey);
+            finish();
+          }
+
+          private void finish() {
+            try {
+              Files.deleteIfExists(staged);
+            } catch (IOException e) {
+              LOG.debug(e, "Failed to clean up staged artifact %s", staged);
+            }
+            pendingPromotionBytes.addAndGet(-size);
+            pendingPromotions.remove(promotion);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private boolean reservePromotionBytes(long size) {
+    while (true) {
+      long current = pendingPromotionBytes.get();
+      if (current + size > maxPendingPromotionBytes) {
+        return false;
+      }
+      if (pendingPromotionBytes.compareAndSet(current, current + size)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * The fetched artifact belongs to the caller, who may delete it as soon as the fetch completes,
+   * so the promotion works from its own hard link (or copy, where links are not supported).
+   */
+  private static Path stageForPromotion(Path artifact) throws IOException {
+    Path absolute = artifact.toAbsolutePath();
+    Path staged =
+        Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".promote");
+    try {
+      Files.delete(staged);
+      Files.createLink(staged, absolute);
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(absolute, staged, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return staged;
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    allTiers.skipPendingAndFutureAsyncFetches();
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    return allTiers.store(info, output);
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ImmutableList<Pair<ArtifactInfo, BorrowablePath>> artifacts) {
+    return allTiers.store(artifacts);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return allTiers.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    return allTiers.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return allTiers.getCacheReadMode();
+  }
+
+  @Override
+  public void close() {
+    try {
+      Futures.successfulAsList(pendingPromotions)
+          .get(PROMOTION_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      LOG.warn(e, "Gave up waiting for %d pending promotions", pendingPromotions.size());
+    }
+    promotionExecutor.shutdownNow();
+    LOG.debug(
+        "Promoted %d artifacts to the local cache, dropped %d",
+        promotedCount.get(), droppedPromotionCount.get());
+    allTiers.close();
+  }
+
+  @VisibleForTesting
+  int getPromotedCount() {
+    return promotedCount.get();
+  }
+
+  @VisibleForTesting
+  int getDroppedPromotionCount() {
+    return droppedPromotionCount.get();
+  }
+}
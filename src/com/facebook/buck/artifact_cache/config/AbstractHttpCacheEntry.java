@@ -48,6 +48,18 @@ abstract class AbstractHttpCacheEntry {
 
   public abstract Optional<Long> getMaxStoreSize();
 
+  /**
+   * If set, artifacts are fetched as byte ranges of this size, several of them in parallel, and a
+   * failed range is resumed rather than restarting the whole fetch.
+   */
+  public abstract Optional<Long> getFetchChunkSizeBytes();
+
+  /** The maximum number of ranges of a single artifact downloaded at the same time. */
+  @Value.Default
+  public int getMaxParallelChunkFetches() {
+    return 4;
+  }
+
   // We're connected to a wifi hotspot that has been explicitly blacklisted from connecting to
   // a distributed cache.
   public boolean isWifiUsableForDistributedCache(Optional<String> currentWifiSsid) {
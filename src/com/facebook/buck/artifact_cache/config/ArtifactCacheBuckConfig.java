@@ -60,6 +60,8 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String HTTP_CACHE_ERROR_MESSAGE_NAME = "http_error_message_format";
   private static final String HTTP_CACHE_ERROR_MESSAGE_LIMIT_NAME = "http_error_message_limit";
   private static final String HTTP_MAX_STORE_SIZE = "http_max_store_size";
+  private static final String HTTP_FETCH_CHUNK_SIZE = "http_fetch_chunk_size";
+  private static final String HTTP_FETCH_PARALLEL_CHUNKS = "http_fetch_parallel_chunks";
   private static final String HTTP_THREAD_POOL_SIZE = "http_thread_pool_size";
   private static final String HTTP_THREAD_POOL_KEEP_ALIVE_DURATION_MILLIS =
       "http_thread_pool_keep_alive_duration_millis";
@@ -76,7 +78,9 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
           HTTP_WRITE_HEADERS_FIELD_NAME,
           HTTP_CACHE_ERROR_MESSAGE_NAME,
           HTTP_CACHE_ERROR_MESSAGE_LIMIT_NAME,
-          HTTP_MAX_STORE_SIZE);
+          HTTP_MAX_STORE_SIZE,
+          HTTP_FETCH_CHUNK_SIZE,
+          HTTP_FETCH_PARALLEL_CHUNKS);
   private static final String HTTP_MAX_FETCH_RETRIES = "http_max_fetch_retries";
   private static final String HTTP_MAX_STORE_ATTEMPTS = "http_max_store_attempts";
   private static final String HTTP_STORE_RETRY_INTERVAL_MILLIS = "http_store_retry_interval_millis";
@@ -84,9 +88,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_LAYOUT_FIELD = "dir_layout";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
-      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
+      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD, DIR_LAYOUT_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.READWRITE.name();
@@ -125,6 +130,11 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
       "two_level_cache_maximum_size";
   private static final long TWO_LEVEL_CACHING_MIN_SIZE_DEFAULT = 20 * 1024L;
 
+  private static final String TIERED_CACHE_ENABLED_FIELD_NAME = "tiered_cache_enabled";
+  private static final String TIERED_CACHE_MAX_PENDING_PROMOTION_SIZE_FIELD_NAME =
+      "tiered_cache_max_pending_promotion_size";
+  private static final long TIERED_CACHE_MAX_PENDING_PROMOTION_SIZE_DEFAULT = 256 * 1024 * 1024L;
+
   private static final String HYBRID_THRIFT_ENDPOINT = "hybrid_thrift_endpoint";
   private static final String REPOSITORY = "repository";
   private static final String DEFAULT_REPOSITORY = "";
@@ -382,6 +392,17 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .map(SizeUnit::parseBytes);
   }
 
+  public boolean getTieredCachingEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, TIERED_CACHE_ENABLED_FIELD_NAME, false);
+  }
+
+  public long getTieredCachingMaxPendingPromotionSize() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, TIERED_CACHE_MAX_PENDING_PROMOTION_SIZE_FIELD_NAME)
+        .map(SizeUnit::parseBytes)
+        .orElse(TIERED_CACHE_MAX_PENDING_PROMOTION_SIZE_DEFAULT);
+  }
+
   private boolean getServingLocalCacheEnabled() {
     return buckConfig.getBooleanValue(CACHE_SECTION_NAME, SERVED_CACHE_ENABLED_FIELD_NAME, false);
   }
@@ -438,11 +459,17 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     Optional<Long> maxSizeBytes =
         buckConfig.getValue(section, DIR_MAX_SIZE_FIELD).map(SizeUnit::parseBytes);
 
+    DirCacheLayout layout =
+        buckConfig
+            .getEnum(section, DIR_LAYOUT_FIELD, DirCacheLayout.class)
+            .orElse(DirCacheLayout.RULE_KEY);
+
     return DirCacheEntry.builder()
         .setName(cacheName)
         .setCacheDir(pathToCacheDir)
         .setCacheReadMode(readMode)
         .setMaxSizeBytes(maxSizeBytes)
+        .setLayout(layout)
         .build();
   }
 
@@ -479,6 +506,11 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
             CACHE_SECTION_NAME, HTTP_CACHE_ERROR_MESSAGE_NAME, DEFAULT_HTTP_CACHE_ERROR_MESSAGE));
     builder.setErrorMessageLimit(getErrorMessageLimit());
     builder.setMaxStoreSize(buckConfig.getLong(CACHE_SECTION_NAME, HTTP_MAX_STORE_SIZE));
+    builder.setFetchChunkSizeBytes(
+        buckConfig.getValue(CACHE_SECTION_NAME, HTTP_FETCH_CHUNK_SIZE).map(SizeUnit::parseBytes));
+    buckConfig
+        .getInteger(CACHE_SECTION_NAME, HTTP_FETCH_PARALLEL_CHUNKS)
+        .ifPresent(builder::setMaxParallelChunkFetches);
 
     return builder.build();
   }
@@ -560,8 +560,7 @@ public class BuildCommand extends AbstractCommand {
       distBuildClientStatsTracker.stopTimer(LOCAL_GRAPH_CONSTRUCTION);
 
       try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
-          getDefaultRuleKeyCacheScope(
-              params, graphsAndBuildTargets.getGraphs().getActionGraphAndBuilder())) {
+          getDefaultRuleKeyCacheScope(params, graphsAndBuildTargets.getGraphs())) {
         try {
           exitCode =
               executeDistBuild(
@@ -597,8 +596,7 @@ public class BuildCommand extends AbstractCommand {
             createGraphsAndTargets(
                 params, commandThreadManager.getListeningExecutorService(), optionalRuleKeyLogger);
         try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
-            getDefaultRuleKeyCacheScope(
-                params, graphsAndBuildTargets.getGraphs().getActionGraphAndBuilder())) {
+            getDefaultRuleKeyCacheScope(params, graphsAndBuildTargets.getGraphs())) {
           exitCode =
               executeLocalBuild(
                   params,
@@ -1425,11 +1423,13 @@ public class BuildCommand extends AbstractCommand {
   }
 
   RuleKeyCacheScope<RuleKey> getDefaultRuleKeyCacheScope(
-      CommandRunnerParams params, ActionGraphAndBuilder actionGraphAndBuilder) {
+      CommandRunnerParams params, ActionAndTargetGraphs graphs) {
     return getDefaultRuleKeyCacheScope(
         params,
         new RuleKeyCacheRecycler.SettingsAffectingCache(
-            params.getBuckConfig().getKeySeed(), actionGraphAndBuilder.getActionGraph()));
+            params.getBuckConfig().getKeySeed(),
+            graphs.getActionGraphAndBuilder().getActionGraph(),
+            Optional.of(graphs.getTargetGraphForLocalBuild().getTargetGraph())));
   }
 
   @Override
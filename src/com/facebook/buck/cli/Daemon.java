@@ -40,19 +40,31 @@ import com.facebook.buck.rules.coercer.ConstructorArgMarshaller;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistentRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.rules.keys.TrackableRuleKeyCache;
+import com.facebook.buck.rules.keys.config.impl.ConfigRuleKeyConfigurationFactory;
+import com.facebook.buck.toolchain.ComparableToolchain;
+import com.facebook.buck.toolchain.ToolchainProvider;
 import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.StackedFileHashCache;
 import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
+import com.facebook.buck.util.hashing.StringHashing;
 import com.facebook.buck.versions.VersionedTargetGraphCache;
 import com.facebook.buck.worker.WorkerProcessPool;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.eventbus.EventBus;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.concurrent.ConcurrentHashMap;
@@ -66,6 +78,8 @@ import java.util.concurrent.ConcurrentMap;
 final class Daemon implements Closeable {
   private static final Logger LOG = Logger.get(Daemon.class);
 
+  private static final String PERSISTENT_RULE_KEY_STORE = ".rule_keys";
+
   private final Cell rootCell;
   private final TypeCoercerFactory typeCoercerFactory;
   private final Parser parser;
@@ -105,7 +119,9 @@ final class Daemon implements Closeable {
     this.hashCaches = hashCachesBuilder.build();
 
     this.actionGraphCache =
-        new ActionGraphCache(rootCell.getBuckConfig().getMaxActionGraphCacheEntries());
+        new ActionGraphCache(
+            rootCell.getBuckConfig().getMaxActionGraphCacheEntries(),
+            rootCell.getBuckConfig().getMaxActionGraphCacheIdleCommands());
     this.versionedTargetGraphCache = new VersionedTargetGraphCache();
     this.knownBuildRuleTypesProvider = knownBuildRuleTypesProvider;
 
@@ -124,7 +140,7 @@ final class Daemon implements Closeable {
     this.defaultRuleKeyFactoryCacheRecycler =
         RuleKeyCacheRecycler.createAndRegister(
             fileEventBus,
-            new DefaultRuleKeyCache<>(),
+            createDefaultRuleKeyCache(rootCell, hashCaches),
             RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet());
 
     if (webServerToReuse.isPresent()) {
@@ -151,6 +167,64 @@ final class Daemon implements Closeable {
     return rootCell;
   }
 
+  private static TrackableRuleKeyCache<RuleKey> createDefaultRuleKeyCache(
+      Cell rootCell, ImmutableList<ProjectFileHashCache> hashCaches) {
+    if (!rootCell.getBuckConfig().isPersistentRuleKeyCacheEnabled()) {
+      return new DefaultRuleKeyCache<>();
+    }
+    ProjectFilesystem filesystem = rootCell.getFilesystem();
+    Path path =
+        filesystem
+            .resolve(filesystem.getBuckPaths().getBuckOut())
+            .resolve(PERSISTENT_RULE_KEY_STORE);
+    try {
+      return new PersistentRuleKeyCache(
+          PersistentRuleKeyStore.open(path, getRuleKeySettingsFingerprint(rootCell)),
+          new StackedFileHashCache(hashCaches),
+          RichStream.from(rootCell.getAllCells()).map(Cell::getFilesystem).toImmutableSet());
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to open persistent rule key store at %s", path);
+      return new DefaultRuleKeyCache<>();
+    }
+  }
+
+  /**
+   * @return a fingerprint of everything outside of the target graph which affects rule keys.
+   *     Toolchains are mostly configured through the environment or discovered from disk, so the
+   *     state of those the daemon restarts for (SDK and NDK locations and versions, and the like)
+   *     is included. This creates them, so that from then on the daemon restarts when they change.
+   */
+  private static String getRuleKeySettingsFingerprint(Cell rootCell) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(rootCell.getBuckConfig().getKeySeed());
+    StringHashing.hashStringAndLength(
+        hasher, ConfigRuleKeyConfigurationFactory.getCoreKey(rootCell.getBuckConfig()));
+    for (Cell cell : rootCell.getAllCells()) {
+      StringHashing.hashStringAndLength(hasher, cell.getRoot().toString());
+      for (Map.Entry<String, ImmutableMap<String, String>> section :
+          cell.getBuckConfig().getConfig().getSectionToEntries().entrySet()) {
+        StringHashing.hashStringAndLength(hasher, section.getKey());
+        for (Map.Entry<String, String> entry : section.getValue().entrySet()) {
+          StringHashing.hashStringAndLength(hasher, entry.getKey());
+          StringHashing.hashStringAndLength(hasher, entry.getValue());
+        }
+      }
+      ToolchainProvider toolchainProvider = cell.getToolchainProvider();
+      for (String toolchain :
+          ImmutableSortedSet.copyOf(
+              toolchainProvider.getToolchainsWithCapability(ComparableToolchain.class))) {
+        StringHashing.hashStringAndLength(hasher, toolchain);
+        StringHashing.hashStringAndLength(
+            hasher,
+            toolchainProvider
+                .getByNameIfPresent(toolchain, ComparableToolchain.class)
+                .map(Object::toString)
+                .orElse(""));
+      }
+    }
+    return hasher.hash().toString();
+  }
+
   private static Optional<WebServer> createWebServer(
       BuckConfig config, ProjectFilesystem filesystem) {
     OptionalInt port = getValidWebServerPort(config);
@@ -67,7 +67,9 @@ public abstract class DistBuildFactory {
 
   public static DistBuildService newDistBuildService(CommandRunnerParams params) {
     return new DistBuildService(
-        newFrontendService(params), params.getBuildEnvironmentDescription().getUser());
+        newFrontendService(params),
+        params.getBuildEnvironmentDescription().getUser(),
+        new DistBuildConfig(params.getBuckConfig()).isChunkedBuildGraphUploadEnabled());
   }
 
   public static LogStateTracker newDistBuildLogStateTracker(
@@ -824,7 +824,14 @@ public final class Main {
       try (GlobalStateManager.LoggerIsMappedToThreadScope loggerThreadMappingScope =
               GlobalStateManager.singleton()
                   .setupLoggers(invocationInfo, console.getStdErr(), stdErr, verbosity);
-          DefaultBuckEventBus buildEventBus = new DefaultBuckEventBus(clock, buildId);
+          DefaultBuckEventBus buildEventBus =
+              new DefaultBuckEventBus(
+                  clock,
+                  buildId,
+                  buckConfig
+                      .getEnum(
+                          "log", "event_dispatch_mode", DefaultBuckEventBus.DispatchMode.class)
+                      .orElse(DefaultBuckEventBus.DispatchMode.SINGLE_THREAD));
           // We use a new executor service beyond client connection lifetime since it can take a
           // long time to stat and cleanup large disk artifact cache directories
           // See https://github.com/facebook/buck/issues/1842
@@ -1285,6 +1292,7 @@ public final class Main {
       Daemon daemon = daemonOptional.get();
       registerClientDisconnectedListener(context.get(), daemon);
       daemon.watchFileSystem(buildEventBus, watchmanWatcher, watchmanFreshInstanceAction);
+      daemon.getActionGraphCache().onCommandStarted(buildEventBus.getBuildId());
       Optional<RuleKeyCacheRecycler<RuleKey>> defaultRuleKeyFactoryCacheRecycler;
       if (buckConfig.getRuleKeyCaching()) {
         LOG.debug("Using rule key calculation caching");
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.parser.DaemonicParserState;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.parser.ParserStateObjectInputStream;
 import com.facebook.buck.parser.thrift.RemoteDaemonicParserState;
@@ -24,17 +25,15 @@ import com.facebook.buck.util.json.ObjectMappers;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Preconditions;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 import javax.annotation.Nullable;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -76,29 +75,30 @@ public class ParserCacheCommand extends AbstractCommand {
 
     if (saveFilename != null) {
       invalidateChanges(params);
-      RemoteDaemonicParserState state =
-          params.getParser().getPermState().serializeDaemonicParserState(params.getCell());
-      try (FileOutputStream fos = new FileOutputStream(saveFilename);
-          ZipOutputStream zipos = new ZipOutputStream(fos)) {
-        zipos.putNextEntry(new ZipEntry("parser_data"));
-        try (ObjectOutputStream oos = new ObjectOutputStream(zipos)) {
-          oos.writeObject(state);
-        }
-      }
+      params
+          .getParser()
+          .getPermState()
+          .saveSnapshot(params.getCell(), Paths.get(saveFilename).toAbsolutePath());
     } else if (loadFilename != null) {
-      try (FileInputStream fis = new FileInputStream(loadFilename);
-          ZipInputStream zipis = new ZipInputStream(fis)) {
-        ZipEntry entry = zipis.getNextEntry();
-        Preconditions.checkState(entry.getName().equals("parser_data"));
-        try (ObjectInputStream ois = new ParserStateObjectInputStream(zipis)) {
-          RemoteDaemonicParserState state;
-          try {
-            state = (RemoteDaemonicParserState) ois.readObject();
-          } catch (ClassNotFoundException e) {
-            params.getConsole().printErrorText("Invalid file format");
-            return ExitCode.COMMANDLINE_ERROR;
+      Path loadPath = Paths.get(loadFilename).toAbsolutePath();
+      if (DaemonicParserState.isSnapshot(loadPath)) {
+        params.getParser().getPermState().restoreSnapshot(loadPath, params.getCell());
+      } else {
+        // Files saved by older versions of buck.
+        try (FileInputStream fis = new FileInputStream(loadFilename);
+            ZipInputStream zipis = new ZipInputStream(fis)) {
+          ZipEntry entry = zipis.getNextEntry();
+          Preconditions.checkState(entry.getName().equals("parser_data"));
+          try (ObjectInputStream ois = new ParserStateObjectInputStream(zipis)) {
+            RemoteDaemonicParserState state;
+            try {
+              state = (RemoteDaemonicParserState) ois.readObject();
+            } catch (ClassNotFoundException e) {
+              params.getConsole().printErrorText("Invalid file format");
+              return ExitCode.COMMANDLINE_ERROR;
+            }
+            params.getParser().getPermState().restoreState(state, params.getCell());
           }
-          params.getParser().getPermState().restoreState(state, params.getCell());
         }
       }
       invalidateChanges(params);
@@ -27,6 +27,7 @@ import com.facebook.buck.core.model.targetgraph.TargetGraph;
 import com.facebook.buck.core.model.targetgraph.TargetGraphAndBuildTargets;
 import com.facebook.buck.core.model.targetgraph.TargetNode;
 import com.facebook.buck.core.model.targetgraph.impl.TargetGraphAndTargets;
+import com.facebook.buck.core.model.targetgraph.impl.TargetGraphHashCache;
 import com.facebook.buck.core.model.targetgraph.impl.TargetGraphHashing;
 import com.facebook.buck.core.model.targetgraph.impl.TargetNodes;
 import com.facebook.buck.core.rulekey.RuleKey;
@@ -1156,6 +1157,13 @@ public class TargetsCommand extends AbstractCommand {
 
     FileHashLoader fileHashLoader = createOrGetFileHashLoader(params);
 
+    // Hashes computed from the daemon's file hash cache can be reused across commands, as both are
+    // invalidated by the same file change events.
+    Optional<TargetGraphHashCache> targetGraphHashCache =
+        targetHashFileMode == TargetHashFileMode.PATHS_AND_CONTENTS
+            ? Optional.of(params.getParser().getPermState().getTargetGraphHashCache())
+            : Optional.empty();
+
     // Hash each target's rule description and contents of any files.
     ImmutableMap<BuildTarget, HashCode> buildTargetHashes =
         new TargetGraphHashing(
@@ -1163,7 +1171,8 @@ public class TargetsCommand extends AbstractCommand {
                 targetGraphWithTests,
                 fileHashLoader,
                 targetGraphAndNodesWithTests.getSecond(),
-                executor)
+                executor,
+                targetGraphHashCache)
             .hashTargetGraph();
 
     ImmutableMap<BuildTarget, HashCode> finalHashes =
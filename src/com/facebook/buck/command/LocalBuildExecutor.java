@@ -26,6 +26,7 @@ import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.impl.CachingBuildEngine;
 import com.facebook.buck.core.build.engine.impl.MetadataChecker;
 import com.facebook.buck.core.build.engine.type.BuildType;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
@@ -35,6 +36,7 @@ import com.facebook.buck.core.rules.SourcePathRuleFinder;
 import com.facebook.buck.core.sourcepath.resolver.impl.DefaultSourcePathResolver;
 import com.facebook.buck.core.util.immutables.BuckStyleImmutable;
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.ProjectFilesystemFactory;
 import com.facebook.buck.jvm.java.JavaBuckConfig;
 import com.facebook.buck.log.thrift.ThriftRuleKeyLogger;
@@ -68,6 +70,8 @@ import org.immutables.value.Value;
 
 /** Used to build a given set of targets on the local machine. */
 public class LocalBuildExecutor implements BuildExecutor {
+  private static final String BUILD_RULE_DURATION_HISTORY = ".rule_durations";
+
   private final ActionGraphAndBuilder actionGraphAndBuilder;
   private final WeightedListeningExecutorService executorService;
   private final CachingBuildEngineDelegate cachingBuildEngineDelegate;
@@ -232,7 +236,18 @@ public class LocalBuildExecutor implements BuildExecutor {
             args.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
             ruleKeyCacheScope.getCache(),
             ruleKeyLogger),
-        remoteBuildRuleCompletionWaiter);
+        remoteBuildRuleCompletionWaiter,
+        engineConfig.isCriticalPathSchedulingEnabled()
+            ? Optional.of(loadBuildRuleDurationHistory())
+            : Optional.empty());
+  }
+
+  private BuildRuleDurationHistory loadBuildRuleDurationHistory() {
+    ProjectFilesystem filesystem = args.getRootCell().getFilesystem();
+    return BuildRuleDurationHistory.load(
+        filesystem
+            .resolve(filesystem.getBuckPaths().getBuckOut())
+            .resolve(BUILD_RULE_DURATION_HISTORY));
   }
 
   public Build getBuild() {
@@ -562,6 +562,18 @@ public class BuckConfig implements ConfigPathGetter {
     return getInteger("cache", "max_action_graph_cache_entries").orElse(1);
   }
 
+  public int getMaxActionGraphCacheIdleCommands() {
+    return getInteger("cache", "max_action_graph_cache_idle_commands").orElse(10);
+  }
+
+  /**
+   * Whether the daemon should persist default rule keys to disk, so they can be re-used after a
+   * daemon restart.
+   */
+  public boolean isPersistentRuleKeyCacheEnabled() {
+    return getBooleanValue("cache", "persistent_rule_key_cache", false);
+  }
+
   public IncrementalActionGraphMode getIncrementalActionGraphMode() {
     return getEnum("cache", "incremental_action_graph", IncrementalActionGraphMode.class)
         .orElse(IncrementalActionGraphMode.DEFAULT);
@@ -54,6 +54,15 @@ abstract class AbstractBuildEngineBuildContext {
     return false;
   }
 
+  /**
+   * Whether to check which rules are in the artifact cache in bulk before building them, so that
+   * the rules which aren't skip their individual fetches.
+   */
+  @Value.Default
+  public boolean shouldPrefetchCacheContains() {
+    return false;
+  }
+
   /**
    * Creates an {@link OnDiskBuildInfo}.
    *
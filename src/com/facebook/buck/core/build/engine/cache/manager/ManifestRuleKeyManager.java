@@ -24,6 +24,7 @@ import com.facebook.buck.core.build.engine.manifest.Manifest;
 import com.facebook.buck.core.build.engine.manifest.ManifestFetchResult;
 import com.facebook.buck.core.build.engine.manifest.ManifestLoadResult;
 import com.facebook.buck.core.build.engine.manifest.ManifestStoreResult;
+import com.facebook.buck.core.build.engine.manifest.MappedManifest;
 import com.facebook.buck.core.build.engine.type.DepFiles;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.rules.BuildRule;
@@ -45,12 +46,14 @@ import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Optional;
 import java.util.function.Supplier;
 import java.util.zip.GZIPInputStream;
@@ -136,12 +139,12 @@ public class ManifestRuleKeyManager {
       rule.getProjectFilesystem().createParentDirs(manifestPath);
     }
 
-    // If the manifest is larger than the max size, just truncate it.  It might be nice to support
-    // some sort of LRU management here to avoid evicting everything, but it'll take some care to do
-    // this efficiently and it's not clear how much benefit this will give us.
+    // If the manifest is at its max size, make room for the new entry by dropping the stale ones.
     if (manifest.size() >= maxDepFileCacheEntries) {
-      manifest = new Manifest(manifestKey.getRuleKey());
-      resultBuilder.setDidCreateNewManifest(true);
+      manifest = manifest.compact(maxDepFileCacheEntries - 1);
+      if (manifest.size() == 0) {
+        resultBuilder.setDidCreateNewManifest(true);
+      }
     }
 
     // Update the manifest with the new output rule key.
@@ -151,11 +154,17 @@ public class ManifestRuleKeyManager {
     // to store.
     resultBuilder.setManifestStats(manifest.getStats());
 
-    // Serialize the manifest to disk.
+    // Serialize the manifest to disk.  It's staged into a temp file and moved into place, since the
+    // previous version may still be mapped by a lookup.
+    Path stagedManifestPath =
+        rule.getProjectFilesystem()
+            .createTempFile(manifestPath.getParent(), "buck.", ".manifest");
     try (OutputStream outputStream =
-        rule.getProjectFilesystem().newFileOutputStream(manifestPath)) {
+        rule.getProjectFilesystem().newFileOutputStream(stagedManifestPath)) {
       manifest.serialize(outputStream);
     }
+    rule.getProjectFilesystem()
+        .move(stagedManifestPath, manifestPath, StandardCopyOption.REPLACE_EXISTING);
 
     Path tempFile = Files.createTempFile("buck.", ".manifest");
     // Upload the manifest to the cache.  We stage the manifest into a temp file first since the
@@ -218,10 +227,26 @@ public class ManifestRuleKeyManager {
             return Futures.immediateFuture(cacheResult);
           }
 
-          // Download is successful, so move the manifest into place.
+          // Download is successful, so decompress the manifest and move it into place.  Manifests
+          // are stored compressed in the cache, but are kept uncompressed on disk so that they can
+          // be mapped.
           rule.getProjectFilesystem().createParentDirs(path);
-          rule.getProjectFilesystem().deleteFileAtPathIfExists(path);
-          rule.getProjectFilesystem().move(tempPath.get(), path);
+          Path stagedPath =
+              rule.getProjectFilesystem().createTempFile(path.getParent(), "buck.", ".manifest");
+          try (InputStream manifestFile = Files.newInputStream(tempPath.get());
+              InputStream input = new GZIPInputStream(manifestFile);
+              OutputStream output =
+                  rule.getProjectFilesystem().newFileOutputStream(stagedPath)) {
+            MappedManifest.copyMappable(input, output);
+          } catch (IOException e) {
+            LOG.warn(e, "%s: failed to decompress fetched manifest %s", rule.getBuildTarget(), key);
+            rule.getProjectFilesystem().deleteFileAtPathIfExists(stagedPath);
+            rule.getProjectFilesystem().deleteFileAtPathIfExists(path);
+            return Futures.immediateFuture(cacheResult);
+          } finally {
+            Files.deleteIfExists(tempPath.get());
+          }
+          rule.getProjectFilesystem().move(stagedPath, path, StandardCopyOption.REPLACE_EXISTING);
 
           LOG.verbose("%s: cache hit on manifest %s", rule.getBuildTarget(), key);
 
@@ -234,13 +259,16 @@ public class ManifestRuleKeyManager {
 
     Path path = getManifestPath(rule);
 
-    // Deserialize the manifest.
+    // Deserialize the manifest.  Manifests written by older versions may still be compressed.
     Manifest manifest;
-    // Keep the file input stream in a separate variable so that it gets closed if the
-    // GZIPInputStream constructor throws.
-    try (InputStream manifestFile = rule.getProjectFilesystem().newFileInputStream(path);
-        InputStream input = new GZIPInputStream(manifestFile)) {
-      manifest = new Manifest(input);
+    try (InputStream input =
+        new BufferedInputStream(rule.getProjectFilesystem().newFileInputStream(path))) {
+      input.mark(2);
+      boolean compressed =
+          input.read() == (GZIPInputStream.GZIP_MAGIC & 0xff)
+              && input.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+      input.reset();
+      manifest = new Manifest(compressed ? new GZIPInputStream(input) : input);
     } catch (Exception e) {
       LOG.warn(
           e,
@@ -279,13 +307,21 @@ public class ManifestRuleKeyManager {
           RuleKeyAndInputs keyAndInputs =
               manifestBasedKeySupplier.get().orElseThrow(IllegalStateException::new);
 
-          // Load the manifest from disk.
-          ManifestLoadResult loadResult = loadManifest(keyAndInputs.getRuleKey());
-          if (!loadResult.getManifest().isPresent()) {
-            manifestFetchResult.setManifestLoadError(loadResult.getError().get());
+          // Map the manifest from disk, rather than deserializing it, as the lookup only needs to
+          // visit the hashes of the inputs that are actually present.
+          MappedManifest manifest;
+          try {
+            manifest =
+                MappedManifest.map(rule.getProjectFilesystem().resolve(getManifestPath(rule)));
+          } catch (IOException e) {
+            LOG.warn(
+                e,
+                "Failed to map fetched-from-cache manifest for rule %s with key %s",
+                rule,
+                keyAndInputs.getRuleKey());
+            manifestFetchResult.setManifestLoadError("corrupted manifest path");
             return Futures.immediateFuture(manifestFetchResult.build());
           }
-          Manifest manifest = loadResult.getManifest().get();
           Preconditions.checkState(
               manifest.getKey().equals(keyAndInputs.getRuleKey()),
               "%s: found incorrectly keyed manifest: %s != %s",
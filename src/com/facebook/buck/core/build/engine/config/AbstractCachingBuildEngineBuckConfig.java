@@ -66,6 +66,22 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
     return getDelegate().getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return whether to schedule rules on the critical path first, as estimated from the durations
+   *     of rules in previous builds.
+   */
+  public boolean isCriticalPathSchedulingEnabled() {
+    return getDelegate().getBooleanValue("build", "critical_path_scheduling", false);
+  }
+
+  /**
+   * @return whether to check which rules are in the artifact cache with batched requests before
+   *     building them, so that rules which aren't don't each make a fetch request.
+   */
+  public boolean isCacheContainsPrefetchEnabled() {
+    return getDelegate().getBooleanValue("build", "prefetch_cache_contains", false);
+  }
+
   public ResourceAwareSchedulingInfo getResourceAwareSchedulingInfo() {
     ResourcesConfig resourcesConfig = getDelegate().getView(ResourcesConfig.class);
     return ResourceAwareSchedulingInfo.of(
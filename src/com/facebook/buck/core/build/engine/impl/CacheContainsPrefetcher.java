@@ -0,0 +1,187 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rulekey.calculator.ParallelRuleKeyCalculator;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Checks in bulk which rules are in the artifact cache before they are built, so that the rules
+ * whose artifacts are missing don't each pay for a fetch round-trip.
+ *
+ * <p>When a top-level rule is registered, the rule keys of it and of all its transitive deps not
+ * seen yet are calculated, and then looked up with batched {@link
+ * ArtifactCache#multiContainsAsync(ImmutableSet)} requests. Until those requests complete, rules
+ * waiting on the result of their cache check wait on them rather than issuing their own fetch.
+ */
+class CacheContainsPrefetcher {
+
+  private static final Logger LOG = Logger.get(CacheContainsPrefetcher.class);
+
+  private static final int MAX_RULE_KEYS_IN_MULTI_CONTAINS_REQUEST = 5000;
+
+  private final ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator;
+  private final RuleDepsCache ruleDeps;
+  private final ListeningExecutorService service;
+  private final int maxRuleKeysPerRequest;
+  private final ConcurrentMap<BuildRule, SettableFuture<Optional<CacheResult>>> results =
+      new ConcurrentHashMap<>();
+
+  CacheContainsPrefetcher(
+      ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator,
+      RuleDepsCache ruleDeps,
+      ListeningExecutorService service) {
+    this(ruleKeyCalculator, ruleDeps, service, MAX_RULE_KEYS_IN_MULTI_CONTAINS_REQUEST);
+  }
+
+  @VisibleForTesting
+  CacheContainsPrefetcher(
+      ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator,
+      RuleDepsCache ruleDeps,
+      ListeningExecutorService service,
+      int maxRuleKeysPerRequest) {
+    this.ruleKeyCalculator = ruleKeyCalculator;
+    this.ruleDeps = ruleDeps;
+    this.service = service;
+    this.maxRuleKeysPerRequest = maxRuleKeysPerRequest;
+  }
+
+  /** Starts checking which of the given rule and its transitive deps are in the cache. */
+  void prefetch(BuckEventBus eventBus, ArtifactCache artifactCache, BuildRule topLevelRule) {
+    List<BuildRule> rules = new ArrayList<>();
+    Deque<BuildRule> toVisit = new ArrayDeque<>();
+    toVisit.add(topLevelRule);
+    while (!toVisit.isEmpty()) {
+      BuildRule rule = toVisit.pop();
+      if (results.putIfAbsent(rule, SettableFuture.create()) == null) {
+        rules.add(rule);
+        toVisit.addAll(ruleDeps.get(rule));
+      }
+    }
+
+    List<ListenableFuture<RuleKey>> ruleKeys = new ArrayList<>(rules.size());
+    for (BuildRule rule : rules) {
+      ruleKeys.add(ruleKeyCalculator.calculate(eventBus, rule));
+    }
+    Futures.addCallback(
+        Futures.successfulAsList(ruleKeys),
+        new FutureCallback<List<RuleKey>>() {
+          @Override
+          public void onSuccess(List<RuleKey> keys) {
+            for (int start = 0; start < rules.size(); start += maxRuleKeysPerRequest) {
+              int end = Math.min(rules.size(), start + maxRuleKeysPerRequest);
+              checkContains(artifactCache, rules.subList(start, end), keys.subList(start, end));
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            complete(rules, ImmutableMap.of(), ImmutableMap.of());
+          }
+        },
+        service);
+  }
+
+  /**
+   * @return the result of checking whether the cache contains the artifact of the given rule, or
+   *     an empty result if that wasn't checked.
+   */
+  ListenableFuture<Optional<CacheResult>> getContainsResult(BuildRule rule) {
+    ListenableFuture<Optional<CacheResult>> result = results.get(rule);
+    return result == null ? Futures.immediateFuture(Optional.empty()) : result;
+  }
+
+  /** @return whether a fetch of the artifact of the given rule can be skipped as it would miss. */
+  static boolean isKnownMiss(Optional<CacheResult> containsResult) {
+    return containsResult.isPresent() && containsResult.get().getType() == CacheResultType.MISS;
+  }
+
+  private void checkContains(
+      ArtifactCache artifactCache, List<BuildRule> rules, List<RuleKey> keys) {
+    // Rules whose key couldn't be calculated will fail when they are built.
+    ImmutableMap.Builder<BuildRule, RuleKey> ruleKeysBuilder = ImmutableMap.builder();
+    for (int i = 0; i < rules.size(); i++) {
+      if (keys.get(i) != null) {
+        ruleKeysBuilder.put(rules.get(i), keys.get(i));
+      }
+    }
+    ImmutableMap<BuildRule, RuleKey> ruleKeys = ruleKeysBuilder.build();
+
+    ListenableFuture<ImmutableMap<RuleKey, CacheResult>> containsFuture;
+    try {
+      containsFuture = artifactCache.multiContainsAsync(ImmutableSet.copyOf(ruleKeys.values()));
+    } catch (RuntimeException e) {
+      containsFuture = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(
+        containsFuture,
+        new FutureCallback<ImmutableMap<RuleKey, CacheResult>>() {
+          @Override
+          public void onSuccess(ImmutableMap<RuleKey, CacheResult> cacheResults) {
+            complete(rules, ruleKeys, cacheResults);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            LOG.warn(t, "Failed to check whether %d rules are in the cache.", ruleKeys.size());
+            complete(rules, ruleKeys, ImmutableMap.of());
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private void complete(
+      List<BuildRule> rules,
+      ImmutableMap<BuildRule, RuleKey> ruleKeys,
+      ImmutableMap<RuleKey, CacheResult> cacheResults) {
+    int misses = 0;
+    for (BuildRule rule : rules) {
+      RuleKey key = ruleKeys.get(rule);
+      Optional<CacheResult> result =
+          key == null ? Optional.empty() : Optional.ofNullable(cacheResults.get(key));
+      if (isKnownMiss(result)) {
+        misses++;
+      }
+      results.get(rule).set(result);
+    }
+    LOG.debug(
+        "Checked %d rules in the cache, of which %d will skip their fetch.", rules.size(), misses);
+  }
+}
@@ -37,6 +37,7 @@ import com.facebook.buck.core.build.engine.type.BuildType;
 import com.facebook.buck.core.build.engine.type.DepFiles;
 import com.facebook.buck.core.build.engine.type.MetadataStorage;
 import com.facebook.buck.core.build.event.BuildRuleEvent;
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
 import com.facebook.buck.core.build.stats.BuildRuleDurationTracker;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.RuleKey;
@@ -69,8 +70,11 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -135,6 +139,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   private final RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics;
   private final BuildRulePipelinesRunner pipelinesRunner = new BuildRulePipelinesRunner();
   private final ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator;
+  private final CacheContainsPrefetcher cacheContainsPrefetcher;
 
   private final BuildInfoStoreManager buildInfoStoreManager;
 
@@ -144,6 +149,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   private final Optional<BuildRuleStrategy> customBuildRuleStrategy;
 
+  private final Optional<CriticalPathScheduler> criticalPathScheduler;
+
   public CachingBuildEngine(
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
       Optional<BuildRuleStrategy> customBuildRuleStrategy,
@@ -162,6 +169,51 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       boolean consoleLogBuildFailuresInline,
       RuleKeyFactories ruleKeyFactories,
       RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter) {
+    this(
+        cachingBuildEngineDelegate,
+        customBuildRuleStrategy,
+        service,
+        stepRunner,
+        buildMode,
+        metadataStorage,
+        depFiles,
+        maxDepFileCacheEntries,
+        artifactCacheSizeLimit,
+        resolver,
+        ruleFinder,
+        pathResolver,
+        buildInfoStoreManager,
+        resourceAwareSchedulingInfo,
+        consoleLogBuildFailuresInline,
+        ruleKeyFactories,
+        remoteBuildRuleCompletionWaiter,
+        Optional.empty());
+  }
+
+  /**
+   * @param buildRuleDurationHistory if present, the deps of each rule are visited, and so their
+   *     work submitted, in order of the critical paths estimated from the durations of previous
+   *     builds, and the history is updated once the engine is closed.
+   */
+  public CachingBuildEngine(
+      CachingBuildEngineDelegate cachingBuildEngineDelegate,
+      Optional<BuildRuleStrategy> customBuildRuleStrategy,
+      WeightedListeningExecutorService service,
+      StepRunner stepRunner,
+      BuildType buildMode,
+      MetadataStorage metadataStorage,
+      DepFiles depFiles,
+      long maxDepFileCacheEntries,
+      Optional<Long> artifactCacheSizeLimit,
+      BuildRuleResolver resolver,
+      SourcePathRuleFinder ruleFinder,
+      SourcePathResolver pathResolver,
+      BuildInfoStoreManager buildInfoStoreManager,
+      ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
+      boolean consoleLogBuildFailuresInline,
+      RuleKeyFactories ruleKeyFactories,
+      RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter,
+      Optional<BuildRuleDurationHistory> buildRuleDurationHistory) {
     this(
         cachingBuildEngineDelegate,
         customBuildRuleStrategy,
@@ -188,7 +240,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                 ruleKeyFactories
                     .getDefaultRuleKeyFactory()
                     .buildForDiagnostics(appendable, new StringRuleKeyHasher())),
-        consoleLogBuildFailuresInline);
+        consoleLogBuildFailuresInline,
+        buildRuleDurationHistory);
   }
 
   /** This constructor MUST ONLY BE USED FOR TESTS. */
@@ -211,7 +264,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
       RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics,
-      boolean consoleLogBuildFailuresInline) {
+      boolean consoleLogBuildFailuresInline,
+      Optional<BuildRuleDurationHistory> buildRuleDurationHistory) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
     this.customBuildRuleStrategy = customBuildRuleStrategy;
 
@@ -237,6 +291,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.defaultRuleKeyDiagnostics = defaultRuleKeyDiagnostics;
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
     this.asyncCallbacks = new ConcurrentLinkedQueue<>();
+    this.criticalPathScheduler = buildRuleDurationHistory.map(CriticalPathScheduler::new);
     this.ruleKeyCalculator =
         new ParallelRuleKeyCalculator<>(
             serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS),
@@ -248,6 +303,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                     rule,
                     buildRuleDurationTracker,
                     ruleKeyFactories.getDefaultRuleKeyFactory()));
+    this.cacheContainsPrefetcher =
+        new CacheContainsPrefetcher(
+            ruleKeyCalculator,
+            ruleDeps,
+            serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
   }
 
   @Override
@@ -257,6 +317,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         customBuildRuleStrategy.get().close();
       }
       Futures.allAsList(asyncCallbacks).get();
+      criticalPathScheduler.ifPresent(
+          scheduler -> scheduler.finishBuild(buildRuleDurationTracker));
     } catch (InterruptedException e) {
       e.printStackTrace();
     } catch (IOException | ExecutionException e) {
@@ -312,7 +374,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       BuildRule rule, BuildEngineBuildContext buildContext, ExecutionContext executionContext) {
     List<ListenableFuture<BuildResult>> depResults =
         new ArrayList<>(SortedSets.sizeEstimate(rule.getBuildDeps()));
-    for (BuildRule dep : shuffled(rule.getBuildDeps())) {
+    List<BuildRule> deps =
+        criticalPathScheduler.isPresent()
+            ? criticalPathScheduler.get().prioritizeDeps(rule)
+            : shuffled(rule.getBuildDeps());
+    for (BuildRule dep : deps) {
       depResults.add(getBuildRuleResultWithRuntimeDeps(dep, buildContext, executionContext));
     }
     return Futures.allAsList(depResults);
@@ -326,6 +392,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   private void registerTopLevelRule(BuildRule rule, BuckEventBus eventBus) {
     unskippedRulesTracker.ifPresent(tracker -> tracker.registerTopLevelRule(rule, eventBus));
+    criticalPathScheduler.ifPresent(scheduler -> scheduler.registerTopLevelRule(rule));
   }
 
   private void markRuleAsUsed(BuildRule rule, BuckEventBus eventBus) {
@@ -436,11 +503,56 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
+    if (buildContext.shouldPrefetchCacheContains()) {
+      cacheContainsPrefetcher.prefetch(
+          buildContext.getEventBus(), buildContext.getArtifactCache(), rule);
+    }
     ListenableFuture<BuildResult> resultFuture =
         getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
+    if (customBuildRuleStrategy.isPresent()) {
+      resultFuture =
+          Futures.transform(
+              resultFuture,
+              result -> materializeOutputs(rule, result),
+              serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+    }
     return BuildEngineResult.builder().setResult(resultFuture).build();
   }
 
+  /**
+   * The custom strategy may leave the outputs of the rules it builds out of the filesystem. Those of
+   * the rules which were asked for, and of their runtime deps, have to be there after the build.
+   */
+  private BuildResult materializeOutputs(BuildRule rule, BuildResult result) {
+    if (!result.isSuccess()) {
+      return result;
+    }
+    Set<BuildRule> seen = new HashSet<>();
+    Deque<BuildRule> pending = new ArrayDeque<>();
+    seen.add(rule);
+    pending.add(rule);
+    try {
+      while (!pending.isEmpty()) {
+        BuildRule current = pending.remove();
+        customBuildRuleStrategy.get().materializeOutputs(current);
+        if (current instanceof HasRuntimeDeps) {
+          for (BuildRule dep :
+              resolver.getAllRules(
+                  ((HasRuntimeDeps) current)
+                      .getRuntimeDeps(ruleFinder)
+                      .collect(ImmutableSet.toImmutableSet()))) {
+            if (seen.add(dep)) {
+              pending.add(dep);
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      return BuildResult.failure(rule, e);
+    }
+    return result;
+  }
+
   @Nullable
   @Override
   public BuildResult getBuildRuleResult(BuildTarget buildTarget)
@@ -499,7 +611,9 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             pathResolver,
             resourceAwareSchedulingInfo,
             ruleKeyFactories,
-            service,
+            criticalPathScheduler.isPresent()
+                ? service.withPriority(criticalPathScheduler.get().getRemainingPathMillis(rule))
+                : service,
             stepRunner,
             this.ruleDeps,
             rule,
@@ -551,6 +665,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       cachingBuildEngine.asyncCallbacks.add(callback);
     }
 
+    @Override
+    public ListenableFuture<Optional<CacheResult>> getCacheContainsResult(BuildRule rule) {
+      return cachingBuildEngine.cacheContainsPrefetcher.getContainsResult(rule);
+    }
+
     @Override
     @Nullable
     public Throwable getFirstFailure() {
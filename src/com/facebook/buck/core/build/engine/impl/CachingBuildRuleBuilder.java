@@ -504,6 +504,7 @@ class CachingBuildRuleBuilder {
       // the files should be in a valid state.
       try {
         if (rule instanceof InitializableFromDisk) {
+          materializeOutputs(rule);
           doInitializeFromDisk((InitializableFromDisk<?>) rule);
         }
       } catch (IOException e) {
@@ -608,6 +609,11 @@ class CachingBuildRuleBuilder {
 
   private void finalizeBuiltLocally(AtomicReference<Long> outputSize)
       throws IOException, StepFailedException, InterruptedException {
+    if (materializesOutputsOnDemand()) {
+      finalizeBuiltWithOutputsOnDemand();
+      return;
+    }
+
     BuildRuleSuccessType success = BuildRuleSuccessType.BUILT_LOCALLY;
     // Try get the output size now that all outputs have been recorded.
     outputSize.set(getBuildInfoRecorder().getOutputSize());
@@ -719,6 +725,41 @@ class CachingBuildRuleBuilder {
     }
   }
 
+  /**
+   * The outputs of the rule may not exist on disk, so they aren't hashed, their size isn't recorded
+   * and no metadata gets written. That keeps the rule from being uploaded to the cache, and the
+   * next build from considering it built.
+   */
+  private void finalizeBuiltWithOutputsOnDemand()
+      throws IOException, StepFailedException, InterruptedException {
+    if (rule instanceof HasPostBuildSteps) {
+      materializeOutputs(rule);
+      executePostBuildSteps(((HasPostBuildSteps) rule).getPostBuildSteps(buildRuleBuildContext));
+    }
+
+    for (Path path : getBuildInfoRecorder().getRecordedPaths()) {
+      fileHashCache.invalidate(rule.getProjectFilesystem().resolve(path));
+    }
+  }
+
+  /**
+   * Whether building the rule may leave its outputs out of the filesystem. The dependencies of
+   * such a rule don't need their outputs on disk either.
+   */
+  private boolean materializesOutputsOnDemand() {
+    return customBuildRuleStrategy.isPresent()
+        && customBuildRuleStrategy.get().canBuild(rule)
+        && customBuildRuleStrategy.get().materializesOutputsOnDemand(rule);
+  }
+
+  private void materializeOutputs(BuildRule buildRule) throws IOException {
+    if (customBuildRuleStrategy.isPresent()) {
+      try (Scope ignored = LeafEvents.scope(eventBus, "materializing_outputs")) {
+        customBuildRuleStrategy.get().materializeOutputs(buildRule);
+      }
+    }
+  }
+
   private boolean shouldWriteOutputHashes(long outputSize) {
     Optional<Long> sizeLimit = ruleKeyFactories.getInputBasedRuleKeyFactory().getInputSizeLimit();
     return !sizeLimit.isPresent() || (outputSize <= sizeLimit.get());
@@ -939,14 +980,17 @@ class CachingBuildRuleBuilder {
               });
     }
 
-    // 6. Return to the current rule and check caches to see if we can avoid building
-    if (SupportsInputBasedRuleKey.isSupported(rule)) {
+    // 6. Return to the current rule and check caches to see if we can avoid building. Rules which
+    // materialize outputs on demand skip this and the next two checks, which read the outputs of
+    // the dependencies.
+    boolean readsDepsOutputs = !materializesOutputsOnDemand();
+    if (SupportsInputBasedRuleKey.isSupported(rule) && readsDepsOutputs) {
       buildResultFuture =
           transformBuildResultAsyncIfNotPresent(buildResultFuture, this::checkInputBasedCaches);
     }
 
     // 7. Then check if the depfile matches.
-    if (dependencyFileRuleKeyManager.useDependencyFileRuleKey()) {
+    if (dependencyFileRuleKeyManager.useDependencyFileRuleKey() && readsDepsOutputs) {
       buildResultFuture =
           transformBuildResultIfNotPresent(
               buildResultFuture,
@@ -955,7 +999,7 @@ class CachingBuildRuleBuilder {
     }
 
     // 8. Check for a manifest-based cache hit.
-    if (manifestRuleKeyManager.useManifestCaching()) {
+    if (manifestRuleKeyManager.useManifestCaching() && readsDepsOutputs) {
       buildResultFuture =
           transformBuildResultAsyncIfNotPresent(buildResultFuture, this::checkManifestBasedCaches);
     }
@@ -1049,13 +1093,20 @@ class CachingBuildRuleBuilder {
 
   private ListenableFuture<CacheResult> performRuleKeyCacheCheck(boolean cacheHitExpected) {
     long cacheRequestTimestampMillis = System.currentTimeMillis();
+    // Skip the fetch if the cache was already found not to contain the artifact before the build,
+    // unless it's expected to have been uploaded since.
+    ListenableFuture<CacheResult> cacheResultFuture =
+        cacheHitExpected
+            ? fetchArtifactForDefaultKey()
+            : Futures.transformAsync(
+                buildRuleBuilderDelegate.getCacheContainsResult(rule),
+                containsResult ->
+                    CacheContainsPrefetcher.isKnownMiss(containsResult)
+                        ? Futures.immediateFuture(CacheResult.miss())
+                        : fetchArtifactForDefaultKey(),
+                MoreExecutors.directExecutor());
     return Futures.transform(
-        buildCacheArtifactFetcher
-            .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
-                defaultKey,
-                artifactCache,
-                // TODO(simons): This should be a shared between all tests, not one per cell
-                rule.getProjectFilesystem()),
+        cacheResultFuture,
         cacheResult -> {
           RuleKeyCacheResult ruleKeyCacheResult =
               RuleKeyCacheResult.builder()
@@ -1073,6 +1124,15 @@ class CachingBuildRuleBuilder {
         });
   }
 
+  private ListenableFuture<CacheResult> fetchArtifactForDefaultKey() {
+    return buildCacheArtifactFetcher
+        .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+            defaultKey,
+            artifactCache,
+            // TODO(simons): This should be a shared between all tests, not one per cell
+            rule.getProjectFilesystem());
+  }
+
   private Optional<BuildResult> getBuildResultForRuleKeyCacheResult(CacheResult cacheResult) {
     if (!cacheResult.getType().isSuccess()) {
       return Optional.empty();
@@ -1080,12 +1140,18 @@ class CachingBuildRuleBuilder {
     return Optional.of(success(BuildRuleSuccessType.FETCHED_FROM_CACHE, cacheResult));
   }
 
-  private ListenableFuture<Optional<BuildResult>> handleDepsResults(List<BuildResult> depResults) {
+  private ListenableFuture<Optional<BuildResult>> handleDepsResults(List<BuildResult> depResults)
+      throws IOException {
+    boolean readsDepsOutputs = !materializesOutputsOnDemand();
     for (BuildResult depResult : depResults) {
       if (buildMode != BuildType.POPULATE_FROM_REMOTE_CACHE && !depResult.isSuccess()) {
         return Futures.immediateFuture(Optional.of(canceled(depResult.getFailure())));
       }
 
+      if (readsDepsOutputs && depResult.isSuccess()) {
+        materializeOutputs(depResult.getRule());
+      }
+
       if (depResult
           .getCacheResult()
           .orElse(CacheResult.skipped())
@@ -1377,6 +1443,12 @@ class CachingBuildRuleBuilder {
 
     void addAsyncCallback(ListenableFuture<Void> callback);
 
+    /**
+     * @return the result of checking whether the cache contains the artifact of the rule before it
+     *     was built, if it was checked.
+     */
+    ListenableFuture<Optional<CacheResult>> getCacheContainsResult(BuildRule rule);
+
     @Nullable
     Throwable getFirstFailure();
 
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
+import com.facebook.buck.core.build.stats.BuildRuleDurationTracker;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.timing.ClockDuration;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+
+/**
+ * Orders build rules so that those on the estimated critical path of the build are scheduled
+ * first.
+ *
+ * <p>The estimated critical path of a rule is the longest chain of build dependencies below it,
+ * weighted by the durations of those rules in previous builds as recorded in a {@link
+ * BuildRuleDurationHistory}. The build engine visits the deps of each rule in this order, so the
+ * work of the longest chains is submitted to the executor before that of the short ones.
+ *
+ * <p>Once a rule is ready to be built, what matters is how much work still depends on it. The
+ * remaining path of a rule is its own duration plus the longest remaining path of the rules which
+ * have been seen depending on it so far. The build engine passes it as the priority of the rule's
+ * work to the executor, so that when the build is short of resources, the work on the longest
+ * remaining paths is started first. Rules which are only reached through other dependents later
+ * keep the priority they had when they were first seen, so this approximates critical path
+ * scheduling rather than enforcing it.
+ *
+ * <p>At the end of the build, the predicted critical path is compared to the actual one and the
+ * history is updated with the durations of this build.
+ */
+class CriticalPathScheduler {
+
+  private static final Logger LOG = Logger.get(CriticalPathScheduler.class);
+
+  /** Maximum number of rules along a critical path to log. */
+  private static final int MAX_REPORTED_RULES = 10;
+
+  private final BuildRuleDurationHistory history;
+  private final long defaultWallMillis;
+  private final ConcurrentMap<BuildTarget, Long> predictedPathMillis = new ConcurrentHashMap<>();
+  private final ConcurrentMap<BuildTarget, Long> remainingPathMillis = new ConcurrentHashMap<>();
+  private final Set<BuildRule> topLevelRules = ConcurrentHashMap.newKeySet();
+
+  CriticalPathScheduler(BuildRuleDurationHistory history) {
+    this.history = history;
+    this.defaultWallMillis = history.getMeanWallMillis();
+  }
+
+  /** Records a rule requested by the user, from which critical paths are reported. */
+  void registerTopLevelRule(BuildRule rule) {
+    topLevelRules.add(rule);
+    remainingPathMillis.merge(rule.getBuildTarget(), getPredictedWallMillis(rule), Math::max);
+  }
+
+  /**
+   * Records that the given rule waits for its deps, so that their remaining paths include that of
+   * the rule.
+   *
+   * @return the deps of the rule ordered as by {@link #prioritize(Iterable)}.
+   */
+  List<BuildRule> prioritizeDeps(BuildRule rule) {
+    long rulePathMillis = getRemainingPathMillis(rule);
+    for (BuildRule dep : rule.getBuildDeps()) {
+      remainingPathMillis.merge(
+          dep.getBuildTarget(), rulePathMillis + getPredictedWallMillis(dep), Math::max);
+    }
+    return prioritize(rule.getBuildDeps());
+  }
+
+  /**
+   * @return the given rules ordered by descending length of their estimated critical paths. Rules
+   *     with equal estimates are shuffled.
+   */
+  List<BuildRule> prioritize(Iterable<BuildRule> rules) {
+    List<BuildRule> rulesList = Lists.newArrayList(rules);
+    Collections.shuffle(rulesList);
+    // The sort is stable, so ties keep their shuffled order.
+    rulesList.sort(
+        Comparator.comparingLong((BuildRule rule) -> getPredictedPathMillis(rule)).reversed());
+    return rulesList;
+  }
+
+  /** @return the estimated duration of the longest chain of build deps, including the rule. */
+  long getPredictedPathMillis(BuildRule rule) {
+    return computePathMillis(rule, predictedPathMillis, this::getPredictedWallMillis);
+  }
+
+  /**
+   * @return the estimated duration of the longest chain of rules seen depending on the given rule,
+   *     including the rule. Higher values should be built first.
+   */
+  long getRemainingPathMillis(BuildRule rule) {
+    Long pathMillis = remainingPathMillis.get(rule.getBuildTarget());
+    return pathMillis == null ? getPredictedWallMillis(rule) : pathMillis;
+  }
+
+  private long getPredictedWallMillis(BuildRule rule) {
+    return history.getWallMillis(rule.getBuildTarget()).orElse(defaultWallMillis);
+  }
+
+  /**
+   * Logs the predicted and actual critical paths of the build, and records the durations of all
+   * rules built in the history.
+   */
+  void finishBuild(BuildRuleDurationTracker tracker) {
+    Map<BuildTarget, Long> actualWallMillis = new HashMap<>();
+    Map<BuildTarget, Long> actualPathMillis = new HashMap<>();
+    for (BuildRule rule : topLevelRules) {
+      computeActualPathMillis(rule, tracker, actualWallMillis, actualPathMillis);
+    }
+
+    if (!topLevelRules.isEmpty()) {
+      // Estimates are based on the history before this build, as it's only updated below.
+      ImmutableList<BuildRule> predicted =
+          getCriticalPath(topLevelRules, this::getPredictedPathMillis);
+      ImmutableList<BuildRule> actual =
+          getCriticalPath(
+              topLevelRules, rule -> actualPathMillis.getOrDefault(rule.getBuildTarget(), 0L));
+      long actualMillisOfPredicted =
+          predicted
+              .stream()
+              .mapToLong(rule -> actualWallMillis.getOrDefault(rule.getBuildTarget(), 0L))
+              .sum();
+      LOG.info(
+          "Predicted critical path: %d ms estimated, %d ms actual, over %d rules: %s",
+          getPredictedPathMillis(predicted.get(0)),
+          actualMillisOfPredicted,
+          predicted.size(),
+          describe(predicted));
+      LOG.info(
+          "Actual critical path: %d ms over %d rules: %s",
+          actualPathMillis.getOrDefault(actual.get(0).getBuildTarget(), 0L),
+          actual.size(),
+          describe(actual));
+    }
+
+    actualWallMillis.forEach(history::record);
+    history.save();
+  }
+
+  /**
+   * Computes the actual duration of the longest chain of build deps below the given rule, counting
+   * only rules which have been worked on in this build.
+   */
+  private static long computeActualPathMillis(
+      BuildRule rule,
+      BuildRuleDurationTracker tracker,
+      Map<BuildTarget, Long> actualWallMillis,
+      Map<BuildTarget, Long> actualPathMillis) {
+    return computePathMillis(
+        rule,
+        actualPathMillis,
+        r -> {
+          Optional<ClockDuration> duration = tracker.getDuration(r.getBuildTarget());
+          if (!duration.isPresent()) {
+            return 0;
+          }
+          long wallMillis = duration.get().getWallMillisDuration();
+          actualWallMillis.put(r.getBuildTarget(), wallMillis);
+          return wallMillis;
+        });
+  }
+
+  /**
+   * Computes the duration of the longest chain of build deps below and including the given rule,
+   * and records it in {@code pathMillis} for every rule visited. The deps are walked with an
+   * explicit stack rather than by recursion, as chains can be deeper than the call stack allows.
+   */
+  private static long computePathMillis(
+      BuildRule root, Map<BuildTarget, Long> pathMillis, ToLongFunction<BuildRule> wallMillis) {
+    Long rootPathMillis = pathMillis.get(root.getBuildTarget());
+    if (rootPathMillis != null) {
+      return rootPathMillis;
+    }
+    Deque<BuildRule> stack = new ArrayDeque<>();
+    Set<BuildTarget> expanded = new HashSet<>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+      BuildRule rule = stack.peek();
+      if (pathMillis.containsKey(rule.getBuildTarget())) {
+        stack.pop();
+      } else if (expanded.add(rule.getBuildTarget())) {
+        // Visit the deps first, the rule is computed once it's back on top of the stack.
+        for (BuildRule dep : rule.getBuildDeps()) {
+          if (!pathMillis.containsKey(dep.getBuildTarget())) {
+            stack.push(dep);
+          }
+        }
+      } else {
+        stack.pop();
+        long longestDepPath = 0;
+        for (BuildRule dep : rule.getBuildDeps()) {
+          longestDepPath = Math.max(longestDepPath, pathMillis.get(dep.getBuildTarget()));
+        }
+        pathMillis.put(rule.getBuildTarget(), wallMillis.applyAsLong(rule) + longestDepPath);
+      }
+    }
+    return pathMillis.get(root.getBuildTarget());
+  }
+
+  /** @return the chain of rules following the longest paths down from the given rules. */
+  private static ImmutableList<BuildRule> getCriticalPath(
+      Iterable<BuildRule> rules, ToLongFunction<BuildRule> pathMillis) {
+    ImmutableList.Builder<BuildRule> path = ImmutableList.builder();
+    @Nullable BuildRule current = longest(rules, pathMillis);
+    while (current != null) {
+      path.add(current);
+      current = longest(current.getBuildDeps(), pathMillis);
+    }
+    return path.build();
+  }
+
+  @Nullable
+  private static BuildRule longest(
+      Iterable<BuildRule> rules, ToLongFunction<BuildRule> pathMillis) {
+    BuildRule longest = null;
+    for (BuildRule rule : rules) {
+      if (longest == null || pathMillis.applyAsLong(rule) > pathMillis.applyAsLong(longest)) {
+        longest = rule;
+      }
+    }
+    return longest;
+  }
+
+  private static String describe(List<BuildRule> path) {
+    String rules =
+        path.stream()
+            .limit(MAX_REPORTED_RULES)
+            .map(rule -> rule.getBuildTarget().getFullyQualifiedName())
+            .collect(Collectors.joining(" -> "));
+    return path.size() > MAX_REPORTED_RULES ? rules + " -> ..." : rules;
+  }
+}
@@ -29,20 +29,30 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -50,6 +60,7 @@ public class Manifest {
 
   private static final Logger LOG = Logger.get(Manifest.class);
 
+  // The version of the legacy format, which is still read but no longer written.
   private static final int VERSION = 0;
 
   private final RuleKey key;
@@ -72,12 +83,39 @@ public class Manifest {
     entries = new ArrayList<>();
   }
 
-  /** Deserialize an existing manifest from the given {@link InputStream}. */
+  /**
+   * Deserialize an existing manifest from the given {@link InputStream}, in either the format
+   * written by {@link #serialize(OutputStream)} or the legacy one.
+   */
   public Manifest(InputStream rawInput) throws IOException {
     DataInputStream input = new DataInputStream(rawInput);
 
     // Verify the manifest version.
     int version = input.readInt();
+    if (version == MappedManifest.VERSION) {
+      byte[] rest = ByteStreams.toByteArray(input);
+      ByteBuffer buffer = ByteBuffer.allocate(4 + rest.length).putInt(version).put(rest);
+      buffer.flip();
+      MappedManifest mapped = MappedManifest.of(buffer);
+      key = mapped.getKey();
+      inputs = new ArrayList<>(mapped.getInputCount());
+      inputIndices = new HashMap<>(mapped.getInputCount());
+      for (int index = 0; index < mapped.getInputCount(); index++) {
+        inputs.add(mapped.getInput(index));
+        inputIndices.put(inputs.get(index), index);
+      }
+      hashes = new ArrayList<>(mapped.getHashCount());
+      hashIndices = new HashMap<>(mapped.getHashCount());
+      for (int index = 0; index < mapped.getHashCount(); index++) {
+        hashes.add(new Pair<>(mapped.getHashInput(index), mapped.getHash(index)));
+        hashIndices.put(mapped.getHash(index), index);
+      }
+      entries = new ArrayList<>(mapped.size());
+      for (int index = 0; index < mapped.size(); index++) {
+        entries.add(new Pair<>(mapped.getEntryKey(index), mapped.getEntryHashes(index)));
+      }
+      return;
+    }
     Preconditions.checkState(version == VERSION, "invalid version: %s != %s", version, VERSION);
 
     key = new RuleKey(input.readUTF());
@@ -228,7 +266,7 @@ public class Manifest {
     return input -> sourcePathToManifestHeader(input, resolver);
   }
 
-  private static String sourcePathToManifestHeader(SourcePath input, SourcePathResolver resolver) {
+  static String sourcePathToManifestHeader(SourcePath input, SourcePathResolver resolver) {
     if (input instanceof ArchiveMemberSourcePath) {
       return resolver.getRelativeArchiveMemberPath(input).toString();
     } else {
@@ -265,32 +303,97 @@ public class Manifest {
     entries.add(new Pair<>(key, hashIndices));
   }
 
-  /** Serializes the manifest to the given {@link OutputStream}. */
+  /**
+   * Serializes the manifest to the given {@link OutputStream}, in the format read by {@link
+   * MappedManifest}.
+   */
   public void serialize(OutputStream rawOutput) throws IOException {
-    DataOutputStream output = new DataOutputStream(rawOutput);
-
-    output.writeInt(VERSION);
-
-    output.writeUTF(key.toString());
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(rawOutput));
 
+    output.writeInt(MappedManifest.VERSION);
+    byte[] keyBytes = key.toString().getBytes(StandardCharsets.UTF_8);
+    output.writeInt(keyBytes.length);
+    output.write(keyBytes);
     output.writeInt(inputs.size());
+    output.writeInt(hashes.size());
+    output.writeInt(entries.size());
+
+    List<byte[]> inputBytes = new ArrayList<>(inputs.size());
     for (String input : inputs) {
-      output.writeUTF(input);
+      inputBytes.add(input.getBytes(StandardCharsets.UTF_8));
+    }
+    writeBlobs(output, inputBytes);
+    List<Integer> sortedInputs = new ArrayList<>(inputs.size());
+    for (int index = 0; index < inputs.size(); index++) {
+      sortedInputs.add(index);
+    }
+    Comparator<byte[]> byteComparator = UnsignedBytes.lexicographicalComparator();
+    sortedInputs.sort((a, b) -> byteComparator.compare(inputBytes.get(a), inputBytes.get(b)));
+    for (int index : sortedInputs) {
+      output.writeInt(index);
     }
 
-    output.writeInt(hashes.size());
-    for (Pair<Integer, HashCode> hash : hashes) {
-      output.writeInt(hash.getFirst());
-      output.writeUTF(hash.getSecond().toString());
+    List<byte[]> hashBytes = new ArrayList<>(hashes.size());
+    List<List<Integer>> hashesByInput = newIndex(inputs.size());
+    for (int index = 0; index < hashes.size(); index++) {
+      output.writeInt(hashes.get(index).getFirst());
+      hashBytes.add(hashes.get(index).getSecond().asBytes());
+      hashesByInput.get(hashes.get(index).getFirst()).add(index);
     }
+    writeBlobs(output, hashBytes);
+    writeIndex(output, hashesByInput);
+
+    List<List<Integer>> hashesByEntry = newIndex(0);
+    List<byte[]> entryKeys = new ArrayList<>(entries.size());
+    List<List<Integer>> entriesByHash = newIndex(hashes.size());
+    for (int index = 0; index < entries.size(); index++) {
+      hashesByEntry.add(Ints.asList(entries.get(index).getSecond()));
+      entryKeys.add(entries.get(index).getFirst().toString().getBytes(StandardCharsets.UTF_8));
+      for (int hashIndex : entries.get(index).getSecond()) {
+        entriesByHash.get(hashIndex).add(index);
+      }
+    }
+    writeIndex(output, hashesByEntry);
+    writeBlobs(output, entryKeys);
+    writeIndex(output, entriesByHash);
 
-    output.writeInt(entries.size());
-    for (Pair<RuleKey, int[]> entry : entries) {
-      output.writeInt(entry.getSecond().length);
-      for (int hashIndex : entry.getSecond()) {
-        output.writeInt(hashIndex);
+    output.flush();
+  }
+
+  private static List<List<Integer>> newIndex(int size) {
+    List<List<Integer>> index = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      index.add(new ArrayList<>());
+    }
+    return index;
+  }
+
+  /** Writes the offsets of the blobs, followed by their contents. */
+  private static void writeBlobs(DataOutputStream output, List<byte[]> blobs) throws IOException {
+    int offset = 0;
+    output.writeInt(offset);
+    for (byte[] blob : blobs) {
+      offset += blob.length;
+      output.writeInt(offset);
+    }
+    for (byte[] blob : blobs) {
+      output.write(blob);
+    }
+  }
+
+  /** Writes the offsets of the lists, followed by their contents. */
+  private static void writeIndex(DataOutputStream output, List<List<Integer>> index)
+      throws IOException {
+    int offset = 0;
+    output.writeInt(offset);
+    for (List<Integer> values : index) {
+      offset += values.size();
+      output.writeInt(offset);
+    }
+    for (List<Integer> values : index) {
+      for (int value : values) {
+        output.writeInt(value);
       }
-      output.writeUTF(entry.getFirst().toString());
     }
   }
 
@@ -298,6 +401,37 @@ public class Manifest {
     return entries.size();
   }
 
+  /**
+   * Drops stale entries to keep the manifest within the given number of entries: those which were
+   * added again later, and then the oldest ones. The inputs and hashes which are no longer referred
+   * to are dropped too.
+   *
+   * @return the compacted manifest.
+   */
+  public Manifest compact(long maxEntries) {
+    Set<RuleKey> seenKeys = new HashSet<>();
+    List<Pair<RuleKey, int[]>> retainedEntries = new ArrayList<>();
+    for (int index = entries.size() - 1; index >= 0; index--) {
+      if (retainedEntries.size() >= maxEntries) {
+        break;
+      }
+      if (seenKeys.add(entries.get(index).getFirst())) {
+        retainedEntries.add(entries.get(index));
+      }
+    }
+
+    Manifest compacted = new Manifest(key);
+    for (Pair<RuleKey, int[]> entry : Lists.reverse(retainedEntries)) {
+      int[] hashIndices = new int[entry.getSecond().length];
+      for (int index = 0; index < hashIndices.length; index++) {
+        Pair<Integer, HashCode> hash = hashes.get(entry.getSecond()[index]);
+        hashIndices[index] = compacted.addHash(inputs.get(hash.getFirst()), hash.getSecond());
+      }
+      compacted.entries.add(new Pair<>(entry.getFirst(), hashIndices));
+    }
+    return compacted;
+  }
+
   /**
    * Create a multimap that's the result of apply the function to the input values, filtered by a
    * predicate.
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.manifest;
+
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.environment.Platform;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * A read-only view of a serialized {@link Manifest}, which is searched in place rather than
+ * deserialized, so that looking up manifests with many inputs doesn't spend most of its time
+ * building up collections.
+ *
+ * <p>Besides the inputs, hashes and entries of the manifest, the format contains the indices needed
+ * to look up entries: the inputs sorted by path, the hashes of each input, and the entries which
+ * refer to each hash. All sections consist of big-endian ints, and of blobs of strings or hashes
+ * whose boundaries are given by a preceding section of offsets:
+ *
+ * <pre>
+ *   int version, int key length, key bytes, int inputs, int hashes, int entries
+ *   int[inputs + 1] input path offsets, input path bytes
+ *   int[inputs] input indices in the order of their paths
+ *   int[hashes] input index of each hash
+ *   int[hashes + 1] hash offsets, hash bytes
+ *   int[inputs + 1] offsets into the hashes of each input, int[hashes] hash indices by input
+ *   int[entries + 1] offsets into the hashes of each entry, hash indices by entry
+ *   int[entries + 1] rule key offsets, rule key bytes
+ *   int[hashes + 1] offsets into the entries of each hash, entry indices by hash
+ * </pre>
+ */
+public class MappedManifest {
+
+  static final int VERSION = 1;
+
+  private final ByteBuffer buffer;
+  private final RuleKey key;
+  private final int numInputs;
+  private final int numHashes;
+  private final int numEntries;
+
+  private final int inputOffsets;
+  private final int inputBytes;
+  private final int sortedInputs;
+  private final int hashInputs;
+  private final int hashOffsets;
+  private final int hashBytes;
+  private final int inputHashOffsets;
+  private final int inputHashes;
+  private final int entryHashOffsets;
+  private final int entryHashes;
+  private final int entryKeyOffsets;
+  private final int entryKeyBytes;
+  private final int hashEntryOffsets;
+  private final int hashEntries;
+
+  private MappedManifest(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    int version = buffer.getInt(0);
+    if (version != VERSION) {
+      throw new IOException(String.format("invalid version: %s != %s", version, VERSION));
+    }
+    int keyLength = buffer.getInt(4);
+    this.key = new RuleKey(getString(8, keyLength));
+    int position = 8 + keyLength;
+    this.numInputs = buffer.getInt(position);
+    this.numHashes = buffer.getInt(position + 4);
+    this.numEntries = buffer.getInt(position + 8);
+    position += 12;
+
+    inputOffsets = position;
+    inputBytes = inputOffsets + (numInputs + 1) * 4;
+    sortedInputs = inputBytes + getInt(inputOffsets, numInputs);
+    hashInputs = sortedInputs + numInputs * 4;
+    hashOffsets = hashInputs + numHashes * 4;
+    hashBytes = hashOffsets + (numHashes + 1) * 4;
+    inputHashOffsets = hashBytes + getInt(hashOffsets, numHashes);
+    inputHashes = inputHashOffsets + (numInputs + 1) * 4;
+    entryHashOffsets = inputHashes + numHashes * 4;
+    entryHashes = entryHashOffsets + (numEntries + 1) * 4;
+    entryKeyOffsets = entryHashes + getInt(entryHashOffsets, numEntries) * 4;
+    entryKeyBytes = entryKeyOffsets + (numEntries + 1) * 4;
+    hashEntryOffsets = entryKeyBytes + getInt(entryKeyOffsets, numEntries);
+    hashEntries = hashEntryOffsets + (numHashes + 1) * 4;
+    int end = hashEntries + getInt(hashEntryOffsets, numHashes) * 4;
+    if (end != buffer.limit()) {
+      throw new IOException(
+          String.format("invalid manifest size: %s != %s", buffer.limit(), end));
+    }
+  }
+
+  /** Wraps a serialized manifest, starting at the beginning of the buffer. */
+  public static MappedManifest of(ByteBuffer buffer) throws IOException {
+    try {
+      return new MappedManifest(buffer.slice());
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new IOException("truncated manifest", e);
+    }
+  }
+
+  /** Maps the serialized manifest in the given file into memory. */
+  public static MappedManifest map(Path path) throws IOException {
+    // Mapped files can't be replaced on Windows until they are unmapped, which only happens once
+    // the buffer is garbage collected, so read them into memory there instead.
+    if (Platform.detect() == Platform.WINDOWS
+        || path.getFileSystem() != FileSystems.getDefault()) {
+      return of(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Copies a serialized manifest into the given stream in the format which can be mapped,
+   * converting it first if it was written in the legacy format.
+   */
+  public static void copyMappable(InputStream rawInput, OutputStream output) throws IOException {
+    InputStream input = new BufferedInputStream(rawInput);
+    input.mark(4);
+    int version = new DataInputStream(input).readInt();
+    input.reset();
+    if (version == VERSION) {
+      ByteStreams.copy(input, output);
+    } else {
+      new Manifest(input).serialize(output);
+    }
+  }
+
+  public RuleKey getKey() {
+    return key;
+  }
+
+  public int size() {
+    return numEntries;
+  }
+
+  public ManifestStats getStats() {
+    return ManifestStats.builder()
+        .setNumDepFiles(numEntries)
+        .setNumInputs(numInputs)
+        .setNumHashes(numHashes)
+        .build();
+  }
+
+  /**
+   * @return the {@link RuleKey} of the first entry that matches the on disk hashes provided by
+   *     {@code fileHashCache}.
+   */
+  public Optional<RuleKey> lookup(
+      FileHashCache fileHashCache, SourcePathResolver resolver, ImmutableSet<SourcePath> universe)
+      throws IOException {
+    // Find the inputs of the manifest among the universe.
+    ListMultimap<Integer, SourcePath> universeByInput = ArrayListMultimap.create();
+    for (SourcePath path : universe) {
+      int input = findInput(Manifest.sourcePathToManifestHeader(path, resolver));
+      if (input >= 0) {
+        universeByInput.put(input, path);
+      }
+    }
+
+    // Count how many of the hashes of each entry match the ones on disk. Each input has at most
+    // one matching hash, so an entry matches once all of its hashes were counted.
+    int[] matchingHashCounts = new int[numEntries];
+    for (Integer input : universeByInput.keySet()) {
+      HashCode onDiskHash;
+      try {
+        onDiskHash =
+            Manifest.hashSourcePathGroup(
+                fileHashCache, resolver, ImmutableList.copyOf(universeByInput.get(input)));
+      } catch (NoSuchFileException e) {
+        continue;
+      }
+      byte[] onDiskHashBytes = onDiskHash.asBytes();
+      int inputHashesEnd = getInt(inputHashOffsets, input + 1);
+      for (int i = getInt(inputHashOffsets, input); i < inputHashesEnd; i++) {
+        int hash = getInt(inputHashes, i);
+        if (hashEquals(hash, onDiskHashBytes)) {
+          int hashEntriesEnd = getInt(hashEntryOffsets, hash + 1);
+          for (int j = getInt(hashEntryOffsets, hash); j < hashEntriesEnd; j++) {
+            matchingHashCounts[getInt(hashEntries, j)]++;
+          }
+        }
+      }
+    }
+
+    for (int entry = 0; entry < numEntries; entry++) {
+      if (matchingHashCounts[entry] == getEntryHashCount(entry)) {
+        return Optional.of(getEntryKey(entry));
+      }
+    }
+    return Optional.empty();
+  }
+
+  int getInputCount() {
+    return numInputs;
+  }
+
+  int getHashCount() {
+    return numHashes;
+  }
+
+  String getInput(int input) {
+    int start = getInt(inputOffsets, input);
+    return getString(inputBytes + start, getInt(inputOffsets, input + 1) - start);
+  }
+
+  int getHashInput(int hash) {
+    return getInt(hashInputs, hash);
+  }
+
+  HashCode getHash(int hash) {
+    int start = getInt(hashOffsets, hash);
+    return HashCode.fromBytes(getBytes(hashBytes + start, getInt(hashOffsets, hash + 1) - start));
+  }
+
+  int[] getEntryHashes(int entry) {
+    int start = getInt(entryHashOffsets, entry);
+    int[] hashes = new int[getEntryHashCount(entry)];
+    for (int i = 0; i < hashes.length; i++) {
+      hashes[i] = getInt(entryHashes, start + i);
+    }
+    return hashes;
+  }
+
+  RuleKey getEntryKey(int entry) {
+    int start = getInt(entryKeyOffsets, entry);
+    return new RuleKey(
+        getString(entryKeyBytes + start, getInt(entryKeyOffsets, entry + 1) - start));
+  }
+
+  private int getEntryHashCount(int entry) {
+    return getInt(entryHashOffsets, entry + 1) - getInt(entryHashOffsets, entry);
+  }
+
+  /** @return the index of the input with the given path, or -1 if there is no such input. */
+  private int findInput(String path) {
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = numInputs - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int input = getInt(sortedInputs, middle);
+      int start = getInt(inputOffsets, input);
+      int comparison =
+          compareBytes(inputBytes + start, getInt(inputOffsets, input + 1) - start, pathBytes);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return input;
+      }
+    }
+    return -1;
+  }
+
+  private int compareBytes(int offset, int length, byte[] bytes) {
+    for (int i = 0; i < Math.min(length, bytes.length); i++) {
+      int comparison = Integer.compare(buffer.get(offset + i) & 0xff, bytes[i] & 0xff);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return Integer.compare(length, bytes.length);
+  }
+
+  private boolean hashEquals(int hash, byte[] bytes) {
+    int start = getInt(hashOffsets, hash);
+    return getInt(hashOffsets, hash + 1) - start == bytes.length
+        && compareBytes(hashBytes + start, bytes.length, bytes) == 0;
+  }
+
+  private int getInt(int section, int index) {
+    return buffer.getInt(section + index * 4);
+  }
+
+  private String getString(int offset, int length) {
+    return new String(getBytes(offset, length), StandardCharsets.UTF_8);
+  }
+
+  private byte[] getBytes(int offset, int length) {
+    Preconditions.checkArgument(length >= 0);
+    byte[] bytes = new byte[length];
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.log.Logger;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wall clock durations of build rules in previous builds, persisted between builds so that the
+ * build engine can estimate how long rules will take before building them.
+ *
+ * <p>Durations are kept as an exponential moving average over builds, so that a single cache hit
+ * or miss doesn't throw off the estimate of a rule entirely. Targets which weren't built in the
+ * last {@link #MAX_BUILDS_WITHOUT_RECORD} builds are dropped when saving, so that the durations of
+ * deleted or renamed targets don't accumulate.
+ */
+public class BuildRuleDurationHistory {
+
+  private static final Logger LOG = Logger.get(BuildRuleDurationHistory.class);
+
+  static final int MAX_BUILDS_WITHOUT_RECORD = 100;
+
+  private final Path path;
+  private final ConcurrentMap<String, Long> wallMillisByTarget;
+  // Number of saved builds since each target was last recorded.
+  private final ConcurrentMap<String, Integer> buildsWithoutRecordByTarget;
+  private final Set<String> recordedTargets = ConcurrentHashMap.newKeySet();
+
+  private BuildRuleDurationHistory(
+      Path path,
+      ConcurrentMap<String, Long> wallMillisByTarget,
+      ConcurrentMap<String, Integer> buildsWithoutRecordByTarget) {
+    this.path = path;
+    this.wallMillisByTarget = wallMillisByTarget;
+    this.buildsWithoutRecordByTarget = buildsWithoutRecordByTarget;
+  }
+
+  /** Loads the durations persisted at {@code path}, or an empty history if there are none. */
+  public static BuildRuleDurationHistory load(Path path) {
+    ConcurrentMap<String, Long> wallMillisByTarget = new ConcurrentHashMap<>();
+    ConcurrentMap<String, Integer> buildsWithoutRecordByTarget = new ConcurrentHashMap<>();
+    try {
+      for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+        // Each line holds the target, its duration and the number of builds since it was recorded.
+        String[] fields = line.split("\t");
+        if (fields.length != 3 || fields[0].isEmpty()) {
+          LOG.debug("Ignoring malformed line in %s: %s", path, line);
+          continue;
+        }
+        try {
+          long wallMillis = Long.parseLong(fields[1]);
+          int buildsWithoutRecord = Integer.parseInt(fields[2]);
+          wallMillisByTarget.put(fields[0], wallMillis);
+          buildsWithoutRecordByTarget.put(fields[0], buildsWithoutRecord);
+        } catch (NumberFormatException e) {
+          LOG.debug("Ignoring malformed line in %s: %s", path, line);
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // First build, nothing to load.
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to load build rule durations from %s", path);
+      wallMillisByTarget.clear();
+      buildsWithoutRecordByTarget.clear();
+    }
+    return new BuildRuleDurationHistory(path, wallMillisByTarget, buildsWithoutRecordByTarget);
+  }
+
+  /** @return the expected wall clock duration of the given target, if it was built before. */
+  public OptionalLong getWallMillis(BuildTarget target) {
+    Long wallMillis = wallMillisByTarget.get(target.getFullyQualifiedName());
+    return wallMillis == null ? OptionalLong.empty() : OptionalLong.of(wallMillis);
+  }
+
+  /** @return the mean expected duration over all targets, used for targets without a history. */
+  public long getMeanWallMillis() {
+    long total = 0;
+    int count = 0;
+    for (long wallMillis : wallMillisByTarget.values()) {
+      total += wallMillis;
+      count++;
+    }
+    return count == 0 ? 0 : total / count;
+  }
+
+  /** Records the duration of a target in the current build. */
+  public void record(BuildTarget target, long wallMillis) {
+    wallMillisByTarget.merge(
+        target.getFullyQualifiedName(),
+        wallMillis,
+        (previous, current) -> (previous + current) / 2);
+    recordedTargets.add(target.getFullyQualifiedName());
+  }
+
+  /**
+   * Persists all durations, replacing the previously persisted ones. Targets which haven't been
+   * recorded in the last {@link #MAX_BUILDS_WITHOUT_RECORD} builds are dropped.
+   */
+  public void save() {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      Files.createDirectories(path.getParent());
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+        for (Map.Entry<String, Long> entry : wallMillisByTarget.entrySet()) {
+          String target = entry.getKey();
+          int buildsWithoutRecord =
+              recordedTargets.contains(target)
+                  ? 0
+                  : buildsWithoutRecordByTarget.getOrDefault(target, 0) + 1;
+          if (buildsWithoutRecord > MAX_BUILDS_WITHOUT_RECORD) {
+            continue;
+          }
+          writer.write(target);
+          writer.write('\t');
+          writer.write(String.valueOf(entry.getValue()));
+          writer.write('\t');
+          writer.write(String.valueOf(buildsWithoutRecord));
+          writer.newLine();
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save build rule durations to %s", path);
+    }
+  }
+}
@@ -20,6 +20,7 @@ import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.util.timing.ClockDuration;
 import com.google.common.annotations.VisibleForTesting;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import javax.annotation.concurrent.GuardedBy;
@@ -44,6 +45,12 @@ public class BuildRuleDurationTracker {
     durations.put(rule.getBuildTarget(), new DurationHolder(duration));
   }
 
+  /** @return the total duration of the given target, unless work on it is still in progress. */
+  public Optional<ClockDuration> getDuration(BuildTarget target) {
+    DurationHolder holder = durations.get(target);
+    return holder == null ? Optional.empty() : holder.getFinishedDuration();
+  }
+
   public ClockDuration doBeginning(BuildRule rule, long wallMillisTime, long nanoTime) {
     return durations
         .computeIfAbsent(rule.getBuildTarget(), (key) -> new DurationHolder())
@@ -97,6 +104,14 @@ public class BuildRuleDurationTracker {
           threadUserNanoDuration);
     }
 
+    public synchronized Optional<ClockDuration> getFinishedDuration() {
+      if (inProgressCount > 0) {
+        return Optional.empty();
+      }
+      return Optional.of(
+          new ClockDuration(wallMillisDuration, nanoDuration, threadUserNanoDuration));
+    }
+
     public synchronized ClockDuration doBeginning(long wallMillisTime, long nanoTime) {
       if (inProgressCount++ == 0) {
         wallMillisStarted = wallMillisTime;
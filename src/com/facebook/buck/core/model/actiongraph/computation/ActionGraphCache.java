@@ -20,6 +20,7 @@ import com.facebook.buck.config.ActionGraphParallelizationMode;
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.config.IncrementalActionGraphMode;
 import com.facebook.buck.core.cell.CellProvider;
+import com.facebook.buck.core.model.BuildId;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.actiongraph.ActionGraph;
 import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
@@ -58,19 +59,25 @@ import com.facebook.buck.util.timing.DefaultClock;
 import com.facebook.buck.util.types.Pair;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 import java.util.stream.StreamSupport;
+import javax.annotation.Nullable;
 
 /**
  * Class that transforms {@link TargetGraph} to {@link ActionGraph}. It also holds a cache for the
@@ -79,12 +86,60 @@ import java.util.stream.StreamSupport;
 public class ActionGraphCache {
   private static final Logger LOG = Logger.get(ActionGraphCache.class);
 
-  private Cache<TargetGraph, ActionGraphAndBuilder> previousActionGraphs;
-  private IncrementalActionGraphGenerator incrementalActionGraphGenerator;
+  private final Map<TargetGraph, CachedActionGraph> previousActionGraphs;
+  private final IncrementalActionGraphGenerator incrementalActionGraphGenerator;
+  private final long maxIdleCommands;
 
+  // The command using the cache, and the number of commands which used it so far, including that
+  // one.
+  @Nullable private BuildId currentCommand;
+  private long commandCount;
+
+  /** @param maxEntries number of action graphs to keep, least recently used ones first to go. */
   public ActionGraphCache(int maxEntries) {
-    previousActionGraphs = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
-    incrementalActionGraphGenerator = new IncrementalActionGraphGenerator();
+    this(maxEntries, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param maxEntries number of action graphs to keep, least recently used ones first to go.
+   * @param maxIdleCommands number of commands after which an action graph that none of them used is
+   *     dropped, whether the cache is full or not. See {@link #onCommandStarted}.
+   */
+  public ActionGraphCache(int maxEntries, long maxIdleCommands) {
+    Preconditions.checkArgument(maxIdleCommands >= 0);
+    this.previousActionGraphs =
+        new LinkedHashMap<TargetGraph, CachedActionGraph>(16, 0.75f, /* accessOrder */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<TargetGraph, CachedActionGraph> eldest) {
+            return size() > maxEntries;
+          }
+        };
+    this.incrementalActionGraphGenerator = new IncrementalActionGraphGenerator();
+    this.maxIdleCommands = maxIdleCommands;
+  }
+
+  /**
+   * Records that a command started, and drops the action graphs which weren't used by any of the
+   * last {@code maxIdleCommands} commands, along with the rules kept to build the next action graph
+   * incrementally from them. Commands which don't need an action graph still count, so graphs
+   * don't outlive a switch to other work. Calling this again for the same command has no effect.
+   */
+  public synchronized void onCommandStarted(BuildId commandId) {
+    if (commandId.equals(currentCommand)) {
+      return;
+    }
+    currentCommand = commandId;
+    commandCount++;
+    Iterator<CachedActionGraph> iterator = previousActionGraphs.values().iterator();
+    while (iterator.hasNext()) {
+      CachedActionGraph cachedActionGraph = iterator.next();
+      if (commandCount - cachedActionGraph.lastUsedBy > maxIdleCommands) {
+        LOG.info("Dropping ActionGraph unused by the last %d commands.", maxIdleCommands);
+        incrementalActionGraphGenerator.forgetActionGraphBuilder(
+            cachedActionGraph.actionGraphAndBuilder.getActionGraphBuilder());
+        iterator.remove();
+      }
+    }
   }
 
   /** Create an ActionGraph, using options extracted from a BuckConfig. */
@@ -192,8 +247,9 @@ public class ActionGraphCache {
     ActionGraphAndBuilder out;
     ActionGraphEvent.Finished finished = ActionGraphEvent.finished(started);
     try {
+      onCommandStarted(eventBus.getBuildId());
       RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(ruleKeyConfiguration);
-      ActionGraphAndBuilder cachedActionGraph = previousActionGraphs.getIfPresent(targetGraph);
+      ActionGraphAndBuilder cachedActionGraph = getCachedActionGraph(targetGraph);
       if (cachedActionGraph != null) {
         eventBus.post(ActionGraphEvent.Cache.hit());
         LOG.info("ActionGraph cache hit.");
@@ -211,15 +267,16 @@ public class ActionGraphCache {
         }
         out = cachedActionGraph;
       } else {
-        eventBus.post(ActionGraphEvent.Cache.miss(previousActionGraphs.size() == 0));
+        int cacheSize = getCacheSize();
+        eventBus.post(ActionGraphEvent.Cache.miss(cacheSize == 0));
         LOG.debug("Computing TargetGraph HashCode...");
-        if (previousActionGraphs.size() == 0) {
+        if (cacheSize == 0) {
           LOG.info("ActionGraph cache miss. Cache was empty.");
           eventBus.post(ActionGraphEvent.Cache.missWithEmptyCache());
         } else {
           // If we get here, that means the cache is not empty, but the target graph wasn't
           // in the cache.
-          LOG.info("ActionGraph cache miss against " + previousActionGraphs.size() + " entries.");
+          LOG.info("ActionGraph cache miss against " + cacheSize + " entries.");
           eventBus.post(ActionGraphEvent.Cache.missWithTargetGraphDifference());
         }
         Pair<TargetGraph, ActionGraphAndBuilder> freshActionGraph =
@@ -240,7 +297,7 @@ public class ActionGraphCache {
         out = freshActionGraph.getSecond();
         if (!skipActionGraphCache) {
           LOG.info("ActionGraph cache assignment.");
-          previousActionGraphs.put(freshActionGraph.getFirst(), freshActionGraph.getSecond());
+          cacheActionGraph(freshActionGraph.getFirst(), freshActionGraph.getSecond());
         }
       }
       finished = ActionGraphEvent.finished(started, out.getActionGraph().getSize());
@@ -395,16 +452,32 @@ public class ActionGraphCache {
       CellProvider cellProvider,
       IncrementalActionGraphMode incrementalActionGraphMode,
       ForkJoinPool pool) {
+    if (incrementalActionGraphMode == IncrementalActionGraphMode.ENABLED) {
+      // Any previously cached action graphs are no longer valid, as we may update the builder of
+      // the last one in place, or use build rules from it to construct a new graph incrementally,
+      // and update those build rules to use a new BuildRuleResolver.
+      invalidateCache();
+
+      Optional<MultiThreadedActionGraphBuilder> lastGraphBuilder =
+          incrementalActionGraphGenerator.getLastActionGraphBuilder(
+              MultiThreadedActionGraphBuilder.class);
+      if (lastGraphBuilder.isPresent()) {
+        MultiThreadedActionGraphBuilder graphBuilder = lastGraphBuilder.get();
+        return updateActionGraphInPlace(
+            eventBus,
+            graphBuilder,
+            targetGraph,
+            isUnchanged ->
+                graphBuilder.updateTargetGraph(pool, targetGraph, cellProvider, isUnchanged),
+            nodes -> requireRulesInParallel(graphBuilder, targetGraph, nodes, pool));
+      }
+    }
+
     ActionGraphBuilder graphBuilder =
         new MultiThreadedActionGraphBuilder(pool, targetGraph, transformer, cellProvider);
     HashMap<BuildTarget, CompletableFuture<BuildRule>> futures = new HashMap<>();
 
     if (incrementalActionGraphMode == IncrementalActionGraphMode.ENABLED) {
-      // Any previously cached action graphs are no longer valid, as we may use build rules from
-      // those graphs to construct a new graph incrementally, and update those build rules to use a
-      // new BuildRuleResolver.
-      invalidateCache();
-
       // Populate the new build rule graphBuilder with all of the usable rules from the last build
       // rule
       // graphBuilder for incremental action graph generation.
@@ -431,6 +504,42 @@ public class ActionGraphCache {
       }
     }.traverse();
 
+    waitForRules(futures);
+    LOG.debug("end target graph walk");
+
+    return ActionGraphAndBuilder.builder()
+        .setActionGraph(new ActionGraph(graphBuilder.getBuildRules()))
+        .setActionGraphBuilder(graphBuilder)
+        .build();
+  }
+
+  /**
+   * Requires the rules of the given nodes, which have to be in dependency order. Dependencies
+   * outside of them are expected to have their rules in the builder already.
+   */
+  private static void requireRulesInParallel(
+      ActionGraphBuilder graphBuilder,
+      TargetGraph targetGraph,
+      Iterable<TargetNode<?, ?>> nodes,
+      ForkJoinPool pool) {
+    HashMap<BuildTarget, CompletableFuture<BuildRule>> futures = new HashMap<>();
+    for (TargetNode<?, ?> node : nodes) {
+      CompletableFuture<BuildRule>[] depFutures =
+          targetGraph
+              .getOutgoingNodesFor(node)
+              .stream()
+              .map(dep -> futures.get(dep.getBuildTarget()))
+              .filter(Objects::nonNull)
+              .<CompletableFuture<BuildRule>>toArray(CompletableFuture[]::new);
+      futures.put(
+          node.getBuildTarget(),
+          CompletableFuture.allOf(depFutures)
+              .thenApplyAsync(ignored -> graphBuilder.requireRule(node.getBuildTarget()), pool));
+    }
+    waitForRules(futures);
+  }
+
+  private static void waitForRules(Map<BuildTarget, CompletableFuture<BuildRule>> futures) {
     // Wait for completion. The results are ignored as we only care about the rules populated in
     // the graphBuilder, which is a superset of the rules generated directly from target nodes.
     try {
@@ -440,12 +549,6 @@ public class ActionGraphCache {
       Throwables.throwIfUnchecked(e.getCause());
       throw new IllegalStateException("unexpected checked exception", e);
     }
-    LOG.debug("end target graph walk");
-
-    return ActionGraphAndBuilder.builder()
-        .setActionGraph(new ActionGraph(graphBuilder.getBuildRules()))
-        .setActionGraphBuilder(graphBuilder)
-        .build();
   }
 
   private ActionGraphAndBuilder createActionGraphSerially(
@@ -456,15 +559,34 @@ public class ActionGraphCache {
       boolean shouldInstrumentGraphBuilding,
       IncrementalActionGraphMode incrementalActionGraphMode) {
     // TODO: Reduce duplication between the serial and parallel creation methods.
+    if (incrementalActionGraphMode == IncrementalActionGraphMode.ENABLED) {
+      // Any previously cached action graphs are no longer valid, as we may update the builder of
+      // the last one in place, or use build rules from it to construct a new graph incrementally,
+      // and update those build rules to use a new BuildRuleResolver.
+      invalidateCache();
+
+      Optional<SingleThreadedActionGraphBuilder> lastGraphBuilder =
+          incrementalActionGraphGenerator.getLastActionGraphBuilder(
+              SingleThreadedActionGraphBuilder.class);
+      if (lastGraphBuilder.isPresent()) {
+        SingleThreadedActionGraphBuilder graphBuilder = lastGraphBuilder.get();
+        return updateActionGraphInPlace(
+            eventBus,
+            graphBuilder,
+            targetGraph,
+            isUnchanged -> graphBuilder.updateTargetGraph(targetGraph, cellProvider, isUnchanged),
+            nodes -> {
+              for (TargetNode<?, ?> node : nodes) {
+                requireRuleSerially(eventBus, graphBuilder, node, shouldInstrumentGraphBuilding);
+              }
+            });
+      }
+    }
+
     ActionGraphBuilder graphBuilder =
         new SingleThreadedActionGraphBuilder(targetGraph, transformer, cellProvider);
 
     if (incrementalActionGraphMode == IncrementalActionGraphMode.ENABLED) {
-      // Any previously cached action graphs are no longer valid, as we may use build rules from
-      // those graphs to construct a new graph incrementally, and update those build rules to use a
-      // new BuildRuleResolver.
-      invalidateCache();
-
       // Populate the new build rule graphBuilder with all of the usable rules from the last build
       // rule graphBuilder for incremental action graph generation.
       incrementalActionGraphGenerator.populateActionGraphBuilderWithCachedRules(
@@ -475,27 +597,7 @@ public class ActionGraphCache {
     new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
       @Override
       public void visit(TargetNode<?, ?> node) {
-        if (shouldInstrumentGraphBuilding) {
-          Clock clock = new DefaultClock();
-          try (Scope ignored =
-              ActionGraphPerfStatEvent.start(
-                  clock,
-                  eventBus,
-                  () -> Iterables.size(graphBuilder.getBuildRules()),
-                  () ->
-                      StreamSupport.stream(graphBuilder.getBuildRules().spliterator(), true)
-                          .filter(
-                              rule ->
-                                  rule instanceof NoopBuildRule
-                                      || rule instanceof NoopBuildRuleWithDeclaredAndExtraDeps)
-                          .count(),
-                  node.getDescription().getClass().getName(),
-                  node.getBuildTarget().getFullyQualifiedName())) {
-            graphBuilder.requireRule(node.getBuildTarget());
-          }
-        } else {
-          graphBuilder.requireRule(node.getBuildTarget());
-        }
+        requireRuleSerially(eventBus, graphBuilder, node, shouldInstrumentGraphBuilding);
       }
     }.traverse();
     LOG.debug("end target graph walk");
@@ -506,6 +608,63 @@ public class ActionGraphCache {
         .build();
   }
 
+  private static void requireRuleSerially(
+      BuckEventBus eventBus,
+      ActionGraphBuilder graphBuilder,
+      TargetNode<?, ?> node,
+      boolean shouldInstrumentGraphBuilding) {
+    if (shouldInstrumentGraphBuilding) {
+      Clock clock = new DefaultClock();
+      try (Scope ignored =
+          ActionGraphPerfStatEvent.start(
+              clock,
+              eventBus,
+              () -> Iterables.size(graphBuilder.getBuildRules()),
+              () ->
+                  StreamSupport.stream(graphBuilder.getBuildRules().spliterator(), true)
+                      .filter(
+                          rule ->
+                              rule instanceof NoopBuildRule
+                                  || rule instanceof NoopBuildRuleWithDeclaredAndExtraDeps)
+                      .count(),
+              node.getDescription().getClass().getName(),
+              node.getBuildTarget().getFullyQualifiedName())) {
+        graphBuilder.requireRule(node.getBuildTarget());
+      }
+    } else {
+      graphBuilder.requireRule(node.getBuildTarget());
+    }
+  }
+
+  /**
+   * Moves the builder of the last action graph onto the new target graph, keeping the rules of
+   * targets the change didn't affect as they are, and requires only the rules that are missing.
+   * Unlike copying the rules into a new builder, this doesn't touch the rules which are kept.
+   */
+  private ActionGraphAndBuilder updateActionGraphInPlace(
+      BuckEventBus eventBus,
+      ActionGraphBuilder graphBuilder,
+      TargetGraph targetGraph,
+      ToIntFunction<Predicate<BuildTarget>> updateGraphBuilder,
+      Consumer<ImmutableList<TargetNode<?, ?>>> requireRules) {
+    LOG.debug("start incremental target graph walk");
+    try {
+      requireRules.accept(
+          incrementalActionGraphGenerator.updateLastActionGraphBuilder(
+              eventBus, targetGraph, updateGraphBuilder));
+    } catch (RuntimeException e) {
+      // The builder is missing rules for some of the nodes of the target graph now.
+      incrementalActionGraphGenerator.forgetActionGraphBuilder(graphBuilder);
+      throw e;
+    }
+    LOG.debug("end incremental target graph walk");
+
+    return ActionGraphAndBuilder.builder()
+        .setActionGraph(new ActionGraph(graphBuilder.getBuildRules()))
+        .setActionGraphBuilder(graphBuilder)
+        .build();
+  }
+
   private static Map<BuildRule, RuleKey> getRuleKeysFromBuildRules(
       Iterable<BuildRule> buildRules,
       BuildRuleResolver buildRuleResolver,
@@ -602,7 +761,38 @@ public class ActionGraphCache {
     }
   }
 
-  private void invalidateCache() {
-    previousActionGraphs.invalidateAll();
+  @Nullable
+  private synchronized ActionGraphAndBuilder getCachedActionGraph(TargetGraph targetGraph) {
+    CachedActionGraph cachedActionGraph = previousActionGraphs.get(targetGraph);
+    if (cachedActionGraph == null) {
+      return null;
+    }
+    cachedActionGraph.lastUsedBy = commandCount;
+    return cachedActionGraph.actionGraphAndBuilder;
+  }
+
+  private synchronized void cacheActionGraph(
+      TargetGraph targetGraph, ActionGraphAndBuilder actionGraphAndBuilder) {
+    previousActionGraphs.put(
+        targetGraph, new CachedActionGraph(actionGraphAndBuilder, commandCount));
+  }
+
+  private synchronized int getCacheSize() {
+    return previousActionGraphs.size();
+  }
+
+  private synchronized void invalidateCache() {
+    previousActionGraphs.clear();
+  }
+
+  private static class CachedActionGraph {
+    private final ActionGraphAndBuilder actionGraphAndBuilder;
+    // The number of the last command which used the action graph.
+    private long lastUsedBy;
+
+    CachedActionGraph(ActionGraphAndBuilder actionGraphAndBuilder, long lastUsedBy) {
+      this.actionGraphAndBuilder = actionGraphAndBuilder;
+      this.lastUsedBy = lastUsedBy;
+    }
   }
 }
@@ -27,20 +27,37 @@ import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
 import com.facebook.buck.core.sourcepath.resolver.impl.DefaultSourcePathResolver;
 import com.facebook.buck.event.ActionGraphEvent;
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal;
 import com.facebook.buck.log.Logger;
 import com.google.common.base.Preconditions;
-import java.util.HashMap;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 import javax.annotation.Nullable;
 
 /**
  * Provides a way to incrementally construct a new {@link ActionGraphBuilder} from a previous one.
  *
- * <p>This works by grabbing all the build rules from the previous {@link ActionGraphBuilder} with
- * unflavored targets that were not invalidated when doing a target graph walk to check for changes.
+ * <p>This works by keeping all the build rules from the previous {@link ActionGraphBuilder} with
+ * unflavored targets that were not invalidated by the difference between the previous and the new
+ * target graph. Nodes that changed (or whose descriptions can't be cached) and their transitive
+ * dependents are invalidated.
+ *
+ * <p>When the previous builder can be moved onto the new target graph, the difference is applied to
+ * it in place: the rules of invalidated targets are dropped, and only the nodes left without rules
+ * have to be transformed again. Otherwise, the rules which can be reused are copied into a new
+ * builder.
+ *
+ * <p>Nodes are compared with their previous versions by reference first. The parser hands out the
+ * same node instances until it invalidates the build files defining them, so only nodes of changed
+ * build files, or of graphs which didn't come straight from the parser, are compared field by
+ * field. The dependents of changed nodes are found with an explicit work list, so deep graphs can't
+ * overflow the stack.
  */
 public class IncrementalActionGraphGenerator {
   private static final Logger LOG = Logger.get(IncrementalActionGraphGenerator.class);
@@ -50,19 +67,22 @@ public class IncrementalActionGraphGenerator {
 
   /**
    * Populates the given {@link ActionGraphBuilder} with the rules from the previously used {@link
-   * ActionGraphBuilder} that are deemed usable after checking for invalidations with a target graph
-   * walk.
+   * ActionGraphBuilder} that are deemed usable after diffing the target graph against the previous
+   * one.
    */
   public void populateActionGraphBuilderWithCachedRules(
       BuckEventBus eventBus, TargetGraph targetGraph, ActionGraphBuilder graphBuilder) {
     int reusedRuleCount = 0;
     if (lastActionGraphBuilder != null) {
-      // We figure out which build rules we can reuse from the last action graph by performing an
-      // invalidation walk over the new target graph.
-      Map<BuildTarget, Boolean> explored = new HashMap<>();
+      // We figure out which build rules we can reuse from the last action graph by diffing the new
+      // target graph against the last one and invalidating the dependents of anything that changed.
+      Set<BuildTarget> invalidatedTargets = getInvalidatedTargets(targetGraph);
       Set<UnflavoredBuildTarget> validTargets = new HashSet<>();
-      for (TargetNode<?, ?> root : targetGraph.getNodesWithNoIncomingEdges()) {
-        invalidateChangedTargets(root, targetGraph, explored, validTargets);
+      for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+        if (!invalidatedTargets.contains(node.getBuildTarget())) {
+          // This node is valid. We can load all the flavors of its targets from cache.
+          validTargets.add(node.getBuildTarget().getUnflavoredBuildTarget());
+        }
       }
 
       // Now we can load in all build rules whose unflavored targets weren't invalidated for
@@ -79,6 +99,93 @@ public class IncrementalActionGraphGenerator {
     eventBus.post(new ActionGraphEvent.IncrementalLoad(reusedRuleCount));
   }
 
+  /**
+   * @return the {@link ActionGraphBuilder} used for the previous target graph, if it's of the given
+   *     type, so that it can be updated in place with {@link #updateLastActionGraphBuilder}.
+   */
+  public <T extends ActionGraphBuilder> Optional<T> getLastActionGraphBuilder(Class<T> type) {
+    return type.isInstance(lastActionGraphBuilder)
+        ? Optional.of(type.cast(lastActionGraphBuilder))
+        : Optional.empty();
+  }
+
+  /**
+   * Applies the difference between the previous target graph and the given one to the {@link
+   * ActionGraphBuilder} used for the previous target graph, in place.
+   *
+   * @param updateGraphBuilder moves the builder onto {@code targetGraph}, keeping only the rules of
+   *     targets which satisfy the predicate, and returns the number of rules it kept.
+   * @return the nodes of {@code targetGraph} whose rules have to be created, dependencies first.
+   */
+  public ImmutableList<TargetNode<?, ?>> updateLastActionGraphBuilder(
+      BuckEventBus eventBus,
+      TargetGraph targetGraph,
+      ToIntFunction<Predicate<BuildTarget>> updateGraphBuilder) {
+    Preconditions.checkState(lastActionGraphBuilder != null && lastTargetGraph != null);
+    Set<BuildTarget> invalidatedTargets = getInvalidatedTargets(targetGraph);
+    Set<UnflavoredBuildTarget> validTargets = new HashSet<>();
+    for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+      if (!invalidatedTargets.contains(node.getBuildTarget())) {
+        validTargets.add(node.getBuildTarget().getUnflavoredBuildTarget());
+      }
+    }
+
+    // Rules of nodes which aren't in the new target graph are dropped along with the invalidated
+    // ones, as their unflavored targets aren't valid either.
+    int reusedRuleCount =
+        updateGraphBuilder.applyAsInt(
+            target -> validTargets.contains(target.getUnflavoredBuildTarget()));
+
+    // Every node of the previous target graph had a rule, so only the invalidated nodes and those
+    // which are new may be missing one.
+    Set<BuildTarget> targetsToTransform = new HashSet<>();
+    for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+      if (!validTargets.contains(node.getBuildTarget().getUnflavoredBuildTarget())
+          || !lastTargetGraph.getExactOptional(node.getBuildTarget()).isPresent()) {
+        targetsToTransform.add(node.getBuildTarget());
+      }
+    }
+    LOG.debug(
+        "reused %d build rules, %d target nodes left to transform",
+        reusedRuleCount, targetsToTransform.size());
+
+    lastTargetGraph = targetGraph;
+    eventBus.post(new ActionGraphEvent.IncrementalLoad(reusedRuleCount));
+    return getNodesInDependencyOrder(targetGraph, targetsToTransform);
+  }
+
+  /**
+   * Drops the state kept for incremental construction if it refers to the given builder, so that
+   * the builder can be garbage collected.
+   */
+  public void forgetActionGraphBuilder(ActionGraphBuilder graphBuilder) {
+    if (lastActionGraphBuilder == graphBuilder) {
+      lastActionGraphBuilder = null;
+      lastTargetGraph = null;
+    }
+  }
+
+  private static ImmutableList<TargetNode<?, ?>> getNodesInDependencyOrder(
+      TargetGraph targetGraph, Set<BuildTarget> targets) {
+    ImmutableList.Builder<TargetNode<?, ?>> roots = ImmutableList.builder();
+    for (BuildTarget target : targets) {
+      roots.add(targetGraph.get(target));
+    }
+    try {
+      return new AcyclicDepthFirstPostOrderTraversal<TargetNode<?, ?>>(
+              node ->
+                  targetGraph
+                      .getOutgoingNodesFor(node)
+                      .stream()
+                      .filter(dep -> targets.contains(dep.getBuildTarget()))
+                      .iterator())
+          .traverse(roots.build());
+    } catch (AcyclicDepthFirstPostOrderTraversal.CycleException e) {
+      throw new IllegalStateException(
+          "Cycle detected despite graph which was claimed to be a DAG", e);
+    }
+  }
+
   private int addValidRulesToActionGraphBuilder(
       ActionGraphBuilder graphBuilder, Set<UnflavoredBuildTarget> validTargets) {
     SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(graphBuilder);
@@ -103,36 +210,34 @@ public class IncrementalActionGraphGenerator {
     return reusedRuleCount;
   }
 
-  private boolean invalidateChangedTargets(
-      TargetNode<?, ?> node,
-      TargetGraph targetGraph,
-      Map<BuildTarget, Boolean> explored,
-      Set<UnflavoredBuildTarget> validTargets) {
-    if (explored.containsKey(node.getBuildTarget())) {
-      return explored.get(node.getBuildTarget());
-    }
-
-    // Recursively check if any node in a child subgraph causes invalidation of its parent chain.
-    boolean ancestorInvalidated = false;
-    for (TargetNode<?, ?> child : targetGraph.getOutgoingNodesFor(node)) {
-      // Note: We can't short circuit here since we need to also make sure things inside child
-      // subgraphs get properly invalidated in turn.
-      ancestorInvalidated |= invalidateChangedTargets(child, targetGraph, explored, validTargets);
+  /**
+   * Returns the targets in {@code targetGraph} whose build rules can't be reused: those whose
+   * target nodes themselves require invalidation, plus everything that transitively depends on
+   * them, as ancestors might generate their subgraphs differently given the change.
+   */
+  private Set<BuildTarget> getInvalidatedTargets(TargetGraph targetGraph) {
+    Set<BuildTarget> invalidatedTargets = new HashSet<>();
+    Deque<TargetNode<?, ?>> toVisit = new ArrayDeque<>();
+    for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+      if (shouldInvalidateParentChain(node)) {
+        invalidatedTargets.add(node.getBuildTarget());
+        toVisit.add(node);
+      }
     }
-
-    boolean invalidateParent = false;
-    if (ancestorInvalidated || shouldInvalidateParentChain(node)) {
-      if (LOG.isVerboseEnabled()) {
-        LOG.verbose("invalidating target %s", node.getBuildTarget().toString());
+    while (!toVisit.isEmpty()) {
+      TargetNode<?, ?> node = toVisit.remove();
+      for (TargetNode<?, ?> parent : targetGraph.getIncomingNodesFor(node)) {
+        if (invalidatedTargets.add(parent.getBuildTarget())) {
+          if (LOG.isVerboseEnabled()) {
+            LOG.verbose(
+                "invalidating target %s due to change in dependency %s",
+                parent.getBuildTarget().toString(), node.getBuildTarget().toString());
+          }
+          toVisit.add(parent);
+        }
       }
-      invalidateParent = true;
-    } else {
-      // This node is valid. We can load all the flavors of its targets from cache.
-      validTargets.add(node.getBuildTarget().getUnflavoredBuildTarget());
     }
-
-    explored.put(node.getBuildTarget(), invalidateParent);
-    return invalidateParent;
+    return invalidatedTargets;
   }
 
   private boolean shouldInvalidateParentChain(TargetNode<?, ?> targetNode) {
@@ -143,8 +248,11 @@ public class IncrementalActionGraphGenerator {
         Preconditions.checkState(
             lastActionGraphBuilder.getRuleOptional(targetNode.getBuildTarget()).isPresent());
         // If the target node has changed, then invalidate parent chains, as ancestors might
-        // generate their subgraphs differently given the change.
-        if (!targetNode.equals(previousTargetNode.get())) {
+        // generate their subgraphs differently given the change. The parser keeps handing out the
+        // same node until its build file changes, so only nodes of changed build files need to be
+        // compared field by field.
+        if (targetNode != previousTargetNode.get()
+            && !targetNode.equals(previousTargetNode.get())) {
           if (LOG.isVerboseEnabled()) {
             LOG.verbose(
                 "target %s caused invalidation due to target node change",
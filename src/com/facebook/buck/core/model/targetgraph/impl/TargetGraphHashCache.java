@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.model.targetgraph.impl;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Target hashes computed by {@link TargetGraphHashing}, kept between commands so that only the
+ * targets which changed since the previous command need to be hashed again.
+ *
+ * <p>A cached hash is reused as long as the raw attributes of the target node and the hashes of its
+ * dependencies are the same as when it was computed, and none of the node's input files changed in
+ * between. Changes to input files aren't detected by hashing them again, which is what this cache
+ * avoids, but have to be reported through {@link #invalidatePath(Path)}.
+ *
+ * <p>Lookups don't take a lock, while updates are serialized so that the index of targets by input
+ * only ever holds the inputs of the cached hashes.
+ */
+public class TargetGraphHashCache {
+
+  private final ConcurrentMap<BuildTarget, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * The targets whose cached hashes depend on each input path, by absolute path. Paths are removed
+   * once no cached hash depends on them.
+   */
+  private final ConcurrentMap<Path, Set<BuildTarget>> targetsByInput = new ConcurrentHashMap<>();
+
+  /** @return whether a hash of the node as it is now is cached, regardless of its dependencies. */
+  boolean contains(TargetNode<?, ?> node) {
+    Entry entry = entries.get(node.getBuildTarget());
+    return entry != null && entry.rawInputsHashCode.equals(node.getRawInputsHashCode());
+  }
+
+  /**
+   * @return the cached hash of the node, if it's still valid given the current hashes of its
+   *     dependencies.
+   */
+  Optional<HashCode> get(TargetNode<?, ?> node, ImmutableList<Pair<BuildTarget, HashCode>> deps) {
+    Entry entry = entries.get(node.getBuildTarget());
+    if (entry == null
+        || !entry.rawInputsHashCode.equals(node.getRawInputsHashCode())
+        || !entry.deps.equals(deps)) {
+      return Optional.empty();
+    }
+    return Optional.of(entry.hashCode);
+  }
+
+  synchronized void put(
+      TargetNode<?, ?> node,
+      ImmutableList<Pair<BuildTarget, HashCode>> deps,
+      HashCode hashCode) {
+    BuildTarget target = node.getBuildTarget();
+    ImmutableSet<Path> inputs =
+        node.getInputs()
+            .stream()
+            .map(input -> node.getFilesystem().resolve(input))
+            .collect(ImmutableSet.toImmutableSet());
+    Entry previous =
+        entries.put(target, new Entry(node.getRawInputsHashCode(), deps, hashCode, inputs));
+    if (previous != null) {
+      removeFromInputs(target, Sets.difference(previous.inputs, inputs));
+    }
+    for (Path input : inputs) {
+      targetsByInput.computeIfAbsent(input, path -> ConcurrentHashMap.newKeySet()).add(target);
+    }
+  }
+
+  /**
+   * Invalidates the hashes of the targets with the given path, or a directory containing it, as an
+   * input. Hashes of targets depending on those are invalidated lazily, as their dependencies'
+   * hashes no longer match.
+   *
+   * @param path the absolute path of a file which was added, removed or modified.
+   */
+  public synchronized void invalidatePath(Path path) {
+    for (Path current = path; current != null; current = current.getParent()) {
+      Set<BuildTarget> targets = targetsByInput.remove(current);
+      if (targets == null) {
+        continue;
+      }
+      for (BuildTarget target : targets) {
+        Entry entry = entries.remove(target);
+        if (entry != null) {
+          removeFromInputs(target, entry.inputs);
+        }
+      }
+    }
+  }
+
+  /** Invalidates all hashes. */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    targetsByInput.clear();
+  }
+
+  private void removeFromInputs(BuildTarget target, Set<Path> inputs) {
+    for (Path input : inputs) {
+      targetsByInput.computeIfPresent(
+          input,
+          (path, targets) -> {
+            targets.remove(target);
+            return targets.isEmpty() ? null : targets;
+          });
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  int inputsSize() {
+    return targetsByInput.size();
+  }
+
+  private static class Entry {
+    private final HashCode rawInputsHashCode;
+    private final ImmutableList<Pair<BuildTarget, HashCode>> deps;
+    private final HashCode hashCode;
+    private final ImmutableSet<Path> inputs;
+
+    private Entry(
+        HashCode rawInputsHashCode,
+        ImmutableList<Pair<BuildTarget, HashCode>> deps,
+        HashCode hashCode,
+        ImmutableSet<Path> inputs) {
+      this.rawInputsHashCode = rawInputsHashCode;
+      this.deps = deps;
+      this.hashCode = hashCode;
+      this.inputs = inputs;
+    }
+  }
+}
@@ -30,6 +30,7 @@ import com.facebook.buck.util.hashing.FileHashLoader;
 import com.facebook.buck.util.hashing.StringHashing;
 import com.facebook.buck.util.types.Pair;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.hash.HashCode;
@@ -43,8 +44,10 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -63,6 +66,7 @@ public class TargetGraphHashing {
   private final FileHashLoader fileHashLoader;
   private final Iterable<TargetNode<?, ?>> roots;
   private final ListeningExecutorService executor;
+  private final Optional<TargetGraphHashCache> cache;
 
   public TargetGraphHashing(
       BuckEventBus eventBus,
@@ -70,11 +74,27 @@ public class TargetGraphHashing {
       FileHashLoader fileHashLoader,
       Iterable<TargetNode<?, ?>> roots,
       ListeningExecutorService executor) {
+    this(eventBus, targetGraph, fileHashLoader, roots, executor, Optional.empty());
+  }
+
+  /**
+   * @param cache hashes computed by previous commands. The cache must only be shared between
+   *     instances using the same {@code fileHashLoader}, and it must be told about any changes to
+   *     input files in between.
+   */
+  public TargetGraphHashing(
+      BuckEventBus eventBus,
+      TargetGraph targetGraph,
+      FileHashLoader fileHashLoader,
+      Iterable<TargetNode<?, ?>> roots,
+      ListeningExecutorService executor,
+      Optional<TargetGraphHashCache> cache) {
     this.eventBus = eventBus;
     this.targetGraph = targetGraph;
     this.fileHashLoader = fileHashLoader;
     this.roots = roots;
     this.executor = executor;
+    this.cache = cache;
   }
 
   /**
@@ -96,6 +116,8 @@ public class TargetGraphHashing {
     private final Map<BuildTarget, ListenableFuture<HashCode>> futures =
         new ConcurrentHashMap<>(targetGraph.getSize());
 
+    private final LongAdder reusedHashes = new LongAdder();
+
     /**
      * The initial hashing phase of a node, which hashes everything except its dependencies.
      *
@@ -168,7 +190,16 @@ public class TargetGraphHashing {
       // some situations, this tradeoff isn't ideal, in which case we could switch to only
       // *starting* to hash a node after it's dependencies have completed.
       ListenableFuture<HashCode> future = futures.get(node.getBuildTarget());
-      if (future == null) {
+      if (future == null && cache.isPresent() && cache.get().contains(node)) {
+        // The node itself is unchanged, so wait for its dependencies before deciding whether the
+        // cached hash can be reused, rather than hashing its inputs right away.
+        future =
+            Futures.transformAsync(
+                getDepPairsFuture(node),
+                depPairs -> getCachedOrComputeHash(node, ImmutableList.copyOf(depPairs)),
+                MoreExecutors.directExecutor());
+        futures.put(node.getBuildTarget(), future);
+      } else if (future == null) {
         future =
             Futures.transformAsync(
                 // Start hashing a node.
@@ -177,7 +208,12 @@ public class TargetGraphHashing {
                 hasher ->
                     Futures.transform(
                         getDepPairsFuture(node),
-                        depPairs -> finishNode(node.getBuildTarget(), hasher, depPairs),
+                        depPairs -> {
+                          HashCode hashCode = finishNode(node.getBuildTarget(), hasher, depPairs);
+                          cache.ifPresent(
+                              c -> c.put(node, ImmutableList.copyOf(depPairs), hashCode));
+                          return hashCode;
+                        },
                         MoreExecutors.directExecutor()),
                 executor);
         futures.put(node.getBuildTarget(), future);
@@ -185,6 +221,21 @@ public class TargetGraphHashing {
       return future;
     }
 
+    private ListenableFuture<HashCode> getCachedOrComputeHash(
+        TargetNode<?, ?> node, ImmutableList<Pair<BuildTarget, HashCode>> depPairs) {
+      Optional<HashCode> cachedHashCode = cache.get().get(node, depPairs);
+      if (cachedHashCode.isPresent()) {
+        reusedHashes.increment();
+        return Futures.immediateFuture(cachedHashCode.get());
+      }
+      return executor.submit(
+          () -> {
+            HashCode hashCode = finishNode(node.getBuildTarget(), startNode(node), depPairs);
+            cache.get().put(node, depPairs, hashCode);
+            return hashCode;
+          });
+    }
+
     /**
      * @return a map of all {@link BuildTarget}s to {@link HashCode}s for the graph defined by the
      *     given roots.
@@ -201,6 +252,9 @@ public class TargetGraphHashing {
       for (Map.Entry<BuildTarget, ListenableFuture<HashCode>> ent : futures.entrySet()) {
         results.put(ent.getKey(), ent.getValue().get());
       }
+      if (cache.isPresent()) {
+        LOG.debug("Reused %d of %d cached target hashes", reusedHashes.sum(), futures.size());
+      }
       return results.build();
     }
   }
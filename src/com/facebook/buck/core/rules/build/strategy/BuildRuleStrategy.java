@@ -32,4 +32,16 @@ public interface BuildRuleStrategy extends Closeable {
 
   /** A rule will be built by the custom strategy only if canBuild() returns true. */
   boolean canBuild(BuildRule instance);
+
+  /**
+   * Whether building the rule may leave its outputs out of the filesystem, until something which
+   * needs them calls materializeOutputs(). The build engine doesn't read the outputs of such rules
+   * itself, and so doesn't compute their input-based, depfile or manifest keys.
+   */
+  default boolean materializesOutputsOnDemand(BuildRule instance) {
+    return false;
+  }
+
+  /** Materializes the outputs of a rule which this strategy built without materializing them. */
+  default void materializeOutputs(BuildRule instance) throws IOException {}
 }
@@ -27,11 +27,12 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
 
 /** Implementation of the metadata system for ActionGraphBuilders. */
 final class ActionGraphBuilderMetadataCache {
   private final ActionGraphBuilder graphBuilder;
-  private final TargetGraph targetGraph;
+  private TargetGraph targetGraph;
   private final LoadingCache<Pair<BuildTarget, Class<?>>, Optional<?>> metadataCache;
 
   ActionGraphBuilderMetadataCache(
@@ -52,6 +53,15 @@ final class ActionGraphBuilderMetadataCache {
     }
   }
 
+  /**
+   * Moves the cache onto a newer version of its target graph, dropping the metadata of targets
+   * which don't satisfy {@code isUnchanged}.
+   */
+  void updateTargetGraph(TargetGraph targetGraph, Predicate<BuildTarget> isUnchanged) {
+    this.targetGraph = targetGraph;
+    metadataCache.asMap().keySet().removeIf(key -> !isUnchanged.test(key.getFirst()));
+  }
+
   private final class MetadataCacheLoader
       extends CacheLoader<Pair<BuildTarget, Class<?>>, Optional<?>> {
     @Override
@@ -34,6 +34,7 @@ import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.RecursiveTask;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
@@ -51,11 +52,11 @@ import javax.annotation.Nullable;
  */
 public class MultiThreadedActionGraphBuilder extends AbstractActionGraphBuilder {
   private boolean isValid = true;
-  private final ForkJoinPool forkJoinPool;
+  private ForkJoinPool forkJoinPool;
 
-  private final TargetGraph targetGraph;
+  private TargetGraph targetGraph;
   private final TargetNodeToBuildRuleTransformer buildRuleGenerator;
-  private final Function<BuildTarget, ToolchainProvider> toolchainProviderResolver;
+  private Function<BuildTarget, ToolchainProvider> toolchainProviderResolver;
 
   private final ActionGraphBuilderMetadataCache metadataCache;
   private final ConcurrentHashMap<BuildTarget, Task<BuildRule>> buildRuleIndex;
@@ -175,6 +176,31 @@ public class MultiThreadedActionGraphBuilder extends AbstractActionGraphBuilder
     buildRuleIndex.clear();
   }
 
+  /**
+   * Moves this builder onto a newer version of its target graph, and the pool of the command using
+   * it. The rules and metadata of targets which don't satisfy {@code isUnchanged} are dropped, to
+   * be created again from the new target graph when they're required. All other rules stay as they
+   * are.
+   *
+   * <p>Must not be called while rules are being created.
+   *
+   * @return the number of rules kept.
+   */
+  public int updateTargetGraph(
+      ForkJoinPool forkJoinPool,
+      TargetGraph targetGraph,
+      CellProvider cellProvider,
+      Predicate<BuildTarget> isUnchanged) {
+    Preconditions.checkState(isValid);
+    this.forkJoinPool = forkJoinPool;
+    this.targetGraph = targetGraph;
+    this.toolchainProviderResolver =
+        target -> cellProvider.getBuildTargetCell(target).getToolchainProvider();
+    buildRuleIndex.keySet().removeIf(isUnchanged.negate());
+    metadataCache.updateTargetGraph(targetGraph, isUnchanged);
+    return buildRuleIndex.size();
+  }
+
   private boolean isInForkJoinPool() {
     Thread current = Thread.currentThread();
     return current instanceof ForkJoinWorkerThread
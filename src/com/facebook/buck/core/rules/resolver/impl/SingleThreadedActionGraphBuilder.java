@@ -30,6 +30,7 @@ import com.google.common.collect.Iterables;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Provides a mechanism for mapping between a {@link BuildTarget} and the {@link BuildRule} it
@@ -38,9 +39,9 @@ import java.util.function.Function;
 public class SingleThreadedActionGraphBuilder extends AbstractActionGraphBuilder {
 
   private boolean isValid = true;
-  private final TargetGraph targetGraph;
+  private TargetGraph targetGraph;
   private final TargetNodeToBuildRuleTransformer buildRuleGenerator;
-  private final Function<BuildTarget, ToolchainProvider> toolchainProviderResolver;
+  private Function<BuildTarget, ToolchainProvider> toolchainProviderResolver;
 
   private final ConcurrentHashMap<BuildTarget, BuildRule> buildRuleIndex;
   private final ActionGraphBuilderMetadataCache metadataCache;
@@ -153,6 +154,24 @@ public class SingleThreadedActionGraphBuilder extends AbstractActionGraphBuilder
     return Parallelizer.SERIAL;
   }
 
+  /**
+   * Moves this builder onto a newer version of its target graph. The rules and metadata of targets
+   * which don't satisfy {@code isUnchanged} are dropped, to be created again from the new target
+   * graph when they're required. All other rules stay as they are.
+   *
+   * @return the number of rules kept.
+   */
+  public int updateTargetGraph(
+      TargetGraph targetGraph, CellProvider cellProvider, Predicate<BuildTarget> isUnchanged) {
+    Preconditions.checkState(isValid);
+    this.targetGraph = targetGraph;
+    this.toolchainProviderResolver =
+        target -> cellProvider.getBuildTargetCell(target).getToolchainProvider();
+    buildRuleIndex.keySet().removeIf(isUnchanged.negate());
+    metadataCache.updateTargetGraph(targetGraph, isUnchanged);
+    return buildRuleIndex.size();
+  }
+
   @Override
   public void invalidate() {
     isValid = false;
@@ -17,19 +17,71 @@
 package com.facebook.buck.distributed;
 
 import com.facebook.buck.distributed.thrift.BuildJobState;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.slb.ThriftProtocol;
 import com.facebook.buck.slb.ThriftUtil;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
+/**
+ * Serializes {@link BuildJobState}s, either into a single compressed blob, or into compressed
+ * chunks which are kept in a {@link ChunkStore}.
+ *
+ * <p>Chunks are cut wherever the contents of the serialized state match a pattern, so that a
+ * change to one part of the state only changes the chunks around it. This way consecutive builds
+ * of the same repository share most of their chunks, and only the changed ones are uploaded. The
+ * chunked form of a state is a small manifest listing its chunks, which can be decoded while the
+ * chunks are being fetched.
+ */
 public abstract class BuildJobStateSerializer {
+  private static final Logger LOG = Logger.get(BuildJobStateSerializer.class);
   private static final ThriftProtocol PROTOCOL = ThriftProtocol.COMPACT;
 
+  // Zlib streams never start with this, as their first byte always has 8 as its lower nibble.
+  private static final int CHUNKED_FORMAT_MAGIC = 0x424a5343;
+  private static final int CHUNKED_FORMAT_VERSION = 1;
+
+  private static final int MIN_CHUNK_SIZE_BYTES = 16 * 1024;
+  private static final int MAX_CHUNK_SIZE_BYTES = 256 * 1024;
+  // Cuts chunks of 64KB on average past the minimum size.
+  private static final long CHUNK_BOUNDARY_MASK = -1L << (64 - 16);
+  // Chunks are checked for, uploaded and fetched in batches of about this many bytes.
+  private static final int MAX_BATCH_SIZE_BYTES = 4 * 1024 * 1024;
+
+  private static final long[] GEAR = createGearTable();
+
+  /** Stores the chunks of serialized states by the SHA-1 of their contents. */
+  public interface ChunkStore {
+    /** @return the hashes of the chunks which aren't stored yet. */
+    Set<String> findMissingChunks(List<String> hashes) throws IOException;
+
+    void storeChunks(Map<String, byte[]> chunksByHash) throws IOException;
+
+    Map<String, byte[]> fetchChunks(Set<String> hashes) throws IOException;
+  }
+
   private BuildJobStateSerializer() {
     // Do not instantiate.
   }
@@ -61,4 +113,246 @@ public abstract class BuildJobStateSerializer {
       return deserialize(stream);
     }
   }
+
+  /**
+   * Serializes the state into chunks, and stores those the store doesn't contain yet while the
+   * state is being serialized.
+   *
+   * @return the manifest of the chunks, to be passed to {@link #deserialize(byte[], ChunkStore)}.
+   */
+  public static byte[] serializeInChunks(BuildJobState state, ChunkStore chunkStore)
+      throws IOException {
+    ChunkingOutputStream stream = new ChunkingOutputStream(chunkStore);
+    ThriftUtil.serialize(PROTOCOL, state, stream);
+    stream.close();
+
+    LOG.info(
+        "Serialized state into [%d] chunks, [%d] of which had to be uploaded.",
+        stream.chunks.size(), stream.storedChunks);
+
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(manifest)) {
+      output.writeInt(CHUNKED_FORMAT_MAGIC);
+      output.writeInt(CHUNKED_FORMAT_VERSION);
+      output.writeInt(stream.chunks.size());
+      for (Chunk chunk : stream.chunks) {
+        output.write(HashCode.fromString(chunk.hash).asBytes());
+        output.writeInt(chunk.size);
+      }
+    }
+    return manifest.toByteArray();
+  }
+
+  /** @return whether the data is the manifest of a state serialized in chunks. */
+  public static boolean isChunked(byte[] data) {
+    return data.length >= 4 && ByteBuffer.wrap(data).getInt() == CHUNKED_FORMAT_MAGIC;
+  }
+
+  /**
+   * Deserializes a state which was serialized either in one piece or in chunks. Chunks are fetched
+   * in batches as the state is decoded.
+   */
+  public static BuildJobState deserialize(byte[] data, ChunkStore chunkStore) throws IOException {
+    if (!isChunked(data)) {
+      return deserialize(data);
+    }
+
+    List<Chunk> chunks = new ArrayList<>();
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+      input.readInt();
+      int version = input.readInt();
+      if (version != CHUNKED_FORMAT_VERSION) {
+        throw new IOException(
+            String.format("Unsupported version [%d] of chunked build state.", version));
+      }
+      int chunkCount = input.readInt();
+      byte[] hash = new byte[20];
+      for (int i = 0; i < chunkCount; i++) {
+        input.readFully(hash);
+        chunks.add(new Chunk(HashCode.fromBytes(hash).toString(), input.readInt()));
+      }
+    }
+
+    BuildJobState state = new BuildJobState();
+    try (InputStream stream = new ChunkedInputStream(chunks, chunkStore)) {
+      ThriftUtil.deserialize(PROTOCOL, stream, state);
+    }
+    return state;
+  }
+
+  private static long[] createGearTable() {
+    // The table has to be the same for every build, so that they cut chunks at the same places.
+    Random random = new Random(0x5eed);
+    long[] table = new long[256];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = random.nextLong();
+    }
+    return table;
+  }
+
+  private static class Chunk {
+    final String hash;
+    final int size;
+
+    Chunk(String hash, int size) {
+      this.hash = hash;
+      this.size = size;
+    }
+  }
+
+  /** Cuts what is written into compressed chunks, and stores them in batches. */
+  private static class ChunkingOutputStream extends OutputStream {
+    private final ChunkStore chunkStore;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final Set<String> seenHashes = new HashSet<>();
+    private final Map<String, byte[]> pendingChunks = new LinkedHashMap<>();
+    private final ByteArrayOutputStream currentChunk = new ByteArrayOutputStream();
+    private int pendingBytes = 0;
+    private int storedChunks = 0;
+    private long rollingHash = 0;
+    private boolean closed = false;
+
+    ChunkingOutputStream(ChunkStore chunkStore) {
+      this.chunkStore = chunkStore;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int start = off;
+      for (int i = off; i < off + len; i++) {
+        rollingHash = (rollingHash << 1) + GEAR[b[i] & 0xff];
+        int chunkSize = currentChunk.size() + i + 1 - start;
+        if (chunkSize >= MAX_CHUNK_SIZE_BYTES
+            || (chunkSize >= MIN_CHUNK_SIZE_BYTES && (rollingHash & CHUNK_BOUNDARY_MASK) == 0)) {
+          currentChunk.write(b, start, i + 1 - start);
+          start = i + 1;
+          cutChunk();
+        }
+      }
+      currentChunk.write(b, start, off + len - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (currentChunk.size() > 0) {
+        cutChunk();
+      }
+      storePendingChunks();
+    }
+
+    private void cutChunk() throws IOException {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (DeflaterOutputStream zlibStream = new DeflaterOutputStream(compressed)) {
+        currentChunk.writeTo(zlibStream);
+      }
+      currentChunk.reset();
+      rollingHash = 0;
+
+      byte[] data = compressed.toByteArray();
+      String hash = Hashing.sha1().hashBytes(data).toString();
+      chunks.add(new Chunk(hash, data.length));
+      if (seenHashes.add(hash)) {
+        pendingChunks.put(hash, data);
+        pendingBytes += data.length;
+        if (pendingBytes >= MAX_BATCH_SIZE_BYTES) {
+          storePendingChunks();
+        }
+      }
+    }
+
+    private void storePendingChunks() throws IOException {
+      if (pendingChunks.isEmpty()) {
+        return;
+      }
+      Set<String> missingHashes =
+          chunkStore.findMissingChunks(ImmutableList.copyOf(pendingChunks.keySet()));
+      Map<String, byte[]> missingChunks = new LinkedHashMap<>();
+      for (String hash : missingHashes) {
+        missingChunks.put(hash, Preconditions.checkNotNull(pendingChunks.get(hash)));
+      }
+      if (!missingChunks.isEmpty()) {
+        chunkStore.storeChunks(missingChunks);
+        storedChunks += missingChunks.size();
+      }
+      pendingChunks.clear();
+      pendingBytes = 0;
+    }
+  }
+
+  /** Fetches and decompresses chunks in batches, as they are read. */
+  private static class ChunkedInputStream extends InputStream {
+    private final Queue<Chunk> remainingChunks;
+    private final ChunkStore chunkStore;
+    private final Queue<byte[]> fetchedChunks = new ArrayDeque<>();
+    private InputStream currentChunk = new ByteArrayInputStream(new byte[0]);
+
+    ChunkedInputStream(List<Chunk> chunks, ChunkStore chunkStore) {
+      this.remainingChunks = new ArrayDeque<>(chunks);
+      this.chunkStore = chunkStore;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        int read = currentChunk.read(b, off, len);
+        if (read != -1) {
+          return read;
+        }
+        if (!nextChunk()) {
+          return -1;
+        }
+      }
+    }
+
+    private boolean nextChunk() throws IOException {
+      if (fetchedChunks.isEmpty() && !fetchNextBatch()) {
+        return false;
+      }
+      currentChunk = new InflaterInputStream(new ByteArrayInputStream(fetchedChunks.remove()));
+      return true;
+    }
+
+    private boolean fetchNextBatch() throws IOException {
+      if (remainingChunks.isEmpty()) {
+        return false;
+      }
+      List<Chunk> batch = new ArrayList<>();
+      int batchBytes = 0;
+      while (!remainingChunks.isEmpty() && batchBytes < MAX_BATCH_SIZE_BYTES) {
+        Chunk chunk = remainingChunks.remove();
+        batch.add(chunk);
+        batchBytes += chunk.size;
+      }
+
+      ImmutableSet.Builder<String> hashes = ImmutableSet.builder();
+      batch.forEach(chunk -> hashes.add(chunk.hash));
+      Map<String, byte[]> chunksByHash = chunkStore.fetchChunks(hashes.build());
+      for (Chunk chunk : batch) {
+        byte[] data = chunksByHash.get(chunk.hash);
+        if (data == null || data.length != chunk.size) {
+          throw new IOException(String.format("Failed to fetch chunk [%s].", chunk.hash));
+        }
+        fetchedChunks.add(data);
+      }
+      return true;
+    }
+  }
 }
@@ -207,6 +207,20 @@ public class DistBuildConfig {
   private static final String ENABLE_GREEDY_STACKING = "enable_greedy_stacking";
   private static final boolean DEFAULT_ENABLE_GREEDY_STACKING = false;
 
+  // Number of work units minions fetch on top of those they can build at once. Minions steal the
+  // ones the others haven't started when there is no other work.
+  private static final String MINION_WORK_UNIT_LOOKAHEAD = "minion_work_unit_lookahead";
+  private static final int DEFAULT_MINION_WORK_UNIT_LOOKAHEAD = 0;
+
+  // Rule costs exported by the coordinator of a previous build, used to prioritize rules.
+  private static final String RULE_COSTS_FILE = "rule_costs_file";
+
+  // Upload the build graph as chunks through the CAS, so that the chunks which haven't changed
+  // since a previous build aren't uploaded again.
+  private static final String ENABLE_CHUNKED_BUILD_GRAPH_UPLOAD =
+      "enable_chunked_build_graph_upload";
+  private static final boolean DEFAULT_ENABLE_CHUNKED_BUILD_GRAPH_UPLOAD = false;
+
   private final SlbBuckConfig frontendConfig;
   private final BuckConfig buckConfig;
 
@@ -543,6 +557,25 @@ public class DistBuildConfig {
         STAMPEDE_SECTION, ENABLE_GREEDY_STACKING, DEFAULT_ENABLE_GREEDY_STACKING);
   }
 
+  /** @return Number of work units minions fetch on top of those they can build at once. */
+  public int getMinionWorkUnitLookahead() {
+    return buckConfig
+        .getInteger(STAMPEDE_SECTION, MINION_WORK_UNIT_LOOKAHEAD)
+        .orElse(DEFAULT_MINION_WORK_UNIT_LOOKAHEAD);
+  }
+
+  /** @return File with the rule costs of a previous build, to prioritize the rules with. */
+  public Optional<Path> getRuleCostsFile() {
+    return buckConfig.getPath(STAMPEDE_SECTION, RULE_COSTS_FILE);
+  }
+
+  public boolean isChunkedBuildGraphUploadEnabled() {
+    return buckConfig.getBooleanValue(
+        STAMPEDE_SECTION,
+        ENABLE_CHUNKED_BUILD_GRAPH_UPLOAD,
+        DEFAULT_ENABLE_CHUNKED_BUILD_GRAPH_UPLOAD);
+  }
+
   public OkHttpClient createOkHttpClient() {
     return new OkHttpClient.Builder()
         .connectTimeout(getFrontendRequestTimeoutMillis(), TimeUnit.MILLISECONDS)
@@ -99,6 +99,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -112,6 +113,7 @@ public class DistBuildService implements Closeable {
 
   private final FrontendService service;
   private final String username;
+  private final boolean uploadBuildGraphInChunks;
 
   /** Exception thrown when CreateBuildRequest is rejected (with a rejection message). */
   public static class DistBuildRejectedException extends Exception {
@@ -124,9 +126,19 @@ public class DistBuildService implements Closeable {
   }
 
   public DistBuildService(FrontendService service, String username) {
+    this(service, username, false);
+  }
+
+  /**
+   * @param uploadBuildGraphInChunks whether to upload build graphs in chunks, so that those which
+   *     are already in the CAS aren't uploaded again. See {@link BuildJobStateSerializer}.
+   */
+  public DistBuildService(
+      FrontendService service, String username, boolean uploadBuildGraphInChunks) {
     Preconditions.checkNotNull(username, "Username needs to be set for distributed build.");
     this.service = service;
     this.username = username;
+    this.uploadBuildGraphInChunks = uploadBuildGraphInChunks;
   }
 
   public MultiGetBuildSlaveRealTimeLogsResponse fetchSlaveLogLines(
@@ -165,10 +177,13 @@ public class DistBuildService implements Closeable {
       throws IOException {
     distBuildClientStats.startTimer(UPLOAD_TARGET_GRAPH);
 
-    // Serialize and send the whole buildJobState
+    // Serialize and send the whole buildJobState, or only the manifest of its chunks.
     StoreBuildGraphRequest storeBuildGraphRequest = new StoreBuildGraphRequest();
     storeBuildGraphRequest.setStampedeId(stampedeId);
-    storeBuildGraphRequest.setBuildGraph(BuildJobStateSerializer.serialize(buildJobState));
+    storeBuildGraphRequest.setBuildGraph(
+        uploadBuildGraphInChunks
+            ? BuildJobStateSerializer.serializeInChunks(buildJobState, new CasChunkStore())
+            : BuildJobStateSerializer.serialize(buildJobState));
 
     FrontendRequest request = new FrontendRequest();
     request.setType(FrontendRequestType.STORE_BUILD_GRAPH);
@@ -426,7 +441,7 @@ public class DistBuildService implements Closeable {
     Preconditions.checkState(response.getFetchBuildGraphResponse().getBuildGraph().length > 0);
 
     return BuildJobStateSerializer.deserialize(
-        response.getFetchBuildGraphResponse().getBuildGraph());
+        response.getFetchBuildGraphResponse().getBuildGraph(), new CasChunkStore());
   }
 
   public static FrontendRequest createFetchBuildGraphRequest(StampedeId stampedeId) {
@@ -880,6 +895,43 @@ public class DistBuildService implements Closeable {
     Preconditions.checkState(response.isSetReportCoordinatorAliveResponse());
   }
 
+  /** Keeps the chunks of serialized build graphs in the CAS, along with source files. */
+  private class CasChunkStore implements BuildJobStateSerializer.ChunkStore {
+    @Override
+    public Set<String> findMissingChunks(List<String> hashes) throws IOException {
+      FrontendResponse response =
+          makeRequestChecked(
+              new FrontendRequest()
+                  .setType(FrontendRequestType.CAS_CONTAINS)
+                  .setCasContainsRequest(new CASContainsRequest().setContentSha1s(hashes)));
+      List<Boolean> isPresent = response.getCasContainsResponse().getExists();
+      Preconditions.checkState(isPresent.size() == hashes.size());
+      Set<String> missingHashes = new HashSet<>();
+      for (int i = 0; i < hashes.size(); i++) {
+        if (!isPresent.get(i)) {
+          missingHashes.add(hashes.get(i));
+        }
+      }
+      return missingHashes;
+    }
+
+    @Override
+    public void storeChunks(Map<String, byte[]> chunksByHash) throws IOException {
+      List<FileInfo> files = new ArrayList<>();
+      chunksByHash.forEach(
+          (hash, data) -> files.add(new FileInfo().setContentHash(hash).setContent(data)));
+      makeRequestChecked(
+          new FrontendRequest()
+              .setType(FrontendRequestType.STORE_LOCAL_CHANGES)
+              .setStoreLocalChangesRequest(new StoreLocalChangesRequest().setFiles(files)));
+    }
+
+    @Override
+    public Map<String, byte[]> fetchChunks(Set<String> hashes) throws IOException {
+      return multiFetchSourceFiles(hashes);
+    }
+  }
+
   private FrontendResponse makeRequestChecked(FrontendRequest request) throws IOException {
     FrontendResponse response = service.makeRequest(request);
     Preconditions.checkState(response.isSetWasSuccessful());
@@ -99,6 +99,7 @@ public class ActiveCoordinatorService implements CoordinatorService.Iface {
             request.getMinionType(),
             request.getFinishedTargets(),
             request.getMaxWorkUnitsToFetch());
+    response.setStolenTargets(allocator.takeStolenTargets(minionId));
 
     // TODO(alisdair): experiment with only sending started event for first node in chain,
     // and then send events for later nodes in the chain as their children finish.
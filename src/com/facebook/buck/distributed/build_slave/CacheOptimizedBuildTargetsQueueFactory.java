@@ -316,6 +316,25 @@ public class CacheOptimizedBuildTargetsQueueFactory {
       Iterable<BuildTarget> targetsToBuild,
       CoordinatorBuildRuleEventsPublisher coordinatorBuildRuleEventsPublisher,
       int mostBuildRulesFinishedPercentageThreshold) {
+    return createBuildTargetsQueue(
+        targetsToBuild,
+        coordinatorBuildRuleEventsPublisher,
+        mostBuildRulesFinishedPercentageThreshold,
+        RuleCostEstimator.UNIFORM);
+  }
+
+  /**
+   * Create {@link BuildTargetsQueue} with the given parameters.
+   *
+   * @param targetsToBuild top-level targets that need to be built.
+   * @param costEstimator used to prioritize the rules at the start of expensive dependency chains.
+   * @return an instance of {@link BuildTargetsQueue} with the top-level targets at the root.
+   */
+  public ReverseDepBuildTargetsQueue createBuildTargetsQueue(
+      Iterable<BuildTarget> targetsToBuild,
+      CoordinatorBuildRuleEventsPublisher coordinatorBuildRuleEventsPublisher,
+      int mostBuildRulesFinishedPercentageThreshold,
+      RuleCostEstimator costEstimator) {
     LOG.info("Starting to create the %s.", BuildTargetsQueue.class.getName());
     GraphTraversalData results = traverseGraphFromTopLevelUsingAvailableCaches(targetsToBuild);
 
@@ -391,7 +410,8 @@ public class CacheOptimizedBuildTargetsQueueFactory {
 
     return new ReverseDepBuildTargetsQueue(
         new DistributableBuildGraph(allNodes.build(), zeroDependencyNodes.build()),
-        mostBuildRulesFinishedPercentageThreshold);
+        mostBuildRulesFinishedPercentageThreshold,
+        costEstimator);
   }
 
   private static String ruleToTarget(BuildRule rule) {
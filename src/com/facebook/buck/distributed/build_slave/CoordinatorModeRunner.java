@@ -58,6 +58,7 @@ public class CoordinatorModeRunner extends AbstractDistBuildModeRunner {
   private final MinionHealthTracker minionHealthTracker;
   private final Optional<URI> traceUploadUri;
   private final MinionCountProvider minionCountProvider;
+  private final int workUnitLookahead;
 
   /** Constructor. */
   public CoordinatorModeRunner(
@@ -72,6 +73,36 @@ public class CoordinatorModeRunner extends AbstractDistBuildModeRunner {
       DistBuildService distBuildService,
       MinionHealthTracker minionHealthTracker,
       MinionCountProvider minionCountProvider) {
+    this(
+        coordinatorPort,
+        queue,
+        stampedeId,
+        eventListener,
+        logDirectoryPath,
+        clientBuildId,
+        traceUploadUri,
+        coordinatorBuildRuleEventsPublisher,
+        distBuildService,
+        minionHealthTracker,
+        minionCountProvider,
+        0);
+  }
+
+  /** Constructor. */
+  public CoordinatorModeRunner(
+      OptionalInt coordinatorPort,
+      ListenableFuture<BuildTargetsQueue> queue,
+      StampedeId stampedeId,
+      EventListener eventListener,
+      Path logDirectoryPath,
+      Optional<BuildId> clientBuildId,
+      Optional<URI> traceUploadUri,
+      CoordinatorBuildRuleEventsPublisher coordinatorBuildRuleEventsPublisher,
+      DistBuildService distBuildService,
+      MinionHealthTracker minionHealthTracker,
+      MinionCountProvider minionCountProvider,
+      int workUnitLookahead) {
+    this.workUnitLookahead = workUnitLookahead;
     this.stampedeId = stampedeId;
     this.clientBuildId = clientBuildId;
     this.traceUploadUri = traceUploadUri;
@@ -96,7 +127,8 @@ public class CoordinatorModeRunner extends AbstractDistBuildModeRunner {
       Optional<BuildId> clientBuildId,
       Optional<URI> traceUploadUri,
       MinionHealthTracker minionHealthTracker,
-      MinionCountProvider minionCountProvider) {
+      MinionCountProvider minionCountProvider,
+      int workUnitLookahead) {
     this(
         OptionalInt.empty(),
         queue,
@@ -108,7 +140,8 @@ public class CoordinatorModeRunner extends AbstractDistBuildModeRunner {
         coordinatorBuildRuleEventsPublisher,
         distBuildService,
         minionHealthTracker,
-        minionCountProvider);
+        minionCountProvider,
+        workUnitLookahead);
   }
 
   @Override
@@ -175,7 +208,8 @@ public class CoordinatorModeRunner extends AbstractDistBuildModeRunner {
                   coordinatorBuildRuleEventsPublisher,
                   minionHealthTracker,
                   distBuildService,
-                  minionCountProvider));
+                  minionCountProvider,
+                  workUnitLookahead));
       this.server.start();
       this.closer.register(
           service.addCallback("ReportCoordinatorAlive", createHeartbeatCallback()));
@@ -202,6 +236,9 @@ public class CoordinatorModeRunner extends AbstractDistBuildModeRunner {
     }
 
     private void dumpAndUploadChromeTrace() {
+      this.server.exportRuleCostsIfSuccess(
+          logDirectoryPath.resolve(BuckConstant.DIST_BUILD_RULE_COSTS_FILE_NAME));
+
       Path traceFilePath = logDirectoryPath.resolve(BuckConstant.DIST_BUILD_TRACE_FILE_NAME);
       if (!this.server.exportChromeTraceIfSuccess(traceFilePath)) {
         // Do nothing if no file was exported.
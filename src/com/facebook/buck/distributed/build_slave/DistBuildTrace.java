@@ -20,11 +20,13 @@ import com.facebook.buck.distributed.build_slave.DistributableBuildGraph.Distrib
 import com.facebook.buck.distributed.thrift.StampedeId;
 import com.facebook.buck.log.Logger;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -105,6 +107,22 @@ public class DistBuildTrace {
     return Optional.of(critical);
   }
 
+  /**
+   * @return how long each rule took to build, in milliseconds. If a rule was built by more than one
+   *     minion, the longest build is used, as the others may have been cache hits.
+   */
+  public ImmutableMap<String, Long> getRuleCosts() {
+    Map<String, Long> costs = new HashMap<>();
+    for (MinionTrace minion : minions) {
+      for (MinionThread thread : minion.threads) {
+        for (RuleTrace rule : thread.ruleTraces) {
+          costs.merge(rule.ruleName, rule.finishEpochMillis - rule.startEpochMillis, Math::max);
+        }
+      }
+    }
+    return ImmutableMap.copyOf(costs);
+  }
+
   /** Write trace in chrome trace format. */
   public void dumpToChromeTrace(Path chromeTrace) throws IOException {
     DistBuildChromeTraceRenderer.render(this, chromeTrace);
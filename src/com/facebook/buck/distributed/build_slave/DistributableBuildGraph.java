@@ -20,8 +20,12 @@ import com.facebook.buck.log.Logger;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -56,6 +60,50 @@ public class DistributableBuildGraph {
     return Math.toIntExact(allNodes.values().stream().filter(t -> !t.isUncacheable()).count());
   }
 
+  /**
+   * Computes the cost of the most expensive chain of dependents starting at each node, including
+   * the node itself. Building the nodes with the most expensive chains first shortens the build,
+   * as those chains bound how long it takes.
+   */
+  public ImmutableMap<String, Long> computeCriticalPathCosts(RuleCostEstimator costEstimator) {
+    Map<String, Long> costs = new HashMap<>();
+    Map<String, Integer> remainingDependents = new HashMap<>();
+    Deque<DistributableNode> ready = new ArrayDeque<>();
+    for (DistributableNode node : allNodes.values()) {
+      remainingDependents.put(node.targetName, node.dependentTargets.size());
+      if (node.dependentTargets.isEmpty()) {
+        ready.add(node);
+      }
+    }
+
+    // Visit the nodes once all of their dependents have been visited, starting at the top.
+    while (!ready.isEmpty()) {
+      DistributableNode node = ready.remove();
+      long costOfDependents = 0;
+      for (String dependent : node.dependentTargets) {
+        costOfDependents = Math.max(costOfDependents, costs.getOrDefault(dependent, 0L));
+      }
+      costs.put(node.targetName, costOfDependents + costEstimator.getCost(node.targetName));
+
+      for (String dependency : node.allDependencies) {
+        int remaining = remainingDependents.merge(dependency, -1, Integer::sum);
+        if (remaining == 0) {
+          ready.add(getNode(dependency));
+        }
+      }
+    }
+
+    if (costs.size() != allNodes.size()) {
+      LOG.warn(
+          "Only computed the critical path of [%d] of [%d] nodes, as the graph is inconsistent.",
+          costs.size(), allNodes.size());
+      for (DistributableNode node : allNodes.values()) {
+        costs.computeIfAbsent(node.targetName, costEstimator::getCost);
+      }
+    }
+    return ImmutableMap.copyOf(costs);
+  }
+
   /** Custom structure for nodes used by the {@link BuildTargetsQueue}. */
   static class DistributableNode {
     private final String targetName;
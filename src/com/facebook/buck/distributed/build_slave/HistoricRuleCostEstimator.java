@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed.build_slave;
+
+import com.facebook.buck.util.json.ObjectMappers;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Estimates the cost of rules from how long they took to build in a previous distributed build, as
+ * recorded by {@link ThriftCoordinatorServer#exportRuleCostsIfSuccess(Path)}.
+ */
+public class HistoricRuleCostEstimator implements RuleCostEstimator {
+  private final ImmutableMap<String, Long> costs;
+  private final long defaultCost;
+
+  public HistoricRuleCostEstimator(Map<String, Long> costs) {
+    this.costs = ImmutableMap.copyOf(costs);
+    // Rules which weren't built before are assumed to be average.
+    this.defaultCost =
+        costs.isEmpty()
+            ? 1
+            : Math.max(1, costs.values().stream().mapToLong(Long::longValue).sum() / costs.size());
+  }
+
+  /** Reads the costs written by {@link #write(Path, Map)}. */
+  public static HistoricRuleCostEstimator load(Path path) throws IOException {
+    return new HistoricRuleCostEstimator(
+        ObjectMappers.readValue(path, new TypeReference<Map<String, Long>>() {}));
+  }
+
+  /** Writes the cost of each rule, in milliseconds, as a JSON object keyed by target. */
+  public static void write(Path path, Map<String, Long> costs) throws IOException {
+    ObjectMappers.WRITER.writeValue(path.toFile(), costs);
+  }
+
+  @Override
+  public long getCost(String target) {
+    return costs.getOrDefault(target, defaultCost);
+  }
+}
@@ -22,6 +22,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -57,10 +58,31 @@ public class MinionLocalBuildStateTracker {
 
   private final MinionBuildProgressTracker minionBuildProgressTracker;
 
+  // Work units beyond this number are kept queued here, rather than handed to the build engine,
+  // so that they can still be dropped if another minion steals them.
+  private final int maxWorkUnitsBuilding;
+
+  // Number of work units that have been handed to the build engine and haven't finished yet.
+  private int workUnitsBuilding = 0;
+
   public MinionLocalBuildStateTracker(
       MinionBuildProgressTracker minionBuildProgressTracker, CapacityTracker capacityTracker) {
+    this(minionBuildProgressTracker, capacityTracker, 0);
+  }
+
+  /**
+   * @param workUnitLookahead the number of work units the capacity tracker allows fetching on top
+   *     of those that can be built at once.
+   */
+  public MinionLocalBuildStateTracker(
+      MinionBuildProgressTracker minionBuildProgressTracker,
+      CapacityTracker capacityTracker,
+      int workUnitLookahead) {
+    Preconditions.checkArgument(workUnitLookahead >= 0);
     this.minionBuildProgressTracker = minionBuildProgressTracker;
     this.capacityTracker = capacityTracker;
+    this.maxWorkUnitsBuilding =
+        Math.max(1, capacityTracker.getMaxAvailableCapacity() - workUnitLookahead);
   }
 
   /** @return Number of additional work units this minion can build */
@@ -106,18 +128,59 @@ public class MinionLocalBuildStateTracker {
     LOG.info(String.format("Queued [%d] work units for building.", newWorkUnits.size()));
   }
 
-  /** @return True if there are queued work units that haven't been build yet */
+  /**
+   * Drops queued work units that contain any of the given targets, as they were stolen by other
+   * minions. Work units that are already being built are left alone.
+   *
+   * @param stolenTargets Targets the coordinator has re-assigned to other minions
+   */
+  public synchronized void dropStolenWorkUnits(List<String> stolenTargets) {
+    if (stolenTargets.isEmpty()) {
+      return;
+    }
+
+    Set<String> stolenTargetsSet = new HashSet<>(stolenTargets);
+    Iterator<WorkUnit> workUnitIterator = workUnitsToBuild.iterator();
+    int droppedWorkUnits = 0;
+    while (workUnitIterator.hasNext()) {
+      List<String> buildTargetsInWorkUnit = workUnitIterator.next().getBuildTargets();
+      if (buildTargetsInWorkUnit.stream().noneMatch(stolenTargetsSet::contains)) {
+        continue;
+      }
+
+      workUnitIterator.remove();
+      workUnitTerminalTargets.remove(buildTargetsInWorkUnit.get(buildTargetsInWorkUnit.size() - 1));
+      capacityTracker.returnCapacity();
+      droppedWorkUnits++;
+    }
+
+    LOG.info(
+        String.format(
+            "Dropped [%d] queued work units that were stolen by other minions.",
+            droppedWorkUnits));
+  }
+
+  /**
+   * @return True if there are queued work units that haven't been build yet, and that can be
+   *     started now
+   */
   public synchronized boolean outstandingWorkUnitsToBuild() {
-    return workUnitsToBuild.size() > 0;
+    return workUnitsToBuild.size() > 0 && workUnitsBuilding < maxWorkUnitsBuilding;
   }
 
   /** @return Targets that minion should build, extracted from queued work units. */
   public synchronized List<String> getTargetsToBuild() {
     // Each work unit consists of one of more build targets. Aggregate them all together
-    // and feed them to the build engine as a batch.
+    // and feed them to the build engine as a batch. Work units that can't be built at once stay
+    // queued until a work unit finishes.
     List<String> targetsToBuild = Lists.newArrayList();
-    for (WorkUnit workUnit : workUnitsToBuild) {
-      targetsToBuild.addAll(workUnit.getBuildTargets());
+    int workUnitsStarted = 0;
+    Iterator<WorkUnit> workUnitIterator = workUnitsToBuild.iterator();
+    while (workUnitIterator.hasNext() && workUnitsBuilding < maxWorkUnitsBuilding) {
+      targetsToBuild.addAll(workUnitIterator.next().getBuildTargets());
+      workUnitIterator.remove();
+      workUnitsBuilding++;
+      workUnitsStarted++;
     }
 
     knownTargets.addAll(targetsToBuild);
@@ -126,9 +189,7 @@ public class MinionLocalBuildStateTracker {
     LOG.debug(
         String.format(
             "Returning [%d] targets from [%d] work units for building",
-            targetsToBuild.size(), workUnitsToBuild.size()));
-
-    workUnitsToBuild.clear();
+            targetsToBuild.size(), workUnitsStarted));
 
     return targetsToBuild;
   }
@@ -157,6 +218,7 @@ public class MinionLocalBuildStateTracker {
 
     capacityTracker.returnCapacity();
     workUnitTerminalTargets.remove(target);
+    workUnitsBuilding--;
   }
 
   /** Publishes an event for unexpected cache misses. */
@@ -97,6 +97,7 @@ public class MinionModeRunner extends AbstractDistBuildModeRunner {
       MinionType minionType,
       BuildSlaveRunId buildSlaveRunId,
       CapacityTracker capacityTracker,
+      int workUnitLookahead,
       BuildCompletionChecker buildCompletionChecker,
       long minionPollLoopIntervalMillis,
       MinionBuildProgressTracker minionBuildProgressTracker,
@@ -111,6 +112,7 @@ public class MinionModeRunner extends AbstractDistBuildModeRunner {
         minionType,
         buildSlaveRunId,
         capacityTracker,
+        workUnitLookahead,
         buildCompletionChecker,
         minionPollLoopIntervalMillis,
         minionBuildProgressTracker,
@@ -130,6 +132,7 @@ public class MinionModeRunner extends AbstractDistBuildModeRunner {
       MinionType minionType,
       BuildSlaveRunId buildSlaveRunId,
       CapacityTracker capacityTracker,
+      int workUnitLookahead,
       BuildCompletionChecker buildCompletionChecker,
       long minionPollLoopIntervalMillis,
       MinionBuildProgressTracker minionBuildProgressTracker,
@@ -148,7 +151,8 @@ public class MinionModeRunner extends AbstractDistBuildModeRunner {
     this.buildExecutorService = buildExecutorService;
     this.eventBus = eventBus;
     this.buildTracker =
-        new MinionLocalBuildStateTracker(minionBuildProgressTracker, capacityTracker);
+        new MinionLocalBuildStateTracker(
+            minionBuildProgressTracker, capacityTracker, workUnitLookahead);
 
     LOG.info(
         String.format(
@@ -232,7 +236,10 @@ public class MinionModeRunner extends AbstractDistBuildModeRunner {
     if (reservedCapacity == 0
         && exitCode.get() == ExitCode.SUCCESS
         && targetsToSignal.size() == 0) {
-      return; // Making a request will not move the build forward, so wait a while and try again.
+      // Making a request will not move the build forward, so wait a while and try again.
+      // Queued work units may still be started if a work unit has finished in the meantime.
+      startBuildOfQueuedWorkUnits(minionId);
+      return;
     }
 
     LOG.info(
@@ -250,11 +257,18 @@ public class MinionModeRunner extends AbstractDistBuildModeRunner {
       }
 
       buildTracker.enqueueWorkUnitsForBuildingAndCommitCapacity(response.getWorkUnits());
+      if (response.isSetStolenTargets()) {
+        buildTracker.dropStolenWorkUnits(response.getStolenTargets());
+      }
     } catch (ThriftException ex) {
       handleThriftException(ex);
       return;
     }
 
+    startBuildOfQueuedWorkUnits(minionId);
+  }
+
+  private void startBuildOfQueuedWorkUnits(String minionId) {
     if (!buildTracker.outstandingWorkUnitsToBuild()) {
       return; // Nothing new to build
     }
@@ -21,10 +21,13 @@ import com.facebook.buck.distributed.thrift.MinionType;
 import com.facebook.buck.distributed.thrift.WorkUnit;
 import com.facebook.buck.log.Logger;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +38,13 @@ import java.util.stream.Collectors;
 /**
  * Allocates and keeps track of what BuildTargets are allocated to which Minions. This class is
  * thread safe.
+ *
+ * <p>Minions can be configured to fetch more work units than they can build at once, so that they
+ * don't sit idle between requests. Once the queue runs out of ready work, minions which ask for
+ * more work steal the units other minions haven't started from their backlogs. The targets of
+ * stolen units are handed to their original minion with its next response, so that it drops them.
+ * If it has already started building them by then, whichever minion finishes a target first
+ * completes it.
  */
 public class MinionWorkloadAllocator {
   private static final Logger LOG = Logger.get(MinionWorkloadAllocator.class);
@@ -47,6 +57,20 @@ public class MinionWorkloadAllocator {
   // Maps each target to the work unit that contains it.
   private final Map<String, WorkUnit> workUnitsByTarget = new HashMap<>();
 
+  // Maps each work unit assigned to a minion to that minion.
+  private final Map<WorkUnit, String> minionsByWorkUnit = new IdentityHashMap<>();
+
+  // Work units in which at least one target has finished, and which can't be stolen anymore.
+  private final Set<WorkUnit> startedWorkUnits = Sets.newIdentityHashSet();
+
+  // The number of work units each minion can hold, as of its last request.
+  private final Map<String, Integer> workUnitCapacitiesByMinionId = new HashMap<>();
+
+  // Targets stolen from each minion, which it hasn't been told to drop yet.
+  private final Map<String, List<String>> stolenTargetsByMinionId = new HashMap<>();
+
+  private final Set<String> completedNodes = new HashSet<>();
+
   // These should be immediately re-assigned when capacity becomes available on other minions
   private Queue<WorkUnit> workUnitsFromFailedMinions = new LinkedList<>();
 
@@ -55,11 +79,23 @@ public class MinionWorkloadAllocator {
   private final Map<String, MinionType> minionTypesByMinionId = new HashMap<>();
 
   private final DistBuildTraceTracker chromeTraceTracker;
+  private final int workUnitLookahead;
 
   public MinionWorkloadAllocator(
       BuildTargetsQueue queue, DistBuildTraceTracker chromeTraceTracker) {
+    this(queue, chromeTraceTracker, 0);
+  }
+
+  /**
+   * @param workUnitLookahead the number of work units minions fetch on top of those they can build
+   *     at once. Work is only stolen if this is positive.
+   */
+  public MinionWorkloadAllocator(
+      BuildTargetsQueue queue, DistBuildTraceTracker chromeTraceTracker, int workUnitLookahead) {
+    Preconditions.checkArgument(workUnitLookahead >= 0);
     this.queue = queue;
     this.chromeTraceTracker = chromeTraceTracker;
+    this.workUnitLookahead = workUnitLookahead;
   }
 
   public synchronized boolean isBuildFinished() {
@@ -74,7 +110,8 @@ public class MinionWorkloadAllocator {
     }
 
     if (!workUnitsAssignedToMinions.containsKey(minionId)) {
-      workUnitsAssignedToMinions.put(minionId, new HashSet<>());
+      // Keeps the work units in the order they were assigned.
+      workUnitsAssignedToMinions.put(minionId, new LinkedHashSet<>());
     }
 
     minionTypesByMinionId.put(minionId, minionType);
@@ -87,7 +124,11 @@ public class MinionWorkloadAllocator {
     trySetupMinion(minionId, minionType);
 
     Set<WorkUnit> workUnitsAllocatedToMinion = workUnitsAssignedToMinions.get(minionId);
-    deallocateFinishedNodes(workUnitsAllocatedToMinion, finishedNodes);
+    // Targets in stolen work units may be reported by more than one minion.
+    finishedNodes =
+        finishedNodes.stream().filter(completedNodes::add).collect(Collectors.toList());
+    deallocateFinishedNodes(finishedNodes);
+    workUnitCapacitiesByMinionId.put(minionId, workUnitsAllocatedToMinion.size() + maxWorkUnits);
 
     // First try and re-allocate work units from any minions that have failed recently
     List<WorkUnit> newWorkUnitsForMinion =
@@ -97,8 +138,14 @@ public class MinionWorkloadAllocator {
     maxWorkUnits -= newWorkUnitsForMinion.size();
     newWorkUnitsForMinion.addAll(queue.dequeueZeroDependencyNodes(finishedNodes, maxWorkUnits));
 
+    // If there still is capacity left, steal work units other minions haven't started yet.
+    if (workUnitLookahead > 0) {
+      stealWorkUnits(minionId, maxWorkUnits - newWorkUnitsForMinion.size())
+          .forEach(newWorkUnitsForMinion::add);
+    }
+
     List<String> newNodesForMinion =
-        allocateNewNodes(workUnitsAllocatedToMinion, newWorkUnitsForMinion);
+        allocateNewNodes(minionId, workUnitsAllocatedToMinion, newWorkUnitsForMinion);
 
     LOG.info(
         String.format(
@@ -114,6 +161,15 @@ public class MinionWorkloadAllocator {
     return newWorkUnitsForMinion;
   }
 
+  /**
+   * Returns the targets of work units that were stolen from the given minion since the last call,
+   * so that the minion can drop them.
+   */
+  public synchronized List<String> takeStolenTargets(String minionId) {
+    List<String> stolenTargets = stolenTargetsByMinionId.remove(minionId);
+    return stolenTargets == null ? new ArrayList<>() : stolenTargets;
+  }
+
   /** @return True if minion has been marked as failed previously */
   public synchronized boolean hasMinionFailed(String minionId) {
     return failedMinions.contains(minionId);
@@ -151,6 +207,9 @@ public class MinionWorkloadAllocator {
             minionId, workUnitsAllocatedToMinion.size(), allocatedTargets.size()));
 
     workUnitsAssignedToMinions.remove(minionId);
+    workUnitCapacitiesByMinionId.remove(minionId);
+    stolenTargetsByMinionId.remove(minionId);
+    workUnitsAllocatedToMinion.forEach(minionsByWorkUnit::remove);
     workUnitsFromFailedMinions.addAll(workUnitsAllocatedToMinion);
     nodesAssignedToMinions.removeAll(allocatedTargets);
   }
@@ -188,11 +247,67 @@ public class MinionWorkloadAllocator {
     return reallocatedWorkUnits;
   }
 
+  /**
+   * Takes work units from the backlogs of other minions, starting with the minion with the largest
+   * backlog. A minion's backlog consists of the work units it was most recently assigned, beyond
+   * those it can build at once.
+   */
+  private List<WorkUnit> stealWorkUnits(String minionId, int maxWorkUnits) {
+    List<WorkUnit> stolenWorkUnits = new ArrayList<>();
+    while (stolenWorkUnits.size() < maxWorkUnits) {
+      String victim = null;
+      List<WorkUnit> victimBacklog = new ArrayList<>();
+      for (String otherMinion : workUnitsAssignedToMinions.keySet()) {
+        if (otherMinion.equals(minionId)) {
+          continue;
+        }
+        List<WorkUnit> backlog = getBacklog(otherMinion);
+        if (backlog.size() > victimBacklog.size()) {
+          victim = otherMinion;
+          victimBacklog = backlog;
+        }
+      }
+      if (victim == null) {
+        break;
+      }
+
+      // The most recently assigned work unit is the least likely to have been started.
+      WorkUnit workUnit = victimBacklog.get(victimBacklog.size() - 1);
+      Preconditions.checkState(workUnitsAssignedToMinions.get(victim).remove(workUnit));
+      minionsByWorkUnit.remove(workUnit);
+      stolenTargetsByMinionId
+          .computeIfAbsent(victim, id -> new ArrayList<>())
+          .addAll(workUnit.getBuildTargets());
+      stolenWorkUnits.add(workUnit);
+    }
+
+    if (stolenWorkUnits.size() > 0) {
+      LOG.info("Minion [%s] stole [%d] work units.", minionId, stolenWorkUnits.size());
+    }
+    return stolenWorkUnits;
+  }
+
+  private List<WorkUnit> getBacklog(String minionId) {
+    Set<WorkUnit> workUnits = workUnitsAssignedToMinions.get(minionId);
+    int buildingAtOnce =
+        Math.max(1, workUnitCapacitiesByMinionId.getOrDefault(minionId, 0) - workUnitLookahead);
+    List<WorkUnit> backlog = new ArrayList<>();
+    for (WorkUnit workUnit : workUnits) {
+      if (!startedWorkUnits.contains(workUnit)) {
+        backlog.add(workUnit);
+      }
+    }
+    // Work units are built in the order they were assigned, so the oldest ones are in progress.
+    int backlogSize = Math.min(backlog.size(), workUnits.size() - buildingAtOnce);
+    return backlog.subList(backlog.size() - Math.max(0, backlogSize), backlog.size());
+  }
+
   private List<String> allocateNewNodes(
-      Set<WorkUnit> workUnitsForMinion, List<WorkUnit> newWorkUnitsForMinion) {
+      String minionId, Set<WorkUnit> workUnitsForMinion, List<WorkUnit> newWorkUnitsForMinion) {
     List<String> nodesForMinion = new ArrayList<>();
     for (WorkUnit workUnit : newWorkUnitsForMinion) {
       nodesForMinion.addAll(workUnit.getBuildTargets());
+      minionsByWorkUnit.put(workUnit, minionId);
 
       for (String node : workUnit.getBuildTargets()) {
         workUnitsByTarget.put(node, workUnit);
@@ -204,8 +319,7 @@ public class MinionWorkloadAllocator {
     return nodesForMinion;
   }
 
-  private void deallocateFinishedNodes(
-      Set<WorkUnit> workUnitsForMinion, List<String> finishedNodes) {
+  private void deallocateFinishedNodes(List<String> finishedNodes) {
     nodesAssignedToMinions.removeAll(finishedNodes);
 
     for (String finishedNode : finishedNodes) {
@@ -213,7 +327,21 @@ public class MinionWorkloadAllocator {
         LOG.error(String.format("No work unit could be found for target [%s]", finishedNode));
         continue;
       }
-      WorkUnit workUnitForNode = workUnitsByTarget.get(finishedNode);
+      WorkUnit workUnitForNode = workUnitsByTarget.remove(finishedNode);
+      startedWorkUnits.add(workUnitForNode);
+
+      // The work unit may have been stolen from the minion which finished the node, or its minion
+      // may have failed.
+      String minionId = minionsByWorkUnit.get(workUnitForNode);
+      if (minionId == null) {
+        Preconditions.checkArgument(workUnitForNode.getBuildTargets().remove(finishedNode));
+        if (workUnitForNode.getBuildTargets().isEmpty()) {
+          workUnitsFromFailedMinions.removeIf(workUnit -> workUnit == workUnitForNode);
+          startedWorkUnits.remove(workUnitForNode);
+        }
+        continue;
+      }
+      Set<WorkUnit> workUnitsForMinion = workUnitsAssignedToMinions.get(minionId);
 
       // Important: workUnitForNode must be removed from workUnitsForMinion Set before we modify
       // workUnitForNode, as after modification its hashCode/equals properties will have changed.
@@ -223,6 +351,9 @@ public class MinionWorkloadAllocator {
       if (workUnitForNode.getBuildTargets().size() > 0) {
         // Work unit still has items remaining, so re-add it to Set (using new hashCode)
         workUnitsForMinion.add(workUnitForNode);
+      } else {
+        minionsByWorkUnit.remove(workUnitForNode);
+        startedWorkUnits.remove(workUnitForNode);
       }
     }
   }
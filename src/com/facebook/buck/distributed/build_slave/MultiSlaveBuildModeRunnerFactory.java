@@ -42,6 +42,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
@@ -106,7 +107,8 @@ public class MultiSlaveBuildModeRunnerFactory {
                                 .createBuildTargetsQueue(
                                     topLevelTargetsToBuild,
                                     coordinatorBuildRuleEventsPublisher,
-                                    distBuildConfig.getMostBuildRulesFinishedPercentageThreshold());
+                                    distBuildConfig.getMostBuildRulesFinishedPercentageThreshold(),
+                                    createRuleCostEstimator(distBuildConfig));
                       } catch (Exception e) {
                         LOG.error(e, "Failed to create BuildTargetsQueue.");
                         throw new RuntimeException(e);
@@ -156,7 +158,21 @@ public class MultiSlaveBuildModeRunnerFactory {
         clientBuildId,
         traceUploadUri,
         minionHealthTracker,
-        listenerAndMinionCountProvider);
+        listenerAndMinionCountProvider,
+        distBuildConfig.getMinionWorkUnitLookahead());
+  }
+
+  private static RuleCostEstimator createRuleCostEstimator(DistBuildConfig distBuildConfig) {
+    Optional<Path> ruleCostsFile = distBuildConfig.getRuleCostsFile();
+    if (!ruleCostsFile.isPresent()) {
+      return RuleCostEstimator.UNIFORM;
+    }
+    try {
+      return HistoricRuleCostEstimator.load(ruleCostsFile.get());
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to read the rule costs from [%s].", ruleCostsFile.get());
+      return RuleCostEstimator.UNIFORM;
+    }
   }
 
   /**
@@ -201,6 +217,7 @@ public class MultiSlaveBuildModeRunnerFactory {
         minionType,
         buildSlaveRunId,
         createCapacityTracker(capacityService, distBuildConfig),
+        getMinionWorkUnitLookahead(distBuildConfig),
         checker,
         distBuildConfig.getMinionPollLoopIntervalMillis(),
         minionBuildProgressTracker,
@@ -304,8 +321,15 @@ public class MultiSlaveBuildModeRunnerFactory {
     }
 
     // Otherwise we use have a single minion running on the host
-    // which can use all the available threads.
+    // which can use all the available threads. Work units fetched on top of those are queued
+    // until a thread is available, so there is always work at hand.
     LOG.info("Creating SingleBuildCapacityTracker");
-    return new SingleBuildCapacityTracker(availableBuildCapacity);
+    return new SingleBuildCapacityTracker(
+        availableBuildCapacity + getMinionWorkUnitLookahead(distBuildConfig));
+  }
+
+  /** Work units are only fetched ahead by minions which have the host to themselves. */
+  private static int getMinionWorkUnitLookahead(DistBuildConfig distBuildConfig) {
+    return distBuildConfig.getStackSize() > 1 ? 0 : distBuildConfig.getMinionWorkUnitLookahead();
   }
 }
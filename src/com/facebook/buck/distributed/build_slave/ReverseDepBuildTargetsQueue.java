@@ -25,7 +25,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -39,6 +41,7 @@ public class ReverseDepBuildTargetsQueue implements BuildTargetsQueue {
   private final DistributableBuildGraph distributableBuildGraph;
   private final int totalCacheableNodes;
   private final int mostBuildRulesFinishedPercentageThreshold;
+  private final ImmutableMap<String, Long> criticalPathCosts;
 
   private final Set<String> seenWorkingNodes = new HashSet<>();
   private final Set<String> seenFinishedNodes = new HashSet<>();
@@ -51,8 +54,24 @@ public class ReverseDepBuildTargetsQueue implements BuildTargetsQueue {
   ReverseDepBuildTargetsQueue(
       DistributableBuildGraph distributableBuildGraph,
       int mostBuildRulesFinishedPercentageThreshold) {
+    this(
+        distributableBuildGraph,
+        mostBuildRulesFinishedPercentageThreshold,
+        RuleCostEstimator.UNIFORM);
+  }
+
+  /**
+   * @param costEstimator used to hand out the nodes at the start of the most expensive chains of
+   *     dependents first. If every node costs nothing, nodes are handed out in the order they
+   *     became ready.
+   */
+  ReverseDepBuildTargetsQueue(
+      DistributableBuildGraph distributableBuildGraph,
+      int mostBuildRulesFinishedPercentageThreshold,
+      RuleCostEstimator costEstimator) {
     this.distributableBuildGraph = distributableBuildGraph;
     this.mostBuildRulesFinishedPercentageThreshold = mostBuildRulesFinishedPercentageThreshold;
+    this.criticalPathCosts = distributableBuildGraph.computeCriticalPathCosts(costEstimator);
 
     this.zeroDependencyTargets =
         distributableBuildGraph
@@ -124,9 +143,12 @@ public class ReverseDepBuildTargetsQueue implements BuildTargetsQueue {
       return Lists.newArrayList();
     }
 
+    // The sort is stable, so nodes on equally expensive chains are handed out in arrival order.
+    List<String> nodesByPriority = new ArrayList<>(new LinkedHashSet<>(zeroDependencyTargets));
+    nodesByPriority.sort(Comparator.<String>comparingLong(criticalPathCosts::get).reversed());
+
     List<WorkUnit> newUnitsOfWork = new ArrayList<>();
-    createWorkUnitsStartingAtNodes(
-        new HashSet<>(zeroDependencyTargets), newUnitsOfWork, maxUnitsOfWork);
+    createWorkUnitsStartingAtNodes(nodesByPriority, newUnitsOfWork, maxUnitsOfWork);
 
     if (newUnitsOfWork.size() > 0) {
       LOG.info(String.format("Returning [%s] work units", newUnitsOfWork.size()));
@@ -215,7 +237,7 @@ public class ReverseDepBuildTargetsQueue implements BuildTargetsQueue {
   }
 
   private void createWorkUnitsStartingAtNodes(
-      Set<String> nodes, List<WorkUnit> newUnitsOfWork, int maxUnitsOfWork) {
+      List<String> nodes, List<WorkUnit> newUnitsOfWork, int maxUnitsOfWork) {
     for (String node : nodes) {
       if (newUnitsOfWork.size() >= maxUnitsOfWork) {
         return;
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed.build_slave;
+
+/**
+ * Estimates how long build rules take to build, so that the {@link BuildTargetsQueue} can schedule
+ * the rules at the start of the longest dependency chains first.
+ */
+public interface RuleCostEstimator {
+  /** Every rule costs the same, so dependency chains are ranked by their length. */
+  RuleCostEstimator UNIFORM = target -> 1;
+
+  /** @return the relative cost of building the given target. */
+  long getCost(String target);
+}
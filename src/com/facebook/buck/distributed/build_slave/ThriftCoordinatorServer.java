@@ -128,6 +128,7 @@ public class ThriftCoordinatorServer implements Closeable {
   private final DistBuildService distBuildService;
   private final MinionCountProvider minionCountProvider;
   private final Set<String> deadMinions;
+  private final int workUnitLookahead;
 
   private volatile OptionalInt port;
 
@@ -146,6 +147,33 @@ public class ThriftCoordinatorServer implements Closeable {
       MinionHealthTracker minionHealthTracker,
       DistBuildService distBuildService,
       MinionCountProvider minionCountProvider) {
+    this(
+        port,
+        queue,
+        stampedeId,
+        eventListener,
+        coordinatorBuildRuleEventsPublisher,
+        minionHealthTracker,
+        distBuildService,
+        minionCountProvider,
+        0);
+  }
+
+  /**
+   * @param workUnitLookahead the number of work units minions fetch on top of those they can build
+   *     at once, see {@link MinionWorkloadAllocator}.
+   */
+  public ThriftCoordinatorServer(
+      OptionalInt port,
+      ListenableFuture<BuildTargetsQueue> queue,
+      StampedeId stampedeId,
+      EventListener eventListener,
+      CoordinatorBuildRuleEventsPublisher coordinatorBuildRuleEventsPublisher,
+      MinionHealthTracker minionHealthTracker,
+      DistBuildService distBuildService,
+      MinionCountProvider minionCountProvider,
+      int workUnitLookahead) {
+    this.workUnitLookahead = workUnitLookahead;
     this.eventListener = eventListener;
     this.stampedeId = stampedeId;
     this.coordinatorBuildRuleEventsPublisher = coordinatorBuildRuleEventsPublisher;
@@ -303,6 +331,25 @@ public class ThriftCoordinatorServer implements Closeable {
     return exportChromeTraceIfSuccessInternal(traceFilePath, getExitState(), chromeTraceTracker);
   }
 
+  /**
+   * Exports how long each rule took to build, for {@link HistoricRuleCostEstimator} to schedule
+   * later builds with.
+   */
+  public boolean exportRuleCostsIfSuccess(Path ruleCostsFilePath) {
+    try {
+      Future<ExitState> exitState = getExitState();
+      if (exitState.isDone() && exitState.get().exitCode == 0) {
+        HistoricRuleCostEstimator.write(
+            ruleCostsFilePath, chromeTraceTracker.generateTrace().getRuleCosts());
+        return true;
+      }
+    } catch (InterruptedException | ExecutionException | IOException e) {
+      LOG.error(e, String.format("Failed to export the rule costs to [%s].", ruleCostsFilePath));
+    }
+
+    return false;
+  }
+
   @VisibleForTesting
   static boolean exportChromeTraceIfSuccessInternal(
       Path traceFilePath, Future<ExitState> exitState, DistBuildTraceTracker chromeTraceTracker) {
@@ -326,7 +373,7 @@ public class ThriftCoordinatorServer implements Closeable {
       LOG.info("Switching Coordinator to Active mode now.");
       BuildTargetsQueue queue = queueFuture.get();
       chromeTraceTracker.setBuildGraph(queue.getDistributableBuildGraph());
-      allocator = new MinionWorkloadAllocator(queue, chromeTraceTracker);
+      allocator = new MinionWorkloadAllocator(queue, chromeTraceTracker, workUnitLookahead);
       this.handler =
           new ActiveCoordinatorService(
               allocator, exitCodeFuture, coordinatorBuildRuleEventsPublisher, minionHealthTracker);
@@ -50,6 +50,10 @@ struct GetWorkRequest {
 struct GetWorkResponse {
   1: optional bool continueBuilding;
   2: optional list<WorkUnit> workUnits;
+
+  // Targets of work units previously sent to this minion that were since stolen by other
+  // minions. The minion should drop them if it hasn't started building them yet.
+  3: optional list<string> stolenTargets;
 }
 
 struct ReportMinionAliveRequest {
@@ -28,16 +28,31 @@ import com.google.common.base.Preconditions;
 import com.google.common.eventbus.EventBus;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
 /** Thin wrapper around guava event bus. */
 public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus {
 
+  /** How events are delivered to listeners when posted asynchronously. */
+  public enum DispatchMode {
+    /** All listeners receive events, one after the other, on a single thread. */
+    SINGLE_THREAD,
+    /**
+     * Each listener receives events on a thread of its own, in batches, so that slow listeners
+     * don't hold up the others. Listeners still receive their events in the order they're posted.
+     */
+    PER_LISTENER,
+  }
+
   private static final Logger LOG = Logger.get(BuckEventBus.class);
 
   public static final int DEFAULT_SHUTDOWN_TIMEOUT_MS = 15000;
@@ -52,22 +67,38 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
   private final Supplier<Long> threadIdSupplier;
   private final BuildId buildId;
   private final int shutdownTimeoutMillis;
+  private final boolean perListenerDispatch;
+  private final List<ListenerEventQueue> listenerQueues = new CopyOnWriteArrayList<>();
 
   // TODO(bobyf) remove when printing issue diagnosed
   private final ScheduledExecutorService deadLockDetectorThread;
   private final AtomicReference<Pair<BuckEvent, Long>> currentEvent = new AtomicReference<>();
 
   // synchronization variables to ensure proper shutdown
-  private volatile int activeTasks = 0;
+  private final AtomicInteger activeTasks = new AtomicInteger();
   private final Object lock = new Object();
 
   public DefaultBuckEventBus(Clock clock, BuildId buildId) {
-    this(clock, true, buildId, DEFAULT_SHUTDOWN_TIMEOUT_MS);
+    this(clock, buildId, DispatchMode.SINGLE_THREAD);
+  }
+
+  public DefaultBuckEventBus(Clock clock, BuildId buildId, DispatchMode dispatchMode) {
+    this(clock, true, buildId, DEFAULT_SHUTDOWN_TIMEOUT_MS, dispatchMode);
   }
 
   @VisibleForTesting
   public DefaultBuckEventBus(
       Clock clock, boolean async, BuildId buildId, int shutdownTimeoutMillis) {
+    this(clock, async, buildId, shutdownTimeoutMillis, DispatchMode.SINGLE_THREAD);
+  }
+
+  @VisibleForTesting
+  public DefaultBuckEventBus(
+      Clock clock,
+      boolean async,
+      BuildId buildId,
+      int shutdownTimeoutMillis,
+      DispatchMode dispatchMode) {
     this.clock = clock;
     this.executorService =
         async
@@ -77,13 +108,9 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
     this.deadLockDetectorThread = new ScheduledThreadPoolExecutor(1);
     this.deadLockDetectorThread.schedule(
         () -> {
-          // Assumes Single Threaded event bus dispatching
-          Pair<BuckEvent, Long> current = currentEvent.get();
-          if (current != null
-              && System.currentTimeMillis() - current.getSecond() > DEADLOCK_MONITOR_TIME_MS) {
-            LOG.warn(
-                "Sending event %s took longer than %d ms",
-                current.getFirst(), DEADLOCK_MONITOR_TIME_MS);
+          warnIfSlow(currentEvent.get());
+          for (ListenerEventQueue queue : listenerQueues) {
+            warnIfSlow(queue.getCurrentEvent());
           }
         },
         DEFAULT_SHUTDOWN_TIMEOUT_MS,
@@ -92,14 +119,31 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
     this.threadIdSupplier = DEFAULT_THREAD_ID_SUPPLIER;
     this.buildId = buildId;
     this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    this.perListenerDispatch = async && dispatchMode == DispatchMode.PER_LISTENER;
+  }
+
+  private static void warnIfSlow(@Nullable Pair<BuckEvent, Long> current) {
+    if (current != null
+        && System.currentTimeMillis() - current.getSecond() > DEADLOCK_MONITOR_TIME_MS) {
+      LOG.warn(
+          "Sending event %s took longer than %d ms", current.getFirst(), DEADLOCK_MONITOR_TIME_MS);
+    }
   }
 
   private void dispatch(BuckEvent event) {
-    // keep track the number of active tasks so we can do proper shutdown
-    synchronized (lock) {
-      activeTasks++;
+    if (perListenerDispatch) {
+      for (ListenerEventQueue queue : listenerQueues) {
+        if (queue.accepts(event)) {
+          activeTasks.incrementAndGet();
+          queue.enqueue(event);
+        }
+      }
+      return;
     }
 
+    // keep track the number of active tasks so we can do proper shutdown
+    activeTasks.incrementAndGet();
+
     executorService.submit(
         () -> {
           try {
@@ -108,15 +152,20 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
           } finally {
             currentEvent.set(null);
             // event bus should not throw but just in case wrap with try-finally
-            synchronized (lock) {
-              activeTasks--;
-              // notify about task completion; shutdown may wait for it
-              lock.notifyAll();
-            }
+            onTasksFinished(1);
           }
         });
   }
 
+  private void onTasksFinished(int tasks) {
+    if (tasks > 0 && activeTasks.addAndGet(-tasks) == 0) {
+      // notify about task completion; shutdown may wait for it
+      synchronized (lock) {
+        lock.notifyAll();
+      }
+    }
+  }
+
   @Override
   public void post(BuckEvent event) {
     timestamp(event);
@@ -137,12 +186,31 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
 
   @Override
   public void register(Object object) {
-    eventBus.register(object);
+    if (perListenerDispatch) {
+      listenerQueues.add(
+          new ListenerEventQueue(
+              object,
+              new CommandThreadFactory(BuckEventBus.class.getSimpleName()),
+              this::onTasksFinished));
+    } else {
+      eventBus.register(object);
+    }
   }
 
   @Override
   public void unregister(Object object) {
-    eventBus.unregister(object);
+    if (perListenerDispatch) {
+      for (ListenerEventQueue queue : listenerQueues) {
+        if (queue.getListener() == object) {
+          listenerQueues.remove(queue);
+          queue.discardEvents();
+          return;
+        }
+      }
+      throw new IllegalArgumentException("missing event subscriber for " + object);
+    } else {
+      eventBus.unregister(object);
+    }
   }
 
   @Override
@@ -186,17 +254,29 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
     waitEvents(shutdownTimeoutMillis);
 
     executorService.shutdown();
+    listenerQueues.forEach(ListenerEventQueue::shutdown);
     try {
-      long waitTime = timeoutTime - System.currentTimeMillis();
-      if (waitTime <= 0 || !executorService.awaitTermination(waitTime, TimeUnit.MILLISECONDS)) {
-        LOG.warn(
-            Joiner.on(System.lineSeparator())
-                .join(
-                    "The BuckEventBus failed to shut down within the standard timeout.",
-                    "Your build might have succeeded, but some messages were probably lost.",
-                    "Here's some debugging information:",
-                    executorService.toString()));
-        executorService.shutdownNow();
+      if (perListenerDispatch) {
+        for (ListenerEventQueue queue : listenerQueues) {
+          if (!queue.awaitTermination(timeoutTime - System.currentTimeMillis())) {
+            LOG.warn(
+                "The BuckEventBus failed to deliver events to %s within the standard timeout. "
+                    + "Your build might have succeeded, but some messages were probably lost.",
+                queue.getListener());
+          }
+        }
+      } else {
+        long waitTime = timeoutTime - System.currentTimeMillis();
+        if (waitTime <= 0 || !executorService.awaitTermination(waitTime, TimeUnit.MILLISECONDS)) {
+          LOG.warn(
+              Joiner.on(System.lineSeparator())
+                  .join(
+                      "The BuckEventBus failed to shut down within the standard timeout.",
+                      "Your build might have succeeded, but some messages were probably lost.",
+                      "Here's some debugging information:",
+                      executorService.toString()));
+          executorService.shutdownNow();
+        }
       }
       deadLockDetectorThread.shutdownNow();
     } catch (InterruptedException e) {
@@ -208,7 +288,7 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
   public boolean waitEvents(long timeout) {
     long startWaitTime = System.nanoTime();
     synchronized (lock) {
-      while (activeTasks > 0) {
+      while (activeTasks.get() > 0) {
 
         long waitTime = 0;
         if (timeout > 0) {
@@ -222,7 +302,7 @@ public class DefaultBuckEventBus implements com.facebook.buck.event.BuckEventBus
           lock.wait(waitTime);
         } catch (InterruptedException e) {
           Threads.interruptCurrentThread();
-          return activeTasks == 0;
+          return activeTasks.get() == 0;
         }
       }
     }
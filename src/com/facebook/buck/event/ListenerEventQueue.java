@@ -0,0 +1,220 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import javax.annotation.Nullable;
+
+/**
+ * Delivers events to a single listener on a thread of its own, so that a slow listener only delays
+ * its own events rather than those of every listener.
+ *
+ * <p>Events are queued by the posting threads and delivered by the listener's thread in batches, in
+ * the order they were queued. Events the listener has no {@link Subscribe} method for are never
+ * queued.
+ */
+class ListenerEventQueue {
+
+  private static final Logger LOG = Logger.get(ListenerEventQueue.class);
+
+  /** The maximum number of events taken off the queue at once. */
+  private static final int MAX_BATCH_SIZE = 1024;
+
+  private static final Object STOP = new Object();
+
+  private final Object listener;
+  private final EventBus eventBus;
+  private final SubscribedTypes subscribedTypes;
+  private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+  private final ConcurrentMap<Class<?>, Boolean> acceptedTypes = new ConcurrentHashMap<>();
+  private final AtomicReference<Pair<BuckEvent, Long>> currentEvent = new AtomicReference<>();
+  private final IntConsumer onDelivered;
+  private final Thread thread;
+
+  private volatile boolean discarding = false;
+
+  /**
+   * @param onDelivered called with the number of events taken off the queue after each batch, once
+   *     they have been delivered or discarded.
+   */
+  ListenerEventQueue(Object listener, ThreadFactory threadFactory, IntConsumer onDelivered) {
+    this.listener = listener;
+    this.eventBus = new EventBus("buck-build-events");
+    this.eventBus.register(listener);
+    this.subscribedTypes = SubscribedTypes.of(listener.getClass());
+    this.onDelivered = onDelivered;
+    this.thread = threadFactory.newThread(this::run);
+    this.thread.setName(thread.getName() + "-" + listener.getClass().getSimpleName());
+    this.thread.start();
+  }
+
+  Object getListener() {
+    return listener;
+  }
+
+  /** @return whether the listener subscribes to the event, and so whether it has to be queued. */
+  boolean accepts(BuckEvent event) {
+    return acceptedTypes.computeIfAbsent(event.getClass(), subscribedTypes::accepts);
+  }
+
+  void enqueue(BuckEvent event) {
+    queue.add(event);
+  }
+
+  /** @return the event being delivered and the time its delivery started, if any. */
+  @Nullable
+  Pair<BuckEvent, Long> getCurrentEvent() {
+    return currentEvent.get();
+  }
+
+  /**
+   * Stops delivering events to the listener, including those which are already queued. The thread
+   * keeps draining the queue until {@link #shutdown()}, as events may still be queued by threads
+   * which haven't noticed the listener was unregistered.
+   */
+  void discardEvents() {
+    discarding = true;
+  }
+
+  /** Stops the thread once it has delivered the events queued so far. */
+  void shutdown() {
+    queue.add(STOP);
+  }
+
+  /**
+   * Waits for the thread to deliver the event it's currently delivering, and interrupts it if it
+   * doesn't within the given time.
+   *
+   * @return whether the thread terminated in time.
+   */
+  boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+    thread.join(Math.max(1, timeoutMillis));
+    if (thread.isAlive()) {
+      thread.interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  private void run() {
+    List<Object> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+      int events = 0;
+      boolean stop = false;
+      for (Object event : batch) {
+        if (event == STOP) {
+          stop = true;
+          continue;
+        }
+        events++;
+        if (!discarding) {
+          deliver((BuckEvent) event);
+        }
+      }
+      batch.clear();
+      onDelivered.accept(events);
+
+      if (stop) {
+        // Events may still have been queued while this thread was stopping.
+        queue.drainTo(batch);
+        batch.remove(STOP);
+        onDelivered.accept(batch.size());
+        return;
+      }
+    }
+  }
+
+  private void deliver(BuckEvent event) {
+    try {
+      currentEvent.set(new Pair<>(event, System.currentTimeMillis()));
+      eventBus.post(event);
+    } catch (RuntimeException | Error e) {
+      // The event bus only rethrows errors, but they shouldn't stop the remaining events from being
+      // delivered, or waiting for them from ever returning.
+      LOG.error(e, "Failed to deliver %s to %s", event, listener);
+    } finally {
+      currentEvent.set(null);
+    }
+  }
+
+  /** The parameter types of the {@link Subscribe} methods of a listener class. */
+  private static class SubscribedTypes {
+    private final Set<Class<?>> types;
+
+    private SubscribedTypes(Set<Class<?>> types) {
+      this.types = types;
+    }
+
+    static SubscribedTypes of(Class<?> listenerClass) {
+      Set<Class<?>> types = new HashSet<>();
+      Set<Class<?>> visited = new HashSet<>();
+      Deque<Class<?>> toVisit = new ArrayDeque<>();
+      toVisit.add(listenerClass);
+      while (!toVisit.isEmpty()) {
+        Class<?> clazz = toVisit.remove();
+        if (!visited.add(clazz)) {
+          continue;
+        }
+        for (Method method : clazz.getDeclaredMethods()) {
+          if (method.isAnnotationPresent(Subscribe.class) && method.getParameterCount() == 1) {
+            types.add(method.getParameterTypes()[0]);
+          }
+        }
+        if (clazz.getSuperclass() != null) {
+          toVisit.add(clazz.getSuperclass());
+        }
+        for (Class<?> iface : clazz.getInterfaces()) {
+          toVisit.add(iface);
+        }
+      }
+      return new SubscribedTypes(types);
+    }
+
+    boolean accepts(Class<?> eventType) {
+      for (Class<?> type : types) {
+        if (type.isAssignableFrom(eventType)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
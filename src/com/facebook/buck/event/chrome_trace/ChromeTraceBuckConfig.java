@@ -23,10 +23,20 @@ import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.config.ConfigView;
 import com.facebook.buck.event.LogUploadMode;
 import com.facebook.buck.util.environment.NetworkInfo;
+import com.facebook.buck.util.trace.CompactChromeTrace;
 import java.net.URI;
 import java.util.Optional;
 
 public class ChromeTraceBuckConfig implements ConfigView<BuckConfig> {
+
+  /** The format traces are written in. */
+  public enum TraceFormat {
+    /** The Chrome JSON array format, in ".trace" files. */
+    JSON,
+    /** The compact binary format of {@link CompactChromeTrace}, in ".btrace" files. */
+    COMPACT,
+  }
+
   private static final String DEFAULT_MAX_TRACES = "25";
 
   private static final String LOG_SECTION = "log";
@@ -55,6 +65,12 @@ public class ChromeTraceBuckConfig implements ConfigView<BuckConfig> {
     return delegate.getBooleanValue(LOG_SECTION, "compress_traces", false);
   }
 
+  public TraceFormat getTraceFormat() {
+    return delegate
+        .getEnum(LOG_SECTION, "chrome_trace_format", TraceFormat.class)
+        .orElse(TraceFormat.JSON);
+  }
+
   /** Get URL to upload trace if the config is enabled. */
   public Optional<URI> getTraceUploadUriIfEnabled() {
     if (!getShouldUploadBuildTraces()) {
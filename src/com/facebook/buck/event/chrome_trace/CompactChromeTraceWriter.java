@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.chrome_trace;
+
+import com.facebook.buck.util.trace.CompactChromeTrace;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes Chrome trace events in the compact binary format.
+ *
+ * @see CompactChromeTrace
+ */
+public class CompactChromeTraceWriter implements ChromeTraceEventWriter {
+  private final CompactChromeTrace.Writer writer;
+
+  public CompactChromeTraceWriter(OutputStream traceStream) throws IOException {
+    this.writer = new CompactChromeTrace.Writer(traceStream);
+  }
+
+  @Override
+  public void writeStart() {}
+
+  @Override
+  public void writeEvent(ChromeTraceEvent chromeTraceEvent) throws IOException {
+    writer.writeEvent(
+        chromeTraceEvent.getCategory(),
+        chromeTraceEvent.getName(),
+        chromeTraceEvent.getPhase().getPhase(),
+        chromeTraceEvent.getProcessId(),
+        chromeTraceEvent.getThreadId(),
+        chromeTraceEvent.getMicroTime(),
+        chromeTraceEvent.getMicroThreadUserTime(),
+        chromeTraceEvent.getArgs() == null ? ImmutableMap.of() : chromeTraceEvent.getArgs());
+  }
+
+  @Override
+  public void writeEnd() {}
+
+  /** Terminates the trace, and closes the underlying stream. */
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+}
@@ -39,7 +39,9 @@ import com.facebook.buck.event.UninstallEvent;
 import com.facebook.buck.event.chrome_trace.ChromeTraceBuckConfig;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent;
 import com.facebook.buck.event.chrome_trace.ChromeTraceEvent.Phase;
+import com.facebook.buck.event.chrome_trace.ChromeTraceEventWriter;
 import com.facebook.buck.event.chrome_trace.ChromeTraceWriter;
+import com.facebook.buck.event.chrome_trace.CompactChromeTraceWriter;
 import com.facebook.buck.io.WatchmanOverflowEvent;
 import com.facebook.buck.io.file.PathListing;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
@@ -60,6 +62,7 @@ import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.perf.PerfStatsTracking;
 import com.facebook.buck.util.perf.ProcessTracker;
 import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.trace.CompactChromeTrace;
 import com.facebook.buck.util.trace.uploader.launcher.UploaderLauncher;
 import com.facebook.buck.util.trace.uploader.types.CompressionType;
 import com.facebook.buck.util.unit.SizeUnit;
@@ -74,12 +77,15 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.Subscribe;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashSet;
@@ -93,6 +99,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 /** Logs events to a json file formatted to be viewed in Chrome Trace View (chrome://tracing). */
 public class ChromeTraceBuildListener implements BuckEventListener {
@@ -119,7 +126,7 @@ public class ChromeTraceBuildListener implements BuckEventListener {
   private final ThreadLocal<SimpleDateFormat> dateFormat;
   private final Path tracePath;
   private final OutputStream traceStream;
-  private final ChromeTraceWriter chromeTraceWriter;
+  private final ChromeTraceEventWriter chromeTraceWriter;
   private final Path logDirectoryPath;
   private final ChromeTraceBuckConfig config;
   private final Set<Long> threadNamesRecorded = new HashSet<>();
@@ -172,7 +179,10 @@ public class ChromeTraceBuildListener implements BuckEventListener {
     TracePathAndStream tracePathAndStream = createPathAndStream(invocationInfo.getBuildId());
     this.tracePath = tracePathAndStream.getPath();
     this.traceStream = tracePathAndStream.getStream();
-    this.chromeTraceWriter = new ChromeTraceWriter(this.traceStream);
+    this.chromeTraceWriter =
+        config.getTraceFormat() == ChromeTraceBuckConfig.TraceFormat.COMPACT
+            ? new CompactChromeTraceWriter(this.traceStream)
+            : new ChromeTraceWriter(this.traceStream);
     this.chromeTraceWriter.writeStart();
     addProcessMetadataEvent(invocationInfo);
     addProjectFilesystemDelegateMetadataEvent(projectFilesystem);
@@ -219,7 +229,7 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       for (Path path :
           PathListing.listMatchingPathsWithFilters(
               traceDirectory,
-              "build.*.trace",
+              "build.*.{trace,btrace}",
               PathListing.GET_PATH_MODIFIED_TIME,
               PathListing.FilterMode.EXCLUDE,
               OptionalInt.of(config.getMaxTraces()),
@@ -233,7 +243,8 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   private TracePathAndStream createPathAndStream(BuildId buildId) {
     String filenameTime = dateFormat.get().format(new Date(clock.currentTimeMillis()));
-    String traceName = String.format("build.%s.%s.trace", filenameTime, buildId);
+    String traceName =
+        String.format("build.%s.%s%s", filenameTime, buildId, getTraceExtension());
     if (config.getCompressTraces()) {
       traceName = traceName + ".gz";
     }
@@ -267,7 +278,7 @@ public class ChromeTraceBuildListener implements BuckEventListener {
     traceStream.close();
     uploadTraceIfConfigured(buildId);
 
-    String symlinkName = config.getCompressTraces() ? "build.trace.gz" : "build.trace";
+    String symlinkName = "build" + getTraceExtension() + (config.getCompressTraces() ? ".gz" : "");
     Path symlinkPath = projectFilesystem.getBuckPaths().getLogDir().resolve(symlinkName);
     projectFilesystem.createSymLink(
         projectFilesystem.resolve(symlinkPath), projectFilesystem.resolve(tracePath), true);
@@ -934,13 +945,31 @@ public class ChromeTraceBuildListener implements BuckEventListener {
             });
   }
 
-  private void uploadTraceIfConfigured(BuildId buildId) {
+  private String getTraceExtension() {
+    return config.getTraceFormat() == ChromeTraceBuckConfig.TraceFormat.COMPACT
+        ? CompactChromeTrace.EXTENSION
+        : ".trace";
+  }
+
+  private void uploadTraceIfConfigured(BuildId buildId) throws IOException {
     Optional<URI> traceUploadUri = config.getTraceUploadUriIfEnabled();
     if (!traceUploadUri.isPresent()) {
       return;
     }
 
     Path fullPath = projectFilesystem.resolve(tracePath);
+    if (config.getTraceFormat() == ChromeTraceBuckConfig.TraceFormat.COMPACT) {
+      // The trace is uploaded as JSON, which is what the server expects.
+      Path jsonPath =
+          projectFilesystem.resolve(logDirectoryPath.resolve("upload-build-trace.json"));
+      try (InputStream input = Files.newInputStream(fullPath);
+          InputStream json =
+              CompactChromeTrace.toJson(
+                  config.getCompressTraces() ? new GZIPInputStream(input) : input)) {
+        Files.copy(json, jsonPath, StandardCopyOption.REPLACE_EXISTING);
+      }
+      fullPath = jsonPath;
+    }
     Path logFile = projectFilesystem.resolve(logDirectoryPath.resolve("upload-build-trace.log"));
 
     UploaderLauncher.uploadInBackground(
@@ -26,8 +26,11 @@ import com.facebook.buck.artifact_cache.ArtifactCacheEvent;
 import com.facebook.buck.artifact_cache.CacheCountersSummary;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.CacheTierFetchEvent;
+import com.facebook.buck.artifact_cache.CacheTierStats;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode.CacheType;
 import com.facebook.buck.core.build.event.BuildRuleEvent;
 import com.facebook.buck.core.model.BuildId;
 import com.facebook.buck.event.BuckEventListener;
@@ -49,6 +52,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.Subscribe;
@@ -63,6 +67,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 
 public class MachineReadableLoggerListener implements BuckEventListener {
@@ -83,6 +88,8 @@ public class MachineReadableLoggerListener implements BuckEventListener {
   private AtomicInteger cacheMisses = new AtomicInteger(0);
   private AtomicInteger cacheIgnores = new AtomicInteger(0);
   private AtomicInteger localKeyUnchangedHits = new AtomicInteger(0);
+  private ConcurrentMap<CacheType, CacheTierCounters> cacheTierCounters =
+      Maps.newConcurrentMap();
 
   @Nullable private PerfTimesStats latestPerfTimesStats;
 
@@ -209,6 +216,13 @@ public class MachineReadableLoggerListener implements BuckEventListener {
     }
   }
 
+  @Subscribe
+  public void onCacheTierFetchEvent(CacheTierFetchEvent event) {
+    cacheTierCounters
+        .computeIfAbsent(event.getTier(), tier -> new CacheTierCounters())
+        .record(event);
+  }
+
   private Path getLogFilePath() {
     return filesystem
         .resolve(info.getLogDirectoryPath())
@@ -247,16 +261,23 @@ public class MachineReadableLoggerListener implements BuckEventListener {
                 }
                 writeToLogImpl(
                     PREFIX_CACHE_STATS,
-                    CacheCountersSummary.of(
-                        cacheModeHits,
-                        cacheModeErrors,
-                        cacheModeHits.values().stream().mapToInt(AtomicInteger::get).sum(),
-                        cacheModeErrors.values().stream().mapToInt(AtomicInteger::get).sum(),
-                        cacheMisses.get(),
-                        cacheIgnores.get(),
-                        localKeyUnchangedHits.get(),
-                        cacheUploadSuccessCount,
-                        cacheUploadFailureCount));
+                    CacheCountersSummary.builder()
+                        .setCacheHitsPerMode(cacheModeHits)
+                        .setCacheErrorsPerMode(cacheModeErrors)
+                        .setTotalCacheHits(
+                            cacheModeHits.values().stream().mapToInt(AtomicInteger::get).sum())
+                        .setTotalCacheErrors(
+                            cacheModeErrors.values().stream().mapToInt(AtomicInteger::get).sum())
+                        .setTotalCacheMisses(cacheMisses.get())
+                        .setTotalCacheIgnores(cacheIgnores.get())
+                        .setTotalCacheLocalKeyUnchangedHits(localKeyUnchangedHits.get())
+                        .setSuccessUploadCount(cacheUploadSuccessCount)
+                        .setFailureUploadCount(cacheUploadFailureCount)
+                        .setCacheTierStats(
+                            ImmutableMap.copyOf(
+                                Maps.transformValues(
+                                    cacheTierCounters, CacheTierCounters::toStats)))
+                        .build());
 
                 outputStream.write(
                     String.format(
@@ -278,4 +299,38 @@ public class MachineReadableLoggerListener implements BuckEventListener {
       LOG.error(error);
     }
   }
+
+  /** Running totals for one tier of the tiered artifact cache. */
+  private static class CacheTierCounters {
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+
+    void record(CacheTierFetchEvent event) {
+      if (event.getResultType().isSuccess()) {
+        hits.incrementAndGet();
+      } else if (event.getResultType() == CacheResultType.ERROR) {
+        errors.incrementAndGet();
+      } else {
+        misses.incrementAndGet();
+      }
+      totalLatencyMillis.addAndGet(event.getLatencyMillis());
+    }
+
+    CacheTierStats toStats() {
+      int hitCount = hits.get();
+      int missCount = misses.get();
+      int errorCount = errors.get();
+      int lookups = hitCount + missCount + errorCount;
+      long latency = totalLatencyMillis.get();
+      return CacheTierStats.of(
+          hitCount,
+          missCount,
+          errorCount,
+          lookups == 0 ? 0 : (double) hitCount / lookups,
+          latency,
+          lookups == 0 ? 0 : latency / lookups);
+    }
+  }
 }
@@ -35,6 +35,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
@@ -44,6 +46,8 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 public class ArtifactCacheHandler extends AbstractHandler {
   private static final Logger LOG = Logger.get(ArtifactCacheHandler.class);
 
+  private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
   private final ProjectFilesystem projectFilesystem;
   private Optional<ArtifactCache> artifactCache;
 
@@ -118,6 +122,10 @@ public class ArtifactCacheHandler extends AbstractHandler {
                   return projectFilesystem.newFileInputStream(tempFinal);
                 }
               });
+      Optional<String> range = Optional.ofNullable(baseRequest.getHeader("Range"));
+      if (range.isPresent()) {
+        return writeRange(range.get(), fetchResponse, response);
+      }
       fetchResponse.write(response.getOutputStream());
       response.setContentLengthLong(fetchResponse.getContentLength());
       return HttpServletResponse.SC_OK;
@@ -128,6 +136,39 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
   }
 
+  /**
+   * Writes the part of the response requested by a single range {@code Range} header, as used by
+   * chunked fetches. Other ranges are ignored, in which case the whole response is written.
+   */
+  private static int writeRange(
+      String range,
+      HttpArtifactCacheBinaryProtocol.FetchResponse fetchResponse,
+      HttpServletResponse response)
+      throws IOException {
+    long contentLength = fetchResponse.getContentLength();
+    Matcher matcher = RANGE_PATTERN.matcher(range.trim());
+    if (!matcher.matches()) {
+      fetchResponse.write(response.getOutputStream());
+      response.setContentLengthLong(contentLength);
+      return HttpServletResponse.SC_OK;
+    }
+    long start = Long.parseLong(matcher.group(1));
+    long end =
+        matcher.group(2).isEmpty()
+            ? contentLength - 1
+            : Math.min(Long.parseLong(matcher.group(2)), contentLength - 1);
+    if (start >= contentLength || end < start) {
+      response.setHeader("Content-Range", "bytes */" + contentLength);
+      return HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+    }
+    // The status and headers have to be set before the body, which may commit them.
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setHeader("Content-Range", String.format("bytes %d-%d/%d", start, end, contentLength));
+    response.setContentLengthLong(end - start + 1);
+    fetchResponse.writeRange(response.getOutputStream(), start, end - start + 1);
+    return HttpServletResponse.SC_PARTIAL_CONTENT;
+  }
+
   private int handlePut(Request baseRequest, HttpServletResponse response) throws IOException {
     if (!artifactCache.isPresent()) {
       response.getWriter().write("Serving local cache is disabled for this instance.");
@@ -17,7 +17,9 @@
 package com.facebook.buck.io;
 
 import com.facebook.buck.core.util.immutables.BuckStyleTuple;
+import com.google.common.collect.ImmutableSet;
 import java.nio.file.Path;
+import java.util.Optional;
 import org.immutables.value.Value;
 
 public interface WatchmanEvent {
@@ -25,13 +27,21 @@ public interface WatchmanEvent {
   Path getCellPath();
 }
 
-@Value.Immutable(copy = false, builder = false)
+@Value.Immutable(copy = true, builder = false)
 @BuckStyleTuple
 abstract class AbstractWatchmanOverflowEvent implements WatchmanEvent {
   @Override
   public abstract Path getCellPath();
 
   public abstract String getReason();
+
+  /**
+   * Paths, relative to the cell path returned by {@link #getCellPath()}, under which all the
+   * changes that caused the overflow happened. Empty if the changes are unknown, in which case
+   * everything under the cell path should be considered changed.
+   */
+  @Value.Parameter(false)
+  public abstract Optional<ImmutableSet<Path>> getChangedPaths();
 }
 
 @Value.Immutable(copy = false, builder = false)
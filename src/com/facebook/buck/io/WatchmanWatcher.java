@@ -38,6 +38,8 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -78,6 +80,13 @@ public class WatchmanWatcher {
    */
   private static final int OVERFLOW_THRESHOLD = 10000;
 
+  /**
+   * The maximum number of path prefixes attached to an overflow caused by too many changes.
+   * Subscribers invalidate everything under those prefixes instead of everything under the cell,
+   * so that e.g. a branch switch touching a few directories does not force a full rehash.
+   */
+  private static final int MAX_OVERFLOW_PREFIXES = 1000;
+
   /** Attach changed files to the perf trace, if there aren't too many. */
   private static final int TRACE_CHANGES_THRESHOLD = 10;
 
@@ -372,7 +381,9 @@ public class WatchmanWatcher {
                 "Posting overflow event: too many files changed: %d > %d",
                 files.size(), OVERFLOW_THRESHOLD);
             postWatchEvent(
-                buckEventBus, WatchmanOverflowEvent.of(cellPath, "Too many files changed."));
+                buckEventBus,
+                WatchmanOverflowEvent.of(cellPath, "Too many files changed.")
+                    .withChangedPaths(getChangedPaths(files)));
             filesHaveChanged.set(true);
             return;
           }
@@ -432,6 +443,62 @@ public class WatchmanWatcher {
     }
   }
 
+  private static Optional<ImmutableSet<Path>> getChangedPaths(List<Map<String, Object>> files) {
+    List<Path> paths = new ArrayList<>(files.size());
+    for (Map<String, Object> file : files) {
+      String fileName = (String) file.get("name");
+      if (fileName == null) {
+        return Optional.empty();
+      }
+      paths.add(Paths.get(fileName));
+    }
+    return coalesceChangedPaths(paths, MAX_OVERFLOW_PREFIXES);
+  }
+
+  /**
+   * Coalesces changed paths into at most {@code maxPrefixes} path prefixes covering all of them.
+   * Paths are truncated to the deepest common depth that keeps the number of distinct prefixes
+   * within the limit, and prefixes nested under other prefixes are dropped.
+   *
+   * @return the prefixes, or empty if even the top-level directories exceed the limit.
+   */
+  @VisibleForTesting
+  static Optional<ImmutableSet<Path>> coalesceChangedPaths(
+      Collection<Path> paths, int maxPrefixes) {
+    int maxDepth = 0;
+    for (Path path : paths) {
+      maxDepth = Math.max(maxDepth, path.getNameCount());
+    }
+    for (int depth = maxDepth; depth > 0; depth--) {
+      Set<Path> prefixes = new HashSet<>();
+      for (Path path : paths) {
+        prefixes.add(path.getNameCount() > depth ? path.subpath(0, depth) : path);
+        if (prefixes.size() > maxPrefixes) {
+          break;
+        }
+      }
+      if (prefixes.size() <= maxPrefixes) {
+        ImmutableSet.Builder<Path> builder = ImmutableSet.builder();
+        for (Path prefix : prefixes) {
+          if (!hasAncestorIn(prefix, prefixes)) {
+            builder.add(prefix);
+          }
+        }
+        return Optional.of(builder.build());
+      }
+    }
+    return Optional.empty();
+  }
+
+  private static boolean hasAncestorIn(Path path, Set<Path> paths) {
+    for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+      if (paths.contains(parent)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private void postWatchEvent(BuckEventBus eventBus, WatchmanEvent event) {
     LOG.warn("Posting WatchEvent: %s", event);
     fileChangeEventBus.post(event);
@@ -87,6 +87,7 @@ public class JarDirectoryStep implements Step {
             .setShouldDisallowAllDuplicates(parameters.getDisallowAllDuplicates())
             .setShouldHashEntries(parameters.getHashEntries())
             .setRemoveEntryPredicate(parameters.getRemoveEntryPredicate())
+            .setCompressionThreads(Math.max(1, context.getConcurrencyLimit().threadLimit))
             .createJarFile(filesystem.resolve(parameters.getJarPath())));
   }
 }
@@ -29,6 +29,7 @@ import com.facebook.buck.util.concurrent.AutoCloseableReadWriteUpdateLock;
 import com.facebook.buck.util.json.ObjectMappers;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
@@ -37,7 +38,11 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.HashMap;
@@ -54,6 +59,9 @@ class DaemonicCellState {
 
   private static final Logger LOG = Logger.get(DaemonicCellState.class);
 
+  private static final TypeReference<ImmutableSet<Map<String, Object>>> RAW_NODES_TYPE =
+      new TypeReference<ImmutableSet<Map<String, Object>>>() {};
+
   /**
    * Cache of {@link BuildTarget} to some computed value at the {@link Cell} bases
    *
@@ -102,6 +110,14 @@ class DaemonicCellState {
 
   @GuardedBy("rawAndComputedNodesLock")
   private final ConcurrentMapCache<Path, ImmutableSet<Map<String, Object>>> allRawNodes;
+
+  /**
+   * Raw nodes restored from a {@link ParserStateSnapshot}, as JSON, which are moved to {@link
+   * #allRawNodes} once decoded the first time they are looked up.
+   */
+  @GuardedBy("rawAndComputedNodesLock")
+  private final Map<Path, ByteBuffer> serializedRawNodes;
+
   // Tracks all targets in `allRawNodes`.  Used to verify that every target in `allComputedNodes`
   // is also in `allRawNodes`, as we use the latter for bookkeeping invalidations.
   @GuardedBy("rawAndComputedNodesLock")
@@ -122,6 +138,7 @@ class DaemonicCellState {
     this.targetsCornucopia = HashMultimap.create();
     this.buildFileEnv = new HashMap<>();
     this.allRawNodes = new ConcurrentMapCache<>(parsingThreads);
+    this.serializedRawNodes = new HashMap<>();
     this.allRawNodeTargets = new HashSet<>();
     this.typedNodeCaches = Maps.newConcurrentMap();
     this.rawAndComputedNodesLock = new AutoCloseableReadWriteUpdateLock();
@@ -158,8 +175,41 @@ class DaemonicCellState {
   }
 
   Optional<ImmutableSet<Map<String, Object>>> lookupRawNodes(Path buildFile) {
+    ByteBuffer serialized;
     try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
-      return Optional.ofNullable(allRawNodes.getIfPresent(buildFile));
+      ImmutableSet<Map<String, Object>> rawNodes = allRawNodes.getIfPresent(buildFile);
+      serialized = rawNodes == null ? serializedRawNodes.get(buildFile) : null;
+      if (serialized == null) {
+        return Optional.ofNullable(rawNodes);
+      }
+    }
+
+    // Decode outside of the lock, as it's by far the most expensive part of restoring raw nodes.
+    ImmutableSet<Map<String, Object>> decoded;
+    try {
+      decoded =
+          ObjectMappers.READER
+              .forType(RAW_NODES_TYPE)
+              .readValue(new ByteBufferBackedInputStream(serialized.duplicate()));
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to decode restored raw nodes of %s, parsing it again", buildFile);
+      invalidatePath(buildFile);
+      return Optional.empty();
+    }
+
+    try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
+      // The build file may have been invalidated, or decoded by another thread, in the meantime.
+      if (!serializedRawNodes.remove(buildFile, serialized)) {
+        return Optional.ofNullable(allRawNodes.getIfPresent(buildFile));
+      }
+      ImmutableSet<Map<String, Object>> updated =
+          allRawNodes.putIfAbsentAndGet(buildFile, decoded);
+      for (Map<String, Object> node : updated) {
+        allRawNodeTargets.add(
+            RawNodeParsePipeline.parseBuildTargetFromRawRule(
+                cellRoot, cellCanonicalName, node, buildFile));
+      }
+      return Optional.of(updated);
     }
   }
 
@@ -169,6 +219,7 @@ class DaemonicCellState {
       ImmutableSet<Path> dependentsOfEveryNode,
       ImmutableMap<String, Optional<String>> env) {
     try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
+      serializedRawNodes.remove(buildFile);
       ImmutableSet<Map<String, Object>> updated =
           allRawNodes.putIfAbsentAndGet(buildFile, withoutMetaIncludes);
       for (Map<String, Object> node : updated) {
@@ -208,6 +259,9 @@ class DaemonicCellState {
         }
         allRawNodes.invalidate(path);
       }
+      // Targets of raw nodes which haven't been decoded aren't tracked yet, so there's nothing else
+      // to invalidate for them.
+      serializedRawNodes.remove(path);
 
       // We may have been given a file that other build files depend on. Iteratively remove those.
       Iterable<Path> dependents = buildFileDependents.get(path);
@@ -257,12 +311,21 @@ class DaemonicCellState {
     Map<String, String> result = new HashMap<>();
     Path root = getCellRoot();
     ObjectMapper objectMapper = new ObjectMapper();
-    for (Path path : allRawNodes.keySet()) {
-      ImmutableSet<Map<String, Object>> v = allRawNodes.getIfPresent(path);
-      if (v != null) {
-        result.put(root.relativize(path).toString(), objectMapper.writeValueAsString(v));
+    Map<Path, ByteBuffer> serialized;
+    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      serialized = new HashMap<>(serializedRawNodes);
+      for (Path path : allRawNodes.keySet()) {
+        ImmutableSet<Map<String, Object>> v = allRawNodes.getIfPresent(path);
+        if (v != null) {
+          result.put(root.relativize(path).toString(), objectMapper.writeValueAsString(v));
+        }
       }
     }
+    serialized.forEach(
+        (path, json) ->
+            result.put(
+                root.relativize(path).toString(),
+                StandardCharsets.UTF_8.decode(json.duplicate()).toString()));
     return result;
   }
 
@@ -316,6 +379,100 @@ class DaemonicCellState {
     return result;
   }
 
+  /** Writes the state of the cell to a snapshot, see {@link ParserStateSnapshot}. */
+  void writeSnapshot(ParserStateSnapshot.Writer writer) throws IOException {
+    DataOutputStream header = writer.getHeader();
+    Path root = getCellRoot();
+    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      Map<Path, Collection<Path>> dependents = buildFileDependents.asMap();
+      header.writeInt(dependents.size());
+      for (Map.Entry<Path, Collection<Path>> entry : dependents.entrySet()) {
+        ParserStateSnapshot.writeString(header, root.relativize(entry.getKey()).toString());
+        header.writeInt(entry.getValue().size());
+        for (Path dependent : entry.getValue()) {
+          ParserStateSnapshot.writeString(header, root.relativize(dependent).toString());
+        }
+      }
+
+      header.writeInt(buildFileEnv.size());
+      for (Map.Entry<Path, ImmutableMap<String, Optional<String>>> entry :
+          buildFileEnv.entrySet()) {
+        ParserStateSnapshot.writeString(header, root.relativize(entry.getKey()).toString());
+        header.writeInt(entry.getValue().size());
+        for (Map.Entry<String, Optional<String>> property : entry.getValue().entrySet()) {
+          ParserStateSnapshot.writeString(header, property.getKey());
+          header.writeBoolean(property.getValue().isPresent());
+          if (property.getValue().isPresent()) {
+            ParserStateSnapshot.writeString(header, property.getValue().get());
+          }
+        }
+      }
+
+      Map<Path, ByteBuffer> rawNodes = new HashMap<>(serializedRawNodes);
+      ObjectMapper objectMapper = new ObjectMapper();
+      for (Path path : allRawNodes.keySet()) {
+        ImmutableSet<Map<String, Object>> v = allRawNodes.getIfPresent(path);
+        if (v != null) {
+          rawNodes.put(path, ByteBuffer.wrap(objectMapper.writeValueAsBytes(v)));
+        }
+      }
+      header.writeInt(rawNodes.size());
+      for (Map.Entry<Path, ByteBuffer> entry : rawNodes.entrySet()) {
+        ByteBuffer json = entry.getValue().duplicate();
+        ParserStateSnapshot.writeString(header, root.relativize(entry.getKey()).toString());
+        header.writeInt(json.remaining());
+        header.writeLong(writer.writeData(json));
+      }
+    }
+  }
+
+  /**
+   * Restores the state of a cell written by {@link #writeSnapshot(ParserStateSnapshot.Writer)}.
+   * Raw nodes are only decoded when they are first looked up.
+   */
+  static DaemonicCellState readSnapshot(
+      ParserStateSnapshot.Reader reader, Cell cell, int parsingThreads) throws IOException {
+    DaemonicCellState daemonicCellState = new DaemonicCellState(cell, parsingThreads);
+    DataInputStream header = reader.getHeader();
+    Path root = cell.getRoot();
+
+    int dependentsCount = header.readInt();
+    for (int i = 0; i < dependentsCount; i++) {
+      Path key = root.resolve(ParserStateSnapshot.readString(header));
+      int valuesCount = header.readInt();
+      for (int j = 0; j < valuesCount; j++) {
+        daemonicCellState.buildFileDependents.put(
+            key, root.resolve(ParserStateSnapshot.readString(header)));
+      }
+    }
+
+    int envCount = header.readInt();
+    for (int i = 0; i < envCount; i++) {
+      Path key = root.resolve(ParserStateSnapshot.readString(header));
+      int propertiesCount = header.readInt();
+      ImmutableMap.Builder<String, Optional<String>> builder = ImmutableMap.builder();
+      for (int j = 0; j < propertiesCount; j++) {
+        String name = ParserStateSnapshot.readString(header);
+        builder.put(
+            name,
+            header.readBoolean()
+                ? Optional.of(ParserStateSnapshot.readString(header))
+                : Optional.empty());
+      }
+      daemonicCellState.buildFileEnv.put(key, builder.build());
+    }
+
+    int rawNodesCount = header.readInt();
+    for (int i = 0; i < rawNodesCount; i++) {
+      Path key = root.resolve(ParserStateSnapshot.readString(header));
+      int length = header.readInt();
+      long offset = header.readLong();
+      daemonicCellState.serializedRawNodes.put(key, reader.getData(offset, length));
+    }
+
+    return daemonicCellState;
+  }
+
   static DaemonicCellState deserialize(
       RemoteDaemonicCellState remote, Cell cell, int parsingThreads) throws IOException {
     DaemonicCellState daemonicCellState = new DaemonicCellState(cell, parsingThreads);
@@ -20,6 +20,7 @@ import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.cell.resolver.CellPathResolver;
 import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.targetgraph.impl.TargetGraphHashCache;
 import com.facebook.buck.counters.Counter;
 import com.facebook.buck.counters.IntegerCounter;
 import com.facebook.buck.counters.TagSetCounter;
@@ -50,9 +51,12 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.MapDifference;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -293,6 +297,9 @@ public class DaemonicParserState {
 
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
 
+  /** Target hashes, which are invalidated along with the rest of the parser state. */
+  private final TargetGraphHashCache targetGraphHashCache;
+
   /**
    * The default includes used by the previous run of the parser in each cell (the key is the cell's
    * root path). If this value changes, then we need to invalidate all the caches.
@@ -347,6 +354,7 @@ public class DaemonicParserState {
         new ConcurrentHashMap<>(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, parsingThreads);
 
     this.rawNodeCache = new DaemonicRawCacheView();
+    this.targetGraphHashCache = new TargetGraphHashCache();
 
     this.cachedStateLock = new AutoCloseableReadWriteUpdateLock();
     this.cellStateLock = new AutoCloseableReadWriteUpdateLock();
@@ -379,6 +387,15 @@ public class DaemonicParserState {
     return rawNodeCache;
   }
 
+  /**
+   * @return the hashes of target nodes computed by previous commands, for {@link
+   *     com.facebook.buck.core.model.targetgraph.impl.TargetGraphHashing} using the daemon's file
+   *     hash cache.
+   */
+  public TargetGraphHashCache getTargetGraphHashCache() {
+    return targetGraphHashCache;
+  }
+
   @Nullable
   private DaemonicCellState getCellState(Cell cell) {
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
@@ -513,6 +530,7 @@ public class DaemonicParserState {
   }
 
   public void invalidatePath(Path path) {
+    targetGraphHashCache.invalidatePath(path);
 
     // The paths from watchman are not absolute. Because of this, we adopt a conservative approach
     // to invalidating the caches.
@@ -684,6 +702,7 @@ public class DaemonicParserState {
       boolean invalidated = !cellPathToDaemonicState.isEmpty();
       cellPathToDaemonicState.clear();
       buildFileTrees.invalidateAll();
+      targetGraphHashCache.invalidateAll();
       if (invalidated) {
         LOG.debug("Cache data invalidated.");
       } else {
@@ -773,4 +792,87 @@ public class DaemonicParserState {
         });
     return this;
   }
+
+  /** @return whether the file was written by {@link #saveSnapshot(Cell, Path)}. */
+  public static boolean isSnapshot(Path path) throws IOException {
+    return ParserStateSnapshot.isSnapshot(path);
+  }
+
+  /**
+   * Writes the state to a compact binary snapshot, which {@link #restoreSnapshot(Path, Cell)} can
+   * restore without decoding the raw nodes of every build file upfront.
+   */
+  public void saveSnapshot(Cell rootCell, Path path) throws IOException {
+    try (ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer(path)) {
+      DataOutputStream header = writer.getHeader();
+      try (AutoCloseableLock readLock = cellStateLock.readLock()) {
+        header.writeInt(cellPathToDaemonicState.size());
+        for (Map.Entry<Path, DaemonicCellState> entry : cellPathToDaemonicState.entrySet()) {
+          ParserStateSnapshot.writeString(
+              header, rootCell.getRoot().relativize(entry.getKey()).toString());
+          entry.getValue().writeSnapshot(writer);
+        }
+      }
+      try (AutoCloseableLock readLock = cachedStateLock.readLock()) {
+        header.writeInt(cachedIncludes.size());
+        for (Map.Entry<Path, Iterable<String>> entry : cachedIncludes.entrySet()) {
+          ParserStateSnapshot.writeString(
+              header, rootCell.getRoot().relativize(entry.getKey()).toString());
+          ImmutableList<String> includes = ImmutableList.copyOf(entry.getValue());
+          header.writeInt(includes.size());
+          for (String include : includes) {
+            ParserStateSnapshot.writeString(header, include);
+          }
+        }
+      }
+      writer.commit();
+    }
+  }
+
+  /**
+   * Restores a state written with {@link #saveSnapshot(Cell, Path)}, replacing any state which is
+   * already cached.
+   */
+  public DaemonicParserState restoreSnapshot(Path path, Cell rootCell) throws IOException {
+    ParserStateSnapshot.Reader reader = ParserStateSnapshot.Reader.open(path);
+    DataInputStream header = reader.getHeader();
+    Map<Path, DaemonicCellState> cellStates = new HashMap<>();
+    int cellsCount = header.readInt();
+    for (int i = 0; i < cellsCount; i++) {
+      Path cellPath =
+          rootCell.getRoot().resolve(ParserStateSnapshot.readString(header)).normalize();
+      Cell cell = rootCell.getCellIgnoringVisibilityCheck(cellPath);
+      if (cell == null) {
+        throw new IOException(
+            String.format("Parser state snapshot refers to unknown cell %s", cellPath));
+      }
+      cellStates.put(cell.getRoot(), DaemonicCellState.readSnapshot(reader, cell, parsingThreads));
+    }
+    Map<Path, Iterable<String>> includesByBuildFile = new HashMap<>();
+    int cachedIncludesCount = header.readInt();
+    for (int i = 0; i < cachedIncludesCount; i++) {
+      Path buildFile =
+          rootCell.getRoot().resolve(ParserStateSnapshot.readString(header)).normalize();
+      int includesCount = header.readInt();
+      ImmutableList.Builder<String> includes = ImmutableList.builder();
+      for (int j = 0; j < includesCount; j++) {
+        includes.add(ParserStateSnapshot.readString(header));
+      }
+      includesByBuildFile.put(buildFile, includes.build());
+    }
+
+    // Only replace the cached state once the whole snapshot has been read, so that a corrupt
+    // snapshot leaves it untouched, and none of it outlives the restore.
+    try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
+      cellPathToDaemonicState.clear();
+      buildFileTrees.invalidateAll();
+      targetGraphHashCache.invalidateAll();
+      cellPathToDaemonicState.putAll(cellStates);
+    }
+    try (AutoCloseableLock writeLock = cachedStateLock.writeLock()) {
+      cachedIncludes.clear();
+      cachedIncludes.putAll(includesByBuildFile);
+    }
+    return this;
+  }
 }
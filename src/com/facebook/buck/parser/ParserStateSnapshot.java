@@ -0,0 +1,261 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary snapshot of {@link DaemonicParserState}.
+ *
+ * <p>A snapshot is made up of a data section holding the serialized raw nodes of each build file,
+ * followed by a header holding everything else, along with the offsets of the raw nodes in the data
+ * section. The header is small and is read eagerly, while the file is memory mapped so that the
+ * raw nodes of a build file are only read and decoded when a command first looks them up. Only the
+ * header has to fit within 2 GB.
+ *
+ * <pre>
+ *   int magic, int version
+ *   byte[] data
+ *   byte[] header
+ *   long header offset
+ * </pre>
+ */
+class ParserStateSnapshot {
+
+  private static final int MAGIC = 0x42505353;
+  private static final int VERSION = 1;
+  private static final int PREAMBLE_SIZE_BYTES = 2 * Integer.BYTES;
+
+  private ParserStateSnapshot() {}
+
+  /** @return whether the given file looks like a snapshot, rather than any other format. */
+  static boolean isSnapshot(Path path) throws IOException {
+    try (InputStream input = Files.newInputStream(path)) {
+      return new DataInputStream(input).readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  static void writeString(DataOutput output, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  static String readString(DataInputStream input) throws IOException {
+    int length = input.readInt();
+    // Check the length against what's left, so a corrupt length can't allocate a huge array.
+    if (length < 0 || length > input.available()) {
+      throw new IOException("Corrupt parser state snapshot");
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a snapshot to a temporary file, which replaces the destination on {@link #commit()}, so
+   * that a snapshot which is mapped by another process is never modified. Closing a writer which
+   * wasn't committed, e.g. because writing the snapshot failed, discards the temporary file and
+   * leaves the destination untouched.
+   */
+  static class Writer implements Closeable {
+    private final Path path;
+    private final Path tmp;
+    private final FileChannel channel;
+    private final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    private final DataOutputStream header = new DataOutputStream(headerBytes);
+    private boolean committed = false;
+
+    Writer(Path path) throws IOException {
+      this.path = path;
+      this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+      this.channel =
+          FileChannel.open(
+              tmp,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+      ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE_BYTES);
+      preamble.putInt(MAGIC).putInt(VERSION).flip();
+      writeFully(preamble);
+    }
+
+    DataOutputStream getHeader() {
+      return header;
+    }
+
+    /** Appends to the data section, and returns the offset to read the data back with. */
+    long writeData(ByteBuffer data) throws IOException {
+      long offset = channel.position();
+      writeFully(data);
+      return offset;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    /** Writes the header and replaces the destination with the complete snapshot. */
+    void commit() throws IOException {
+      try {
+        long headerOffset = channel.position();
+        header.flush();
+        writeFully(ByteBuffer.wrap(headerBytes.toByteArray()));
+        ByteBuffer footer = ByteBuffer.allocate(Long.BYTES);
+        footer.putLong(headerOffset).flip();
+        writeFully(footer);
+      } finally {
+        channel.close();
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (committed) {
+        return;
+      }
+      try {
+        channel.close();
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    }
+  }
+
+  /**
+   * Reads a memory mapped snapshot. A single mapping can't be larger than 2 GB, so the data section
+   * is mapped in overlapping windows, each of which starts half a window after the previous one.
+   * The data of a build file is then always within a single window, unless it's larger than half a
+   * window, in which case it's mapped on its own.
+   */
+  static class Reader {
+    private static final int DEFAULT_WINDOW_SIZE_BYTES = 1 << 30;
+
+    private final Path path;
+    private final long dataEnd;
+    private final int windowStride;
+    private final List<ByteBuffer> windows;
+    private final DataInputStream header;
+
+    private Reader(
+        Path path,
+        long dataEnd,
+        int windowStride,
+        List<ByteBuffer> windows,
+        DataInputStream header) {
+      this.path = path;
+      this.dataEnd = dataEnd;
+      this.windowStride = windowStride;
+      this.windows = windows;
+      this.header = header;
+    }
+
+    static Reader open(Path path) throws IOException {
+      return open(path, DEFAULT_WINDOW_SIZE_BYTES);
+    }
+
+    @VisibleForTesting
+    static Reader open(Path path, int windowSize) throws IOException {
+      Preconditions.checkArgument(windowSize >= 2 && windowSize % 2 == 0);
+      int windowStride = windowSize / 2;
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        long size = channel.size();
+        if (size < PREAMBLE_SIZE_BYTES + Long.BYTES) {
+          throw new IOException(String.format("Invalid parser state snapshot size %d", size));
+        }
+        ByteBuffer preamble = map(channel, 0, PREAMBLE_SIZE_BYTES);
+        if (preamble.getInt(0) != MAGIC || preamble.getInt(Integer.BYTES) != VERSION) {
+          throw new IOException("Not a parser state snapshot, or from another version of buck");
+        }
+        long dataEnd = size - Long.BYTES;
+        long headerOffset = map(channel, dataEnd, Long.BYTES).getLong(0);
+        if (headerOffset < PREAMBLE_SIZE_BYTES || headerOffset > dataEnd) {
+          throw new IOException("Corrupt parser state snapshot");
+        }
+        if (dataEnd - headerOffset > Integer.MAX_VALUE) {
+          throw new IOException(
+              String.format(
+                  "Parser state snapshot header of %d bytes is larger than the supported 2 GB",
+                  dataEnd - headerOffset));
+        }
+        // The mappings stay valid after the channel is closed.
+        ByteBuffer headerBuffer = map(channel, headerOffset, dataEnd - headerOffset);
+        List<ByteBuffer> windows = new ArrayList<>();
+        for (long start = 0; start < dataEnd; start += windowStride) {
+          windows.add(map(channel, start, Math.min(windowSize, dataEnd - start)));
+        }
+        return new Reader(
+            path,
+            dataEnd,
+            windowStride,
+            windows,
+            new DataInputStream(new ByteBufferBackedInputStream(headerBuffer)));
+      }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size)
+        throws IOException {
+      return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    DataInputStream getHeader() {
+      return header;
+    }
+
+    /** @return a view of the data written at the given offset, which is read lazily. */
+    ByteBuffer getData(long offset, int length) throws IOException {
+      if (offset < PREAMBLE_SIZE_BYTES || length < 0 || offset + length > dataEnd) {
+        throw new IOException("Corrupt parser state snapshot");
+      }
+      if (length > windowStride) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+          return map(channel, offset, length);
+        }
+      }
+      int window = (int) (offset / windowStride);
+      int position = (int) (offset - (long) window * windowStride);
+      ByteBuffer data = windows.get(window).duplicate();
+      data.position(position).limit(position + length);
+      return data.slice();
+    }
+  }
+}
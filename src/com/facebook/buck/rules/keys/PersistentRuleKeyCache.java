@@ -0,0 +1,396 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.cache.CacheStatsTracker;
+import com.facebook.buck.util.hashing.FileHashLoader;
+import com.facebook.buck.util.hashing.StringHashing;
+import com.google.common.base.Equivalence;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link RuleKey} cache which backs a {@link DefaultRuleKeyCache} with a {@link
+ * PersistentRuleKeyStore}, so that rule keys computed by a previous daemon can be re-used after a
+ * restart.
+ *
+ * <p>Persisted rule keys are keyed by build target and are only re-used if the rule type, the
+ * identity of the target node (its raw attributes and those of its transitive dependencies), the
+ * hashes of all its inputs and the rule keys of all its build rule dependencies are unchanged.
+ * Re-used rule keys are inserted into the in-memory cache along with their inputs, so they are
+ * invalidated via the same {@link RuleKeyInput} index as computed ones.
+ *
+ * <p>Persistence is only active while a {@link TargetGraph} is set via {@link
+ * #setTargetGraph(Optional)}, as it is used to establish node identity. Rule keys with inputs
+ * outside of the cells, such as tools of an SDK, are never persisted, as the toolchains providing
+ * them may have changed along with the rest of the machine between daemons.
+ */
+public class PersistentRuleKeyCache implements TrackableRuleKeyCache<RuleKey> {
+
+  private static final Logger LOG = Logger.get(PersistentRuleKeyCache.class);
+
+  private final DefaultRuleKeyCache<RuleKey> delegate = new DefaultRuleKeyCache<>();
+  private final PersistentRuleKeyStore store;
+  private final FileHashLoader hashLoader;
+  private final ImmutableMap<Path, ProjectFilesystem> filesystems;
+
+  /**
+   * Results for {@link AddsToRuleKey}s, used to attribute their inputs and dependencies to the
+   * build rules which contain them. Keys are weak (and so compared by identity), so that entries
+   * go away along with the appendables once the delegate invalidates them and the action graph
+   * holding them is dropped.
+   */
+  private final Map<Object, RuleKeyResult<RuleKey>> appendableResults =
+      new MapMaker().weakKeys().makeMap();
+
+  @Nullable private volatile NodeIdentities nodeIdentities = null;
+
+  private final AtomicInteger reused = new AtomicInteger();
+  private final AtomicInteger stored = new AtomicInteger();
+
+  public PersistentRuleKeyCache(
+      PersistentRuleKeyStore store,
+      FileHashLoader hashLoader,
+      ImmutableSet<ProjectFilesystem> filesystems) {
+    this.store = store;
+    this.hashLoader = hashLoader;
+    this.filesystems =
+        filesystems
+            .stream()
+            .collect(
+                ImmutableMap.toImmutableMap(ProjectFilesystem::getRootPath, Function.identity()));
+  }
+
+  /** Sets the {@link TargetGraph} used to establish node identity for the following builds. */
+  public void setTargetGraph(Optional<TargetGraph> targetGraph) {
+    this.nodeIdentities = targetGraph.map(NodeIdentities::new).orElse(null);
+  }
+
+  /**
+   * Appends all newly computed rule keys to the on-disk store. Rule keys which fail to be persisted
+   * are kept by the store and retried on the next flush.
+   */
+  public void flush() {
+    LOG.debug("Re-used %d persisted rule keys, persisting %d", reused.get(), stored.get());
+    reused.set(0);
+    stored.set(0);
+    try {
+      store.flush();
+    } catch (IOException | RuntimeException e) {
+      // Failing to persist rule keys shouldn't fail the build that computed them.
+      LOG.warn(e, "Failed to persist rule keys");
+    }
+  }
+
+  @Nullable
+  @Override
+  public RuleKey get(BuildRule rule, CacheStatsTracker statsTracker) {
+    return delegate.get(rule, statsTracker);
+  }
+
+  @Override
+  public RuleKey get(
+      BuildRule rule,
+      Function<? super BuildRule, RuleKeyResult<RuleKey>> create,
+      CacheStatsTracker statsTracker) {
+    NodeIdentities identities = nodeIdentities;
+    if (identities == null) {
+      return delegate.get(rule, create, statsTracker);
+    }
+    return delegate.get(
+        rule, r -> loadOrCompute(identities, r, create, statsTracker), statsTracker);
+  }
+
+  @Override
+  public RuleKey get(
+      AddsToRuleKey appendable,
+      Function<? super AddsToRuleKey, RuleKeyResult<RuleKey>> create,
+      CacheStatsTracker statsTracker) {
+    if (nodeIdentities == null) {
+      return delegate.get(appendable, create, statsTracker);
+    }
+    return delegate.get(
+        appendable,
+        a -> {
+          RuleKeyResult<RuleKey> result = create.apply(a);
+          appendableResults.put(a, result);
+          return result;
+        },
+        statsTracker);
+  }
+
+  private RuleKeyResult<RuleKey> loadOrCompute(
+      NodeIdentities identities,
+      BuildRule rule,
+      Function<? super BuildRule, RuleKeyResult<RuleKey>> create,
+      CacheStatsTracker statsTracker) {
+    Optional<HashCode> identity = identities.get(rule.getBuildTarget());
+    if (!identity.isPresent()) {
+      return create.apply(rule);
+    }
+
+    Optional<PersistentRuleKeyStore.Entry> entry =
+        store.get(rule.getBuildTarget().getFullyQualifiedName());
+    if (entry.isPresent()) {
+      Optional<RuleKeyResult<RuleKey>> result =
+          reuse(rule, identity.get(), entry.get(), create, statsTracker);
+      if (result.isPresent()) {
+        reused.incrementAndGet();
+        return result.get();
+      }
+    }
+
+    RuleKeyResult<RuleKey> result = create.apply(rule);
+    persist(rule, identity.get(), result, statsTracker);
+    return result;
+  }
+
+  /** @return the persisted rule key as a {@link RuleKeyResult}, if it is still valid. */
+  private Optional<RuleKeyResult<RuleKey>> reuse(
+      BuildRule rule,
+      HashCode identity,
+      PersistentRuleKeyStore.Entry entry,
+      Function<? super BuildRule, RuleKeyResult<RuleKey>> create,
+      CacheStatsTracker statsTracker) {
+    if (!entry.ruleType.equals(rule.getType()) || !entry.nodeIdentity.equals(identity)) {
+      return Optional.empty();
+    }
+
+    // Verify all inputs are unchanged.
+    ImmutableList.Builder<RuleKeyInput> inputs = ImmutableList.builder();
+    for (PersistentRuleKeyStore.InputHash input : entry.inputs) {
+      ProjectFilesystem filesystem = filesystems.get(input.cellRoot);
+      if (filesystem == null || !input.hashCode.equals(getHash(filesystem, input.path))) {
+        return Optional.empty();
+      }
+      inputs.add(RuleKeyInput.of(filesystem, input.path));
+    }
+
+    // Verify all dependencies still have the same rule keys.  Rule key dependencies are normally a
+    // subset of build deps, so we conservatively give up if they can't be found there.
+    Map<String, BuildRule> buildDeps = new HashMap<>();
+    for (BuildRule dep : rule.getBuildDeps()) {
+      buildDeps.put(dep.getBuildTarget().getFullyQualifiedName(), dep);
+    }
+    ImmutableList.Builder<Object> deps = ImmutableList.builder();
+    for (Map.Entry<String, RuleKey> depEntry : entry.deps.entrySet()) {
+      BuildRule dep = buildDeps.get(depEntry.getKey());
+      if (dep == null || !depEntry.getValue().equals(get(dep, create, statsTracker))) {
+        return Optional.empty();
+      }
+      deps.add(dep);
+    }
+
+    return Optional.of(new RuleKeyResult<>(entry.ruleKey, deps.build(), inputs.build()));
+  }
+
+  /** Records a newly computed rule key in the store. */
+  private void persist(
+      BuildRule rule,
+      HashCode identity,
+      RuleKeyResult<RuleKey> result,
+      CacheStatsTracker statsTracker) {
+
+    // Gather all inputs and build rule dependencies, including those of nested appendables.
+    Set<RuleKeyInput> inputs = new LinkedHashSet<>();
+    Map<String, RuleKey> deps = new TreeMap<>();
+    Set<Equivalence.Wrapper<Object>> visited = new HashSet<>();
+    Deque<RuleKeyResult<RuleKey>> work = new ArrayDeque<>();
+    work.add(result);
+    while (!work.isEmpty()) {
+      RuleKeyResult<RuleKey> current = work.pop();
+      current.inputs.forEach(inputs::add);
+      for (Object dep : current.deps) {
+        if (dep instanceof BuildRule) {
+          BuildRule depRule = (BuildRule) dep;
+          RuleKey depKey = delegate.get(depRule, statsTracker);
+          if (depKey == null) {
+            return;
+          }
+          deps.put(depRule.getBuildTarget().getFullyQualifiedName(), depKey);
+        } else if (visited.add(Equivalence.identity().wrap(dep))) {
+          RuleKeyResult<RuleKey> depResult = appendableResults.get(dep);
+          if (depResult == null) {
+            return;
+          }
+          work.push(depResult);
+        }
+      }
+    }
+
+    ImmutableList.Builder<PersistentRuleKeyStore.InputHash> inputHashes = ImmutableList.builder();
+    for (RuleKeyInput input : inputs) {
+      // Inputs outside of the cells belong to toolchains (SDKs, NDKs, Xcode, ...), whose state
+      // is discovered from disk and may feed into the rule key beyond the hashes of these files.
+      if (!filesystems.containsKey(input.getFilesystem().getRootPath())
+          || input.getPath().isAbsolute()) {
+        return;
+      }
+      HashCode hashCode = getHash(input.getFilesystem(), input.getPath());
+      if (hashCode == null) {
+        return;
+      }
+      inputHashes.add(
+          new PersistentRuleKeyStore.InputHash(
+              input.getFilesystem().getRootPath(), input.getPath(), hashCode));
+    }
+
+    store.put(
+        new PersistentRuleKeyStore.Entry(
+            rule.getBuildTarget().getFullyQualifiedName(),
+            rule.getType(),
+            identity,
+            result.result,
+            inputHashes.build(),
+            ImmutableMap.copyOf(deps)));
+    stored.incrementAndGet();
+  }
+
+  @Nullable
+  private HashCode getHash(ProjectFilesystem filesystem, Path path) {
+    try {
+      return hashLoader.get(filesystem, path);
+    } catch (IOException e) {
+      LOG.verbose(e, "failed to hash %s", path);
+      return null;
+    }
+  }
+
+  @Override
+  public void invalidateInputs(Iterable<RuleKeyInput> inputs, CacheStatsTracker statsTracker) {
+    delegate.invalidateInputs(inputs, statsTracker);
+  }
+
+  @Override
+  public void invalidateAllExceptFilesystems(
+      ImmutableSet<ProjectFilesystem> filesystems, CacheStatsTracker statsTracker) {
+    delegate.invalidateAllExceptFilesystems(filesystems, statsTracker);
+  }
+
+  @Override
+  public void invalidateFilesystem(ProjectFilesystem filesystem, CacheStatsTracker statsTracker) {
+    delegate.invalidateFilesystem(filesystem, statsTracker);
+  }
+
+  @Override
+  public void invalidateAll(CacheStatsTracker statsTracker) {
+    delegate.invalidateAll(statsTracker);
+    appendableResults.clear();
+  }
+
+  @Override
+  public ImmutableList<Map.Entry<BuildRule, RuleKey>> getCachedBuildRules() {
+    return delegate.getCachedBuildRules();
+  }
+
+  /**
+   * Stable identities of target nodes, which change whenever the raw attributes of the node or any
+   * of its transitive dependencies change.
+   */
+  private static class NodeIdentities {
+
+    private final TargetGraph targetGraph;
+    private final Map<BuildTarget, Optional<HashCode>> identities = new ConcurrentHashMap<>();
+
+    private NodeIdentities(TargetGraph targetGraph) {
+      this.targetGraph = targetGraph;
+    }
+
+    private Optional<HashCode> get(BuildTarget target) {
+      Optional<HashCode> identity = identities.get(target);
+      if (identity != null) {
+        return identity;
+      }
+
+      // Walk the dependencies with an explicit stack, as chains of them can be deep enough to
+      // overflow the call stack.  A node is hashed once the identities of all its deps are known.
+      Deque<BuildTarget> work = new ArrayDeque<>();
+      work.push(target);
+      while (!work.isEmpty()) {
+        BuildTarget current = work.peek();
+        if (identities.containsKey(current)) {
+          work.pop();
+          continue;
+        }
+        Optional<TargetNode<?, ?>> node = targetGraph.getOptional(current);
+        if (!node.isPresent()) {
+          identities.put(current, Optional.empty());
+          work.pop();
+          continue;
+        }
+        ImmutableSortedSet<BuildTarget> deps = ImmutableSortedSet.copyOf(node.get().getParseDeps());
+        boolean depsReady = true;
+        for (BuildTarget dep : deps) {
+          if (!identities.containsKey(dep)) {
+            work.push(dep);
+            depsReady = false;
+          }
+        }
+        if (depsReady) {
+          identities.put(current, compute(node.get(), deps));
+          work.pop();
+        }
+      }
+      return identities.get(target);
+    }
+
+    /** Hashes a node, given that the identities of all its deps are known. */
+    private Optional<HashCode> compute(
+        TargetNode<?, ?> node, ImmutableSortedSet<BuildTarget> deps) {
+      Hasher hasher = Hashing.sha1().newHasher();
+      hasher.putBytes(node.getRawInputsHashCode().asBytes());
+      for (BuildTarget dep : deps) {
+        Optional<HashCode> depIdentity = identities.get(dep);
+        if (!depIdentity.isPresent()) {
+          return Optional.empty();
+        }
+        StringHashing.hashStringAndLength(hasher, dep.getFullyQualifiedName());
+        hasher.putBytes(depIdentity.get().asBytes());
+      }
+      return Optional.of(hasher.hash());
+    }
+  }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.CountingOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * An append-only on-disk log of {@link RuleKey}s for build rules, which survives daemon restarts.
+ *
+ * <p>The log is memory-mapped when opened and only a small index of build target to record offset
+ * is built up front, so records are decoded lazily when a rule is first looked up. New records are
+ * buffered in memory and appended on {@link #flush()}, with later records for the same target
+ * superseding earlier ones. Once appended, records are read back from the log rather than kept in
+ * memory: each flush maps just the region it appended, so the log is never mapped again as a whole,
+ * and no single mapping exceeds the 2 GiB a buffer can address. Stale records are dropped by
+ * compacting the log when it's opened, and whenever a flush leaves it mostly stale or split into
+ * too many mappings, so it stays proportional to the number of live targets over the daemon's life.
+ *
+ * <p>The log header records a fingerprint of all settings affecting rule keys (e.g. the rule key
+ * seed and buck version), and the log is discarded wholesale if it doesn't match.
+ */
+public class PersistentRuleKeyStore {
+
+  private static final Logger LOG = Logger.get(PersistentRuleKeyStore.class);
+
+  private static final int MAGIC = 0x524b4c47;
+  private static final int VERSION = 1;
+
+  /** Compact the log if it has at least this many records... */
+  private static final int MIN_RECORDS_FOR_COMPACTION = 1024;
+  /** ...and at most this fraction of them are live... */
+  private static final double MAX_LIVE_RATIO_FOR_COMPACTION = 0.5;
+  /** ...or if flushes mapped this many more regions than there were when it was opened. */
+  private static final int MAX_APPENDED_SEGMENTS = 64;
+
+  /** Flush on {@link #put(Entry)} whenever this many more records are buffered. */
+  private static final int MAX_PENDING_RECORDS = 16 * 1024;
+
+  private final Path path;
+  private final String fingerprint;
+  private final int maxSegmentSize;
+
+  /** The log as of the last flush, which is replaced as a whole when the log is compacted. */
+  private volatile Log log;
+
+  /** Records which haven't been flushed yet, which take precedence over logged ones. */
+  private final Map<String, Entry> added = new ConcurrentHashMap<>();
+
+  private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+
+  private PersistentRuleKeyStore(Path path, String fingerprint, int maxSegmentSize, Log log) {
+    this.path = path;
+    this.fingerprint = fingerprint;
+    this.maxSegmentSize = maxSegmentSize;
+    this.log = log;
+  }
+
+  /**
+   * Opens the log at {@code path}, discarding it if it was written with a different {@code
+   * fingerprint} or is unreadable.
+   */
+  public static PersistentRuleKeyStore open(Path path, String fingerprint) throws IOException {
+    return open(path, fingerprint, Integer.MAX_VALUE);
+  }
+
+  /** @param maxSegmentSize the size of the largest region of the log to map at once. */
+  @VisibleForTesting
+  static PersistentRuleKeyStore open(Path path, String fingerprint, int maxSegmentSize)
+      throws IOException {
+    Files.createDirectories(path.getParent());
+    Log log = null;
+    if (Files.exists(path)) {
+      try {
+        log = load(path, fingerprint, maxSegmentSize);
+      } catch (RuntimeException e) {
+        LOG.warn(e, "Discarding unreadable rule key store at %s", path);
+      }
+    }
+    if (log == null) {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+        writeHeader(out, fingerprint);
+      }
+      log = Preconditions.checkNotNull(load(path, fingerprint, maxSegmentSize));
+    }
+    PersistentRuleKeyStore store =
+        new PersistentRuleKeyStore(path, fingerprint, maxSegmentSize, log);
+    if (log.needsCompaction()) {
+      store.log = store.compact(log);
+    }
+    return store;
+  }
+
+  /** @return the log at {@code path}, or null if it was written with a different fingerprint. */
+  @Nullable
+  private static Log load(Path path, String fingerprint, int maxSegmentSize) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = channel.size();
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      if (size < 12 || in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IllegalStateException("unrecognized header");
+      }
+      int fingerprintLength = in.readInt();
+      if (fingerprintLength < 0 || fingerprintLength > size - 12) {
+        throw new IllegalStateException("corrupt header");
+      }
+      byte[] fingerprintBytes = new byte[fingerprintLength];
+      in.readFully(fingerprintBytes);
+      if (!fingerprint.equals(new String(fingerprintBytes, StandardCharsets.UTF_8))) {
+        LOG.info("Discarding rule key store at %s due to a settings change", path);
+        return null;
+      }
+
+      // Map the records in segments which end at record boundaries, and index the latest record
+      // for each target. A truncated trailing record, left behind by a daemon killed in the middle
+      // of a flush, is cut off here.
+      Log log = new Log(12 + fingerprintLength);
+      while (log.size < size) {
+        ByteBuffer segment =
+            channel.map(
+                FileChannel.MapMode.READ_ONLY, log.size, Math.min(size - log.size, maxSegmentSize));
+        int end = 0;
+        while (segment.remaining() >= 4) {
+          int length = segment.getInt();
+          if (length < 0 || length > segment.remaining()) {
+            break;
+          }
+          int start = segment.position();
+          log.offsets.put(readString(segment), log.size + start);
+          segment.position(start + length);
+          end = segment.position();
+          log.records++;
+        }
+        if (end == 0) {
+          // Not even a single record fits, so the rest of the log is unusable.
+          break;
+        }
+        segment.limit(end);
+        log.segments.put(log.size, segment);
+        log.size += end;
+      }
+      if (log.size != size) {
+        LOG.warn("Truncating partially written rule key store at %s", path);
+        channel.truncate(log.size);
+      }
+      log.openedSegments = log.segments.size();
+      LOG.debug(
+          "Loaded %d rule key records (%d live) from %s", log.records, log.offsets.size(), path);
+      return log;
+    }
+  }
+
+  /** Rewrites the log with only the latest record for each target, and re-opens it. */
+  private Log compact(Log log) throws IOException {
+    LOG.debug("Compacting rule key store at %s", path);
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      writeHeader(out, fingerprint);
+      for (long offset : log.offsets.values()) {
+        writeRecord(out, log.readEntry(offset));
+      }
+    }
+    // Readers still using the previous log keep reading from its mappings, which stay valid after
+    // the file is replaced.
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return Preconditions.checkNotNull(load(path, fingerprint, maxSegmentSize));
+  }
+
+  /** @return the latest record for the given fully qualified build target, if any. */
+  public Optional<Entry> get(String target) {
+    Entry entry = added.get(target);
+    if (entry != null) {
+      return Optional.of(entry);
+    }
+    Log log = this.log;
+    Long offset = log.offsets.get(target);
+    if (offset == null) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(log.readEntry(offset));
+    } catch (RuntimeException e) {
+      LOG.warn(e, "Ignoring unreadable rule key record for %s in %s", target, path);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Records a new entry, which is persisted on the next call to {@link #flush()}, or right away if
+   * many entries are waiting to be persisted.
+   */
+  public void put(Entry entry) {
+    added.put(entry.target, entry);
+    pending.add(entry);
+    // Entries are put back if a flush fails, so this retries every so often rather than on every
+    // put once there are too many.
+    if (pendingCount.incrementAndGet() % MAX_PENDING_RECORDS == 0) {
+      try {
+        flush();
+      } catch (IOException | RuntimeException e) {
+        LOG.warn(e, "Failed to persist rule keys to %s", path);
+      }
+    }
+  }
+
+  /**
+   * Appends all entries recorded since the last flush to the on-disk log. If that fails, the log is
+   * left as it was, and the entries are kept to be appended by the next flush.
+   */
+  public synchronized void flush() throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    Entry entry;
+    while ((entry = pending.poll()) != null) {
+      pendingCount.decrementAndGet();
+      entries.add(entry);
+    }
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    Log log = this.log;
+    long start = log.size;
+    List<Long> recordStarts = new ArrayList<>(entries.size());
+    try (FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      try {
+        CountingOutputStream out =
+            new CountingOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel.position(start))));
+        for (Entry record : entries) {
+          recordStarts.add(start + out.getCount());
+          writeRecord(out, record);
+        }
+        out.flush();
+        mapAppendedSegments(channel, log, recordStarts, start + out.getCount());
+      } catch (IOException | RuntimeException e) {
+        // Cut off whatever was appended, as records following a partial one couldn't be read.
+        try {
+          channel.truncate(start);
+        } catch (IOException truncateException) {
+          e.addSuppressed(truncateException);
+        }
+        throw e;
+      }
+    } catch (IOException | RuntimeException e) {
+      for (Entry record : entries) {
+        // Entries superseded since are still pending themselves.
+        if (added.get(record.target) == record) {
+          pending.add(record);
+          pendingCount.incrementAndGet();
+        }
+      }
+      throw e;
+    }
+
+    // Read the flushed records back from the log from now on, so they don't pile up in memory.
+    for (int i = 0; i < entries.size(); i++) {
+      Entry record = entries.get(i);
+      // Offsets point past the length of the record, see load().
+      log.offsets.put(record.target, recordStarts.get(i) + 4);
+      added.remove(record.target, record);
+    }
+    log.records += entries.size();
+    LOG.debug("Appended %d rule key records to %s", entries.size(), path);
+
+    if (log.needsCompaction()) {
+      try {
+        this.log = compact(log);
+      } catch (IOException | RuntimeException e) {
+        // The appended log is still complete, so just carry on with it.
+        LOG.warn(e, "Failed to compact rule key store at %s", path);
+      }
+    }
+  }
+
+  /**
+   * Maps the records appended at the given offsets, which end at {@code end}, in segments which
+   * end at record boundaries.
+   */
+  private void mapAppendedSegments(FileChannel channel, Log log, List<Long> recordStarts, long end)
+      throws IOException {
+    Map<Long, ByteBuffer> segments = new LinkedHashMap<>();
+    long segmentStart = recordStarts.get(0);
+    for (int i = 1; i <= recordStarts.size(); i++) {
+      long recordStart = recordStarts.get(i - 1);
+      long recordEnd = i < recordStarts.size() ? recordStarts.get(i) : end;
+      if (recordEnd - segmentStart > maxSegmentSize && recordStart > segmentStart) {
+        segments.put(
+            segmentStart,
+            channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, recordStart - segmentStart));
+        segmentStart = recordStart;
+      }
+    }
+    segments.put(
+        segmentStart, channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, end - segmentStart));
+    // Publish the segments before any offset pointing into them.
+    log.segments.putAll(segments);
+    log.size = end;
+  }
+
+  @VisibleForTesting
+  int getMappedSize() {
+    return log.offsets.size();
+  }
+
+  @VisibleForTesting
+  int getSegmentCount() {
+    return log.segments.size();
+  }
+
+  private static void writeHeader(DataOutputStream out, String fingerprint) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeString(out, fingerprint);
+  }
+
+  private static void writeRecord(OutputStream stream, Entry entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    writeString(record, entry.target);
+    writeString(record, entry.ruleType);
+    writeHashCode(record, entry.nodeIdentity);
+    writeHashCode(record, entry.ruleKey.getHashCode());
+    record.writeInt(entry.inputs.size());
+    for (InputHash input : entry.inputs) {
+      writeString(record, input.cellRoot.toString());
+      writeString(record, input.path.toString());
+      writeHashCode(record, input.hashCode);
+    }
+    record.writeInt(entry.deps.size());
+    for (Map.Entry<String, RuleKey> dep : entry.deps.entrySet()) {
+      writeString(record, dep.getKey());
+      writeHashCode(record, dep.getValue().getHashCode());
+    }
+
+    DataOutputStream out = new DataOutputStream(stream);
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Reads a length or count of items, each taking at least a byte, from a possibly corrupt log. */
+  private static int readCount(ByteBuffer buffer) {
+    int count = buffer.getInt();
+    if (count < 0 || count > buffer.remaining()) {
+      throw new IllegalStateException(
+          String.format("Corrupt length %d with %d bytes left", count, buffer.remaining()));
+    }
+    return count;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[readCount(buffer)];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeHashCode(DataOutputStream out, HashCode hashCode) throws IOException {
+    byte[] bytes = hashCode.asBytes();
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static HashCode readHashCode(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.get() & 0xff];
+    buffer.get(bytes);
+    return HashCode.fromBytes(bytes);
+  }
+
+  /** The mapped contents of the log, and the offset of the latest record for each target in it. */
+  private static class Log {
+
+    /**
+     * Mapped regions of the log, keyed by their offset in it. Records never span regions, which
+     * only cover the log up to the last flush.
+     */
+    private final ConcurrentNavigableMap<Long, ByteBuffer> segments = new ConcurrentSkipListMap<>();
+
+    private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+
+    /** The end of the last region, where the next flush appends records. */
+    private long size;
+
+    /** The number of records in the log, including superseded ones. */
+    private int records;
+
+    private int openedSegments;
+
+    Log(long size) {
+      this.size = size;
+    }
+
+    boolean needsCompaction() {
+      return (records >= MIN_RECORDS_FOR_COMPACTION
+              && offsets.size() <= records * MAX_LIVE_RATIO_FOR_COMPACTION)
+          || segments.size() > openedSegments + MAX_APPENDED_SEGMENTS;
+    }
+
+    Entry readEntry(long offset) {
+      Map.Entry<Long, ByteBuffer> segment = Preconditions.checkNotNull(segments.floorEntry(offset));
+      // Use a view of the mapped buffer so that concurrent readers don't share a position.
+      ByteBuffer buffer = segment.getValue().duplicate();
+      buffer.position(Math.toIntExact(offset - segment.getKey()));
+      String target = readString(buffer);
+      String ruleType = readString(buffer);
+      HashCode nodeIdentity = readHashCode(buffer);
+      RuleKey ruleKey = new RuleKey(readHashCode(buffer));
+      int inputCount = readCount(buffer);
+      ImmutableList.Builder<InputHash> inputs = ImmutableList.builderWithExpectedSize(inputCount);
+      for (int i = 0; i < inputCount; i++) {
+        inputs.add(
+            new InputHash(
+                Paths.get(readString(buffer)),
+                Paths.get(readString(buffer)),
+                readHashCode(buffer)));
+      }
+      int depCount = readCount(buffer);
+      ImmutableMap.Builder<String, RuleKey> deps = ImmutableMap.builderWithExpectedSize(depCount);
+      for (int i = 0; i < depCount; i++) {
+        deps.put(readString(buffer), new RuleKey(readHashCode(buffer)));
+      }
+      return new Entry(target, ruleType, nodeIdentity, ruleKey, inputs.build(), deps.build());
+    }
+  }
+
+  /** The hash of a rule key input at the time the rule key was computed. */
+  public static final class InputHash {
+
+    /** The root of the cell the input belongs to. */
+    public final Path cellRoot;
+
+    /** The cell relative path of the input. */
+    public final Path path;
+
+    public final HashCode hashCode;
+
+    public InputHash(Path cellRoot, Path path, HashCode hashCode) {
+      this.cellRoot = cellRoot;
+      this.path = path;
+      this.hashCode = hashCode;
+    }
+  }
+
+  /** A persisted rule key along with everything needed to check it's still valid. */
+  public static final class Entry {
+
+    public final String target;
+
+    public final String ruleType;
+
+    /** A hash of the target node's attributes and those of its transitive dependencies. */
+    public final HashCode nodeIdentity;
+
+    public final RuleKey ruleKey;
+
+    /** All inputs the rule key depends on, excluding those of other build rules. */
+    public final ImmutableList<InputHash> inputs;
+
+    /** The rule keys of all other build rules the rule key depends on. */
+    public final ImmutableMap<String, RuleKey> deps;
+
+    public Entry(
+        String target,
+        String ruleType,
+        HashCode nodeIdentity,
+        RuleKey ruleKey,
+        ImmutableList<InputHash> inputs,
+        ImmutableMap<String, RuleKey> deps) {
+      this.target = target;
+      this.ruleType = ruleType;
+      this.nodeIdentity = nodeIdentity;
+      this.ruleKey = ruleKey;
+      this.inputs = inputs;
+      this.deps = deps;
+    }
+  }
+}
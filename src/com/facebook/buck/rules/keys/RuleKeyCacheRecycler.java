@@ -17,6 +17,7 @@
 package com.facebook.buck.rules.keys;
 
 import com.facebook.buck.core.model.actiongraph.ActionGraph;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
 import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.SimplePerfEvent;
@@ -32,6 +33,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 import javax.annotation.Nullable;
@@ -138,6 +140,11 @@ public class RuleKeyCacheRecycler<V> {
 
         // Record the current settings for next time.
         previousSettings = currentSettings;
+
+        // A persistent cache needs the target graph to be able to re-use rule keys.
+        if (cache instanceof PersistentRuleKeyCache) {
+          ((PersistentRuleKeyCache) cache).setTargetGraph(currentSettings.targetGraph);
+        }
       }
 
       // Cache cleanup which is run after the caller is finished using the cache, at the conclusion
@@ -151,6 +158,10 @@ public class RuleKeyCacheRecycler<V> {
         LOG.verbose(
             "invalidating unwatched filesystems (everything except %s)", watchedFilesystems);
         getCache().invalidateAllExceptFilesystems(watchedFilesystems);
+
+        if (cache instanceof PersistentRuleKeyCache) {
+          ((PersistentRuleKeyCache) cache).flush();
+        }
       }
     };
   }
@@ -179,9 +190,21 @@ public class RuleKeyCacheRecycler<V> {
     private final int ruleKeySeed;
     private final ActionGraph actionGraph;
 
+    /**
+     * The target graph the action graph was built from, which persistent caches need to re-use
+     * rule keys across daemon restarts.
+     */
+    private final Optional<TargetGraph> targetGraph;
+
     public SettingsAffectingCache(int ruleKeySeed, ActionGraph actionGraph) {
+      this(ruleKeySeed, actionGraph, Optional.empty());
+    }
+
+    public SettingsAffectingCache(
+        int ruleKeySeed, ActionGraph actionGraph, Optional<TargetGraph> targetGraph) {
       this.ruleKeySeed = ruleKeySeed;
       this.actionGraph = actionGraph;
+      this.targetGraph = targetGraph;
     }
 
     private static boolean areIdentical(
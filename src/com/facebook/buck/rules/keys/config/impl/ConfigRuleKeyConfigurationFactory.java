@@ -37,7 +37,8 @@ public class ConfigRuleKeyConfigurationFactory {
         .build();
   }
 
-  private static String getCoreKey(BuckConfig buckConfig) {
+  /** @return the key identifying the version of buck which computes rule keys. */
+  public static String getCoreKey(BuckConfig buckConfig) {
     String coreKey;
     if (buckConfig.useBuckBinaryHash()) {
       coreKey = BuckBinaryHashProvider.getBuckBinaryHash();
@@ -21,8 +21,10 @@ import com.facebook.buck.rules.modern.builders.Protocol.OutputDirectory;
 import com.facebook.buck.rules.modern.builders.Protocol.OutputFile;
 import com.facebook.buck.util.function.ThrowingSupplier;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -31,6 +33,16 @@ public interface ContentAddressedStorage {
   void addMissing(ImmutableMap<Digest, ThrowingSupplier<InputStream, IOException>> data)
       throws IOException;
 
+  /**
+   * Like {@link #addMissing}, but checks again whether the CAS contains data which was found or
+   * uploaded before, as it may have been evicted since.
+   */
+  void recheckAndAddMissing(ImmutableMap<Digest, ThrowingSupplier<InputStream, IOException>> data)
+      throws IOException;
+
+  /** Fetches a blob, e.g. an output which was left in the CAS or the tree of a directory. */
+  ListenableFuture<ByteBuffer> fetch(Digest digest);
+
   /** Materializes the outputFiles and outputDirectories into root. */
   void materializeOutputs(
       List<OutputDirectory> outputDirectories, List<OutputFile> outputFiles, Path root)
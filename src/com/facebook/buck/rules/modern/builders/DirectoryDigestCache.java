@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.modern.builders;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Caches the nodes of the merkle trees of action inputs, so that they can be shared across actions.
+ *
+ * <p>Actions which share large sets of inputs (like classpaths or header trees) end up with many
+ * identical input directories. The cache maps the contents of a directory, in terms of the digests
+ * of its children, to its serialized form and digest, so each of those directories is serialized
+ * and hashed once per build.
+ *
+ * <p>It also keeps track of the directories the CAS is known to contain. As a directory can only
+ * have been uploaded along with everything it refers to, none of the data under such a directory
+ * has to be checked for or uploaded again.
+ */
+public class DirectoryDigestCache {
+  /** The default limit on the size of the serialized directories held by the cache. */
+  public static final long DEFAULT_MAX_SIZE_BYTES = 64 * 1024 * 1024;
+
+  private final Cache<ImmutableList<String>, Entry> directories;
+  private final Set<String> presentDigests = Sets.newConcurrentHashSet();
+
+  public DirectoryDigestCache() {
+    this(DEFAULT_MAX_SIZE_BYTES);
+  }
+
+  @VisibleForTesting
+  DirectoryDigestCache(long maxSizeBytes) {
+    this.directories =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxSizeBytes)
+            .<ImmutableList<String>, Entry>weigher((key, entry) -> entry.data.length)
+            .build();
+  }
+
+  /** A serialized directory, along with its digest. */
+  static class Entry {
+    final Protocol.Directory directory;
+    final byte[] data;
+    final Protocol.Digest digest;
+
+    Entry(Protocol.Directory directory, byte[] data, Protocol.Digest digest) {
+      this.directory = directory;
+      this.data = data;
+      this.digest = digest;
+    }
+  }
+
+  /**
+   * @param key uniquely describes the contents of a directory, see {@link
+   *     FileTreeBuilder.ProtocolTreeBuilder}.
+   */
+  @Nullable
+  Entry get(ImmutableList<String> key) {
+    return directories.getIfPresent(key);
+  }
+
+  void put(ImmutableList<String> key, Entry entry) {
+    directories.put(key, entry);
+  }
+
+  /** @return whether the CAS is known to contain the given digest. */
+  boolean isPresent(Protocol.Digest digest) {
+    return presentDigests.contains(digest.getHash());
+  }
+
+  /**
+   * Records that the CAS contains the given digests. This should only be called once they have
+   * been successfully uploaded, or found to be present.
+   */
+  void markPresent(Iterable<Protocol.Digest> digests) {
+    for (Protocol.Digest digest : digests) {
+      presentDigests.add(digest.getHash());
+    }
+  }
+
+  /** Forgets which directories the CAS contains, after finding that it dropped some data. */
+  void clearPresent() {
+    presentDigests.clear();
+  }
+}
@@ -44,18 +44,25 @@ class FileInputsAdder {
   private final ThrowingFunction<Path, HashCode, IOException> fileHasher;
   private final ThrowingFunction<Path, Iterable<Path>, IOException> directoryLister;
   private final ThrowingFunction<Path, Path, IOException> symlinkReader;
+  private final ThrowingFunction<Path, InputFile, IOException> unmaterializedFileReader;
 
+  /**
+   * @param unmaterializedFileReader returns the outputs which were left in the CAS, which may not
+   *     exist on disk, or null for other paths.
+   */
   FileInputsAdder(
       FileTreeBuilder inputsBuilder,
       Path cellPathPrefix,
       ThrowingFunction<Path, HashCode, IOException> fileHasher,
       ThrowingFunction<Path, Iterable<Path>, IOException> directoryLister,
-      ThrowingFunction<Path, Path, IOException> symlinkReader) {
+      ThrowingFunction<Path, Path, IOException> symlinkReader,
+      ThrowingFunction<Path, InputFile, IOException> unmaterializedFileReader) {
     this.inputsBuilder = inputsBuilder;
     this.cellPathPrefix = cellPathPrefix;
     this.fileHasher = fileHasher;
     this.directoryLister = directoryLister;
     this.symlinkReader = symlinkReader;
+    this.unmaterializedFileReader = unmaterializedFileReader;
   }
 
   /**
@@ -122,6 +129,14 @@ class FileInputsAdder {
       return target;
     }
 
+    // Whatever is on disk at the path of an output which was left in the CAS is stale.
+    InputFile unmaterialized = unmaterializedFileReader.apply(path);
+    if (unmaterialized != null) {
+      inputsBuilder.addFile(cellPathPrefix.relativize(path), () -> unmaterialized);
+      map.put(path, path);
+      return path;
+    }
+
     Path symlinkTarget = symlinkReader.apply(path);
     if (symlinkTarget != null) {
       Path resolvedTarget = path.getParent().resolve(symlinkTarget).normalize();
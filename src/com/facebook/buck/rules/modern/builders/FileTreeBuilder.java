@@ -25,14 +25,17 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /**
  * Helper for constructing an input Digest for remote execution.
@@ -171,34 +174,60 @@ public class FileTreeBuilder {
     T build();
   }
 
-  /** This can be used to create the merkle tree of the added files. */
+  /**
+   * This can be used to create the merkle tree of the added files.
+   *
+   * <p>When given a {@link DirectoryDigestCache}, directories which have already been built for
+   * another action are not serialized and hashed again, and the data under directories the CAS is
+   * known to contain isn't passed to the requiredDataConsumer.
+   */
   public static class ProtocolTreeBuilder implements TreeBuilder<Protocol.Digest> {
     private final BiConsumer<Protocol.Digest, ThrowingSupplier<InputStream, IOException>>
         requiredDataConsumer;
     private final Consumer<Protocol.Directory> directoryConsumer;
     private final Protocol protocol;
+    @Nullable private final DirectoryDigestCache cache;
 
     private final ImmutableList.Builder<Protocol.DirectoryNode> children = ImmutableList.builder();
     private final ImmutableList.Builder<Protocol.FileNode> files = ImmutableList.builder();
     private final ImmutableList.Builder<Protocol.SymlinkNode> symlinks = ImmutableList.builder();
 
+    // With a cache, this describes the contents of the directory, and the data required by the
+    // directory is held back until we know whether the CAS might be missing it.
+    private final List<String> cacheKey = new ArrayList<>();
+    private final Map<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> requiredData =
+        new HashMap<>();
+
     public ProtocolTreeBuilder(
         BiConsumer<Protocol.Digest, ThrowingSupplier<InputStream, IOException>>
             requiredDataConsumer,
         Consumer<Protocol.Directory> directoryConsumer,
         Protocol protocol) {
+      this(requiredDataConsumer, directoryConsumer, protocol, null);
+    }
+
+    public ProtocolTreeBuilder(
+        BiConsumer<Protocol.Digest, ThrowingSupplier<InputStream, IOException>>
+            requiredDataConsumer,
+        Consumer<Protocol.Directory> directoryConsumer,
+        Protocol protocol,
+        @Nullable DirectoryDigestCache cache) {
       this.requiredDataConsumer = requiredDataConsumer;
       this.directoryConsumer = directoryConsumer;
       this.protocol = protocol;
+      this.cache = cache;
     }
 
     @Override
     public TreeBuilder<Protocol.Digest> addDirectory(String name) {
-      return new ProtocolTreeBuilder(requiredDataConsumer, directoryConsumer, protocol) {
+      return new ProtocolTreeBuilder(
+          ProtocolTreeBuilder.this::addRequiredData, directoryConsumer, protocol, cache) {
         @Override
         public Protocol.Digest build() {
           Protocol.Digest child = super.build();
-          children.add(protocol.newDirectoryNode(name, child));
+          ProtocolTreeBuilder.this.children.add(protocol.newDirectoryNode(name, child));
+          ProtocolTreeBuilder.this.addToCacheKey(
+              "d" + name + '\0' + child.getHash() + '\0' + child.getSize());
           return child;
         }
       };
@@ -213,16 +242,56 @@ public class FileTreeBuilder {
         ThrowingSupplier<InputStream, IOException> dataSupplier) {
       Protocol.Digest digest = protocol.newDigest(hash, size);
       files.add(protocol.newFileNode(digest, name, isExecutable));
-      requiredDataConsumer.accept(digest, dataSupplier);
+      addToCacheKey("f" + name + '\0' + hash + '\0' + size + '\0' + isExecutable);
+      addRequiredData(digest, dataSupplier);
     }
 
     @Override
     public void addSymlink(String name, Path path) {
       symlinks.add(protocol.newSymlinkNode(name, path));
+      addToCacheKey("s" + name + '\0' + path);
+    }
+
+    private void addToCacheKey(String entry) {
+      if (cache != null) {
+        cacheKey.add(entry);
+      }
+    }
+
+    private void addRequiredData(
+        Protocol.Digest digest, ThrowingSupplier<InputStream, IOException> dataSupplier) {
+      if (cache == null) {
+        requiredDataConsumer.accept(digest, dataSupplier);
+      } else {
+        requiredData.put(digest, dataSupplier);
+      }
     }
 
     @Override
     public Protocol.Digest build() {
+      if (cache == null) {
+        DirectoryDigestCache.Entry entry = buildDirectory();
+        requiredDataConsumer.accept(entry.digest, () -> new ByteArrayInputStream(entry.data));
+        directoryConsumer.accept(entry.directory);
+        return entry.digest;
+      }
+
+      ImmutableList<String> key = ImmutableList.sortedCopyOf(cacheKey);
+      DirectoryDigestCache.Entry entry = cache.get(key);
+      if (entry == null) {
+        entry = buildDirectory();
+        cache.put(key, entry);
+      }
+      if (!cache.isPresent(entry.digest)) {
+        byte[] data = entry.data;
+        requiredData.put(entry.digest, () -> new ByteArrayInputStream(data));
+        requiredData.forEach(requiredDataConsumer);
+      }
+      directoryConsumer.accept(entry.directory);
+      return entry.digest;
+    }
+
+    private DirectoryDigestCache.Entry buildDirectory() {
       Protocol.Directory directory =
           protocol.newDirectory(
               children
@@ -241,10 +310,7 @@ public class FileTreeBuilder {
                   .sorted(Comparator.comparing(Protocol.SymlinkNode::getName))
                   .collect(Collectors.toList()));
       byte[] data = protocol.toByteArray(directory);
-      Protocol.Digest digest = protocol.computeDigest(data);
-      requiredDataConsumer.accept(digest, () -> new ByteArrayInputStream(data));
-      directoryConsumer.accept(directory);
-      return digest;
+      return new DirectoryDigestCache.Entry(directory, data, protocol.computeDigest(data));
     }
   }
 
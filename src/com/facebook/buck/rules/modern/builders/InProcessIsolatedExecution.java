@@ -43,18 +43,22 @@ import java.util.Set;
 
 /** IsolatedExecution implementation that will run buildrules within the current buck process. */
 class InProcessIsolatedExecution implements IsolatedExecution {
+  /** How many times the inputs of a rule are uploaded before giving up on building it. */
+  private static final int MAX_UPLOAD_ATTEMPTS = 3;
+
   private final NamedTemporaryDirectory workDir;
   private final BuckEventBus eventBus;
   private final Console console;
   private final LocalContentAddressedStorage storage;
 
-  InProcessIsolatedExecution(BuckEventBus eventBus, Console console) throws IOException {
+  InProcessIsolatedExecution(
+      BuckEventBus eventBus, Console console, Optional<Long> casMaxSizeBytes) throws IOException {
     this.eventBus = eventBus;
     this.console = console;
     this.workDir = new NamedTemporaryDirectory("__work__");
     this.storage =
         new LocalContentAddressedStorage(
-            workDir.getPath().resolve("__cache__"), new ThriftProtocol());
+            workDir.getPath().resolve("__cache__"), new ThriftProtocol(), casMaxSizeBytes);
   }
 
   @Override
@@ -89,8 +93,20 @@ class InProcessIsolatedExecution implements IsolatedExecution {
         storage.addMissing(ImmutableMap.copyOf(requiredData));
       }
 
-      try (Scope scope = LeafEvents.scope(eventBus, "materializing_inputs")) {
-        storage.materializeInputs(buildDir, rootDigest, Optional.empty());
+      for (int attempt = 1; ; attempt++) {
+        try (Scope scope = LeafEvents.scope(eventBus, "materializing_inputs")) {
+          storage.materializeInputs(buildDir, rootDigest, Optional.empty());
+          break;
+        } catch (MissingInputsException e) {
+          // The storage may have evicted some of the inputs after they were found or uploaded.
+          if (attempt >= MAX_UPLOAD_ATTEMPTS) {
+            throw e;
+          }
+          MostFiles.deleteRecursivelyIfExists(buildDir);
+        }
+        try (Scope scope = LeafEvents.scope(eventBus, "uploading_inputs")) {
+          storage.recheckAndAddMissing(ImmutableMap.copyOf(requiredData));
+        }
       }
       new IsolatedBuildableBuilder(buildDir, projectRoot) {
         @Override
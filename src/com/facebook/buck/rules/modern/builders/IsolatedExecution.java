@@ -46,14 +46,39 @@ public interface IsolatedExecution extends Closeable {
       Path cellPrefixRoot)
       throws IOException, StepFailedException, InterruptedException;
 
+  /**
+   * Like {@link #build}, but the outputs may be left in the CAS and recorded in
+   * unmaterializedOutputs instead of being materialized. Implementations which don't use a CAS
+   * materialize them as usual.
+   */
+  default void buildWithoutMaterializingOutputs(
+      ExecutionContext executionContext,
+      FileTreeBuilder inputsBuilder,
+      Set<Path> outputs,
+      Path projectRoot,
+      HashCode hash,
+      BuildTarget buildTarget,
+      Path cellPrefixRoot,
+      UnmaterializedOutputs unmaterializedOutputs)
+      throws IOException, StepFailedException, InterruptedException {
+    build(
+        executionContext, inputsBuilder, outputs, projectRoot, hash, buildTarget, cellPrefixRoot);
+  }
+
   /** Creates a BuildRuleStrategy for a particular */
   static BuildRuleStrategy createIsolatedExecutionStrategy(
       IsolatedExecution executionStrategy,
       SourcePathRuleFinder ruleFinder,
       CellPathResolver cellResolver,
       Cell rootCell,
-      ThrowingFunction<Path, HashCode, IOException> fileHasher) {
+      ThrowingFunction<Path, HashCode, IOException> fileHasher,
+      boolean materializeOutputsOnDemand) {
     return new IsolatedExecutionStrategy(
-        executionStrategy, ruleFinder, cellResolver, rootCell, fileHasher);
+        executionStrategy,
+        ruleFinder,
+        cellResolver,
+        rootCell,
+        fileHasher,
+        materializeOutputsOnDemand);
   }
 }
@@ -65,6 +65,10 @@ import javax.annotation.Nullable;
  * This wraps an IsolatedExecution implementation into a BuildRuleStrategy implementation. This
  * handles setting up all the input files for isolated execution (the rule's inputs, the serialized
  * rule data, serialized buck configs, etc). Handles recording outputs, etc.
+ *
+ * <p>When outputs are materialized on demand, the outputs of the rules it builds are left in the
+ * CAS. Those which are inputs of other rules it builds are passed on by digest, and the build
+ * engine materializes the others through {@link #materializeOutputs}.
  */
 public class IsolatedExecutionStrategy extends AbstractModernBuildRuleStrategy {
   private final IsolatedExecution executionStrategy;
@@ -77,18 +81,22 @@ public class IsolatedExecutionStrategy extends AbstractModernBuildRuleStrategy {
   private final Path cellPathPrefix;
   private final Set<Optional<String>> cellNames;
   private final Map<HashCode, Node> nodeMap;
+  private final boolean materializeOutputsOnDemand;
+  private final UnmaterializedOutputs unmaterializedOutputs = new UnmaterializedOutputs();
 
   IsolatedExecutionStrategy(
       IsolatedExecution executionStrategy,
       SourcePathRuleFinder ruleFinder,
       CellPathResolver cellResolver,
       Cell rootCell,
-      ThrowingFunction<Path, HashCode, IOException> fileHasher) {
+      ThrowingFunction<Path, HashCode, IOException> fileHasher,
+      boolean materializeOutputsOnDemand) {
     this.executionStrategy = executionStrategy;
     this.cellResolver = cellResolver;
     this.rootCell = rootCell;
     this.fileHasher = fileHasher;
     this.nodeMap = new ConcurrentHashMap<>();
+    this.materializeOutputsOnDemand = materializeOutputsOnDemand;
 
     Delegate delegate =
         (instance, data, children) -> {
@@ -157,6 +165,16 @@ public class IsolatedExecutionStrategy extends AbstractModernBuildRuleStrategy {
     executionStrategy.close();
   }
 
+  @Override
+  public boolean materializesOutputsOnDemand(BuildRule rule) {
+    return materializeOutputsOnDemand && canBuild(rule);
+  }
+
+  @Override
+  public void materializeOutputs(BuildRule rule) throws IOException {
+    unmaterializedOutputs.materialize(rule.getBuildTarget());
+  }
+
   @Override
   public void build(
       ListeningExecutorService service, BuildRule rule, BuildExecutorRunner executorRunner) {
@@ -199,14 +217,26 @@ public class IsolatedExecutionStrategy extends AbstractModernBuildRuleStrategy {
               outputs.add(cellPathPrefix.relativize(rule.getProjectFilesystem().resolve(path))));
     }
 
-    executionStrategy.build(
-        executionContext,
-        inputsBuilder,
-        outputs,
-        cellPathPrefix.relativize(rootCell.getRoot()),
-        hash,
-        rule.getBuildTarget(),
-        cellPathPrefix);
+    if (materializeOutputsOnDemand) {
+      executionStrategy.buildWithoutMaterializingOutputs(
+          executionContext,
+          inputsBuilder,
+          outputs,
+          cellPathPrefix.relativize(rootCell.getRoot()),
+          hash,
+          rule.getBuildTarget(),
+          cellPathPrefix,
+          unmaterializedOutputs);
+    } else {
+      executionStrategy.build(
+          executionContext,
+          inputsBuilder,
+          outputs,
+          cellPathPrefix.relativize(rootCell.getRoot()),
+          hash,
+          rule.getBuildTarget(),
+          cellPathPrefix);
+    }
 
     converted.recordOutputs(buildableContext);
   }
@@ -237,7 +267,8 @@ public class IsolatedExecutionStrategy extends AbstractModernBuildRuleStrategy {
             cellPathPrefix,
             fileHasher,
             this::getDirectoryContents,
-            this::getSymlinkTarget);
+            this::getSymlinkTarget,
+            unmaterializedOutputs::getInputFile);
     for (SourcePath inputSourcePath : converted.computeInputs()) {
       Path resolved =
           buildContext.getSourcePathResolver().getAbsolutePath(inputSourcePath).normalize();
@@ -272,6 +303,19 @@ public class IsolatedExecutionStrategy extends AbstractModernBuildRuleStrategy {
 
   @Nullable
   private Iterable<Path> getDirectoryContents(Path path) throws IOException {
+    Iterable<Path> contents = getDirectoryContentsOnDisk(path);
+    // Outputs which were left in the CAS may not exist on disk.
+    ImmutableSet<Path> unmaterialized = unmaterializedOutputs.getDirectoryEntries(path);
+    if (unmaterialized.isEmpty()) {
+      return contents;
+    }
+    return contents == null
+        ? unmaterialized
+        : ImmutableSet.<Path>builder().addAll(contents).addAll(unmaterialized).build();
+  }
+
+  @Nullable
+  private Iterable<Path> getDirectoryContentsOnDisk(Path path) throws IOException {
     try {
       Preconditions.checkState(path.startsWith(cellPathPrefix));
       return directoryContents.computeIfAbsent(
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules.modern.builders;
 
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.modern.builders.MultiThreadedBlobUploader.UploadData;
 import com.facebook.buck.rules.modern.builders.MultiThreadedBlobUploader.UploadResult;
 import com.facebook.buck.rules.modern.builders.Protocol.DirectoryNode;
@@ -31,43 +32,83 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.MoreFiles;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.devtools.build.lib.concurrent.KeyedLocker.AutoUnlocker;
-import com.google.devtools.build.lib.concurrent.StripedKeyedLocker;
+import com.google.common.util.concurrent.Striped;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
+import javax.annotation.concurrent.GuardedBy;
 
-/** A simple, on-disk content addressed storage. */
+/**
+ * A simple, on-disk content addressed storage.
+ *
+ * <p>The storage can be bounded, in which case the blobs which were least recently used are evicted
+ * once it grows past its maximum size. The blobs which were just stored are never evicted, so the
+ * maximum size should comfortably exceed the inputs and outputs of the actions which run at once.
+ */
 public class LocalContentAddressedStorage implements ContentAddressedStorage {
+  private static final Logger LOG = Logger.get(LocalContentAddressedStorage.class);
+
   private final Path cacheDir;
-  private final StripedKeyedLocker<String> fileLock = new StripedKeyedLocker<>(8);
+  private final Striped<Lock> fileLocks = Striped.lazyWeakLock(LOCK_STRIPES);
 
   private static final int MISSING_CHECK_LIMIT = 1000;
   private static final int UPLOAD_SIZE_LIMIT = 10 * 1024 * 1024;
+  private static final int LOCK_STRIPES = 1024;
+  // Smaller blobs are cheaper to read than to map.
+  private static final long MMAP_THRESHOLD_BYTES = 64 * 1024;
+  private static final String EXECUTABLE_SUFFIX = ".x";
+  private static final String TEMP_SUFFIX = ".tmp";
 
   private final MultiThreadedBlobUploader uploader;
+  private final AsyncBlobFetcher fetcher;
   private final OutputsMaterializer outputsMaterializer;
   private final InputsMaterializer inputsMaterializer;
   private final Protocol protocol;
+  private final Optional<Long> maxSizeBytes;
+  private final AccessIndex accessIndex = new AccessIndex();
 
   public LocalContentAddressedStorage(Path cacheDir, Protocol protocol) {
+    this(cacheDir, protocol, Optional.empty());
+  }
+
+  /**
+   * @param maxSizeBytes the size past which the least recently used blobs are evicted, if any.
+   */
+  public LocalContentAddressedStorage(
+      Path cacheDir, Protocol protocol, Optional<Long> maxSizeBytes) {
     this.cacheDir = cacheDir;
     this.protocol = protocol;
+    this.maxSizeBytes = maxSizeBytes;
+    indexExistingBlobs();
     ExecutorService uploadService = MostExecutors.newMultiThreadExecutor("local-cas-write", 4);
     this.uploader =
         new MultiThreadedBlobUploader(
@@ -88,12 +129,12 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
                     .collect(ImmutableSet.toImmutableSet());
               }
             });
-    AsyncBlobFetcher fetcher =
+    this.fetcher =
         new AsyncBlobFetcher() {
           @Override
           public ListenableFuture<ByteBuffer> fetch(Protocol.Digest digest) {
-            try (InputStream stream = getData(digest)) {
-              return Futures.immediateFuture(ByteBuffer.wrap(ByteStreams.toByteArray(stream)));
+            try {
+              return Futures.immediateFuture(readData(digest));
             } catch (IOException e) {
               return Futures.immediateFailedFuture(e);
             }
@@ -101,7 +142,11 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
 
           @Override
           public void fetchToStream(Protocol.Digest digest, OutputStream outputStream) {
-            throw new UnsupportedOperationException();
+            try {
+              transferData(digest, outputStream);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
           }
         };
     this.outputsMaterializer = new OutputsMaterializer(fetcher, protocol);
@@ -111,33 +156,46 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
             new InputsMaterializer.Delegate() {
               @Override
               public void materializeFile(Path root, FileNode file) throws IOException {
-                Path path = getPath(file.getDigest().getHash());
-                Preconditions.checkState(Files.exists(path));
-                // As this file could potentially be materialized as both executable and
-                // non-executable, and
-                // links share that, we need two concrete versions of the file.
-                if (file.getIsExecutable()) {
-                  Path exePath = path.getParent().resolve(path.getFileName() + ".x");
-                  if (!Files.exists(exePath)) {
-                    try (AutoUnlocker ignored = fileLock.writeLock(exePath.toString())) {
-                      if (!Files.exists(exePath)) {
-                        Path tempPath = path.getParent().resolve(path.getFileName() + ".x.tmp");
-                        Files.copy(path, tempPath);
-                        Preconditions.checkState(tempPath.toFile().setExecutable(true));
-                        Files.move(tempPath, exePath);
-                      }
+                String hash = file.getDigest().getHash();
+                Path target = root.resolve(file.getName());
+                Preconditions.checkState(target.normalize().startsWith(root));
+                Lock lock = fileLocks.get(hash);
+                lock.lock();
+                try {
+                  Path path = getPath(hash);
+                  if (!Files.exists(path)) {
+                    throw new MissingInputsException(String.format("Couldn't find %s.", path));
+                  }
+                  // As this file could potentially be materialized as both executable and
+                  // non-executable, and
+                  // links share that, we need two concrete versions of the file.
+                  if (file.getIsExecutable()) {
+                    Path exePath = path.resolveSibling(path.getFileName() + EXECUTABLE_SUFFIX);
+                    if (!Files.exists(exePath)) {
+                      Path tempPath = exePath.resolveSibling(exePath.getFileName() + TEMP_SUFFIX);
+                      Files.copy(path, tempPath, StandardCopyOption.REPLACE_EXISTING);
+                      Preconditions.checkState(tempPath.toFile().setExecutable(true));
+                      Files.move(tempPath, exePath);
+                      accessIndex.add(hash, Files.size(exePath));
                     }
+                    path = exePath;
                   }
-                  path = exePath;
+                  // Holding the lock keeps the blob from being evicted before it's linked.
+                  Files.createLink(target, path);
+                } finally {
+                  lock.unlock();
                 }
-                Path target = root.resolve(file.getName());
-                Preconditions.checkState(target.normalize().startsWith(root));
-                Files.createLink(target, path);
+                accessIndex.touch(hash);
               }
 
               @Override
-              public InputStream getData(Protocol.Digest digest) throws IOException {
-                return LocalContentAddressedStorage.this.getData(digest);
+              public ByteBuffer getData(Protocol.Digest digest) throws IOException {
+                try {
+                  return readData(digest);
+                } catch (NoSuchFileException e) {
+                  throw new MissingInputsException(
+                      String.format("Couldn't find %s.", e.getFile()));
+                }
               }
             });
   }
@@ -145,29 +203,95 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
   /** Upload blobs. */
   public ImmutableList<UploadResult> batchUpdateBlobs(ImmutableList<UploadData> blobData) {
     ImmutableList.Builder<UploadResult> responseBuilder = ImmutableList.builder();
+    Set<String> stored = new HashSet<>();
     for (UploadData data : blobData) {
       String hash = data.digest.getHash();
       try {
         Path path = ensureParent(getPath(hash));
-        try (AutoUnlocker ignored = fileLock.writeLock(hash)) {
-          if (Files.exists(path)) {
-            continue;
-          }
-          Path tempPath = path.getParent().resolve(path.getFileName() + ".tmp");
-          try (FileOutputStream outputStream = new FileOutputStream(tempPath.toFile());
-              InputStream dataStream = data.data.get()) {
-            ByteStreams.copy(dataStream, outputStream);
+        Lock lock = fileLocks.get(hash);
+        lock.lock();
+        try {
+          if (!Files.exists(path)) {
+            Path tempPath = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+            long size = 0;
+            try (FileChannel output =
+                    FileChannel.open(
+                        tempPath,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                ReadableByteChannel input = Channels.newChannel(data.data.get())) {
+              long transferred;
+              while ((transferred = output.transferFrom(input, size, UPLOAD_SIZE_LIMIT)) > 0) {
+                size += transferred;
+              }
+            }
+            Files.move(tempPath, path);
+            accessIndex.add(hash, size);
           }
-          Files.move(tempPath, path);
+        } finally {
+          lock.unlock();
         }
+        accessIndex.touch(hash);
+        stored.add(hash);
         responseBuilder.add(new UploadResult(data.digest, 0, null));
       } catch (IOException e) {
         responseBuilder.add(new UploadResult(data.digest, 1, e.getMessage()));
       }
     }
+    evictIfNeeded(stored);
     return responseBuilder.build();
   }
 
+  /**
+   * Evicts the least recently used blobs until the storage fits in its maximum size again.
+   *
+   * @param retained the blobs which must not be evicted, even if they were used the least recently.
+   */
+  private void evictIfNeeded(Set<String> retained) {
+    if (!maxSizeBytes.isPresent()) {
+      return;
+    }
+    for (String hash : accessIndex.selectForEviction(maxSizeBytes.get(), retained)) {
+      Lock lock = fileLocks.get(hash);
+      lock.lock();
+      try {
+        Path path = getPath(hash);
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(path.resolveSibling(path.getFileName() + EXECUTABLE_SUFFIX));
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to evict %s from the local CAS.", hash);
+      } finally {
+        lock.unlock();
+      }
+      uploader.onEvicted(hash);
+    }
+  }
+
+  /** Adds the blobs left by a previous instance to the index, oldest first. */
+  private void indexExistingBlobs() {
+    if (!Files.isDirectory(cacheDir)) {
+      return;
+    }
+    try (Stream<Path> files = Files.walk(cacheDir)) {
+      files
+          .filter(Files::isRegularFile)
+          .filter(path -> !path.getFileName().toString().endsWith(TEMP_SUFFIX))
+          .sorted(Comparator.comparing(path -> path.toFile().lastModified()))
+          .forEach(
+              path -> {
+                String name = path.getFileName().toString();
+                String hash =
+                    name.endsWith(EXECUTABLE_SUFFIX)
+                        ? name.substring(0, name.length() - EXECUTABLE_SUFFIX.length())
+                        : name;
+                accessIndex.add(hash, path.toFile().length());
+              });
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to index the local CAS at %s.", cacheDir);
+    }
+  }
+
   @Override
   public void addMissing(
       ImmutableMap<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> data)
@@ -175,6 +299,18 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
     uploader.addMissing(data);
   }
 
+  @Override
+  public void recheckAndAddMissing(
+      ImmutableMap<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> data)
+      throws IOException {
+    uploader.recheckAndAddMissing(data);
+  }
+
+  @Override
+  public ListenableFuture<ByteBuffer> fetch(Protocol.Digest digest) {
+    return fetcher.fetch(digest);
+  }
+
   /**
    * Materializes the outputs into the build root. All required data must be present (or inlined).
    */
@@ -200,10 +336,7 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
 
   private void buildTree(Consumer<Protocol.Directory> builder, Protocol.Digest digest)
       throws IOException {
-    Protocol.Directory directory;
-    try (InputStream data = getData(digest)) {
-      directory = protocol.parseDirectory(ByteBuffer.wrap(ByteStreams.toByteArray(data)));
-    }
+    Protocol.Directory directory = protocol.parseDirectory(readData(digest));
     builder.accept(directory);
     for (Protocol.DirectoryNode directoryNode : directory.getDirectoriesList()) {
       buildTree(builder, directoryNode.getDigest());
@@ -222,7 +355,7 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
     interface Delegate {
       void materializeFile(Path root, Protocol.FileNode file) throws IOException;
 
-      InputStream getData(Protocol.Digest digest) throws IOException;
+      ByteBuffer getData(Protocol.Digest digest) throws IOException;
 
       default void materializeSymlink(Path root, SymlinkNode symlink) throws IOException {
         Files.createSymbolicLink(root.resolve(symlink.getName()), Paths.get(symlink.getTarget()));
@@ -233,10 +366,7 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
     public Optional<Protocol.Command> materializeInputs(
         Path root, Protocol.Digest inputsDigest, Optional<Protocol.Digest> commandDigest)
         throws IOException {
-      Protocol.Directory dir;
-      try (InputStream dataStream = delegate.getData(inputsDigest)) {
-        dir = protocol.parseDirectory(ByteBuffer.wrap(ByteStreams.toByteArray(dataStream)));
-      }
+      Protocol.Directory dir = protocol.parseDirectory(delegate.getData(inputsDigest));
 
       Files.createDirectories(root);
       for (FileNode file : dir.getFilesList()) {
@@ -250,10 +380,7 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
       }
 
       if (commandDigest.isPresent()) {
-        try (InputStream dataStream = delegate.getData(commandDigest.get())) {
-          return Optional.of(
-              protocol.parseCommand(ByteBuffer.wrap(ByteStreams.toByteArray(dataStream))));
-        }
+        return Optional.of(protocol.parseCommand(delegate.getData(commandDigest.get())));
       }
       return Optional.empty();
     }
@@ -264,9 +391,46 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
   public InputStream getData(Protocol.Digest digest) throws IOException {
     Path path = getPath(digest.getHash());
     Preconditions.checkState(Files.exists(path), "Couldn't find %s.", path);
+    accessIndex.touch(digest.getHash());
     return new FileInputStream(path.toFile());
   }
 
+  /**
+   * Reads some data. Large blobs are memory mapped rather than copied, and the mapping stays valid
+   * even if the blob is evicted.
+   *
+   * @throws NoSuchFileException if the blob isn't stored, or has been evicted.
+   */
+  public ByteBuffer readData(Protocol.Digest digest) throws IOException {
+    Path path = getPath(digest.getHash());
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      accessIndex.touch(digest.getHash());
+      long size = channel.size();
+      if (size >= MMAP_THRESHOLD_BYTES) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining() && channel.read(buffer) != -1) {}
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  /** Writes some data to a stream, without copying it through the heap where possible. */
+  public void transferData(Protocol.Digest digest, OutputStream outputStream) throws IOException {
+    Path path = getPath(digest.getHash());
+    Preconditions.checkState(Files.exists(path), "Couldn't find %s.", path);
+    accessIndex.touch(digest.getHash());
+    WritableByteChannel output = Channels.newChannel(outputStream);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long position = 0;
+      while (position < size) {
+        position += channel.transferTo(position, size - position, output);
+      }
+    }
+  }
+
   private static Path ensureParent(Path path) throws IOException {
     MoreFiles.createParentDirectories(path);
     return path;
@@ -280,6 +444,59 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
   }
 
   public Stream<Protocol.Digest> findMissing(Iterable<Protocol.Digest> digests) {
-    return RichStream.from(digests).filter(digest -> !Files.exists(getPath(digest.getHash())));
+    return RichStream.from(digests)
+        .filter(
+            digest -> {
+              if (Files.exists(getPath(digest.getHash()))) {
+                // Whoever asked is about to use it.
+                accessIndex.touch(digest.getHash());
+                return false;
+              }
+              return true;
+            });
+  }
+
+  @VisibleForTesting
+  long getSizeBytes() {
+    return accessIndex.getTotalSizeBytes();
+  }
+
+  /** Tracks the size of the stored blobs, in the order they were last used. */
+  private static class AccessIndex {
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    @GuardedBy("this")
+    private long totalSizeBytes = 0;
+
+    /** Records that a file of the given size was stored for the blob. */
+    synchronized void add(String hash, long sizeBytes) {
+      sizes.merge(hash, sizeBytes, Long::sum);
+      totalSizeBytes += sizeBytes;
+    }
+
+    synchronized void touch(String hash) {
+      sizes.get(hash);
+    }
+
+    synchronized long getTotalSizeBytes() {
+      return totalSizeBytes;
+    }
+
+    /** Removes the least recently used blobs from the index until it fits in the given size. */
+    synchronized List<String> selectForEviction(long maxSizeBytes, Set<String> retained) {
+      List<String> evicted = new ArrayList<>();
+      Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+      while (totalSizeBytes > maxSizeBytes && iterator.hasNext()) {
+        Map.Entry<String, Long> entry = iterator.next();
+        if (retained.contains(entry.getKey())) {
+          continue;
+        }
+        totalSizeBytes -= entry.getValue();
+        evicted.add(entry.getKey());
+        iterator.remove();
+      }
+      return evicted;
+    }
   }
 }
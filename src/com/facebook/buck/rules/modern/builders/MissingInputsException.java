@@ -0,0 +1,29 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.modern.builders;
+
+import java.io.IOException;
+
+/**
+ * Thrown when some of the inputs of an action can't be found in the CAS. A bounded CAS may evict
+ * blobs after they were found or uploaded, in which case the inputs should be uploaded again.
+ */
+public class MissingInputsException extends IOException {
+  public MissingInputsException(String message) {
+    super(message);
+  }
+}
@@ -64,7 +64,8 @@ public class ModernBuildRuleBuilderFactory {
                   rootCell,
                   hashLoader::get,
                   config.getRemoteHost(),
-                  config.getRemotePort()));
+                  config.getRemotePort(),
+                  config.shouldMaterializeOutputsOnDemand()));
         case DEBUG_RECONSTRUCT:
           return Optional.of(
               createReconstructing(new SourcePathRuleFinder(resolver), cellResolver, rootCell));
@@ -78,7 +79,9 @@ public class ModernBuildRuleBuilderFactory {
                   rootCell,
                   hashLoader::get,
                   eventBus,
-                  console));
+                  console,
+                  config.getLocalCasMaxSizeBytes(),
+                  config.shouldMaterializeOutputsOnDemand()));
         case DEBUG_ISOLATED_OUT_OF_PROCESS:
           return Optional.of(
               createIsolatedOutOfProcess(
@@ -87,7 +90,9 @@ public class ModernBuildRuleBuilderFactory {
                   cellResolver,
                   rootCell,
                   hashLoader::get,
-                  new ThriftProtocol()));
+                  new ThriftProtocol(),
+                  config.getLocalCasMaxSizeBytes(),
+                  config.shouldMaterializeOutputsOnDemand()));
         case DEBUG_ISOLATED_OUT_OF_PROCESS_GRPC:
           return Optional.of(
               createIsolatedOutOfProcess(
@@ -96,7 +101,9 @@ public class ModernBuildRuleBuilderFactory {
                   cellResolver,
                   rootCell,
                   hashLoader::get,
-                  new GrpcProtocol()));
+                  new GrpcProtocol(),
+                  config.getLocalCasMaxSizeBytes(),
+                  config.shouldMaterializeOutputsOnDemand()));
         case DEBUG_GRPC_SERVICE_IN_PROCESS:
           return Optional.of(
               createGrpcInProcess(
@@ -104,7 +111,9 @@ public class ModernBuildRuleBuilderFactory {
                   new SourcePathRuleFinder(resolver),
                   cellResolver,
                   rootCell,
-                  hashLoader::get));
+                  hashLoader::get,
+                  config.getLocalCasMaxSizeBytes(),
+                  config.shouldMaterializeOutputsOnDemand()));
       }
     } catch (IOException e) {
       throw new BuckUncheckedExecutionException(e, "When creating MBR build strategy.");
@@ -146,14 +155,17 @@ public class ModernBuildRuleBuilderFactory {
       CellPathResolver cellResolver,
       Cell rootCell,
       ThrowingFunction<Path, HashCode, IOException> fileHasher,
-      Protocol protocol)
+      Protocol protocol,
+      Optional<Long> casMaxSizeBytes,
+      boolean materializeOutputsOnDemand)
       throws IOException {
     return IsolatedExecution.createIsolatedExecutionStrategy(
-        OutOfProcessIsolatedExecution.create(protocol, eventBus),
+        OutOfProcessIsolatedExecution.create(protocol, eventBus, casMaxSizeBytes),
         ruleFinder,
         cellResolver,
         rootCell,
-        fileHasher);
+        fileHasher,
+        materializeOutputsOnDemand);
   }
 
   /**
@@ -168,14 +180,17 @@ public class ModernBuildRuleBuilderFactory {
       Cell rootCell,
       ThrowingFunction<Path, HashCode, IOException> fileHasher,
       BuckEventBus eventBus,
-      Console console)
+      Console console,
+      Optional<Long> casMaxSizeBytes,
+      boolean materializeOutputsOnDemand)
       throws IOException {
     return IsolatedExecution.createIsolatedExecutionStrategy(
-        new InProcessIsolatedExecution(eventBus, console),
+        new InProcessIsolatedExecution(eventBus, console, casMaxSizeBytes),
         ruleFinder,
         cellResolver,
         rootCell,
-        fileHasher);
+        fileHasher,
+        materializeOutputsOnDemand);
   }
 
   private static BuildRuleStrategy createGrpcRemote(
@@ -185,14 +200,16 @@ public class ModernBuildRuleBuilderFactory {
       Cell rootCell,
       ThrowingFunction<Path, HashCode, IOException> fileHasher,
       String host,
-      int port)
+      int port,
+      boolean materializeOutputsOnDemand)
       throws IOException {
     return IsolatedExecution.createIsolatedExecutionStrategy(
         GrpcExecutionFactory.createRemote(host, port, eventBus),
         ruleFinder,
         cellResolver,
         rootCell,
-        fileHasher);
+        fileHasher,
+        materializeOutputsOnDemand);
   }
 
   public static BuildRuleStrategy createGrpcInProcess(
@@ -200,13 +217,16 @@ public class ModernBuildRuleBuilderFactory {
       SourcePathRuleFinder ruleFinder,
       CellPathResolver cellResolver,
       Cell rootCell,
-      ThrowingFunction<Path, HashCode, IOException> fileHasher)
+      ThrowingFunction<Path, HashCode, IOException> fileHasher,
+      Optional<Long> casMaxSizeBytes,
+      boolean materializeOutputsOnDemand)
       throws IOException {
     return IsolatedExecution.createIsolatedExecutionStrategy(
-        GrpcExecutionFactory.createInProcess(eventBus),
+        GrpcExecutionFactory.createInProcess(eventBus, casMaxSizeBytes),
         ruleFinder,
         cellResolver,
         rootCell,
-        fileHasher);
+        fileHasher,
+        materializeOutputsOnDemand);
   }
 }
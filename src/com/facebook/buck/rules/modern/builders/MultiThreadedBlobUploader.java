@@ -124,6 +124,22 @@ public class MultiThreadedBlobUploader {
     }
   }
 
+  /**
+   * Uploads missing items to the CAS, without relying on earlier checks of whether it contains
+   * them.
+   */
+  public void recheckAndAddMissing(
+      ImmutableMap<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> data)
+      throws IOException {
+    data.keySet().forEach(digest -> containedHashes.remove(digest.getHash()));
+    addMissing(data);
+  }
+
+  /** Forgets that the CAS contains the given blob, as it has been removed from it. */
+  public void onEvicted(String hash) {
+    containedHashes.remove(hash);
+  }
+
   private ListenableFuture<Void> enqueue(
       ImmutableMap<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> data) {
     ImmutableList.Builder<ListenableFuture<Void>> futures = ImmutableList.builder();
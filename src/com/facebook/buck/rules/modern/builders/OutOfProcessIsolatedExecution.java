@@ -43,11 +43,13 @@ public class OutOfProcessIsolatedExecution extends RemoteExecution {
    * Returns a RemoteExecution implementation that uses a local CAS and a separate local temporary
    * directory for execution.
    */
-  public static OutOfProcessIsolatedExecution create(Protocol protocol, BuckEventBus eventBus)
+  public static OutOfProcessIsolatedExecution create(
+      Protocol protocol, BuckEventBus eventBus, Optional<Long> casMaxSizeBytes)
       throws IOException {
     NamedTemporaryDirectory workDir = new NamedTemporaryDirectory("__work__");
     LocalContentAddressedStorage storage =
-        new LocalContentAddressedStorage(workDir.getPath().resolve("__cache__"), protocol);
+        new LocalContentAddressedStorage(
+            workDir.getPath().resolve("__cache__"), protocol, casMaxSizeBytes);
     return new OutOfProcessIsolatedExecution(workDir, storage, protocol, eventBus);
   }
 
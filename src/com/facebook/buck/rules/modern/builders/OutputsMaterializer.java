@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules.modern.builders;
 
+import com.facebook.buck.io.file.MostFiles;
 import com.facebook.buck.rules.modern.builders.Protocol.OutputDirectory;
 import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.function.ThrowingFunction;
@@ -25,20 +26,39 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.io.MoreFiles;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-/** Used for materialzing outputs from the CAS. */
+/**
+ * Used for materialzing outputs from the CAS.
+ *
+ * <p>By default every output of an action is materialized as soon as the action is done. With
+ * modern_build_rule.materialize_outputs_on_demand, outputs are left in the CAS until something needs
+ * them on disk, see UnmaterializedOutputs.
+ *
+ * <p>This avoids fetching the same blob more than once for an action, and fetching files which a
+ * previous build of the rule left in place with the expected contents. The latter only helps when
+ * the output directory is reused, and costs a local read of each file whose size matches its
+ * digest. Anything else at the output paths is replaced or removed.
+ */
 public class OutputsMaterializer {
   private final AsyncBlobFetcher fetcher;
   private final Protocol protocol;
@@ -60,19 +80,27 @@ public class OutputsMaterializer {
       Path root)
       throws IOException {
     ImmutableList.Builder<ListenableFuture<Void>> pending = ImmutableList.builder();
+    // The first path each blob is materialized to, keyed by hash.
+    ConcurrentMap<String, ListenableFuture<Path>> materialized = new ConcurrentHashMap<>();
 
     for (Protocol.OutputFile file : outputFiles) {
       Path path = root.resolve(file.getPath());
       ensureParent(path);
       ByteBuffer content = file.getContent();
       if (content != null) {
+        deleteUnlessRegularFile(path);
         try (FileChannel output =
-            FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            FileChannel.open(
+                path,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
           output.write(content);
         }
         setExecutable(file.getIsExecutable(), path);
       } else {
-        pending.add(fetchAndMaterialize(file.getDigest(), file.getIsExecutable(), path));
+        pending.add(
+            fetchAndMaterialize(materialized, file.getDigest(), file.getIsExecutable(), path));
       }
     }
 
@@ -92,7 +120,8 @@ public class OutputsMaterializer {
 
                 ImmutableList.Builder<ListenableFuture<Void>> pendingFilesBuilder =
                     ImmutableList.builder();
-                materializeDirectory(childMap, tree.getRoot(), dirRoot, pendingFilesBuilder::add);
+                materializeDirectory(
+                    materialized, childMap, tree.getRoot(), dirRoot, pendingFilesBuilder::add);
                 return Futures.whenAllSucceed(pendingFilesBuilder.build()).call(() -> null);
               }));
     }
@@ -105,14 +134,21 @@ public class OutputsMaterializer {
   }
 
   private void materializeDirectory(
+      ConcurrentMap<String, ListenableFuture<Path>> materialized,
       Map<Protocol.Digest, Protocol.Directory> childMap,
       Protocol.Directory directory,
       Path root,
       Consumer<ListenableFuture<Void>> pendingWorkConsumer)
       throws IOException {
+    if (!Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+      MostFiles.deleteRecursivelyIfExists(root);
+    }
     Files.createDirectories(root);
+    removeStaleEntries(directory, root);
+
     for (Protocol.DirectoryNode childNode : directory.getDirectoriesList()) {
       materializeDirectory(
+          materialized,
           childMap,
           Preconditions.checkNotNull(childMap.get(childNode.getDigest())),
           root.resolve(childNode.getName()),
@@ -122,32 +158,97 @@ public class OutputsMaterializer {
     for (Protocol.FileNode file : directory.getFilesList()) {
       pendingWorkConsumer.accept(
           fetchAndMaterialize(
-              file.getDigest(), file.getIsExecutable(), root.resolve(file.getName())));
+              materialized,
+              file.getDigest(),
+              file.getIsExecutable(),
+              root.resolve(file.getName())));
+    }
+  }
+
+  /** Removes anything left in an output directory which isn't part of the outputs. */
+  private void removeStaleEntries(Protocol.Directory directory, Path root) throws IOException {
+    Set<String> names = new HashSet<>();
+    directory.getDirectoriesList().forEach(child -> names.add(child.getName()));
+    directory.getFilesList().forEach(file -> names.add(file.getName()));
+    try (Stream<Path> entries = Files.list(root)) {
+      for (Path entry : (Iterable<Path>) entries::iterator) {
+        if (!names.contains(entry.getFileName().toString())) {
+          MostFiles.deleteRecursivelyIfExists(entry);
+        }
+      }
     }
   }
 
   private ListenableFuture<Void> fetchAndMaterialize(
-      Protocol.Digest digest, boolean isExecutable, Path path) {
-    return Futures.transform(
-        fetcher.fetch(digest),
-        data -> {
-          try {
-            try (FileOutputStream fileStream = new FileOutputStream(path.toFile())) {
-              fileStream.getChannel().write(data);
-            }
-            if (isExecutable) {
-              setExecutable(true, path);
+      ConcurrentMap<String, ListenableFuture<Path>> materialized,
+      Protocol.Digest digest,
+      boolean isExecutable,
+      Path path) {
+    try {
+      if (isMaterialized(digest, path)) {
+        setExecutable(isExecutable, path);
+        materialized.putIfAbsent(digest.getHash(), Futures.immediateFuture(path));
+        return Futures.immediateFuture(null);
+      }
+      deleteUnlessRegularFile(path);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+
+    SettableFuture<Path> materializedHere = SettableFuture.create();
+    ListenableFuture<Path> source = materialized.putIfAbsent(digest.getHash(), materializedHere);
+    if (source != null) {
+      // Another output has the same contents, so copy that rather than fetching it again.
+      return Futures.transform(
+          source,
+          sourcePath -> {
+            try {
+              Files.copy(sourcePath, path, StandardCopyOption.REPLACE_EXISTING);
+              setExecutable(isExecutable, path);
+              return null;
+            } catch (IOException e) {
+              throw new UncheckedExecutionException(e);
             }
-            return null;
-          } catch (IOException e) {
-            throw new UncheckedExecutionException(e);
-          }
-        });
+          });
+    }
+
+    materializedHere.setFuture(
+        Futures.transform(
+            fetcher.fetch(digest),
+            data -> {
+              try {
+                try (FileOutputStream fileStream = new FileOutputStream(path.toFile())) {
+                  fileStream.getChannel().write(data);
+                }
+                setExecutable(isExecutable, path);
+                return path;
+              } catch (IOException e) {
+                throw new UncheckedExecutionException(e);
+              }
+            }));
+    return Futures.transform(materializedHere, ignored -> null);
+  }
+
+  /** @return whether the path already holds a regular file with the given contents. */
+  private boolean isMaterialized(Protocol.Digest digest, Path path) throws IOException {
+    // Only hash files whose size matches, so that we don't read files which are bound to be
+    // replaced. The digest has to be computed the way the protocol computes it for outputs.
+    return Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)
+        && Files.size(path) == digest.getSize()
+        && protocol.computeDigest(Files.readAllBytes(path)).getHash().equals(digest.getHash());
+  }
+
+  /** Writing through a symlink would modify its target, so those have to be removed first. */
+  private static void deleteUnlessRegularFile(Path path) throws IOException {
+    if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)
+        && !Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+      MostFiles.deleteRecursivelyIfExists(path);
+    }
   }
 
   private void setExecutable(boolean isExecutable, Path path) {
-    if (isExecutable) {
-      Preconditions.checkState(path.toFile().setExecutable(true));
+    if (isExecutable != Files.isExecutable(path)) {
+      Preconditions.checkState(path.toFile().setExecutable(isExecutable));
     }
   }
 }
@@ -20,6 +20,7 @@ import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.LeafEvents;
 import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.modern.builders.FileTreeBuilder.InputFile;
 import com.facebook.buck.rules.modern.builders.FileTreeBuilder.ProtocolTreeBuilder;
 import com.facebook.buck.rules.modern.builders.Protocol.Digest;
@@ -48,6 +49,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -61,6 +63,11 @@ import java.util.function.Supplier;
  * for a high-level description of the approach to remote execution.
  */
 public abstract class RemoteExecution implements IsolatedExecution {
+  private static final Logger LOG = Logger.get(RemoteExecution.class);
+
+  /** How many times the inputs of an action are uploaded before giving up on running it. */
+  private static final int MAX_UPLOAD_ATTEMPTS = 3;
+
   private static final Path TRAMPOLINE =
       Paths.get(
           System.getProperty(
@@ -71,6 +78,8 @@ public abstract class RemoteExecution implements IsolatedExecution {
 
   private final BuckEventBus eventBus;
 
+  private final DirectoryDigestCache directoryDigestCache = new DirectoryDigestCache();
+
   public BuckEventBus getEventBus() {
     return eventBus;
   }
@@ -132,17 +141,55 @@ public abstract class RemoteExecution implements IsolatedExecution {
       BuildTarget buildTarget,
       Path cellPrefixRoot)
       throws IOException, InterruptedException, StepFailedException {
+    execute(
+        executionContext,
+        inputsBuilder,
+        outputs,
+        projectRoot,
+        hash,
+        buildTarget,
+        cellPrefixRoot,
+        Optional.empty());
+  }
+
+  @Override
+  public void buildWithoutMaterializingOutputs(
+      ExecutionContext executionContext,
+      FileTreeBuilder inputsBuilder,
+      Set<Path> outputs,
+      Path projectRoot,
+      HashCode hash,
+      BuildTarget buildTarget,
+      Path cellPrefixRoot,
+      UnmaterializedOutputs unmaterializedOutputs)
+      throws IOException, InterruptedException, StepFailedException {
+    execute(
+        executionContext,
+        inputsBuilder,
+        outputs,
+        projectRoot,
+        hash,
+        buildTarget,
+        cellPrefixRoot,
+        Optional.of(unmaterializedOutputs));
+  }
+
+  private void execute(
+      ExecutionContext executionContext,
+      FileTreeBuilder inputsBuilder,
+      Set<Path> outputs,
+      Path projectRoot,
+      HashCode hash,
+      BuildTarget buildTarget,
+      Path cellPrefixRoot,
+      Optional<UnmaterializedOutputs> unmaterializedOutputs)
+      throws IOException, InterruptedException, StepFailedException {
 
     HashMap<Digest, ThrowingSupplier<InputStream, IOException>> requiredDataBuilder;
+    byte[] commandData;
     Digest commandDigest;
     Digest inputsRootDigest;
 
-    try (Scope ignored = LeafEvents.scope(eventBus, "deleting_stale_outputs")) {
-      for (Path path : outputs) {
-        MostFiles.deleteRecursivelyIfExists(cellPrefixRoot.resolve(path));
-      }
-    }
-
     try (Scope ignored = LeafEvents.scope(eventBus, "computing_action")) {
       ImmutableList<Path> isolatedClasspath =
           processClasspath(inputsBuilder, cellPrefixRoot, Holder.classPath);
@@ -163,24 +210,69 @@ public abstract class RemoteExecution implements IsolatedExecution {
 
       Protocol.Command actionCommand = getProtocol().newCommand(command, commandEnvironment);
 
-      requiredDataBuilder = new HashMap<>();
-      ProtocolTreeBuilder grpcTreeBuilder =
-          new ProtocolTreeBuilder(requiredDataBuilder::put, directory -> {}, getProtocol());
-      inputsRootDigest = inputsBuilder.buildTree(grpcTreeBuilder);
-      byte[] commandData = getProtocol().toByteArray(actionCommand);
+      commandData = getProtocol().toByteArray(actionCommand);
       commandDigest = getProtocol().computeDigest(commandData);
+      requiredDataBuilder = new HashMap<>();
+      inputsRootDigest = buildInputsTree(inputsBuilder, requiredDataBuilder);
       requiredDataBuilder.put(commandDigest, () -> new ByteArrayInputStream(commandData));
     }
 
-    try (Scope scope = LeafEvents.scope(eventBus, "uploading_inputs")) {
-      getStorage().addMissing(ImmutableMap.copyOf(requiredDataBuilder));
+    ExecutionResult result11 = null;
+    for (int attempt = 1; result11 == null; attempt++) {
+      try (Scope scope = LeafEvents.scope(eventBus, "uploading_inputs")) {
+        if (attempt == 1) {
+          getStorage().addMissing(ImmutableMap.copyOf(requiredDataBuilder));
+        } else {
+          getStorage().recheckAndAddMissing(ImmutableMap.copyOf(requiredDataBuilder));
+        }
+        directoryDigestCache.markPresent(requiredDataBuilder.keySet());
+      }
+      try {
+        result11 = getExecutionService().execute(commandDigest, inputsRootDigest, outputs);
+      } catch (MissingInputsException e) {
+        // A bounded CAS may have evicted some of the inputs after they were found or uploaded.
+        if (attempt >= MAX_UPLOAD_ATTEMPTS) {
+          throw e;
+        }
+        LOG.info(e, "Uploading the inputs of %s again.", buildTarget);
+        directoryDigestCache.clearPresent();
+        try (Scope ignored = LeafEvents.scope(eventBus, "computing_action")) {
+          requiredDataBuilder = new HashMap<>();
+          inputsRootDigest = buildInputsTree(inputsBuilder, requiredDataBuilder);
+          requiredDataBuilder.put(commandDigest, () -> new ByteArrayInputStream(commandData));
+        }
+      }
     }
-    ExecutionResult result11 =
-        getExecutionService().execute(commandDigest, inputsRootDigest, outputs);
-    try (Scope scope = LeafEvents.scope(eventBus, "materializing_outputs")) {
-      getStorage()
-          .materializeOutputs(
-              result11.getOutputDirectories(), result11.getOutputFiles(), cellPrefixRoot);
+    if (unmaterializedOutputs.isPresent()) {
+      try (Scope scope = LeafEvents.scope(eventBus, "recording_outputs")) {
+        unmaterializedOutputs
+            .get()
+            .add(
+                buildTarget,
+                getStorage(),
+                getProtocol(),
+                result11.getOutputDirectories(),
+                result11.getOutputFiles(),
+                cellPrefixRoot);
+      }
+    } else {
+      try (Scope scope = LeafEvents.scope(eventBus, "materializing_outputs")) {
+        // Stale outputs are left in place until now, so that the ones which haven't changed don't
+        // have to be fetched again.
+        getStorage()
+            .materializeOutputs(
+                result11.getOutputDirectories(), result11.getOutputFiles(), cellPrefixRoot);
+      }
+    }
+    try (Scope ignored = LeafEvents.scope(eventBus, "deleting_stale_outputs")) {
+      Set<Path> materialized = new HashSet<>();
+      result11.getOutputDirectories().forEach(dir -> materialized.add(Paths.get(dir.getPath())));
+      result11.getOutputFiles().forEach(file -> materialized.add(Paths.get(file.getPath())));
+      for (Path path : outputs) {
+        if (!materialized.contains(path)) {
+          MostFiles.deleteRecursivelyIfExists(cellPrefixRoot.resolve(path));
+        }
+      }
     }
     ExecutionResult result = result11;
 
@@ -198,6 +290,15 @@ public abstract class RemoteExecution implements IsolatedExecution {
     }
   }
 
+  /** Builds the merkle tree of the inputs, adding the data which has to be uploaded for it. */
+  private Digest buildInputsTree(
+      FileTreeBuilder inputsBuilder,
+      Map<Digest, ThrowingSupplier<InputStream, IOException>> requiredData) {
+    return inputsBuilder.buildTree(
+        new ProtocolTreeBuilder(
+            requiredData::put, directory -> {}, getProtocol(), directoryDigestCache));
+  }
+
   protected abstract Protocol getProtocol();
 
   protected abstract ContentAddressedStorage getStorage();
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.modern.builders;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.rules.modern.builders.FileTreeBuilder.InputFile;
+import com.facebook.buck.rules.modern.builders.Protocol.Digest;
+import com.facebook.buck.rules.modern.builders.Protocol.OutputDirectory;
+import com.facebook.buck.rules.modern.builders.Protocol.OutputFile;
+import com.facebook.buck.util.RichStream;
+import com.facebook.buck.util.function.ThrowingFunction;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps track of the outputs of remotely executed rules which were left in the CAS instead of being
+ * written to the build directory ("build without the bytes").
+ *
+ * <p>When such an output is an input of another remote action, it's added to the action's inputs by
+ * digest, so its contents never have to be fetched. Anything which reads the outputs of a rule from
+ * disk has to {@link #materialize} them first.
+ *
+ * <p>Outputs are only tracked for the duration of a build. Rules whose outputs weren't materialized
+ * don't get their metadata written, so the next build executes them again, which the remote action
+ * cache should make cheap.
+ */
+public class UnmaterializedOutputs {
+  private final ConcurrentMap<BuildTarget, PendingOutputs> pendingOutputs =
+      new ConcurrentHashMap<>();
+  // Every output file left in the CAS, materialized since or not, keyed by absolute path.
+  private final ConcurrentMap<Path, OutputFileInfo> files = new ConcurrentHashMap<>();
+  // The entries of directories which contain outputs left in the CAS, which may not exist on disk.
+  private final ConcurrentMap<Path, Set<Path>> directoryEntries = new ConcurrentHashMap<>();
+
+  /**
+   * Records the outputs of a rule instead of materializing them into root. Outputs whose contents
+   * were inlined in the result are small enough to be written right away.
+   */
+  public void add(
+      BuildTarget target,
+      ContentAddressedStorage storage,
+      Protocol protocol,
+      List<OutputDirectory> outputDirectories,
+      List<OutputFile> outputFiles,
+      Path root)
+      throws IOException {
+    ImmutableList.Builder<OutputFile> inlinedFiles = ImmutableList.builder();
+    ImmutableList.Builder<OutputFile> deferredFiles = ImmutableList.builder();
+    for (OutputFile file : outputFiles) {
+      if (file.getContent() != null) {
+        inlinedFiles.add(file);
+      } else {
+        deferredFiles.add(file);
+        addFile(
+            storage, root, root.resolve(file.getPath()), file.getDigest(), file.getIsExecutable());
+      }
+    }
+    storage.materializeOutputs(ImmutableList.of(), inlinedFiles.build(), root);
+
+    for (OutputDirectory directory : outputDirectories) {
+      Path dirRoot = root.resolve(directory.getPath());
+      // Whatever a previous build left there would otherwise be listed along with the outputs.
+      MostFiles.deleteRecursivelyIfExists(dirRoot);
+      Protocol.Tree tree = protocol.parseTree(fetch(storage, directory.getTreeDigest()));
+      Map<Digest, Protocol.Directory> childMap =
+          RichStream.from(tree.getChildrenList())
+              .collect(
+                  ImmutableMap.toImmutableMap(
+                      ThrowingFunction.asFunction(protocol::computeDigest), child -> child));
+      addDirectory(storage, root, childMap, tree.getRoot(), dirRoot);
+    }
+
+    pendingOutputs.put(
+        target, new PendingOutputs(storage, outputDirectories, deferredFiles.build(), root));
+  }
+
+  /** Whether the outputs of the rule were left in the CAS and haven't been materialized since. */
+  public boolean isPending(BuildTarget target) {
+    return pendingOutputs.containsKey(target);
+  }
+
+  /** Materializes the outputs of the rule, if they were left in the CAS. */
+  public void materialize(BuildTarget target) throws IOException {
+    PendingOutputs outputs = pendingOutputs.get(target);
+    if (outputs == null) {
+      return;
+    }
+    synchronized (outputs) {
+      if (pendingOutputs.get(target) != outputs) {
+        // Another rule needed them at the same time.
+        return;
+      }
+      outputs.storage.materializeOutputs(outputs.directories, outputs.files, outputs.root);
+      pendingOutputs.remove(target, outputs);
+    }
+  }
+
+  /** @return the output at the path as an input of a remote action, if it was left in the CAS. */
+  @Nullable
+  InputFile getInputFile(Path path) {
+    OutputFileInfo info = files.get(path);
+    if (info == null) {
+      return null;
+    }
+    // The data is only needed if the CAS evicted it since, in which case it has to be uploaded
+    // again.
+    return new InputFile(
+        info.digest.getHash(),
+        info.digest.getSize(),
+        info.isExecutable,
+        () -> {
+          ByteBuffer data = fetch(info.storage, info.digest);
+          byte[] bytes = new byte[data.remaining()];
+          data.get(bytes);
+          return new ByteArrayInputStream(bytes);
+        });
+  }
+
+  /** @return the entries of the directory which lead to outputs left in the CAS. */
+  ImmutableSet<Path> getDirectoryEntries(Path path) {
+    Set<Path> entries = directoryEntries.get(path);
+    return entries == null ? ImmutableSet.of() : ImmutableSet.copyOf(entries);
+  }
+
+  private void addDirectory(
+      ContentAddressedStorage storage,
+      Path root,
+      Map<Digest, Protocol.Directory> childMap,
+      Protocol.Directory directory,
+      Path path) {
+    addEntry(root, path);
+    for (Protocol.DirectoryNode child : directory.getDirectoriesList()) {
+      addDirectory(
+          storage,
+          root,
+          childMap,
+          Preconditions.checkNotNull(childMap.get(child.getDigest())),
+          path.resolve(child.getName()));
+    }
+    for (Protocol.FileNode file : directory.getFilesList()) {
+      addFile(
+          storage, root, path.resolve(file.getName()), file.getDigest(), file.getIsExecutable());
+    }
+  }
+
+  private void addFile(
+      ContentAddressedStorage storage,
+      Path root,
+      Path path,
+      Digest digest,
+      boolean isExecutable) {
+    files.put(path, new OutputFileInfo(storage, digest, isExecutable));
+    addEntry(root, path);
+  }
+
+  /** Lists the path in its parent, and the parent in its own, up to root. */
+  private void addEntry(Path root, Path path) {
+    Path parent = path.getParent();
+    while (parent != null && parent.startsWith(root)) {
+      Set<Path> entries =
+          directoryEntries.computeIfAbsent(parent, ignored -> ConcurrentHashMap.newKeySet());
+      if (!entries.add(path)) {
+        // The parent has been listed in its own parent already.
+        break;
+      }
+      path = parent;
+      parent = path.getParent();
+    }
+  }
+
+  private static ByteBuffer fetch(ContentAddressedStorage storage, Digest digest)
+      throws IOException {
+    try {
+      return storage.fetch(digest).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IOException(String.format("Failed to fetch %s.", digest.getHash()), e);
+    }
+  }
+
+  private static class PendingOutputs {
+    private final ContentAddressedStorage storage;
+    private final List<OutputDirectory> directories;
+    private final List<OutputFile> files;
+    private final Path root;
+
+    PendingOutputs(
+        ContentAddressedStorage storage,
+        List<OutputDirectory> directories,
+        List<OutputFile> files,
+        Path root) {
+      this.storage = storage;
+      this.directories = directories;
+      this.files = files;
+      this.root = root;
+    }
+  }
+
+  private static class OutputFileInfo {
+    private final ContentAddressedStorage storage;
+    private final Digest digest;
+    private final boolean isExecutable;
+
+    OutputFileInfo(ContentAddressedStorage storage, Digest digest, boolean isExecutable) {
+      this.storage = storage;
+      this.digest = digest;
+      this.isExecutable = isExecutable;
+    }
+  }
+}
@@ -27,6 +27,7 @@ import io.grpc.Server;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import java.io.IOException;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 /** Factory for creating grpc-based strategies. */
@@ -36,12 +37,15 @@ public class GrpcExecutionFactory {
    * The in-process strategy starts up a grpc remote execution service in process and connects to it
    * directly.
    */
-  public static IsolatedExecution createInProcess(BuckEventBus eventBus) throws IOException {
+  public static IsolatedExecution createInProcess(
+      BuckEventBus eventBus, Optional<Long> casMaxSizeBytes) throws IOException {
     NamedTemporaryDirectory workDir = new NamedTemporaryDirectory("__remote__");
     GrpcRemoteExecutionServiceImpl remoteExecution =
         new GrpcRemoteExecutionServiceImpl(
             new LocalContentAddressedStorage(
-                workDir.getPath().resolve("__cache__"), GrpcRemoteExecution.PROTOCOL),
+                workDir.getPath().resolve("__cache__"),
+                GrpcRemoteExecution.PROTOCOL,
+                casMaxSizeBytes),
             workDir.getPath().resolve("__work__"));
 
     InProcessServerBuilder builder = InProcessServerBuilder.forName("unique");
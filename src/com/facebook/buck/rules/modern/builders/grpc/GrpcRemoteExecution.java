@@ -21,6 +21,7 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.rules.modern.builders.AsyncBlobFetcher;
 import com.facebook.buck.rules.modern.builders.CasBlobUploader;
 import com.facebook.buck.rules.modern.builders.ContentAddressedStorage;
+import com.facebook.buck.rules.modern.builders.MissingInputsException;
 import com.facebook.buck.rules.modern.builders.MultiThreadedBlobUploader;
 import com.facebook.buck.rules.modern.builders.MultiThreadedBlobUploader.UploadData;
 import com.facebook.buck.rules.modern.builders.MultiThreadedBlobUploader.UploadResult;
@@ -72,6 +73,7 @@ import com.google.protobuf.Any;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.InputStream;
@@ -205,22 +207,21 @@ public class GrpcRemoteExecution extends RemoteExecution {
               }
             });
 
-    OutputsMaterializer outputsMaterializer =
-        new OutputsMaterializer(
-            new AsyncBlobFetcher() {
-              @Override
-              public ListenableFuture<ByteBuffer> fetch(Protocol.Digest digest) {
-                return Futures.transform(
-                    readByteStream(instanceName, digest, byteStreamStub),
-                    string -> string.asReadOnlyByteBuffer());
-              }
+    AsyncBlobFetcher fetcher =
+        new AsyncBlobFetcher() {
+          @Override
+          public ListenableFuture<ByteBuffer> fetch(Protocol.Digest digest) {
+            return Futures.transform(
+                readByteStream(instanceName, digest, byteStreamStub),
+                string -> string.asReadOnlyByteBuffer());
+          }
 
-              @Override
-              public void fetchToStream(Protocol.Digest digest, OutputStream outputStream) {
-                throw new UnsupportedOperationException();
-              }
-            },
-            protocol);
+          @Override
+          public void fetchToStream(Protocol.Digest digest, OutputStream outputStream) {
+            throw new UnsupportedOperationException();
+          }
+        };
+    OutputsMaterializer outputsMaterializer = new OutputsMaterializer(fetcher, protocol);
     return new ContentAddressedStorage() {
       @Override
       public void addMissing(
@@ -229,6 +230,18 @@ public class GrpcRemoteExecution extends RemoteExecution {
         uploader.addMissing(data);
       }
 
+      @Override
+      public void recheckAndAddMissing(
+          ImmutableMap<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> data)
+          throws IOException {
+        uploader.recheckAndAddMissing(data);
+      }
+
+      @Override
+      public ListenableFuture<ByteBuffer> fetch(Protocol.Digest digest) {
+        return fetcher.fetch(digest);
+      }
+
       @Override
       public void materializeOutputs(
           List<OutputDirectory> outputDirectories, List<OutputFile> outputFiles, Path root)
@@ -364,6 +377,9 @@ public class GrpcRemoteExecution extends RemoteExecution {
           }
         };
       } catch (ExecutionException e) {
+        if (Status.fromThrowable(e.getCause()).getCode() == Status.Code.FAILED_PRECONDITION) {
+          throw new MissingInputsException(e.getCause().getMessage());
+        }
         Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
         Throwables.throwIfInstanceOf(e.getCause(), InterruptedException.class);
         e.printStackTrace();
@@ -21,6 +21,7 @@ import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.io.file.MostFiles;
 import com.facebook.buck.rules.modern.builders.ActionRunner;
 import com.facebook.buck.rules.modern.builders.LocalContentAddressedStorage;
+import com.facebook.buck.rules.modern.builders.MissingInputsException;
 import com.facebook.buck.rules.modern.builders.MultiThreadedBlobUploader.UploadData;
 import com.facebook.buck.rules.modern.builders.MultiThreadedBlobUploader.UploadResult;
 import com.facebook.buck.rules.modern.builders.Protocol;
@@ -69,7 +70,7 @@ import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -206,10 +207,9 @@ public class GrpcRemoteExecutionServiceImpl {
     public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
       try {
         ParsedReadResource parsedResource = parseResourceName(request.getResourceName());
-        try (InputStream data = storage.getData(new GrpcDigest(parsedResource.getDigest()))) {
-          responseObserver.onNext(
-              ReadResponse.newBuilder().setData(ByteString.readFrom(data)).build());
-        }
+        ByteBuffer data = storage.readData(new GrpcDigest(parsedResource.getDigest()));
+        responseObserver.onNext(
+            ReadResponse.newBuilder().setData(ByteString.copyFrom(data)).build());
         responseObserver.onCompleted();
       } catch (Exception e) {
         e.printStackTrace();
@@ -301,6 +301,10 @@ public class GrpcRemoteExecutionServiceImpl {
                   .build());
         }
         responseObserver.onCompleted();
+      } catch (MissingInputsException e) {
+        // Lets the client upload the inputs again.
+        responseObserver.onError(
+            Status.FAILED_PRECONDITION.withDescription(e.getMessage()).asException());
       } catch (Exception e) {
         e.printStackTrace();
         responseObserver.onError(e);
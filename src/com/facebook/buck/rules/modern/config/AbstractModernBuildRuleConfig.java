@@ -19,6 +19,8 @@ package com.facebook.buck.rules.modern.config;
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.config.ConfigView;
 import com.facebook.buck.core.util.immutables.BuckStyleTuple;
+import com.facebook.buck.util.unit.SizeUnit;
+import java.util.Optional;
 import org.immutables.value.Value;
 
 /** Various configuration for ModernBuildRule behavior. */
@@ -41,6 +43,23 @@ abstract class AbstractModernBuildRuleConfig implements ConfigView<BuckConfig> {
     return getDelegate().getInteger(SECTION, "remote_port").orElse(19030);
   }
 
+  /**
+   * The size past which the local content addressed storage used by the isolated strategies evicts
+   * its least recently used blobs. It's unbounded by default.
+   */
+  public Optional<Long> getLocalCasMaxSizeBytes() {
+    return getDelegate().getValue(SECTION, "local_cas_max_size").map(SizeUnit::parseBytes);
+  }
+
+  /**
+   * Whether the isolated strategies leave the outputs of rules in the content addressed storage, and
+   * only materialize those which are needed on disk: the outputs of the targets which were asked
+   * for, and the inputs of rules which aren't built by the strategy.
+   */
+  public boolean shouldMaterializeOutputsOnDemand() {
+    return getDelegate().getBooleanValue(SECTION, "materialize_outputs_on_demand", false);
+  }
+
   /**
    * These are the supported strategies.
    *
@@ -19,6 +19,7 @@ package com.facebook.buck.slb;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 
 public interface HttpResponse extends Closeable {
   /** @return HTTP Response code. */
@@ -41,4 +42,7 @@ public interface HttpResponse extends Closeable {
 
   /** @return The full URL of the request that generated this response. */
   String requestUrl();
+
+  /** @return The value of the given response header, if present. */
+  Optional<String> header(String name);
 }
@@ -18,6 +18,7 @@ package com.facebook.buck.slb;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 import okhttp3.Response;
 
 public class OkHttpResponseWrapper implements HttpResponse {
@@ -52,6 +53,11 @@ public class OkHttpResponseWrapper implements HttpResponse {
     return response.request().url().toString();
   }
 
+  @Override
+  public Optional<String> header(String name) {
+    return Optional.ofNullable(response.header(name));
+  }
+
   @Override
   public void close() throws IOException {
     response.body().close();
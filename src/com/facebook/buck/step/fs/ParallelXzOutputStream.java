@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step.fs;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Compresses data into a single XZ stream made of independently compressed blocks of {@code
+ * blockSize} bytes, compressing several blocks at once on an executor. This is the same format
+ * {@code xz --block-size} produces, so any XZ decoder can read it.
+ *
+ * <p>XZ for Java does not expose its block encoder, so each block is compressed as a stream of its
+ * own, and its block is then spliced into the output stream, whose index is rebuilt from the
+ * indices of the individual streams. The output only depends on the data, the options and the
+ * block size, not on the number of threads compressing it.
+ *
+ * @see <a href="https://tukaani.org/xz/xz-file-format.txt">The .xz File Format</a>
+ */
+class ParallelXzOutputStream extends OutputStream {
+  private static final byte[] HEADER_MAGIC = {(byte) 0xFD, '7', 'z', 'X', 'Z', 0};
+  private static final byte[] FOOTER_MAGIC = {'Y', 'Z'};
+  private static final int STREAM_HEADER_SIZE = 12;
+  private static final int STREAM_FOOTER_SIZE = 12;
+
+  private final OutputStream out;
+  private final LZMA2Options options;
+  private final int check;
+  private final int blockSize;
+  private final ListeningExecutorService executor;
+  private final int maxPendingBlocks;
+  private final Deque<ListenableFuture<Block>> pendingBlocks = new ArrayDeque<>();
+  private final List<Block> writtenBlocks = new ArrayList<>();
+
+  private byte[] currentBlock;
+  private int currentBlockLength = 0;
+  private boolean finished = false;
+
+  /**
+   * @param maxPendingBlocks how many blocks may be compressed at once, which bounds the memory
+   *     used to roughly twice that many blocks on top of the compressors' own memory.
+   */
+  ParallelXzOutputStream(
+      OutputStream out,
+      LZMA2Options options,
+      int check,
+      int blockSize,
+      ListeningExecutorService executor,
+      int maxPendingBlocks)
+      throws IOException {
+    Preconditions.checkArgument(blockSize > 0);
+    Preconditions.checkArgument(maxPendingBlocks > 0);
+    this.out = out;
+    this.options = options;
+    this.check = check;
+    this.blockSize = blockSize;
+    this.executor = executor;
+    this.maxPendingBlocks = maxPendingBlocks;
+    this.currentBlock = new byte[blockSize];
+
+    out.write(getStreamHeader());
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    Preconditions.checkState(!finished, "Stream has been finished.");
+    while (len > 0) {
+      int copied = Math.min(len, blockSize - currentBlockLength);
+      System.arraycopy(b, off, currentBlock, currentBlockLength, copied);
+      currentBlockLength += copied;
+      off += copied;
+      len -= copied;
+      if (currentBlockLength == blockSize) {
+        submitCurrentBlock();
+      }
+    }
+  }
+
+  /** Writes all remaining blocks and ends the XZ stream, without closing the underlying stream. */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    if (currentBlockLength > 0) {
+      submitCurrentBlock();
+    }
+    while (!pendingBlocks.isEmpty()) {
+      writeNextBlock();
+    }
+    byte[] index = getIndex();
+    out.write(index);
+    out.write(getStreamFooter(index.length));
+    finished = true;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      for (ListenableFuture<Block> pendingBlock : pendingBlocks) {
+        pendingBlock.cancel(true);
+      }
+      out.close();
+    }
+  }
+
+  private void submitCurrentBlock() throws IOException {
+    byte[] data = currentBlock;
+    int length = currentBlockLength;
+    pendingBlocks.add(executor.submit(() -> compressBlock(data, length)));
+    currentBlock = new byte[blockSize];
+    currentBlockLength = 0;
+
+    while (pendingBlocks.size() > maxPendingBlocks
+        || (!pendingBlocks.isEmpty() && pendingBlocks.peek().isDone())) {
+      writeNextBlock();
+    }
+  }
+
+  private void writeNextBlock() throws IOException {
+    Block block;
+    try {
+      block = pendingBlocks.remove().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing XZ blocks.");
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException("Failed to compress XZ block.", e.getCause());
+    }
+    out.write(block.data);
+    writtenBlocks.add(block);
+  }
+
+  /** Compresses a block as a single-block XZ stream, and extracts the block from it. */
+  private Block compressBlock(byte[] data, int length) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+    try (XZOutputStream xzOut = new XZOutputStream(compressed, options, check)) {
+      xzOut.write(data, 0, length);
+    }
+    byte[] stream = compressed.toByteArray();
+
+    int footerOffset = stream.length - STREAM_FOOTER_SIZE;
+    int indexSize = (readInt(stream, footerOffset + 4) + 1) * 4;
+    int indexOffset = footerOffset - indexSize;
+
+    // The index of a single block stream holds one record: its unpadded and uncompressed sizes.
+    long[] record = new long[3];
+    int position = indexOffset;
+    Preconditions.checkState(stream[position++] == 0, "Expected an XZ index indicator.");
+    for (int i = 0; i < record.length; i++) {
+      long value = 0;
+      int shift = 0;
+      byte next;
+      do {
+        next = stream[position++];
+        value |= (long) (next & 0x7F) << shift;
+        shift += 7;
+      } while ((next & 0x80) != 0);
+      record[i] = value;
+    }
+    Preconditions.checkState(record[0] == 1, "Expected a single XZ block.");
+    Preconditions.checkState(record[2] == length, "XZ block does not hold all of its data.");
+
+    return new Block(
+        Arrays.copyOfRange(stream, STREAM_HEADER_SIZE, indexOffset), record[1], record[2]);
+  }
+
+  private byte[] getStreamHeader() {
+    byte[] header = new byte[STREAM_HEADER_SIZE];
+    System.arraycopy(HEADER_MAGIC, 0, header, 0, HEADER_MAGIC.length);
+    header[7] = (byte) check;
+    writeInt(header, 8, crc32(header, 6, 2));
+    return header;
+  }
+
+  private byte[] getIndex() throws IOException {
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    index.write(0);
+    writeVarInt(index, writtenBlocks.size());
+    for (Block block : writtenBlocks) {
+      writeVarInt(index, block.unpaddedSize);
+      writeVarInt(index, block.uncompressedSize);
+    }
+    while (index.size() % 4 != 0) {
+      index.write(0);
+    }
+    byte[] bytes = index.toByteArray();
+    byte[] crc = new byte[4];
+    writeInt(crc, 0, crc32(bytes, 0, bytes.length));
+    index.write(crc);
+    return index.toByteArray();
+  }
+
+  private byte[] getStreamFooter(int indexSize) {
+    byte[] footer = new byte[STREAM_FOOTER_SIZE];
+    writeInt(footer, 4, indexSize / 4 - 1);
+    footer[9] = (byte) check;
+    writeInt(footer, 0, crc32(footer, 4, 6));
+    System.arraycopy(FOOTER_MAGIC, 0, footer, 10, FOOTER_MAGIC.length);
+    return footer;
+  }
+
+  private static int crc32(byte[] bytes, int off, int len) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(bytes, off, len);
+    return (int) crc32.getValue();
+  }
+
+  private static int readInt(byte[] bytes, int off) {
+    return (bytes[off] & 0xFF)
+        | (bytes[off + 1] & 0xFF) << 8
+        | (bytes[off + 2] & 0xFF) << 16
+        | (bytes[off + 3] & 0xFF) << 24;
+  }
+
+  private static void writeInt(byte[] bytes, int off, int value) {
+    for (int i = 0; i < 4; i++) {
+      bytes[off + i] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  private static void writeVarInt(OutputStream out, long value) throws IOException {
+    while (value >= 0x80) {
+      out.write((int) (value | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static class Block {
+    /** The compressed block, including its header, padding and check. */
+    private final byte[] data;
+
+    private final long unpaddedSize;
+    private final long uncompressedSize;
+
+    private Block(byte[] data, long unpaddedSize, long uncompressedSize) {
+      this.data = data;
+      this.unpaddedSize = unpaddedSize;
+      this.uncompressedSize = uncompressedSize;
+    }
+  }
+}
@@ -36,4 +36,26 @@ public class XzMemorySemaphore {
   static void releaseMemory(int xzCompressionLevel) {
     memorySemaphore.release(XZ_MEMORY_USAGE_MB[xzCompressionLevel]);
   }
+
+  /**
+   * @return the memory, in MiB, of a compressor at the given level that also holds {@code
+   *     bufferMegabytes} of buffers, capped so that it can always be acquired.
+   */
+  static int getCompressorMemory(int xzCompressionLevel, int bufferMegabytes) {
+    return Math.min(XZ_MEMORY_USAGE_MB[xzCompressionLevel] + bufferMegabytes, MAX_MEMORY);
+  }
+
+  /** Blocks until {@code megabytes} of memory, from {@link #getCompressorMemory}, are available. */
+  static void acquireCompressorMemory(int megabytes) throws InterruptedException {
+    memorySemaphore.acquire(megabytes);
+  }
+
+  /** Acquires {@code megabytes} of memory if they are available right away. */
+  static boolean tryAcquireCompressorMemory(int megabytes) {
+    return memorySemaphore.tryAcquire(megabytes);
+  }
+
+  static void releaseCompressorMemory(int megabytes) {
+    memorySemaphore.release(megabytes);
+  }
 }
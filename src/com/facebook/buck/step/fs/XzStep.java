@@ -21,16 +21,21 @@ import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepExecutionResult;
 import com.facebook.buck.step.StepExecutionResults;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
 import org.tukaani.xz.XZ;
 import org.tukaani.xz.XZOutputStream;
 
@@ -50,6 +55,7 @@ public class XzStep implements Step {
   private final int compressionLevel;
   private final boolean keep;
   private final int check;
+  private final boolean multiThreaded;
 
   /**
    * Create an {@link XzStep} to compress a file using XZ.
@@ -62,6 +68,8 @@ public class XzStep implements Step {
    * @param check integrity check to use. Must be one of {@link XZ#CHECK_CRC32}, {@link
    *     XZ#CHECK_CRC64}, {@link XZ#CHECK_SHA256}, {@link XZ#CHECK_NONE} (Note: XZ Embedded can only
    *     verify CRC32).
+   * @param multiThreaded whether to compress files larger than a block as independent blocks on
+   *     several threads. See {@link #getBlockSize()}.
    */
   @VisibleForTesting
   XzStep(
@@ -70,7 +78,8 @@ public class XzStep implements Step {
       Path destinationFile,
       int compressionLevel,
       boolean keep,
-      int check) {
+      int check,
+      boolean multiThreaded) {
     this.filesystem = filesystem;
     this.sourceFile = sourceFile;
     this.destinationFile = destinationFile;
@@ -80,6 +89,7 @@ public class XzStep implements Step {
     this.compressionLevel = compressionLevel;
     this.keep = keep;
     this.check = check;
+    this.multiThreaded = multiThreaded;
   }
 
   /**
@@ -118,7 +128,38 @@ public class XzStep implements Step {
    */
   public XzStep(
       ProjectFilesystem filesystem, Path sourceFile, Path outputPath, int compressionLevel) {
-    this(filesystem, sourceFile, outputPath, compressionLevel, /* keep */ false, XZ.CHECK_CRC32);
+    this(filesystem, sourceFile, outputPath, compressionLevel, /* multiThreaded */ false);
+  }
+
+  /**
+   * Creates an XzStep to compress a file with the given XZ compression level and output path,
+   * optionally on several threads.
+   *
+   * <p>In multi-threaded mode, files larger than {@link #getBlockSize()} are split into blocks of
+   * that size, which are compressed independently on as many threads as the build and the memory
+   * budget of {@link XzMemorySemaphore} allow. The result is still a single standard XZ stream, as
+   * produced by {@code xz --block-size}, and does not depend on the number of threads. Splitting
+   * slightly lowers the compression ratio.
+   *
+   * @param sourceFile file to compress
+   * @param outputPath the desired output path.
+   * @param compressionLevel level of compression (from 0-9)
+   * @param multiThreaded whether to compress large files as independent blocks on several threads
+   */
+  public XzStep(
+      ProjectFilesystem filesystem,
+      Path sourceFile,
+      Path outputPath,
+      int compressionLevel,
+      boolean multiThreaded) {
+    this(
+        filesystem,
+        sourceFile,
+        outputPath,
+        compressionLevel,
+        /* keep */ false,
+        XZ.CHECK_CRC32,
+        multiThreaded);
   }
 
   /**
@@ -139,12 +180,21 @@ public class XzStep implements Step {
         Paths.get(sourceFile + ".xz"),
         compressionLevel,
         /* keep */ false,
-        XZ.CHECK_CRC32);
+        XZ.CHECK_CRC32,
+        /* multiThreaded */ false);
   }
 
   @Override
   public StepExecutionResult execute(ExecutionContext context)
       throws IOException, InterruptedException {
+    if (multiThreaded && filesystem.getFileSize(sourceFile) > getBlockSize()) {
+      compressInBlocks(context.getConcurrencyLimit().threadLimit);
+      if (!keep) {
+        filesystem.deleteFileAtPath(sourceFile);
+      }
+      return StepExecutionResults.SUCCESS;
+    }
+
     boolean deleteSource = false;
     try (InputStream in = filesystem.newFileInputStream(sourceFile);
         OutputStream out = filesystem.newFileOutputStream(destinationFile);
@@ -162,6 +212,55 @@ public class XzStep implements Step {
     return StepExecutionResults.SUCCESS;
   }
 
+  private void compressInBlocks(int maxThreads) throws IOException, InterruptedException {
+    int blockSize = getBlockSize();
+    // Each compressor holds a block of input and up to about as much output.
+    int compressorMemory =
+        XzMemorySemaphore.getCompressorMemory(compressionLevel, 2 * (blockSize >> 20));
+
+    // Wait for memory for one compressor, like the single-threaded mode does, and then use as many
+    // more as are available right away.
+    XzMemorySemaphore.acquireCompressorMemory(compressorMemory);
+    int compressors = 1;
+    while (compressors < maxThreads
+        && XzMemorySemaphore.tryAcquireCompressorMemory(compressorMemory)) {
+      compressors++;
+    }
+
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(
+            MostExecutors.newMultiThreadExecutor("XzStep", compressors));
+    try (InputStream in = filesystem.newFileInputStream(sourceFile);
+        ParallelXzOutputStream xzOut =
+            new ParallelXzOutputStream(
+                new BufferedOutputStream(filesystem.newFileOutputStream(destinationFile)),
+                new LZMA2Options(compressionLevel),
+                check,
+                blockSize,
+                executor,
+                compressors)) {
+      ByteStreams.copy(in, xzOut);
+      xzOut.finish();
+    } finally {
+      executor.shutdownNow();
+      XzMemorySemaphore.releaseCompressorMemory(compressorMemory * compressors);
+    }
+  }
+
+  /**
+   * @return the size of the blocks compressed independently in multi-threaded mode. Like {@code xz
+   *     --threads}, this is three times the dictionary size, which keeps the loss in compression
+   *     ratio small.
+   */
+  @VisibleForTesting
+  int getBlockSize() {
+    try {
+      return Math.max(3 * new LZMA2Options(compressionLevel).getDictSize(), 1 << 20);
+    } catch (UnsupportedOptionsException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   public Path getDestinationFile() {
     return destinationFile;
   }
@@ -175,6 +274,7 @@ public class XzStep implements Step {
             "-z",
             "-" + compressionLevel,
             (keep ? "--keep" : null),
+            (multiThreaded ? "--block-size=" + getBlockSize() : null),
             "--check=crc32",
             sourceFile);
   }
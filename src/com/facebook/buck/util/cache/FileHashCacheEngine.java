@@ -21,6 +21,7 @@ import com.facebook.buck.io.ArchiveMemberPath;
 import com.google.common.hash.HashCode;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import javax.annotation.Nullable;
@@ -44,6 +45,16 @@ public interface FileHashCacheEngine {
 
   void invalidateWithParents(Path path);
 
+  /**
+   * Invalidates a batch of paths, as if by {@link #invalidateWithParents(Path)}. Implementations
+   * may override this to share work across the batch.
+   */
+  default void invalidateWithParents(Collection<Path> paths) {
+    for (Path path : paths) {
+      invalidateWithParents(path);
+    }
+  }
+
   HashCode get(Path path) throws IOException;
 
   HashCode get(ArchiveMemberPath archiveMemberPath) throws IOException;
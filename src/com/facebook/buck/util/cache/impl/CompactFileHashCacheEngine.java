@@ -0,0 +1,540 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.cache.FileHashCacheEngine;
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.cache.JarHashCodeAndFileType;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link FileHashCacheEngine} which keeps its state in primitive arrays and off-heap memory
+ * rather than in a map of {@link Path} to {@link HashCodeAndFileType}, to keep the heap footprint
+ * of the daemon down in repos with millions of tracked files.
+ *
+ * <p>Every path is interned as an int id, made of the id of its parent and the id of its last name
+ * segment, so a path costs a few dozen bytes no matter how deep it is and segment names shared by
+ * many directories (e.g. {@code src} or {@code BUCK}) are only stored once. SHA-1 hashes are stored
+ * in a direct buffer, 20 bytes per path. Only values which don't fit that layout, i.e. archives
+ * (whose member hashes are computed lazily) and hashes of other lengths, are kept on heap.
+ *
+ * <p>Invalidation follows the semantics of {@link FileSystemMapFileHashCache}: invalidating a path
+ * drops the values of the path, all paths below it and all its ancestors. Interned paths are never
+ * reclaimed, other than by {@link #invalidateAll()}, as they're very likely to be looked up again.
+ */
+class CompactFileHashCacheEngine implements FileHashCacheEngine {
+
+  private static final int ROOT = 0;
+  private static final int NONE = -1;
+  private static final int HASH_BYTES = 20;
+  private static final byte TYPE_ABSENT = -1;
+  private static final byte TYPE_HEAP = -2;
+  private static final long SIZE_ABSENT = -1;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final ValueLoader<HashCodeAndFileType> hashLoader;
+  private final ValueLoader<Long> sizeLoader;
+  private final Path rootPath;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // All fields below are guarded by the lock.
+
+  /** Segment names, and the id of each. */
+  private final List<String> names = new ArrayList<>();
+
+  private final Map<String, Integer> nameIds = new HashMap<>();
+
+  /** Open addressing table of path ids, keyed by parent id and name id. */
+  private int[] table;
+
+  private int count;
+
+  // Per path id state.
+  private int[] parents;
+  private int[] nameOf;
+  private int[] firstChild;
+  private int[] nextSibling;
+  private int[] generations;
+  private byte[] types;
+  private long[] sizes;
+  private ByteBuffer hashes;
+
+  /** Values which can't be represented by a type and a 20 byte hash. */
+  private final Map<Integer, HashCodeAndFileType> heapValues = new HashMap<>();
+
+  /** Bumped on {@link #invalidateAll()}, to drop values loaded concurrently with it. */
+  private int epoch;
+
+  CompactFileHashCacheEngine(
+      ValueLoader<HashCodeAndFileType> hashLoader,
+      ValueLoader<Long> sizeLoader,
+      ProjectFilesystem filesystem) {
+    this.hashLoader = hashLoader;
+    this.sizeLoader = sizeLoader;
+    this.rootPath = filesystem.getPath("");
+    reset();
+  }
+
+  public static FileHashCacheEngine createWithStats(
+      ValueLoader<HashCodeAndFileType> hashLoader,
+      ValueLoader<Long> sizeLoader,
+      ProjectFilesystem filesystem) {
+    return new StatsTrackingFileHashCacheEngine(
+        new CompactFileHashCacheEngine(hashLoader, sizeLoader, filesystem), "compact");
+  }
+
+  private void reset() {
+    names.clear();
+    nameIds.clear();
+    heapValues.clear();
+    table = new int[INITIAL_CAPACITY * 2];
+    Arrays.fill(table, NONE);
+    parents = new int[INITIAL_CAPACITY];
+    nameOf = new int[INITIAL_CAPACITY];
+    firstChild = new int[INITIAL_CAPACITY];
+    nextSibling = new int[INITIAL_CAPACITY];
+    generations = new int[INITIAL_CAPACITY];
+    types = new byte[INITIAL_CAPACITY];
+    sizes = new long[INITIAL_CAPACITY];
+    hashes = ByteBuffer.allocateDirect(INITIAL_CAPACITY * HASH_BYTES);
+    count = 0;
+    newId(NONE, NONE);
+  }
+
+  @Override
+  public void put(Path path, HashCodeAndFileType value) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      setValue(intern(path), value);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void putSize(Path path, long value) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      sizes[intern(path)] = value;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void invalidate(Path path) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      int id = find(path);
+      if (id != NONE) {
+        clearSubtree(id);
+        clearAncestors(parents[id]);
+        return;
+      }
+      // Still drop the values of the closest interned ancestor and those above it.
+      Path parent = path.getParent();
+      while (parent != null && (id = find(parent)) == NONE) {
+        parent = parent.getParent();
+      }
+      clearAncestors(parent == null ? ROOT : id);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public void invalidateWithParents(Path path) {
+    invalidate(path);
+  }
+
+  @Override
+  public HashCode get(Path path) throws IOException {
+    return getValue(path.normalize()).getHashCode();
+  }
+
+  @Override
+  public HashCode get(ArchiveMemberPath archiveMemberPath) throws IOException {
+    Path relativeFilePath = archiveMemberPath.getArchivePath().normalize();
+    JarHashCodeAndFileType fileHashCodeAndFileType =
+        (JarHashCodeAndFileType) getValue(relativeFilePath);
+    Path memberPath = archiveMemberPath.getMemberPath();
+    HashCodeAndFileType memberHashCodeAndFileType =
+        fileHashCodeAndFileType.getContents().get(memberPath);
+    if (memberHashCodeAndFileType == null) {
+      throw new NoSuchFileException(archiveMemberPath.toString());
+    }
+    return memberHashCodeAndFileType.getHashCode();
+  }
+
+  @Override
+  public long getSize(Path relativePath) throws IOException {
+    Path path = relativePath.normalize();
+    Long size = getSizeIfPresent(path);
+    if (size != null) {
+      return size;
+    }
+
+    int[] stamp = stamp(path);
+    long loaded = sizeLoader.load(path);
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      int id = intern(path);
+      if (isCurrent(id, stamp)) {
+        sizes[id] = loaded;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    return loaded;
+  }
+
+  @Override
+  public void invalidateAll() {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      epoch++;
+      reset();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  @Nullable
+  public HashCodeAndFileType getIfPresent(Path path) {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      int id = find(path);
+      return id == NONE ? null : getValue(id);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  @Nullable
+  public Long getSizeIfPresent(Path path) {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      int id = find(path);
+      return id == NONE || sizes[id] == SIZE_ABSENT ? null : sizes[id];
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public ConcurrentMap<Path, HashCodeAndFileType> asMap() {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      ConcurrentMap<Path, HashCodeAndFileType> map = new ConcurrentHashMap<>();
+      for (int id = 0; id < count; id++) {
+        HashCodeAndFileType value = getValue(id);
+        if (value != null) {
+          map.put(toPath(id), value);
+        }
+      }
+      return map;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public List<AbstractBuckEvent> getStatsEvents() {
+    return Collections.emptyList();
+  }
+
+  /** @return the number of interned paths, including the root. */
+  @VisibleForTesting
+  int getInternedPathCount() {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      return count;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  private HashCodeAndFileType getValue(Path path) {
+    HashCodeAndFileType value = getIfPresent(path);
+    if (value != null) {
+      return value;
+    }
+
+    // Load without holding the lock, as loading directory hashes recursively looks up the hashes
+    // of their contents.  Values invalidated while loading are dropped rather than stored.
+    int[] stamp = stamp(path);
+    HashCodeAndFileType loaded = hashLoader.load(path);
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      int id = intern(path);
+      if (isCurrent(id, stamp)) {
+        setValue(id, loaded);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    return loaded;
+  }
+
+  /** @return the epoch and generation of the path, to detect invalidations while loading it. */
+  private int[] stamp(Path path) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      return new int[] {epoch, generations[intern(path)]};
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private boolean isCurrent(int id, int[] stamp) {
+    return stamp[0] == epoch && stamp[1] == generations[id];
+  }
+
+  @Nullable
+  private HashCodeAndFileType getValue(int id) {
+    byte type = types[id];
+    if (type == TYPE_ABSENT) {
+      return null;
+    }
+    if (type == TYPE_HEAP) {
+      return heapValues.get(id);
+    }
+    byte[] bytes = new byte[HASH_BYTES];
+    ByteBuffer view = hashes.duplicate();
+    view.position(id * HASH_BYTES);
+    view.get(bytes);
+    HashCode hashCode = HashCode.fromBytes(bytes);
+    return type == HashCodeAndFileType.TYPE_DIRECTORY
+        ? HashCodeAndFileType.ofDirectory(hashCode)
+        : HashCodeAndFileType.ofFile(hashCode);
+  }
+
+  private void setValue(int id, HashCodeAndFileType value) {
+    HashCode hashCode = value.getHashCode();
+    if (value.getType() == HashCodeAndFileType.TYPE_ARCHIVE || hashCode.bits() != HASH_BYTES * 8) {
+      heapValues.put(id, value);
+      types[id] = TYPE_HEAP;
+      return;
+    }
+    heapValues.remove(id);
+    ByteBuffer view = hashes.duplicate();
+    view.position(id * HASH_BYTES);
+    view.put(hashCode.asBytes());
+    types[id] = value.getType();
+  }
+
+  private void clearValue(int id) {
+    if (types[id] == TYPE_HEAP) {
+      heapValues.remove(id);
+    }
+    types[id] = TYPE_ABSENT;
+    sizes[id] = SIZE_ABSENT;
+    generations[id]++;
+  }
+
+  private void clearSubtree(int id) {
+    clearValue(id);
+    for (int child = firstChild[id]; child != NONE; child = nextSibling[child]) {
+      clearSubtree(child);
+    }
+  }
+
+  private void clearAncestors(int id) {
+    for (int current = id; current != NONE; current = parents[current]) {
+      clearValue(current);
+    }
+  }
+
+  /** @return the id of the given path, or {@link #NONE} if it has never been interned. */
+  private int find(Path path) {
+    int id = ROOT;
+    Path root = path.getRoot();
+    if (root != null) {
+      id = findChild(id, root.toString());
+    }
+    for (Path segment : path) {
+      if (id == NONE) {
+        return NONE;
+      }
+      String name = segment.toString();
+      if (name.isEmpty()) {
+        continue;
+      }
+      id = findChild(id, name);
+    }
+    return id;
+  }
+
+  /** @return the id of the given path, interning it and all its ancestors if necessary. */
+  private int intern(Path path) {
+    int id = ROOT;
+    Path root = path.getRoot();
+    if (root != null) {
+      id = internChild(id, root.toString());
+    }
+    for (Path segment : path) {
+      String name = segment.toString();
+      if (!name.isEmpty()) {
+        id = internChild(id, name);
+      }
+    }
+    return id;
+  }
+
+  private int internChild(int parent, String name) {
+    Integer nameId = nameIds.get(name);
+    if (nameId == null) {
+      nameId = names.size();
+      names.add(name);
+      nameIds.put(name, nameId);
+    }
+    int slot = slot(parent, nameId);
+    while (table[slot] != NONE) {
+      int id = table[slot];
+      if (parents[id] == parent && nameOf[id] == nameId) {
+        return id;
+      }
+      slot = (slot + 1) & (table.length - 1);
+    }
+    int id = newId(parent, nameId);
+    table[slot] = id;
+    if (count * 2 > table.length) {
+      rehash();
+    }
+    return id;
+  }
+
+  private int findChild(int parent, String name) {
+    Integer nameId = nameIds.get(name);
+    if (nameId == null) {
+      return NONE;
+    }
+    for (int slot = slot(parent, nameId); table[slot] != NONE; ) {
+      int id = table[slot];
+      if (parents[id] == parent && nameOf[id] == nameId) {
+        return id;
+      }
+      slot = (slot + 1) & (table.length - 1);
+    }
+    return NONE;
+  }
+
+  private int slot(int parent, int nameId) {
+    int hash = parent * 31 + nameId;
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    return hash & (table.length - 1);
+  }
+
+  private int newId(int parent, int nameId) {
+    if (count == parents.length) {
+      grow();
+    }
+    int id = count++;
+    parents[id] = parent;
+    nameOf[id] = nameId;
+    firstChild[id] = NONE;
+    types[id] = TYPE_ABSENT;
+    sizes[id] = SIZE_ABSENT;
+    generations[id] = 0;
+    if (parent == NONE) {
+      nextSibling[id] = NONE;
+    } else {
+      nextSibling[id] = firstChild[parent];
+      firstChild[parent] = id;
+    }
+    return id;
+  }
+
+  private void grow() {
+    int capacity = parents.length * 2;
+    parents = Arrays.copyOf(parents, capacity);
+    nameOf = Arrays.copyOf(nameOf, capacity);
+    firstChild = Arrays.copyOf(firstChild, capacity);
+    nextSibling = Arrays.copyOf(nextSibling, capacity);
+    generations = Arrays.copyOf(generations, capacity);
+    types = Arrays.copyOf(types, capacity);
+    sizes = Arrays.copyOf(sizes, capacity);
+    ByteBuffer grown = ByteBuffer.allocateDirect(capacity * HASH_BYTES);
+    ByteBuffer view = hashes.duplicate();
+    view.clear();
+    grown.put(view);
+    grown.clear();
+    hashes = grown;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    Arrays.fill(table, NONE);
+    for (int id = ROOT + 1; id < count; id++) {
+      int slot = slot(parents[id], nameOf[id]);
+      while (table[slot] != NONE) {
+        slot = (slot + 1) & (table.length - 1);
+      }
+      table[slot] = id;
+    }
+  }
+
+  private Path toPath(int id) {
+    Preconditions.checkState(id >= ROOT && id < count);
+    List<String> segments = new ArrayList<>();
+    for (int current = id; current != ROOT; current = parents[current]) {
+      segments.add(names.get(nameOf[current]));
+    }
+    Path path = rootPath;
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      path = path.resolve(segments.get(i));
+    }
+    return path;
+  }
+}
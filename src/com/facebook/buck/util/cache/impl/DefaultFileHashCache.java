@@ -123,6 +123,10 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
                         projectFilesystem, fileHashLoader, dirHashLoader, sizeLoader),
                     "limited"));
         break;
+      case COMPACT:
+        fileHashCacheEngine =
+            CompactFileHashCacheEngine.createWithStats(hashLoader, sizeLoader, projectFilesystem);
+        break;
       default:
         throw new RuntimeException("Unsupported file hash cache engine: " + fileHashCacheMode);
     }
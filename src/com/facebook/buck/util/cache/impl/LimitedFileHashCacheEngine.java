@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
@@ -207,6 +208,11 @@ class LimitedFileHashCacheEngine implements FileHashCacheEngine {
     invalidate(path);
   }
 
+  @Override
+  public void invalidateWithParents(Collection<Path> paths) {
+    fileSystemMap.removeAll(paths);
+  }
+
   @Override
   public HashCode get(Path path) throws IOException {
     return fileSystemMap.get(path).getHashCodeAndFileType().getHashCode();
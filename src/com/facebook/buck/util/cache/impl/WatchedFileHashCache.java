@@ -23,6 +23,8 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.cache.FileHashCacheMode;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class WatchedFileHashCache extends DefaultFileHashCache {
 
@@ -49,6 +51,17 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
   @SuppressWarnings("unused")
   @Subscribe
   public synchronized void onFileSystemChange(WatchmanOverflowEvent event) {
+    if (event.getChangedPaths().isPresent()) {
+      // Overflow due to many change events under known prefixes: only invalidate those, in one
+      // batch, so that large but localized changes (e.g. branch switches) keep the rest cached.
+      List<Path> paths = new ArrayList<>(event.getChangedPaths().get().size());
+      for (Path path : event.getChangedPaths().get()) {
+        paths.add(path.normalize());
+      }
+      LOG.debug("Invalidating %d changed prefixes", paths.size());
+      fileHashCacheEngine.invalidateWithParents(paths);
+      return;
+    }
     // Non-path change event, likely an overflow due to many change events: invalidate everything.
     LOG.debug("Invalidating all");
     invalidateAll();
@@ -23,10 +23,14 @@ import com.google.common.util.concurrent.SettableFuture;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition of different resource types rather
  * than blocking.
+ *
+ * <p>Acquisitions which have to wait are granted in order of descending priority, and in the order
+ * they were made among those of equal priority.
  */
 public class ListeningMultiSemaphore {
 
@@ -52,7 +56,20 @@ public class ListeningMultiSemaphore {
    *     amounts, they will be capped to them.
    * @return Future that will be completed once resource will be acquired.
    */
-  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources) {
+  public ListenableFuture<Void> acquire(ResourceAmounts resources) {
+    return acquire(resources, 0);
+  }
+
+  /**
+   * Same as {@link #acquire(ResourceAmounts)}, but if the resources aren't available right away,
+   * they are granted before those of pending acquisitions with a lower priority.
+   *
+   * @param resources Resource amounts that need to be acquired. If they are higher than maximum
+   *     amounts, they will be capped to them.
+   * @param priority Priority of the acquisition, higher values are granted first.
+   * @return Future that will be completed once resource will be acquired.
+   */
+  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources, long priority) {
     if (resources.equals(ResourceAmounts.zero())) {
       return Futures.immediateFuture(null);
     }
@@ -60,7 +77,7 @@ public class ListeningMultiSemaphore {
     resources = capResourceAmounts(resources);
     if (!checkIfResourcesAvailable(resources)) {
       SettableFuture<Void> pendingFuture = SettableFuture.create();
-      pending.add(ListeningSemaphoreArrayPendingItem.of(pendingFuture, resources));
+      addPendingItem(ListeningSemaphoreArrayPendingItem.of(pendingFuture, resources, priority));
       return pendingFuture;
     }
     increaseUsedResources(resources);
@@ -101,6 +118,22 @@ public class ListeningMultiSemaphore {
     return builder.build();
   }
 
+  /**
+   * Inserts the item after all pending items with the same or a higher priority. Most items share
+   * the same priority, so the search starts from the end of the queue.
+   */
+  private synchronized void addPendingItem(ListeningSemaphoreArrayPendingItem item) {
+    ListIterator<ListeningSemaphoreArrayPendingItem> iterator =
+        pending.listIterator(pending.size());
+    while (iterator.hasPrevious()) {
+      if (iterator.previous().getPriority() >= item.getPriority()) {
+        iterator.next();
+        break;
+      }
+    }
+    iterator.add(item);
+  }
+
   public synchronized ResourceAmounts getAvailableResources() {
     return maximumValues.subtract(usedValues);
   }
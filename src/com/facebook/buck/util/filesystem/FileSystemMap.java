@@ -21,8 +21,11 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
@@ -243,6 +246,33 @@ public class FileSystemMap<T> {
         .forEach(cp -> removeChild(child, cp));
   }
 
+  /**
+   * Removes all the given paths, as if by {@link #remove(Path)}, while holding the lock once for
+   * the whole batch. Paths that lie under another path of the batch are skipped, since removing
+   * the outer path already discards them.
+   *
+   * @param paths The paths specifying the branches to remove.
+   */
+  public void removeAll(Collection<Path> paths) {
+    Set<Path> batch = new HashSet<>(paths);
+    synchronized (root) {
+      for (Path path : batch) {
+        if (!hasAncestorIn(path, batch)) {
+          remove(path);
+        }
+      }
+    }
+  }
+
+  private static boolean hasAncestorIn(Path path, Set<Path> paths) {
+    for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+      if (paths.contains(parent)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /** Empties the trie leaving only the root node available. */
   public void removeAll() {
     synchronized (root) {
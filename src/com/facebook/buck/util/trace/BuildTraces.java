@@ -23,6 +23,7 @@ import com.facebook.buck.util.trace.ChromeTraceParser.ChromeTraceEventMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.FileVisitResult;
@@ -57,7 +58,7 @@ public class BuildTraces {
 
   private static final Logger logger = Logger.get(BuildTraces.class);
 
-  private static final Pattern TRACES_FILE_PATTERN = Pattern.compile("build\\..*\\.trace$");
+  private static final Pattern TRACES_FILE_PATTERN = Pattern.compile("build\\..*\\.b?trace$");
 
   private final ProjectFilesystem projectFilesystem;
 
@@ -99,10 +100,14 @@ public class BuildTraces {
     }
   }
 
+  /** @return the traces for the specified build ID, in the Chrome JSON array format. */
   public Iterable<InputStream> getInputsForTraces(String id) throws IOException {
     ImmutableList.Builder<InputStream> tracesBuilder = ImmutableList.builder();
     for (Path p : getPathsToTraces(id)) {
-      tracesBuilder.add(projectFilesystem.getInputStreamForRelativePath(p));
+      BufferedInputStream input =
+          new BufferedInputStream(projectFilesystem.getInputStreamForRelativePath(p));
+      tracesBuilder.add(
+          CompactChromeTrace.isCompactTrace(input) ? CompactChromeTrace.toJson(input) : input);
     }
     return tracesBuilder.build();
   }
@@ -147,8 +152,10 @@ public class BuildTraces {
   private boolean isTraceForBuild(Path path, String id) {
     String testPrefix = "build.";
     String testSuffix = "." + id + ".trace";
+    String compactTestSuffix = "." + id + CompactChromeTrace.EXTENSION;
     String name = path.getFileName().toString();
-    return name.startsWith(testPrefix) && name.endsWith(testSuffix);
+    return name.startsWith(testPrefix)
+        && (name.endsWith(testSuffix) || name.endsWith(compactTestSuffix));
   }
 
   /** The most recent trace (the one with the greatest last-modified time) will be listed first. */
@@ -0,0 +1,496 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.trace;
+
+import com.facebook.buck.util.json.ObjectMappers;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A compact binary alternative to the JSON array format of Chrome traces, which is much cheaper to
+ * write for the large number of events of a build.
+ *
+ * <p>Strings are interned: the first time a string is written, it's defined in a record of its own
+ * and then referred to by its index. Numbers are written as varints, and timestamps as the
+ * difference with those of the previous event, which are usually small.
+ *
+ * <pre>
+ *   int magic
+ *   byte version
+ *   record*, each starting with its type:
+ *     STRING   varint length, byte[] utf-8
+ *     EVENT    varint category, varint name, byte phase, varlong pid, varlong tid,
+ *              varlong ts delta, varlong tts delta, varint args count, (varint key, value)*
+ *     END
+ * </pre>
+ *
+ * A value starts with its type, followed by an interned string, a varlong, a double, or nothing for
+ * booleans. Other values are written as inline JSON.
+ */
+public class CompactChromeTrace {
+
+  /** The extension of compact trace files, which distinguishes them from JSON ".trace" files. */
+  public static final String EXTENSION = ".btrace";
+
+  private static final int MAGIC = 0x42545243;
+  private static final byte VERSION = 1;
+
+  private static final int RECORD_STRING = 1;
+  private static final int RECORD_EVENT = 2;
+  private static final int RECORD_END = 3;
+
+  private static final int VALUE_STRING = 1;
+  private static final int VALUE_INLINE_STRING = 2;
+  private static final int VALUE_LONG = 3;
+  private static final int VALUE_DOUBLE = 4;
+  private static final int VALUE_TRUE = 5;
+  private static final int VALUE_FALSE = 6;
+  private static final int VALUE_JSON = 7;
+
+  /** Longer string values, like command lines, are unlikely to repeat and aren't interned. */
+  private static final int MAX_INTERNED_VALUE_LENGTH = 256;
+
+  /** Bounds the memory used by the string table of the writer. */
+  private static final int MAX_INTERNED_VALUES = 1 << 20;
+
+  private CompactChromeTrace() {}
+
+  /**
+   * @return whether the stream holds a compact trace. The stream is left at the same position, so
+   *     it can be read in whichever format it holds.
+   */
+  public static boolean isCompactTrace(BufferedInputStream input) throws IOException {
+    input.mark(Integer.BYTES);
+    try {
+      int magic = 0;
+      for (int i = 0; i < Integer.BYTES; i++) {
+        int b = input.read();
+        if (b == -1) {
+          return false;
+        }
+        magic = (magic << 8) | b;
+      }
+      return magic == MAGIC;
+    } finally {
+      input.reset();
+    }
+  }
+
+  /**
+   * @return a stream of the trace in the Chrome JSON array format, which is converted from the
+   *     compact trace as it's read.
+   */
+  public static InputStream toJson(InputStream compactTrace) throws IOException {
+    return new JsonInputStream(new Reader(compactTrace));
+  }
+
+  /** Writes a compact trace. */
+  public static class Writer implements Closeable {
+    private final OutputStream output;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private long previousMicroTime = 0;
+    private long previousMicroThreadUserTime = 0;
+
+    public Writer(OutputStream output) throws IOException {
+      this.output = new BufferedOutputStream(output);
+      writeInt(MAGIC);
+      this.output.write(VERSION);
+    }
+
+    public void writeEvent(
+        String category,
+        String name,
+        String phase,
+        long processId,
+        long threadId,
+        long microTime,
+        long microThreadUserTime,
+        Map<String, ?> args)
+        throws IOException {
+      Preconditions.checkArgument(phase.length() == 1, "Unexpected phase %s", phase);
+      int categoryId = intern(category);
+      int nameId = intern(name);
+      List<Object> encodedArgs = new ArrayList<>(args.size() * 2);
+      for (Map.Entry<String, ?> arg : args.entrySet()) {
+        encodedArgs.add(intern(arg.getKey()));
+        encodedArgs.add(encodeValue(arg.getValue()));
+      }
+
+      output.write(RECORD_EVENT);
+      writeVarLong(categoryId);
+      writeVarLong(nameId);
+      output.write(phase.charAt(0));
+      writeVarLong(processId);
+      writeVarLong(threadId);
+      writeVarLong(zigZag(microTime - previousMicroTime));
+      writeVarLong(zigZag(microThreadUserTime - previousMicroThreadUserTime));
+      previousMicroTime = microTime;
+      previousMicroThreadUserTime = microThreadUserTime;
+      writeVarLong(args.size());
+      for (int i = 0; i < encodedArgs.size(); i += 2) {
+        writeVarLong((Integer) encodedArgs.get(i));
+        writeValue(encodedArgs.get(i + 1));
+      }
+    }
+
+    /**
+     * Interns strings a value refers to, as those have to be defined before the event is written.
+     *
+     * @return the value to pass to {@link #writeValue(Object)}.
+     */
+    private Object encodeValue(Object value) throws IOException {
+      if (value instanceof String) {
+        String string = (String) value;
+        if (string.length() <= MAX_INTERNED_VALUE_LENGTH
+            && (strings.containsKey(string) || strings.size() < MAX_INTERNED_VALUES)) {
+          return new InternedString(intern(string));
+        }
+        return string;
+      }
+      if (value instanceof Long
+          || value instanceof Integer
+          || value instanceof Short
+          || value instanceof Byte
+          || value instanceof Double
+          || value instanceof Float
+          || value instanceof Boolean) {
+        return value;
+      }
+      return new JsonValue(ObjectMappers.WRITER.writeValueAsBytes(value));
+    }
+
+    private void writeValue(Object value) throws IOException {
+      if (value instanceof InternedString) {
+        output.write(VALUE_STRING);
+        writeVarLong(((InternedString) value).id);
+      } else if (value instanceof String) {
+        output.write(VALUE_INLINE_STRING);
+        writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+      } else if (value instanceof Double || value instanceof Float) {
+        output.write(VALUE_DOUBLE);
+        writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+      } else if (value instanceof Number) {
+        output.write(VALUE_LONG);
+        writeVarLong(zigZag(((Number) value).longValue()));
+      } else if (value instanceof Boolean) {
+        output.write((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+      } else {
+        output.write(VALUE_JSON);
+        writeBytes(((JsonValue) value).json);
+      }
+    }
+
+    private int intern(String string) throws IOException {
+      Integer id = strings.get(string);
+      if (id == null) {
+        id = strings.size();
+        strings.put(string, id);
+        output.write(RECORD_STRING);
+        writeBytes(string.getBytes(StandardCharsets.UTF_8));
+      }
+      return id;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+      writeVarLong(bytes.length);
+      output.write(bytes);
+    }
+
+    private void writeInt(int value) throws IOException {
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        output.write(value >>> shift);
+      }
+    }
+
+    private void writeLong(long value) throws IOException {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        output.write((int) (value >>> shift));
+      }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        output.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      output.write((int) value);
+    }
+
+    /** Terminates the trace, and closes the underlying stream. */
+    @Override
+    public void close() throws IOException {
+      output.write(RECORD_END);
+      output.close();
+    }
+
+    private static class InternedString {
+      private final int id;
+
+      private InternedString(int id) {
+        this.id = id;
+      }
+    }
+
+    private static class JsonValue {
+      private final byte[] json;
+
+      private JsonValue(byte[] json) {
+        this.json = json;
+      }
+    }
+  }
+
+  /** Reads the events of a compact trace, one at a time. */
+  public static class Reader implements Closeable {
+    private final InputStream input;
+    private final List<String> strings = new ArrayList<>();
+    private long previousMicroTime = 0;
+    private long previousMicroThreadUserTime = 0;
+    private boolean ended = false;
+
+    public Reader(InputStream input) throws IOException {
+      this.input = input instanceof BufferedInputStream ? input : new BufferedInputStream(input);
+      if (readInt() != MAGIC) {
+        throw new IOException("Not a compact Chrome trace");
+      }
+      int version = readByte();
+      if (version != VERSION) {
+        throw new IOException(
+            String.format("Unsupported compact Chrome trace version %d", version));
+      }
+    }
+
+    /**
+     * @return the next event, with the same properties as in the JSON format, or {@code null} once
+     *     all events have been read.
+     */
+    @Nullable
+    public ImmutableMap<String, Object> readEvent() throws IOException {
+      while (!ended) {
+        int record = readByte();
+        switch (record) {
+          case RECORD_STRING:
+            strings.add(new String(readBytes(), StandardCharsets.UTF_8));
+            break;
+          case RECORD_EVENT:
+            return readEventRecord();
+          case RECORD_END:
+            ended = true;
+            break;
+          default:
+            throw new IOException(String.format("Unexpected compact trace record %d", record));
+        }
+      }
+      return null;
+    }
+
+    private ImmutableMap<String, Object> readEventRecord() throws IOException {
+      String category = readString();
+      String name = readString();
+      String phase = String.valueOf((char) readByte());
+      long processId = readVarLong();
+      long threadId = readVarLong();
+      long microTime = previousMicroTime + unZigZag(readVarLong());
+      long microThreadUserTime = previousMicroThreadUserTime + unZigZag(readVarLong());
+      previousMicroTime = microTime;
+      previousMicroThreadUserTime = microThreadUserTime;
+      int argsCount = (int) readVarLong();
+      ImmutableMap.Builder<String, Object> args = ImmutableMap.builder();
+      for (int i = 0; i < argsCount; i++) {
+        args.put(readString(), readValue());
+      }
+      return ImmutableMap.<String, Object>builder()
+          .put("cat", category)
+          .put("name", name)
+          .put("ph", phase)
+          .put("pid", processId)
+          .put("tid", threadId)
+          .put("ts", microTime)
+          .put("tts", microThreadUserTime)
+          .put("args", args.build())
+          .build();
+    }
+
+    private Object readValue() throws IOException {
+      int type = readByte();
+      switch (type) {
+        case VALUE_STRING:
+          return readString();
+        case VALUE_INLINE_STRING:
+          return new String(readBytes(), StandardCharsets.UTF_8);
+        case VALUE_LONG:
+          return unZigZag(readVarLong());
+        case VALUE_DOUBLE:
+          return Double.longBitsToDouble(((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL));
+        case VALUE_TRUE:
+          return true;
+        case VALUE_FALSE:
+          return false;
+        case VALUE_JSON:
+          return ObjectMappers.READER.forType(Object.class).readValue(readBytes());
+        default:
+          throw new IOException(String.format("Unexpected compact trace value %d", type));
+      }
+    }
+
+    private String readString() throws IOException {
+      long id = readVarLong();
+      if (id >= strings.size()) {
+        throw new IOException(String.format("Undefined compact trace string %d", id));
+      }
+      return strings.get((int) id);
+    }
+
+    private byte[] readBytes() throws IOException {
+      byte[] bytes = new byte[(int) readVarLong()];
+      int read = 0;
+      while (read < bytes.length) {
+        int count = input.read(bytes, read, bytes.length - read);
+        if (count == -1) {
+          throw new EOFException();
+        }
+        read += count;
+      }
+      return bytes;
+    }
+
+    private int readByte() throws IOException {
+      int b = input.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      return b;
+    }
+
+    private int readInt() throws IOException {
+      int value = 0;
+      for (int i = 0; i < Integer.BYTES; i++) {
+        value = (value << 8) | readByte();
+      }
+      return value;
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < Long.SIZE; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint in compact trace");
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** Converts a compact trace to JSON a few events at a time, as the JSON is read. */
+  private static class JsonInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private final ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream();
+    private final JsonGenerator generator;
+    private int position = 0;
+    private boolean finished = false;
+
+    private JsonInputStream(Reader reader) throws IOException {
+      this.reader = reader;
+      this.generator = ObjectMappers.createGenerator(buffer);
+      this.generator.writeStartArray();
+    }
+
+    private boolean fill() throws IOException {
+      if (position < buffer.size()) {
+        return true;
+      }
+      buffer.reset();
+      position = 0;
+      while (!finished && buffer.size() < BUFFER_SIZE) {
+        ImmutableMap<String, Object> event = reader.readEvent();
+        if (event == null) {
+          generator.writeEndArray();
+          finished = true;
+        } else {
+          ObjectMappers.WRITER.writeValue(generator, event);
+        }
+        generator.flush();
+      }
+      return buffer.size() > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+      return buffer.getBuffer()[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int count = Math.min(len, buffer.size() - position);
+      System.arraycopy(buffer.getBuffer(), position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    private byte[] getBuffer() {
+      return buf;
+    }
+  }
+}
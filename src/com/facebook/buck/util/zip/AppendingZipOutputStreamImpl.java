@@ -61,6 +61,12 @@ class AppendingZipOutputStreamImpl implements CustomZipOutputStream.Impl {
     currentEntry.write(delegate, b, off, len);
   }
 
+  @Override
+  public void actuallyWriteDeflated(DeflatedEntry deflated) throws IOException {
+    Preconditions.checkNotNull(currentEntry);
+    currentEntry.writeDeflated(delegate, deflated);
+  }
+
   @Override
   public void actuallyPutNextEntry(ZipEntry entry) throws IOException {
     if (throwExceptionsOnDuplicate && !seenNames.add(entry.getName())) {
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.util.zip;
 
+import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
@@ -28,6 +29,8 @@ import javax.annotation.Nullable;
 /** Extension of {@link CustomZipOutputStream} with jar-specific functionality. */
 public class CustomJarOutputStream extends CustomZipOutputStream {
   public static final String DIGEST_ATTRIBUTE_NAME = "Murmur3-128-Digest";
+  static final HashFunction ENTRY_HASH_FUNCTION = Hashing.murmur3_128();
+
   private final HashingImpl impl;
 
   public CustomJarOutputStream(Impl impl) {
@@ -52,8 +55,6 @@ public class CustomJarOutputStream extends CustomZipOutputStream {
   }
 
   private static class HashingImpl extends OutputStream implements Impl {
-    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
-
     private final Impl inner;
     private final DeterministicManifest manifest = new DeterministicManifest();
     private boolean shouldHashEntries = false;
@@ -61,6 +62,7 @@ public class CustomJarOutputStream extends CustomZipOutputStream {
 
     @Nullable private ZipEntry currentEntry;
     @Nullable private Hasher hasher;
+    @Nullable private HashCode deflatedContentHash;
 
     HashingImpl(Impl inner) {
       this.inner = inner;
@@ -79,7 +81,7 @@ public class CustomJarOutputStream extends CustomZipOutputStream {
       inner.actuallyPutNextEntry(entry);
 
       if (shouldHashEntries && !entry.isDirectory() && hasher == null) {
-        hasher = HASH_FUNCTION.newHasher();
+        hasher = ENTRY_HASH_FUNCTION.newHasher();
       }
 
       currentEntry = entry;
@@ -94,6 +96,21 @@ public class CustomJarOutputStream extends CustomZipOutputStream {
       }
     }
 
+    @Override
+    public void actuallyWriteDeflated(DeflatedEntry deflated) throws IOException {
+      inner.actuallyWriteDeflated(deflated);
+
+      if (hasher != null) {
+        deflatedContentHash =
+            deflated
+                .getContentHash()
+                .orElseThrow(
+                    () ->
+                        new IllegalStateException(
+                            "Entry hashing is enabled but the deflated entry was not hashed."));
+      }
+    }
+
     @Override
     public void actuallyCloseEntry() throws IOException {
       inner.actuallyCloseEntry();
@@ -103,9 +120,10 @@ public class CustomJarOutputStream extends CustomZipOutputStream {
           throw new IllegalStateException(
               "Attempted to write an entry with hashing enabled after the manifest was written.");
         }
-        manifest.setEntryAttribute(
-            currentEntry.getName(), DIGEST_ATTRIBUTE_NAME, hasher.hash().toString());
+        HashCode hash = deflatedContentHash != null ? deflatedContentHash : hasher.hash();
+        manifest.setEntryAttribute(currentEntry.getName(), DIGEST_ATTRIBUTE_NAME, hash.toString());
         hasher = null;
+        deflatedContentHash = null;
       }
 
       currentEntry = null;
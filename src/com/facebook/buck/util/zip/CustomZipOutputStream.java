@@ -54,6 +54,12 @@ public class CustomZipOutputStream extends OutputStream {
      */
     void actuallyWrite(byte b[], int off, int len) throws IOException;
 
+    /**
+     * Called by {@link CustomZipOutputStream#writeDeflatedEntry(DeflatedEntry)} right after the
+     * entry was put, and before it is closed, to write its already deflated contents.
+     */
+    void actuallyWriteDeflated(DeflatedEntry deflated) throws IOException;
+
     void actuallyClose() throws IOException;
   }
 
@@ -133,6 +139,16 @@ public class CustomZipOutputStream extends OutputStream {
     }
   }
 
+  /**
+   * Writes an entry whose contents are already deflated, e.g. on another thread or by another zip,
+   * without compressing them again.
+   */
+  public final void writeDeflatedEntry(DeflatedEntry deflated) throws IOException {
+    putNextEntry(deflated.getEntry());
+    impl.actuallyWriteDeflated(deflated);
+    closeEntry();
+  }
+
   @Override
   public final void close() throws IOException {
     if (state == State.CLOSED) {
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import com.facebook.buck.util.function.ThrowingSupplier;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import javax.annotation.Nullable;
+
+/**
+ * The contents of a {@link CustomZipEntry}, already deflated when written to a {@link
+ * CustomZipOutputStream}. The contents are either deflated ahead of time, which allows compressing
+ * entries on other threads than the one writing the zip, or copied as-is from another zip.
+ *
+ * <p>Contents deflated ahead are identical to what the stream would have produced from the raw
+ * contents, so the resulting zip does not depend on where the compression happened.
+ */
+public class DeflatedEntry {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final CustomZipEntry entry;
+  private final DeflatedData data;
+  private final long compressedSize;
+  private final long crc;
+  private final long size;
+  private final Optional<HashCode> contentHash;
+
+  private DeflatedEntry(
+      CustomZipEntry entry,
+      DeflatedData data,
+      long compressedSize,
+      long crc,
+      long size,
+      Optional<HashCode> contentHash) {
+    this.entry = entry;
+    this.data = data;
+    this.compressedSize = compressedSize;
+    this.crc = crc;
+    this.size = size;
+    this.contentHash = contentHash;
+  }
+
+  /**
+   * Deflates the contents of {@code entry} using the entry's compression level. This does not
+   * modify {@code entry}, so it is safe to call from any thread.
+   *
+   * @param contents supplies the contents of the entry, or null for an empty entry.
+   * @param hashContents whether to also compute the hash used by {@link CustomJarOutputStream} to
+   *     record entry digests in the manifest.
+   */
+  public static DeflatedEntry deflate(
+      CustomZipEntry entry,
+      ThrowingSupplier<InputStream, IOException> contents,
+      boolean hashContents)
+      throws IOException {
+    Preconditions.checkArgument(
+        entry.getMethod() == ZipEntry.DEFLATED, "Only deflated entries can be compressed ahead.");
+
+    Hasher crc = Hashing.crc32().newHasher();
+    @Nullable
+    Hasher contentHasher =
+        hashContents ? CustomJarOutputStream.ENTRY_HASH_FUNCTION.newHasher() : null;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(entry.getCompressionLevel(), true);
+    byte[] inputBuffer = new byte[BUFFER_SIZE];
+    byte[] outputBuffer = new byte[BUFFER_SIZE];
+    try {
+      try (InputStream in = contents.get()) {
+        if (in != null) {
+          for (int read = in.read(inputBuffer); read != -1; read = in.read(inputBuffer)) {
+            crc.putBytes(inputBuffer, 0, read);
+            if (contentHasher != null) {
+              contentHasher.putBytes(inputBuffer, 0, read);
+            }
+            deflater.setInput(inputBuffer, 0, read);
+            while (!deflater.needsInput()) {
+              out.write(outputBuffer, 0, deflater.deflate(outputBuffer));
+            }
+          }
+        }
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        out.write(outputBuffer, 0, deflater.deflate(outputBuffer));
+      }
+
+      byte[] deflatedBytes = out.toByteArray();
+      return new DeflatedEntry(
+          entry,
+          stream -> stream.write(deflatedBytes),
+          deflatedBytes.length,
+          crc.hash().padToLong(),
+          deflater.getBytesRead(),
+          Optional.ofNullable(contentHasher).map(Hasher::hash));
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Copies the deflated contents of an entry of another zip without inflating them.
+   *
+   * @param zip the channel of the zip to copy from, which must stay open until the entry is
+   *     written.
+   * @param dataOffset the offset in {@code zip} of the deflated contents.
+   */
+  static DeflatedEntry copyOf(
+      CustomZipEntry entry,
+      FileChannel zip,
+      long dataOffset,
+      long compressedSize,
+      long crc,
+      long size) {
+    return new DeflatedEntry(
+        entry,
+        stream -> {
+          // Positional transfers are safe with concurrent users of the channel. The target wraps
+          // an arbitrary stream, so this is an ordinary buffered read and write, not a zero-copy
+          // transfer; it only saves inflating and deflating the entry again.
+          WritableByteChannel target = Channels.newChannel(stream);
+          long position = dataOffset;
+          long end = dataOffset + compressedSize;
+          while (position < end) {
+            long transferred = zip.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+              throw new EOFException("Unexpected end of zip while copying " + entry.getName());
+            }
+            position += transferred;
+          }
+        },
+        compressedSize,
+        crc,
+        size,
+        Optional.empty());
+  }
+
+  public CustomZipEntry getEntry() {
+    return entry;
+  }
+
+  /** Writes the deflated contents to {@code out}. */
+  void writeDeflatedBytes(OutputStream out) throws IOException {
+    data.writeTo(out);
+  }
+
+  long getCompressedSize() {
+    return compressedSize;
+  }
+
+  long getCrc() {
+    return crc;
+  }
+
+  /** @return the uncompressed size of the contents. */
+  long getSize() {
+    return size;
+  }
+
+  /** @return the hash of the uncompressed contents, if it was requested when deflating. */
+  Optional<HashCode> getContentHash() {
+    return contentHash;
+  }
+
+  private interface DeflatedData {
+    void writeTo(OutputStream out) throws IOException;
+  }
+}
@@ -57,6 +57,7 @@ class EntryAccounting {
   private long offset;
   private long length = 0;
   private long externalAttributes = 0;
+  private boolean deflatedAhead = false;
 
   /**
    * General purpose bit flag: Bit 00: encrypted file Bit 01: compression option Bit 02: compression
@@ -257,6 +258,21 @@ class EntryAccounting {
     }
   }
 
+  /**
+   * Writes contents that were already deflated, either ahead of time or by another zip, instead of
+   * deflating them here. This must be the only write to the entry.
+   */
+  public void writeDeflated(OutputStream out, DeflatedEntry deflated) throws IOException {
+    Preconditions.checkState(method == Method.DEFLATE && length == 0 && !deflatedAhead);
+    deflatedAhead = true;
+
+    deflated.writeDeflatedBytes(out);
+    length = deflated.getCompressedSize();
+    entry.setSize(deflated.getSize());
+    entry.setCompressedSize(length);
+    entry.setCrc(deflated.getCrc());
+  }
+
   /**
    * Finish the entry and return the total number of compressed bytes written (not counting the
    * local file header, but counting the data descriptor if present). Must be called exactly once.
@@ -269,6 +285,10 @@ class EntryAccounting {
       Preconditions.checkState(
           entry.getCrc() == calculateCrc(),
           "CRC of bytes written differs from what is specified in the entry.");
+    } else if (deflatedAhead) {
+      Preconditions.checkState(
+          entry.getCompressedSize() == length,
+          "Number of bytes written differs from the deflated size of the entry.");
     } else if (method == Method.DEFLATE) {
       deflater.finish();
       while (!deflater.finished()) {
@@ -18,11 +18,16 @@ package com.facebook.buck.util.zip;
 
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.util.RichStream;
+import com.facebook.buck.util.concurrent.MostExecutors;
+import com.facebook.buck.util.function.ThrowingSupplier;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -35,15 +40,46 @@ import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
 import javax.annotation.Nullable;
 
 public class JarBuilder {
+  /**
+   * How many entries each compression thread may deflate ahead of the writer. Entries are usually
+   * small class files, so this keeps the threads busy without holding much of the jar in memory.
+   */
+  private static final int MAX_PENDING_ENTRIES_PER_THREAD = 32;
+
+  /** How many bytes of deflated contents a jar may hold in memory while waiting to write them. */
+  private static final long MAX_PENDING_BYTES = 32 * 1024 * 1024;
+
+  /**
+   * Jars with fewer entries than this are compressed on the writing thread, since handing them off
+   * costs more than it saves.
+   */
+  private static final int MIN_ENTRIES_TO_COMPRESS_IN_PARALLEL = 64;
+
+  /**
+   * Deflates entries for all the jars created in this process. Jar steps already run concurrently,
+   * so sharing one pool bounds the compression threads by the number of cores, however many jars
+   * are being created at once.
+   */
+  private static final ListeningExecutorService COMPRESSION_EXECUTOR =
+      MoreExecutors.listeningDecorator(
+          MostExecutors.newMultiThreadExecutor(
+              new ThreadFactoryBuilder()
+                  .setNameFormat("JarBuilder compression-%d")
+                  .setDaemon(true)
+                  .build(),
+              Runtime.getRuntime().availableProcessors()));
+
   public interface Observer {
     Observer IGNORING =
         new Observer() {
@@ -66,8 +102,12 @@ public class JarBuilder {
   private boolean shouldMergeManifests;
   private boolean shouldDisallowAllDuplicates;
   private boolean shouldHashEntries;
+  private int compressionThreads = 1;
+  @Nullable private ParallelZipEntryWriter parallelEntryWriter;
   private Predicate<? super CustomZipEntry> removeEntryPredicate = entry -> false;
   private List<JarEntryContainer> sourceContainers = new ArrayList<>();
+  /** Containers created by this builder, which must be closed once the jar is created. */
+  private List<JarEntryContainer> ownedContainers = new ArrayList<>();
   private Set<String> alreadyAddedEntries = new HashSet<>();
   private Map<String, Set<String>> services = new HashMap<>();
 
@@ -84,7 +124,11 @@ public class JarBuilder {
     RichStream.from(entriesToJar)
         .peek(path -> Preconditions.checkArgument(path.isAbsolute()))
         .map(JarEntryContainer::of)
-        .forEach(sourceContainers::add);
+        .forEach(
+            container -> {
+              sourceContainers.add(container);
+              ownedContainers.add(container);
+            });
 
     return this;
   }
@@ -125,6 +169,18 @@ public class JarBuilder {
     return this;
   }
 
+  /**
+   * Sets how many threads' worth of entries are deflated ahead of writing this jar. Above 1,
+   * entries are deflated on a pool shared by all jars and sized to the number of cores, except for
+   * small jars, which are always deflated on the writing thread. The jar is identical regardless of
+   * the number of threads; with a single thread, entries are deflated as they are written.
+   */
+  public JarBuilder setCompressionThreads(int compressionThreads) {
+    Preconditions.checkArgument(compressionThreads > 0);
+    this.compressionThreads = compressionThreads;
+    return this;
+  }
+
   public JarBuilder setRemoveEntryPredicate(
       Predicate<? super CustomZipEntry> removeEntryPredicate) {
     this.removeEntryPredicate = removeEntryPredicate;
@@ -132,6 +188,16 @@ public class JarBuilder {
   }
 
   public int createJarFile(Path outputFile) throws IOException {
+    try {
+      return writeJarFile(outputFile);
+    } finally {
+      for (JarEntryContainer container : ownedContainers) {
+        container.close();
+      }
+    }
+  }
+
+  private int writeJarFile(Path outputFile) throws IOException {
     Preconditions.checkArgument(outputFile.isAbsolute());
     try (CustomJarOutputStream jar =
         ZipOutputStreams.newJarOutputStream(
@@ -149,7 +215,11 @@ public class JarBuilder {
       }
       sortedEntries.sort(Comparator.comparing(supplier -> supplier.getEntry().getName()));
 
-      addEntriesToJar(sortedEntries, jar);
+      if (compressionThreads > 1 && sortedEntries.size() >= MIN_ENTRIES_TO_COMPRESS_IN_PARALLEL) {
+        addEntriesToJarInParallel(sortedEntries, jar);
+      } else {
+        addEntriesToJar(sortedEntries, jar);
+      }
 
       addServices(jar);
 
@@ -227,6 +297,24 @@ public class JarBuilder {
     }
   }
 
+  private void addEntriesToJarInParallel(
+      Iterable<JarEntrySupplier> entries, CustomJarOutputStream jar) throws IOException {
+    parallelEntryWriter =
+        new ParallelZipEntryWriter(
+            jar,
+            COMPRESSION_EXECUTOR,
+            compressionThreads * MAX_PENDING_ENTRIES_PER_THREAD,
+            MAX_PENDING_BYTES,
+            shouldHashEntries);
+    try {
+      addEntriesToJar(entries, jar);
+      parallelEntryWriter.flush();
+    } finally {
+      parallelEntryWriter.cancel();
+      parallelEntryWriter = null;
+    }
+  }
+
   private void addEntryToJar(JarEntrySupplier entrySupplier, CustomJarOutputStream jar)
       throws IOException {
     CustomZipEntry entry = entrySupplier.getEntry();
@@ -269,8 +357,35 @@ public class JarBuilder {
       return;
     }
 
+    // Copy already deflated contents as-is rather than inflating and deflating them again. The
+    // digests of hashed entries need the uncompressed contents, so those are always re-deflated.
+    if (!shouldHashEntries && entry.getMethod() == ZipEntry.DEFLATED) {
+      Optional<DeflatedEntry> deflated = entrySupplier.getDeflatedEntrySupplier().get();
+      if (deflated.isPresent()) {
+        if (parallelEntryWriter != null) {
+          parallelEntryWriter.putEntry(deflated.get());
+        } else {
+          jar.writeDeflatedEntry(deflated.get());
+        }
+        return;
+      }
+    }
+
+    writeEntry(entry, entrySupplier.getInputStreamSupplier(), jar);
+  }
+
+  private void writeEntry(
+      CustomZipEntry entry,
+      ThrowingSupplier<InputStream, IOException> contents,
+      CustomJarOutputStream jar)
+      throws IOException {
+    if (parallelEntryWriter != null) {
+      parallelEntryWriter.putEntry(entry, contents);
+      return;
+    }
+
     jar.putNextEntry(entry);
-    try (InputStream entryInputStream = entrySupplier.getInputStreamSupplier().get()) {
+    try (InputStream entryInputStream = contents.get()) {
       if (entryInputStream != null) {
         // Null stream means a directory
         ByteStreams.copy(entryInputStream, jar);
@@ -296,8 +411,7 @@ public class JarBuilder {
     String parent = getParentDir(name);
     mkdirs(parent, jar);
 
-    jar.putNextEntry(new CustomZipEntry(name));
-    jar.closeEntry();
+    writeEntry(new CustomZipEntry(name), () -> null, jar);
     alreadyAddedEntries.add(name);
   }
 
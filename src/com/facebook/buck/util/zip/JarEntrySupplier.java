@@ -19,6 +19,7 @@ package com.facebook.buck.util.zip;
 import com.facebook.buck.util.function.ThrowingSupplier;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 
 /**
  * Encapsulates a file or directory to be added as a single entry to a jar by {@link JarBuilder}.
@@ -27,14 +28,28 @@ public class JarEntrySupplier {
   private final CustomZipEntry entry;
   private final String owner;
   private final ThrowingSupplier<InputStream, IOException> inputStreamSupplier;
+  private final ThrowingSupplier<Optional<DeflatedEntry>, IOException> deflatedEntrySupplier;
 
   public JarEntrySupplier(
       CustomZipEntry entry,
       String owner,
       ThrowingSupplier<InputStream, IOException> inputStreamSupplier) {
+    this(entry, owner, inputStreamSupplier, Optional::empty);
+  }
+
+  /**
+   * @param deflatedEntrySupplier supplies the already deflated contents of the entry, if they are
+   *     available and can be written to the jar as-is.
+   */
+  public JarEntrySupplier(
+      CustomZipEntry entry,
+      String owner,
+      ThrowingSupplier<InputStream, IOException> inputStreamSupplier,
+      ThrowingSupplier<Optional<DeflatedEntry>, IOException> deflatedEntrySupplier) {
     this.entry = entry;
     this.owner = owner;
     this.inputStreamSupplier = inputStreamSupplier;
+    this.deflatedEntrySupplier = deflatedEntrySupplier;
   }
 
   public CustomZipEntry getEntry() {
@@ -48,4 +63,8 @@ public class JarEntrySupplier {
   public ThrowingSupplier<InputStream, IOException> getInputStreamSupplier() {
     return inputStreamSupplier;
   }
+
+  public ThrowingSupplier<Optional<DeflatedEntry>, IOException> getDeflatedEntrySupplier() {
+    return deflatedEntrySupplier;
+  }
 }
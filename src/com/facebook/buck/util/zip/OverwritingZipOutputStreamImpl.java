@@ -102,6 +102,13 @@ public class OverwritingZipOutputStreamImpl implements CustomZipOutputStream.Imp
     currentEntry.write(currentOutput, b, off, len);
   }
 
+  @Override
+  public void actuallyWriteDeflated(DeflatedEntry deflated) throws IOException {
+    Preconditions.checkNotNull(currentEntry);
+    Preconditions.checkNotNull(currentOutput);
+    currentEntry.writeDeflated(currentOutput, deflated);
+  }
+
   @Override
   public void actuallyClose() throws IOException {
     long currentOffset = 0;
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import com.facebook.buck.util.function.ThrowingSupplier;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import javax.annotation.Nullable;
+
+/**
+ * Writes entries to a {@link CustomZipOutputStream}, deflating them on an executor, but always
+ * writing them to the stream in the order they were added. Since {@link DeflatedEntry} produces the
+ * same bytes the stream would have, the resulting zip is identical to writing the entries one by
+ * one on a single thread.
+ *
+ * <p>At most {@code maxPendingEntries} entries are compressed ahead of the writer, and once the
+ * deflated contents waiting to be written exceed {@code maxPendingBytes}, the writer waits for the
+ * oldest entry rather than adding more. Like the stream it writes to, this class is not
+ * thread-safe.
+ */
+public class ParallelZipEntryWriter {
+  private final CustomZipOutputStream out;
+  private final ListeningExecutorService executor;
+  private final int maxPendingEntries;
+  private final long maxPendingBytes;
+  private final boolean hashContents;
+  private final Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+  /** The size of the contents deflated on the executor that haven't been written yet. */
+  private final AtomicLong pendingBytes = new AtomicLong();
+
+  /**
+   * @param hashContents whether deflated entries should carry the hash needed by a {@link
+   *     CustomJarOutputStream} with entry hashing enabled.
+   */
+  public ParallelZipEntryWriter(
+      CustomZipOutputStream out,
+      ListeningExecutorService executor,
+      int maxPendingEntries,
+      long maxPendingBytes,
+      boolean hashContents) {
+    Preconditions.checkArgument(maxPendingEntries > 0);
+    Preconditions.checkArgument(maxPendingBytes > 0);
+    this.out = out;
+    this.executor = executor;
+    this.maxPendingEntries = maxPendingEntries;
+    this.maxPendingBytes = maxPendingBytes;
+    this.hashContents = hashContents;
+  }
+
+  /**
+   * Adds an entry to write after all previously added ones. Deflated entries are compressed on the
+   * executor; other entries are copied as-is when their turn comes.
+   *
+   * @param contents supplies the contents of the entry, or null for an empty entry. It may be
+   *     called from any thread.
+   */
+  public void putEntry(CustomZipEntry entry, ThrowingSupplier<InputStream, IOException> contents)
+      throws IOException {
+    @Nullable ListenableFuture<DeflatedEntry> deflated = null;
+    if (entry.getMethod() == ZipEntry.DEFLATED) {
+      deflated =
+          executor.submit(
+              () -> {
+                DeflatedEntry result = DeflatedEntry.deflate(entry, contents, hashContents);
+                pendingBytes.addAndGet(result.getCompressedSize());
+                return result;
+              });
+    }
+    pendingEntries.add(new PendingEntry(entry, contents, deflated, deflated != null));
+    writeReadyEntries();
+  }
+
+  /**
+   * Adds an entry whose contents are already deflated, to write after all previously added ones.
+   */
+  public void putEntry(DeflatedEntry deflated) throws IOException {
+    // Only contents deflated on the executor count toward the pending bytes. Entries deflated by
+    // the caller are typically copied from another zip when written, not held in memory.
+    pendingEntries.add(
+        new PendingEntry(
+            deflated.getEntry(), () -> null, Futures.immediateFuture(deflated), false));
+    writeReadyEntries();
+  }
+
+  /** Waits for all pending entries to be compressed and writes them to the stream. */
+  public void flush() throws IOException {
+    while (!pendingEntries.isEmpty()) {
+      writeNext();
+    }
+  }
+
+  /** Abandons the pending entries, e.g. because writing the zip failed. */
+  public void cancel() {
+    for (PendingEntry pendingEntry : pendingEntries) {
+      if (pendingEntry.deflated != null) {
+        pendingEntry.deflated.cancel(true);
+      }
+    }
+    pendingEntries.clear();
+    pendingBytes.set(0);
+  }
+
+  /**
+   * Writes out whatever is ready, and waits for the oldest entries while too many entries or bytes
+   * are pending.
+   */
+  private void writeReadyEntries() throws IOException {
+    while (!pendingEntries.isEmpty()
+        && (pendingEntries.size() > maxPendingEntries
+            || pendingBytes.get() > maxPendingBytes
+            || pendingEntries.peek().isReady())) {
+      writeNext();
+    }
+  }
+
+  private void writeNext() throws IOException {
+    PendingEntry pendingEntry = pendingEntries.remove();
+    if (pendingEntry.deflated == null) {
+      out.putNextEntry(pendingEntry.entry);
+      try (InputStream contents = pendingEntry.contents.get()) {
+        if (contents != null) {
+          ByteStreams.copy(contents, out);
+        }
+      }
+      out.closeEntry();
+      return;
+    }
+
+    DeflatedEntry deflated;
+    try {
+      deflated = pendingEntry.deflated.get();
+    } catch (InterruptedException e) {
+      cancel();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while deflating zip entries.");
+    } catch (ExecutionException e) {
+      cancel();
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException("Failed to deflate " + pendingEntry.entry.getName(), e.getCause());
+    }
+    out.writeDeflatedEntry(deflated);
+    if (pendingEntry.countsAsPendingBytes) {
+      pendingBytes.addAndGet(-deflated.getCompressedSize());
+    }
+  }
+
+  private static class PendingEntry {
+    private final CustomZipEntry entry;
+    private final ThrowingSupplier<InputStream, IOException> contents;
+    @Nullable private final ListenableFuture<DeflatedEntry> deflated;
+    private final boolean countsAsPendingBytes;
+
+    private PendingEntry(
+        CustomZipEntry entry,
+        ThrowingSupplier<InputStream, IOException> contents,
+        @Nullable ListenableFuture<DeflatedEntry> deflated,
+        boolean countsAsPendingBytes) {
+      this.entry = entry;
+      this.contents = contents;
+      this.deflated = deflated;
+      this.countsAsPendingBytes = countsAsPendingBytes;
+    }
+
+    private boolean isReady() {
+      return deflated == null || deflated.isDone();
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import com.google.common.base.Charsets;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * Indexes the central directory of a zip file, so that the deflated contents of its entries can be
+ * copied to another zip without inflating and deflating them again.
+ *
+ * <p>Only plain deflated entries are indexed: stored, encrypted and zip64 entries, as well as
+ * entries whose name appears more than once, are left to be copied through their uncompressed
+ * contents.
+ */
+class RawZipEntryIndex implements Closeable {
+  private static final int ENCRYPTED_FLAG = 1;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  private final FileChannel channel;
+  private final Map<String, Location> locations;
+
+  private RawZipEntryIndex(FileChannel channel, Map<String, Location> locations) {
+    this.channel = channel;
+    this.locations = locations;
+  }
+
+  public static RawZipEntryIndex open(Path zipPath) throws IOException {
+    FileChannel channel = FileChannel.open(zipPath, StandardOpenOption.READ);
+    try {
+      return new RawZipEntryIndex(channel, readCentralDirectory(channel));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static Map<String, Location> readCentralDirectory(FileChannel channel)
+      throws IOException {
+    Map<String, Location> locations = new HashMap<>();
+    long size = channel.size();
+    if (size < ZipEntry.ENDHDR || size > Integer.MAX_VALUE) {
+      return locations;
+    }
+
+    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    map.order(ByteOrder.LITTLE_ENDIAN);
+
+    // Search backwards from the end of the zip file for the EOCD signature, skipping over the
+    // variable-length zip comment.
+    int eocdOffset = (int) size - ZipEntry.ENDHDR;
+    int minEocdOffset = Math.max(0, eocdOffset - 0xFFFF);
+    while (eocdOffset >= minEocdOffset && map.getInt(eocdOffset) != ZipEntry.ENDSIG) {
+      eocdOffset--;
+    }
+    if (eocdOffset < minEocdOffset) {
+      throw new IOException("Could not find the end of the central directory.");
+    }
+
+    int cdEntries = Short.toUnsignedInt(map.getShort(eocdOffset + ZipEntry.ENDTOT));
+    long cdOffset = Integer.toUnsignedLong(map.getInt(eocdOffset + ZipEntry.ENDOFF));
+    if (cdEntries == 0xFFFF || cdOffset == ZIP64_MAGIC) {
+      // Zip64 archive. Rare enough for jars that we don't bother.
+      return locations;
+    }
+
+    Set<String> duplicateNames = new HashSet<>();
+    int offset = (int) cdOffset;
+    for (int idx = 0; idx < cdEntries; idx++) {
+      if (map.getInt(offset) != ZipEntry.CENSIG) {
+        throw new IOException("Expected central directory header signature.");
+      }
+      int flags = Short.toUnsignedInt(map.getShort(offset + ZipEntry.CENFLG));
+      int method = Short.toUnsignedInt(map.getShort(offset + ZipEntry.CENHOW));
+      long crc = Integer.toUnsignedLong(map.getInt(offset + ZipEntry.CENCRC));
+      long compressedSize = Integer.toUnsignedLong(map.getInt(offset + ZipEntry.CENSIZ));
+      long uncompressedSize = Integer.toUnsignedLong(map.getInt(offset + ZipEntry.CENLEN));
+      int nameLength = Short.toUnsignedInt(map.getShort(offset + ZipEntry.CENNAM));
+      int extraLength = Short.toUnsignedInt(map.getShort(offset + ZipEntry.CENEXT));
+      int commentLength = Short.toUnsignedInt(map.getShort(offset + ZipEntry.CENCOM));
+      long localHeaderOffset = Integer.toUnsignedLong(map.getInt(offset + ZipEntry.CENOFF));
+
+      byte[] nameBytes = new byte[nameLength];
+      ByteBuffer name = map.duplicate();
+      name.position(offset + ZipEntry.CENHDR);
+      name.get(nameBytes);
+      String entryName = new String(nameBytes, Charsets.UTF_8);
+
+      boolean copyable =
+          method == ZipEntry.DEFLATED
+              && (flags & ENCRYPTED_FLAG) == 0
+              && compressedSize != ZIP64_MAGIC
+              && uncompressedSize != ZIP64_MAGIC
+              && localHeaderOffset != ZIP64_MAGIC;
+      if (!duplicateNames.contains(entryName)) {
+        if (locations.containsKey(entryName)) {
+          locations.remove(entryName);
+          duplicateNames.add(entryName);
+        } else if (copyable) {
+          locations.put(
+              entryName, new Location(localHeaderOffset, compressedSize, crc, uncompressedSize));
+        } else {
+          duplicateNames.add(entryName);
+        }
+      }
+
+      offset += ZipEntry.CENHDR + nameLength + extraLength + commentLength;
+    }
+    return locations;
+  }
+
+  /**
+   * @return the deflated contents of the entry with the same name as {@code entry}, if they can be
+   *     copied as-is.
+   */
+  public Optional<DeflatedEntry> getDeflatedEntry(CustomZipEntry entry) throws IOException {
+    Location location = locations.get(entry.getName());
+    if (location == null) {
+      return Optional.empty();
+    }
+
+    // The local header may have different extra fields than the central directory, so read its
+    // own lengths to find where the data starts.
+    ByteBuffer localHeader = ByteBuffer.allocate(ZipEntry.LOCHDR).order(ByteOrder.LITTLE_ENDIAN);
+    while (localHeader.hasRemaining()) {
+      int read =
+          channel.read(localHeader, location.localHeaderOffset + localHeader.position());
+      if (read < 0) {
+        throw new IOException("Unexpected end of zip reading header of " + entry.getName());
+      }
+    }
+    if (localHeader.getInt(0) != ZipEntry.LOCSIG) {
+      throw new IOException("Expected local header signature for " + entry.getName());
+    }
+    long dataOffset =
+        location.localHeaderOffset
+            + ZipEntry.LOCHDR
+            + Short.toUnsignedInt(localHeader.getShort(ZipEntry.LOCNAM))
+            + Short.toUnsignedInt(localHeader.getShort(ZipEntry.LOCEXT));
+
+    return Optional.of(
+        DeflatedEntry.copyOf(
+            entry,
+            channel,
+            dataOffset,
+            location.compressedSize,
+            location.crc,
+            location.uncompressedSize));
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private static class Location {
+    private final long localHeaderOffset;
+    private final long compressedSize;
+    private final long crc;
+    private final long uncompressedSize;
+
+    private Location(long localHeaderOffset, long compressedSize, long crc, long uncompressedSize) {
+      this.localHeaderOffset = localHeaderOffset;
+      this.compressedSize = compressedSize;
+      this.crc = crc;
+      this.uncompressedSize = uncompressedSize;
+    }
+  }
+}
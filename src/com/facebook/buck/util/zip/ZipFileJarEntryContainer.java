@@ -30,6 +30,7 @@ class ZipFileJarEntryContainer implements JarEntryContainer {
   private final String owner;
   private final Path jarFilePath;
   @Nullable private JarFile jar;
+  @Nullable private RawZipEntryIndex rawEntryIndex;
 
   public ZipFileJarEntryContainer(Path jarFilePath) {
     this.jarFilePath = jarFilePath;
@@ -47,14 +48,42 @@ class ZipFileJarEntryContainer implements JarEntryContainer {
     return getJarFile()
         .stream()
         .map(
-            entry ->
-                new JarEntrySupplier(
-                    makeCustomEntry(entry), owner, () -> getJarFile().getInputStream(entry)));
+            entry -> {
+              CustomZipEntry customEntry = makeCustomEntry(entry);
+              return new JarEntrySupplier(
+                  customEntry,
+                  owner,
+                  () -> getJarFile().getInputStream(entry),
+                  () -> getRawEntryIndex().getDeflatedEntry(customEntry));
+            });
   }
 
   @Override
   public void close() throws IOException {
-    getJarFile().close();
+    // Forget the closed files, so that the container can be streamed again.
+    try {
+      if (jar != null) {
+        jar.close();
+      }
+    } finally {
+      jar = null;
+      if (rawEntryIndex != null) {
+        rawEntryIndex.close();
+        rawEntryIndex = null;
+      }
+    }
+  }
+
+  private RawZipEntryIndex getRawEntryIndex() throws IOException {
+    if (rawEntryIndex == null) {
+      try {
+        rawEntryIndex = RawZipEntryIndex.open(jarFilePath);
+      } catch (IOException e) {
+        throw new IOException("Failed to index ZipFile " + owner, e);
+      }
+    }
+
+    return rawEntryIndex;
   }
 
   private JarFile getJarFile() throws IOException {
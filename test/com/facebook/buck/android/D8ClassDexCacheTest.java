@@ -0,0 +1,462 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.android.dex.Dex;
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.DiagnosticsHandler;
+import com.facebook.buck.android.toolchain.AndroidPlatformTarget;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+public class D8ClassDexCacheTest {
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private D8ClassDexCache cache;
+  private Path library;
+
+  @Before
+  public void setUp() throws IOException {
+    cache = new D8ClassDexCache(Long.MAX_VALUE);
+
+    // A minimal library to dex against.
+    library = tmp.getRoot().toPath().resolve("library.jar");
+    try (InputStream object = Object.class.getResourceAsStream("Object.class")) {
+      writeJar(library, "java/lang/Object.class", ByteStreams.toByteArray(object));
+    }
+  }
+
+  @Test
+  public void unchangedClassesAreNotDexedAgain() throws Exception {
+    Path first = writeClasses("first.jar", "foo/Base", "foo/Impl");
+    ImmutableSortedMap<String, byte[]> dexFiles = dexClasses(ImmutableList.of(first));
+    assertEquals(ImmutableSet.of("Lfoo/Base;", "Lfoo/Impl;"), dexFiles.keySet());
+
+    // Same classes in a different jar, with a new class.
+    Path second = writeClasses("second.jar", "foo/Base", "foo/Impl", "foo/Other");
+    ImmutableSortedMap<String, byte[]> newDexFiles = dexClasses(ImmutableList.of(second));
+    assertEquals(ImmutableSet.of("Lfoo/Base;", "Lfoo/Impl;", "Lfoo/Other;"), newDexFiles.keySet());
+    assertSame(dexFiles.get("Lfoo/Base;"), newDexFiles.get("Lfoo/Base;"));
+    assertSame(dexFiles.get("Lfoo/Impl;"), newDexFiles.get("Lfoo/Impl;"));
+  }
+
+  @Test
+  public void classesAreDexedAgainWhenTheirSupertypesChange() throws Exception {
+    Path jar = tmp.getRoot().toPath().resolve("classes.jar");
+    writeJar(
+        jar,
+        "foo/Base.class",
+        generateClass("foo/Base", "java/lang/Object", "base"),
+        "foo/Impl.class",
+        generateClass("foo/Impl", "foo/Base", "impl"),
+        "foo/Other.class",
+        generateClass("foo/Other", "java/lang/Object", "other"));
+    ImmutableSortedMap<String, byte[]> dexFiles = dexClasses(ImmutableList.of(jar));
+
+    writeJar(
+        jar,
+        "foo/Base.class",
+        generateClass("foo/Base", "java/lang/Object", "changedBase"),
+        "foo/Impl.class",
+        generateClass("foo/Impl", "foo/Base", "impl"),
+        "foo/Other.class",
+        generateClass("foo/Other", "java/lang/Object", "other"));
+    ImmutableSortedMap<String, byte[]> newDexFiles = dexClasses(ImmutableList.of(jar));
+
+    assertNotSame(dexFiles.get("Lfoo/Base;"), newDexFiles.get("Lfoo/Base;"));
+    assertNotSame(dexFiles.get("Lfoo/Impl;"), newDexFiles.get("Lfoo/Impl;"));
+    assertSame(dexFiles.get("Lfoo/Other;"), newDexFiles.get("Lfoo/Other;"));
+  }
+
+  @Test
+  public void classesAreDexedAgainWhenTheLibraryChanges() throws Exception {
+    Path jar = writeClasses("classes.jar", "foo/Base");
+    ImmutableSortedMap<String, byte[]> dexFiles = dexClasses(ImmutableList.of(jar));
+
+    // An SDK updated in place.
+    try (InputStream object = Object.class.getResourceAsStream("Object.class");
+        InputStream runnable = Runnable.class.getResourceAsStream("Runnable.class")) {
+      writeJar(
+          library,
+          "java/lang/Object.class",
+          ByteStreams.toByteArray(object),
+          "java/lang/Runnable.class",
+          ByteStreams.toByteArray(runnable));
+    }
+    ImmutableSortedMap<String, byte[]> newDexFiles = dexClasses(ImmutableList.of(jar));
+
+    assertNotSame(dexFiles.get("Lfoo/Base;"), newDexFiles.get("Lfoo/Base;"));
+  }
+
+  @Test
+  public void inputsWithDexFilesAreNotDexedPerClass() throws Exception {
+    Path jar = tmp.getRoot().toPath().resolve("classes.dex.jar");
+    writeJar(jar, "classes.dex", new byte[0]);
+    assertFalse(
+        cache
+            .dexClasses(
+                ImmutableList.of(jar), library, CompilationMode.DEBUG, new DiagnosticsHandler() {})
+            .isPresent());
+  }
+
+  @Test
+  public void dexingWithReusedClassesIsEquivalentToDexingAtOnce() throws Exception {
+    Path jar = tmp.getRoot().toPath().resolve("classes.jar");
+    writeJar(
+        jar,
+        "foo/Base.class",
+        generateClass("foo/Base", "java/lang/Object", "base"),
+        "foo/Impl.class",
+        generateClass("foo/Impl", "foo/Base", "impl"),
+        "foo/Other.class",
+        generateClass("foo/Other", "java/lang/Object", "other"),
+        "foo/UsesResource.class",
+        generateClassReferencingResource("foo/UsesResource", "foo/R$string", "hello"));
+
+    AndroidPlatformTarget androidPlatformTarget =
+        AndroidPlatformTarget.of(
+            "android",
+            library,
+            Collections.emptyList(),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""));
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot().toPath());
+    ExecutionContext context = TestExecutionContext.newInstance();
+
+    DxStep atOnce = newD8Step(filesystem, androidPlatformTarget, "at_once.dex", jar, false);
+    assertEquals(0, atOnce.execute(context).getExitCode());
+    // Dex twice, so that the second step merges dex files reused from the first.
+    DxStep[] perClass = new DxStep[2];
+    for (int i = 0; i < perClass.length; i++) {
+      perClass[i] =
+          newD8Step(filesystem, androidPlatformTarget, "per_class" + i + ".dex", jar, true);
+      assertEquals(0, perClass[i].execute(context).getExitCode());
+    }
+
+    Dex expected = new Dex(tmp.getRoot().toPath().resolve("at_once.dex").toFile());
+    for (int i = 0; i < perClass.length; i++) {
+      Dex actual = new Dex(tmp.getRoot().toPath().resolve("per_class" + i + ".dex").toFile());
+      assertEquals(
+          ImmutableList.copyOf(expected.strings()), ImmutableList.copyOf(actual.strings()));
+      assertEquals(
+          ImmutableList.copyOf(expected.typeNames()), ImmutableList.copyOf(actual.typeNames()));
+      assertEquals(
+          Lists.transform(expected.methodIds(), Object::toString),
+          Lists.transform(actual.methodIds(), Object::toString));
+      assertEquals(
+          Lists.transform(expected.fieldIds(), Object::toString),
+          Lists.transform(actual.fieldIds(), Object::toString));
+      assertEquals(
+          ImmutableSet.copyOf(atOnce.getResourcesReferencedInCode()),
+          ImmutableSet.copyOf(perClass[i].getResourcesReferencedInCode()));
+    }
+  }
+
+  @Test
+  public void reusedDexFilesProduceTheSameBytes() throws Exception {
+    try (InputStream object = Object.class.getResourceAsStream("Object.class");
+        InputStream runnable = Runnable.class.getResourceAsStream("Runnable.class")) {
+      writeJar(
+          library,
+          "java/lang/Object.class",
+          ByteStreams.toByteArray(object),
+          "java/lang/Runnable.class",
+          ByteStreams.toByteArray(runnable));
+    }
+    AndroidPlatformTarget androidPlatformTarget =
+        AndroidPlatformTarget.of(
+            "android",
+            library,
+            Collections.emptyList(),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""),
+            Paths.get(""));
+    ProjectFilesystem filesystem =
+        TestProjectFilesystems.createProjectFilesystem(tmp.getRoot().toPath());
+    ExecutionContext context = TestExecutionContext.newInstance();
+    Path jar = tmp.getRoot().toPath().resolve("classes.jar");
+
+    // Warm up the cache with a first version of the library.
+    writeClassesWithLambdasAndDefaultMethods(jar, "first");
+    D8ClassDexCache.INSTANCE.invalidateAll();
+    assertEquals(
+        0,
+        newD8Step(filesystem, androidPlatformTarget, "first.dex", jar, true)
+            .execute(context)
+            .getExitCode());
+
+    // Change one class, so that the others are reused.
+    writeClassesWithLambdasAndDefaultMethods(jar, "second");
+    assertEquals(
+        0,
+        newD8Step(filesystem, androidPlatformTarget, "warm.dex", jar, true)
+            .execute(context)
+            .getExitCode());
+    D8ClassDexCache.INSTANCE.invalidateAll();
+    assertEquals(
+        0,
+        newD8Step(filesystem, androidPlatformTarget, "cold.dex", jar, true)
+            .execute(context)
+            .getExitCode());
+
+    assertArrayEquals(
+        Files.readAllBytes(tmp.getRoot().toPath().resolve("cold.dex")),
+        Files.readAllBytes(tmp.getRoot().toPath().resolve("warm.dex")));
+  }
+
+  private static DxStep newD8Step(
+      ProjectFilesystem filesystem,
+      AndroidPlatformTarget androidPlatformTarget,
+      String output,
+      Path input,
+      boolean reuseClassDexFiles) {
+    EnumSet<DxStep.Option> options = EnumSet.of(DxStep.Option.NO_OPTIMIZE);
+    if (reuseClassDexFiles) {
+      options.add(DxStep.Option.REUSE_CLASS_DEX_FILES);
+    }
+    return new DxStep(
+        BuildTargetFactory.newInstance("//foo:bar"),
+        filesystem,
+        androidPlatformTarget,
+        Paths.get(output),
+        ImmutableList.of(input),
+        options,
+        DxStep.D8);
+  }
+
+  private ImmutableSortedMap<String, byte[]> dexClasses(Collection<Path> inputs)
+      throws CompilationFailedException, IOException {
+    Optional<ImmutableSortedMap<String, byte[]>> dexFiles =
+        cache.dexClasses(inputs, library, CompilationMode.DEBUG, new DiagnosticsHandler() {});
+    return dexFiles.get();
+  }
+
+  private Path writeClasses(String jarName, String... classNames) throws IOException {
+    Path jar = tmp.getRoot().toPath().resolve(jarName);
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+      String superName = "java/lang/Object";
+      for (String className : classNames) {
+        out.putNextEntry(new ZipEntry(className + ".class"));
+        out.write(generateClass(className, superName, "run"));
+        superName = className;
+      }
+    }
+    return jar;
+  }
+
+  /**
+   * Writes an interface with a default method, a class implementing it, and a class creating a
+   * lambda. Only the implementing class depends on {@code name}.
+   */
+  private static void writeClassesWithLambdasAndDefaultMethods(Path jar, String name)
+      throws IOException {
+    ClassWriter greeter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    greeter.visit(
+        Opcodes.V1_8,
+        Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT,
+        "foo/Greeter",
+        null,
+        "java/lang/Object",
+        null);
+    greeter
+        .visitMethod(
+            Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "name", "()Ljava/lang/String;", null, null)
+        .visitEnd();
+    MethodVisitor greet = greeter.visitMethod(Opcodes.ACC_PUBLIC, "greet", "()V", null, null);
+    greet.visitCode();
+    greet.visitVarInsn(Opcodes.ALOAD, 0);
+    greet.visitMethodInsn(
+        Opcodes.INVOKEINTERFACE, "foo/Greeter", "name", "()Ljava/lang/String;", true);
+    greet.visitInsn(Opcodes.POP);
+    greet.visitInsn(Opcodes.RETURN);
+    greet.visitMaxs(0, 0);
+    greet.visitEnd();
+    greeter.visitEnd();
+
+    ClassWriter person = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    person.visit(
+        Opcodes.V1_8,
+        Opcodes.ACC_PUBLIC,
+        "foo/Person",
+        null,
+        "java/lang/Object",
+        new String[] {"foo/Greeter"});
+    MethodVisitor constructor = person.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(Opcodes.ALOAD, 0);
+    constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    constructor.visitInsn(Opcodes.RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+    MethodVisitor personName =
+        person.visitMethod(Opcodes.ACC_PUBLIC, "name", "()Ljava/lang/String;", null, null);
+    personName.visitCode();
+    personName.visitLdcInsn(name);
+    personName.visitInsn(Opcodes.ARETURN);
+    personName.visitMaxs(0, 0);
+    personName.visitEnd();
+    person.visitEnd();
+
+    ClassWriter lambdas = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    lambdas.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "foo/Lambdas", null, "java/lang/Object", null);
+    MethodVisitor make =
+        lambdas.visitMethod(
+            Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "make", "()Ljava/lang/Runnable;", null, null);
+    make.visitCode();
+    make.visitInvokeDynamicInsn(
+        "run",
+        "()Ljava/lang/Runnable;",
+        new Handle(
+            Opcodes.H_INVOKESTATIC,
+            "java/lang/invoke/LambdaMetafactory",
+            "metafactory",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+                + "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;"
+                + "Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)"
+                + "Ljava/lang/invoke/CallSite;",
+            false),
+        Type.getType("()V"),
+        new Handle(Opcodes.H_INVOKESTATIC, "foo/Lambdas", "lambda$make$0", "()V", false),
+        Type.getType("()V"));
+    make.visitInsn(Opcodes.ARETURN);
+    make.visitMaxs(0, 0);
+    make.visitEnd();
+    MethodVisitor lambda =
+        lambdas.visitMethod(
+            Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+            "lambda$make$0",
+            "()V",
+            null,
+            null);
+    lambda.visitCode();
+    lambda.visitInsn(Opcodes.RETURN);
+    lambda.visitMaxs(0, 0);
+    lambda.visitEnd();
+    lambdas.visitEnd();
+
+    writeJar(
+        jar,
+        "foo/Greeter.class",
+        greeter.toByteArray(),
+        "foo/Person.class",
+        person.toByteArray(),
+        "foo/Lambdas.class",
+        lambdas.toByteArray());
+  }
+
+  private static void writeJar(Path jar, Object... namesAndContents) throws IOException {
+    try (OutputStream fileOut = Files.newOutputStream(jar);
+        ZipOutputStream out = new ZipOutputStream(fileOut)) {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        out.putNextEntry(new ZipEntry((String) namesAndContents[i]));
+        out.write((byte[]) namesAndContents[i + 1]);
+      }
+    }
+  }
+
+  private static byte[] generateClassReferencingResource(
+      String className, String resourceClassName, String resourceName) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+
+    MethodVisitor method =
+        writer.visitMethod(
+            Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "resource", "()I", null, null);
+    method.visitCode();
+    method.visitFieldInsn(Opcodes.GETSTATIC, resourceClassName, resourceName, "I");
+    method.visitInsn(Opcodes.IRETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static byte[] generateClass(String className, String superName, String methodName) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, className, null, superName, null);
+
+    MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(Opcodes.ALOAD, 0);
+    constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+    constructor.visitInsn(Opcodes.RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+
+    MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, methodName, "()V", null, null);
+    method.visitCode();
+    method.visitInsn(Opcodes.RETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+}
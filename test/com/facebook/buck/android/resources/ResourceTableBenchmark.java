@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android.resources;
+
+import com.facebook.buck.testutil.integration.TestDataHelper;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares rewriting the resource ids of a resources.arsc read onto the heap against rewriting a
+ * memory mapped copy of it. Both end with the rewritten table in an output file, like when
+ * rewriting an apk: the one read onto the heap is serialized and written out, while the mapped copy
+ * is rewritten in place. The table defaults to the one of the example apk in the test data,
+ * which is too small to show much; point the {@code resources.arsc} system property at the table
+ * of a real app to get meaningful numbers.
+ */
+public class ResourceTableBenchmark {
+  private Path arsc;
+  private boolean deleteArsc;
+  private Path output;
+
+  @Before
+  public void setUpTest() throws Exception {
+    setUpBenchmark();
+  }
+
+  @After
+  public void tearDownTest() throws Exception {
+    tearDownBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws IOException {
+    output = Files.createTempFile("rewritten", ".arsc");
+    String property = System.getProperty("resources.arsc");
+    if (property != null) {
+      arsc = Paths.get(property);
+      return;
+    }
+    Path apk = TestDataHelper.getTestDataDirectory(this).resolve("aapt_dump/example.apk");
+    arsc = Files.createTempFile("resources", ".arsc");
+    deleteArsc = true;
+    try (ZipFile apkZip = new ZipFile(apk.toFile())) {
+      Files.write(
+          arsc,
+          ByteStreams.toByteArray(apkZip.getInputStream(apkZip.getEntry("resources.arsc"))));
+    }
+  }
+
+  @AfterExperiment
+  public void tearDownBenchmark() throws IOException {
+    Files.deleteIfExists(output);
+    if (deleteArsc) {
+      Files.deleteIfExists(arsc);
+    }
+  }
+
+  @Test
+  public void rewriteOnHeapPerformance() throws Exception {
+    rewriteOnHeap();
+  }
+
+  @Benchmark
+  public void rewriteOnHeap() throws IOException {
+    ResourceTable resourceTable = ResourceTable.get(ResChunk.wrap(Files.readAllBytes(arsc)));
+    resourceTable.reassignIds(ReversingMapper.construct(resourceTable));
+    Files.write(output, resourceTable.serialize());
+  }
+
+  @Test
+  public void rewriteMappedPerformance() throws Exception {
+    rewriteMapped();
+  }
+
+  @Benchmark
+  public void rewriteMapped() throws IOException {
+    Files.copy(arsc, output, StandardCopyOption.REPLACE_EXISTING);
+    ResourceTable resourceTable = ResourceTable.map(output, MapMode.READ_WRITE);
+    resourceTable.reassignIds(ReversingMapper.construct(resourceTable));
+  }
+}
@@ -32,6 +32,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -139,6 +140,56 @@ public class ResourceTableTest {
     }
   }
 
+  @Test
+  public void testMappedResourceTableMatchesHeapTable() throws Exception {
+    Path arsc = extractResourcesArsc();
+    byte[] data = Files.readAllBytes(arsc);
+
+    // Rewriting the heap table mutates the array it wraps, so hand it a copy.
+    ResourceTable heapTable = ResourceTable.get(ResChunk.wrap(data.clone()));
+    heapTable.reassignIds(ReversingMapper.construct(heapTable));
+
+    ResourceTable mappedTable = ResourceTable.map(arsc, MapMode.PRIVATE);
+    assertArrayEquals(data, mappedTable.serialize());
+    mappedTable.reassignIds(ReversingMapper.construct(mappedTable));
+
+    assertArrayEquals(heapTable.serialize(), mappedTable.serialize());
+    // A private mapping is copy-on-write, the file itself is left untouched.
+    assertArrayEquals(data, Files.readAllBytes(arsc));
+  }
+
+  @Test
+  public void testMappedResourceTableRewritesFileInPlace() throws Exception {
+    Path arsc = extractResourcesArsc();
+
+    ResourceTable heapTable = ResourceTable.get(ResChunk.wrap(Files.readAllBytes(arsc)));
+    heapTable.reassignIds(ReversingMapper.construct(heapTable));
+
+    ResourceTable mappedTable = ResourceTable.map(arsc, MapMode.READ_WRITE);
+    mappedTable.reassignIds(ReversingMapper.construct(mappedTable));
+
+    assertArrayEquals(heapTable.serialize(), Files.readAllBytes(arsc));
+  }
+
+  @Test
+  public void testSliceMappedResourceTable() throws Exception {
+    Path arsc = extractResourcesArsc();
+    ResourceTable resourceTable = ResourceTable.map(arsc, MapMode.READ_ONLY);
+    Map<Integer, Integer> counts = new HashMap<>();
+    for (ResTableTypeSpec spec : resourceTable.getPackage().getTypeSpecs()) {
+      counts.put(spec.getResourceType(), Math.min(spec.getEntryCount(), 1));
+    }
+    resourceTable = ResourceTable.slice(resourceTable, counts);
+    Path resourcesOutput = filesystem.resolve(filesystem.getPath(APK_NAME + ".resources.sliced"));
+    String expected = filesystem.readFileIfItExists(resourcesOutput).get();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    resourceTable.dump(new PrintStream(baos));
+    String content = new String(baos.toByteArray(), Charsets.UTF_8);
+
+    MoreAsserts.assertLargeStringsEqual(expected, content);
+  }
+
   @Test
   public void testDoubleReverseResources() throws Exception {
     try (ZipFile apkZip = new ZipFile(apkPath.toFile())) {
@@ -280,4 +331,14 @@ public class ResourceTableTest {
           content);
     }
   }
+
+  private Path extractResourcesArsc() throws IOException {
+    Path arsc = tmpFolder.newFile("resources.arsc");
+    try (ZipFile apkZip = new ZipFile(apkPath.toFile())) {
+      Files.write(
+          arsc,
+          ByteStreams.toByteArray(apkZip.getInputStream(apkZip.getEntry("resources.arsc"))));
+    }
+    return arsc;
+  }
 }
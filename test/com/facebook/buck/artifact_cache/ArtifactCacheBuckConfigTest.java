@@ -22,6 +22,7 @@ import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.artifact_cache.config.DirCacheEntry;
+import com.facebook.buck.artifact_cache.config.DirCacheLayout;
 import com.facebook.buck.artifact_cache.config.HttpCacheEntry;
 import com.facebook.buck.config.BuckConfigTestUtils;
 import com.facebook.buck.core.exceptions.HumanReadableException;
@@ -195,6 +196,7 @@ public class ArtifactCacheBuckConfigTest {
             "dir = cache_dir_name1",
             "dir_mode = readwrite",
             "dir_max_size = 1022B",
+            "dir_layout = content_addressed",
             "[cache#othername]",
             "dir = othername_dir_cache",
             "dir_mode = readonly",
@@ -207,6 +209,7 @@ public class ArtifactCacheBuckConfigTest {
         name1Entry.getCacheDir(), Matchers.equalTo(Paths.get("cache_dir_name1").toAbsolutePath()));
     assertThat(name1Entry.getCacheReadMode(), Matchers.equalTo(CacheReadMode.READWRITE));
     assertThat(name1Entry.getMaxSizeBytes(), Matchers.equalTo(Optional.of(1022L)));
+    assertThat(name1Entry.getLayout(), Matchers.equalTo(DirCacheLayout.CONTENT_ADDRESSED));
 
     DirCacheEntry othernameDirCche = entries.get(1);
     assertThat(
@@ -214,6 +217,25 @@ public class ArtifactCacheBuckConfigTest {
         Matchers.equalTo(Paths.get("othername_dir_cache").toAbsolutePath()));
     assertThat(othernameDirCche.getCacheReadMode(), Matchers.equalTo(CacheReadMode.READONLY));
     assertThat(othernameDirCche.getMaxSizeBytes(), Matchers.equalTo(Optional.of(800L)));
+    assertThat(othernameDirCche.getLayout(), Matchers.equalTo(DirCacheLayout.RULE_KEY));
+  }
+
+  @Test
+  public void testLegacyDirCacheLayoutAlongsideNamedDirCaches() throws IOException {
+    ArtifactCacheBuckConfig config =
+        createFromText(
+            "[cache]",
+            "dir_cache_names = name1",
+            "dir_layout = content_addressed",
+            "[cache#name1]",
+            "dir = cache_dir_name1");
+
+    ImmutableList<DirCacheEntry> entries =
+        ImmutableList.copyOf(config.getCacheEntries().getDirCacheEntries());
+    assertThat(entries, Matchers.hasSize(2));
+    assertThat(entries.get(0).getName(), Matchers.equalTo(Optional.empty()));
+    assertThat(entries.get(0).getLayout(), Matchers.equalTo(DirCacheLayout.CONTENT_ADDRESSED));
+    assertThat(entries.get(1).getName(), Matchers.equalTo(Optional.of("name1")));
   }
 
   @Test(expected = HumanReadableException.class)
@@ -216,6 +216,28 @@ public class ArtifactCachesTest {
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(MultiArtifactCache.class));
   }
 
+  @Test
+  public void testCreateTiered() throws Exception {
+    ArtifactCacheBuckConfig cacheConfig =
+        ArtifactCacheBuckConfigTest.createFromText(
+            "[cache]", "mode = dir, http", "tiered_cache_enabled = true");
+    ProjectFilesystem projectFilesystem = new FakeProjectFilesystem();
+    BuckEventBus buckEventBus = BuckEventBusForTests.newInstance();
+    ArtifactCache artifactCache =
+        new ArtifactCaches(
+                cacheConfig,
+                buckEventBus,
+                projectFilesystem,
+                Optional.empty(),
+                MoreExecutors.newDirectExecutorService(),
+                MoreExecutors.newDirectExecutorService(),
+                MoreExecutors.newDirectExecutorService(),
+                MoreExecutors.newDirectExecutorService())
+            .newInstance();
+    assertThat(stripDecorators(artifactCache), Matchers.instanceOf(TieredArtifactCache.class));
+    artifactCache.close();
+  }
+
   @Test
   public void testCreateDirCacheOnlyWhenOnBlacklistedWifi() throws Exception {
     ArtifactCacheBuckConfig cacheConfig =
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class ChunkedFetchInputStreamTest {
+
+  private final ListeningExecutorService executor =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private static byte[] createData(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) i;
+    }
+    return data;
+  }
+
+  @Test
+  public void readsChunksInOrder() throws Exception {
+    byte[] data = createData(1000);
+    try (InputStream stream =
+        ChunkedFetchInputStream.start(
+            new ByteArrayInputStream(data, 0, 64),
+            data.length,
+            64,
+            3,
+            0,
+            (start, end, sink) -> {
+              // Later chunks finish first.
+              Uninterruptibles.sleepUninterruptibly(1000 / (start + 1), TimeUnit.MILLISECONDS);
+              sink.write(data, (int) start, (int) (end - start + 1));
+            },
+            executor)) {
+      assertArrayEquals(data, ByteStreams.toByteArray(stream));
+    }
+  }
+
+  @Test
+  public void resumesChunkFromLastReceivedByte() throws Exception {
+    byte[] data = createData(100);
+    AtomicInteger requests = new AtomicInteger();
+    try (InputStream stream =
+        ChunkedFetchInputStream.start(
+            // The first chunk's response is cut short too.
+            new ByteArrayInputStream(data, 0, 10),
+            data.length,
+            50,
+            2,
+            1,
+            (start, end, sink) -> {
+              requests.incrementAndGet();
+              int length = (int) (end - start + 1);
+              if (start % 50 == 0 && start > 0) {
+                sink.write(data, (int) start, length / 2);
+                throw new IOException("connection reset");
+              }
+              sink.write(data, (int) start, length);
+            },
+            executor)) {
+      assertArrayEquals(data, ByteStreams.toByteArray(stream));
+    }
+    assertEquals(3, requests.get());
+  }
+
+  @Test(expected = IOException.class)
+  public void failsAfterRetriesAreExhausted() throws Exception {
+    byte[] data = createData(100);
+    try (InputStream stream =
+        ChunkedFetchInputStream.start(
+            new ByteArrayInputStream(Arrays.copyOf(data, 50)),
+            data.length,
+            50,
+            1,
+            2,
+            (start, end, sink) -> {
+              throw new IOException("connection refused");
+            },
+            executor)) {
+      ByteStreams.toByteArray(stream);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DirArtifactCacheLruIndexTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void sharedBlobsAreOnlyCountedOnce() throws Exception {
+    DirArtifactCacheLruIndex index =
+        DirArtifactCacheLruIndex.create(tmp.getRoot().resolve("journal"));
+    index.add("aaaa", "blob", 100, 10);
+    index.add("bbbb", "blob", 100, 10);
+    index.add("cccc", null, 50, 10);
+    assertEquals(180, index.getTotalSizeBytes());
+
+    assertEquals(Optional.empty(), index.remove("aaaa"));
+    assertEquals(Optional.of("blob"), index.remove("bbbb"));
+    assertEquals(60, index.getTotalSizeBytes());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    DirArtifactCacheLruIndex index =
+        DirArtifactCacheLruIndex.create(tmp.getRoot().resolve("journal"));
+    index.add("aaaa", "blob1", 100, 0);
+    index.add("bbbb", "blob2", 100, 0);
+    index.add("cccc", "blob2", 100, 0);
+    index.add("dddd", "blob3", 100, 0);
+    index.access("aaaa");
+
+    DirArtifactCacheLruIndex.Eviction eviction = index.evict(200);
+    assertEquals(ImmutableList.of("bbbb", "cccc"), eviction.ruleKeys);
+    assertEquals(ImmutableList.of("blob2"), eviction.unusedBlobs);
+    assertEquals(200, index.getTotalSizeBytes());
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  public void loadReplaysJournal() throws Exception {
+    Path journal = tmp.getRoot().resolve("journal");
+    assertFalse(DirArtifactCacheLruIndex.load(journal).isPresent());
+
+    DirArtifactCacheLruIndex index = DirArtifactCacheLruIndex.create(journal);
+    index.add("aaaa", "blob1", 100, 1);
+    index.add("bbbb", null, 100, 1);
+    index.add("cccc", "blob1", 100, 1);
+    index.remove("cccc");
+    index.access("aaaa");
+    // A record cut short by a crash.
+    Files.write(journal, "+ dddd".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    DirArtifactCacheLruIndex loaded = DirArtifactCacheLruIndex.load(journal).get();
+    assertEquals(2, loaded.size());
+    assertEquals(202, loaded.getTotalSizeBytes());
+    assertEquals(ImmutableList.of("bbbb"), loaded.evict(101).ruleKeys);
+  }
+
+  @Test
+  public void compactionKeepsRecordsOfOtherProcesses() throws Exception {
+    Path journal = tmp.getRoot().resolve("journal");
+    DirArtifactCacheLruIndex first = DirArtifactCacheLruIndex.create(journal, 2);
+    DirArtifactCacheLruIndex second = DirArtifactCacheLruIndex.load(journal, 2).get();
+
+    second.add("bbbb", "blob2", 100, 0);
+    first.add("aaaa", "blob1", 100, 0);
+    // Enough accesses to make the first index compact the journal.
+    first.access("aaaa");
+    first.access("aaaa");
+    assertEquals(2, Files.readAllLines(journal, StandardCharsets.UTF_8).size());
+
+    // Eviction by the first index takes the rule key stored by the second one into account.
+    DirArtifactCacheLruIndex.Eviction eviction = first.evict(100);
+    assertEquals(ImmutableList.of("bbbb"), eviction.ruleKeys);
+    assertEquals(ImmutableList.of("blob2"), eviction.unusedBlobs);
+
+    DirArtifactCacheLruIndex loaded = DirArtifactCacheLruIndex.load(journal).get();
+    assertEquals(1, loaded.size());
+    assertEquals(100, loaded.getTotalSizeBytes());
+  }
+}
@@ -24,6 +24,7 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.artifact_cache.config.DirCacheLayout;
 import com.facebook.buck.core.rulekey.AddToRuleKey;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.rules.ActionGraphBuilder;
@@ -35,6 +36,7 @@ import com.facebook.buck.core.sourcepath.resolver.SourcePathResolver;
 import com.facebook.buck.core.sourcepath.resolver.impl.DefaultSourcePathResolver;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.rules.FakeBuildRule;
@@ -48,6 +50,7 @@ import com.facebook.buck.testutil.TemporaryPaths;
 import com.facebook.buck.util.DirectoryCleaner;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.types.Pair;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -1044,6 +1047,153 @@ public class DirArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testContentAddressedLayoutStoresIdenticalArtifactsOnce() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(cacheDir);
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("cache"),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.empty(),
+            DirCacheLayout.CONTENT_ADDRESSED);
+
+    Path fileX = tmpDir.newFile("x");
+    Path fileY = tmpDir.newFile("y");
+    Files.write(fileX, "content".getBytes(UTF_8));
+    Files.write(fileY, "content".getBytes(UTF_8));
+    RuleKey ruleKeyX = new RuleKey("aaaa");
+    RuleKey ruleKeyY = new RuleKey("bbbb");
+
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyX).setMetadata(ImmutableMap.of("a", "b")).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyY).build(),
+        BorrowablePath.borrowablePath(fileY));
+
+    // Both rule keys point at the same blob.
+    Path blob =
+        filesystem.resolve(
+            dirArtifactCache.getPathForContentHash(filesystem.computeSha1(fileX).getHash()));
+    assertTrue(Files.exists(blob));
+    assertTrue(
+        Files.isSameFile(
+            blob,
+            filesystem.resolve(dirArtifactCache.getPathForRuleKey(ruleKeyX, Optional.empty()))));
+    assertTrue(
+        Files.isSameFile(
+            blob,
+            filesystem.resolve(dirArtifactCache.getPathForRuleKey(ruleKeyY, Optional.empty()))));
+
+    Path out = tmpDir.getRoot().resolve("out");
+    CacheResult result =
+        Futures.getUnchecked(dirArtifactCache.fetchAsync(null, ruleKeyX, LazyPath.ofInstance(out)));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(ImmutableMap.of("a", "b"), result.getMetadata());
+    assertEquals("content", new String(Files.readAllBytes(out), UTF_8));
+
+    // The blob is only deleted once no rule key references it.
+    Futures.getUnchecked(dirArtifactCache.deleteAsync(ImmutableList.of(ruleKeyX)));
+    assertTrue(Files.exists(blob));
+    Futures.getUnchecked(dirArtifactCache.deleteAsync(ImmutableList.of(ruleKeyY)));
+    assertFalse(Files.exists(blob));
+  }
+
+  @Test
+  public void testContentAddressedLayoutDoesNotStoreUnreferencedBlobs() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(cacheDir);
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("cache"),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.empty(),
+            DirCacheLayout.CONTENT_ADDRESSED);
+
+    Path fileX = tmpDir.newFile("x");
+    Path fileY = tmpDir.newFile("y");
+    Files.write(fileX, "content".getBytes(UTF_8));
+    Files.write(fileY, "other content".getBytes(UTF_8));
+    RuleKey ruleKey = new RuleKey("aaaa");
+
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+        BorrowablePath.borrowablePath(fileY));
+
+    // The rule key keeps its first artifact, so the second one has nothing referencing it.
+    Path blobX =
+        filesystem.resolve(
+            dirArtifactCache.getPathForContentHash(filesystem.computeSha1(fileX).getHash()));
+    Path blobY =
+        filesystem.resolve(
+            dirArtifactCache.getPathForContentHash(filesystem.computeSha1(fileY).getHash()));
+    assertTrue(Files.exists(blobX));
+    assertFalse(Files.exists(blobY));
+    assertTrue(Files.exists(fileY));
+
+    Futures.getUnchecked(dirArtifactCache.deleteAsync(ImmutableList.of(ruleKey)));
+    assertFalse(Files.exists(blobX));
+  }
+
+  @Test
+  public void testContentAddressedLayoutEvictsLeastRecentlyUsed() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(cacheDir);
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("cache"),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.of(3500L),
+            DirCacheLayout.CONTENT_ADDRESSED);
+
+    ImmutableList<RuleKey> ruleKeys =
+        ImmutableList.of(
+            new RuleKey("aaaa"), new RuleKey("bbbb"), new RuleKey("cccc"), new RuleKey("dddd"));
+    Path out = tmpDir.getRoot().resolve("out");
+    for (int i = 0; i < ruleKeys.size(); i++) {
+      Path file = tmpDir.newFile("file" + i);
+      Files.write(file, Strings.repeat(String.valueOf(i), 1000).getBytes(UTF_8));
+      dirArtifactCache.store(
+          ArtifactInfo.builder().addRuleKeys(ruleKeys.get(i)).build(),
+          BorrowablePath.notBorrowablePath(file));
+      if (i == 2) {
+        // Make the first rule key the most recently used one.
+        dirArtifactCache.fetchAsync(null, ruleKeys.get(0), LazyPath.ofInstance(out));
+      }
+    }
+
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(
+                dirArtifactCache.fetchAsync(null, ruleKeys.get(0), LazyPath.ofInstance(out)))
+            .getType());
+    assertEquals(
+        CacheResultType.MISS,
+        Futures.getUnchecked(
+                dirArtifactCache.fetchAsync(null, ruleKeys.get(1), LazyPath.ofInstance(out)))
+            .getType());
+    assertEquals(
+        CacheResultType.MISS,
+        Futures.getUnchecked(
+                dirArtifactCache.fetchAsync(null, ruleKeys.get(2), LazyPath.ofInstance(out)))
+            .getType());
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(
+                dirArtifactCache.fetchAsync(null, ruleKeys.get(3), LazyPath.ofInstance(out)))
+            .getType());
+  }
+
   private static class BuildRuleForTest extends FakeBuildRule {
 
     @SuppressWarnings("PMD.UnusedPrivateField")
@@ -101,6 +101,24 @@ public class HttpArtifactCacheBinaryProtocolTest {
     assertThat(fetchResponsePayload.toByteArray(), Matchers.equalTo(data.getBytes(Charsets.UTF_8)));
   }
 
+  @Test
+  public void testFetchResponseRanges() throws IOException {
+    HttpArtifactCacheBinaryProtocol.FetchResponse fetchResponse =
+        new HttpArtifactCacheBinaryProtocol.FetchResponse(
+            ImmutableSet.of(new RuleKey("00000000000000000000000000000000")),
+            ImmutableMap.of("metaKey", "metaValue"),
+            ByteSource.wrap("data".getBytes(Charsets.UTF_8)));
+    ByteArrayOutputStream wholeResponse = new ByteArrayOutputStream();
+    fetchResponse.write(wholeResponse);
+
+    // Ranges spanning the header, the header and payload, and the payload.
+    ByteArrayOutputStream rangedResponse = new ByteArrayOutputStream();
+    fetchResponse.writeRange(rangedResponse, 0, 10);
+    fetchResponse.writeRange(rangedResponse, 10, fetchResponse.getContentLength() - 12);
+    fetchResponse.writeRange(rangedResponse, fetchResponse.getContentLength() - 2, 2);
+    assertThat(rangedResponse.toByteArray(), Matchers.equalTo(wholeResponse.toByteArray()));
+  }
+
   @Test
   public void testReadFetchResponse() throws IOException {
     String base64EncodedData =
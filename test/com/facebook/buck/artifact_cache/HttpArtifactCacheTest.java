@@ -38,9 +38,11 @@ import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.timing.IncrementingFakeClock;
 import com.facebook.buck.util.types.Pair;
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.common.io.ByteSource;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -54,11 +56,15 @@ import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import okhttp3.MediaType;
 import okhttp3.Protocol;
 import okhttp3.Request;
@@ -214,6 +220,126 @@ public class HttpArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testChunkedFetchResumesFailedChunks() throws Exception {
+    Path output = Paths.get("output/file");
+    String data = Strings.repeat("0123456789", 10);
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    byte[] body =
+        createResponseBody(
+                ImmutableSet.of(ruleKey),
+                ImmutableMap.of(),
+                ByteSource.wrap(data.getBytes(Charsets.UTF_8)),
+                data)
+            .bytes();
+    Pattern rangePattern = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    Set<Integer> failedChunks = Sets.newConcurrentHashSet();
+    List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    List<String> ifRanges = Collections.synchronizedList(new ArrayList<>());
+    argsBuilder.setProjectFilesystem(filesystem);
+    argsBuilder.setFetchChunkSizeBytes(16L);
+    argsBuilder.setMaxParallelChunkFetches(3);
+    argsBuilder.setFetchClient(
+        withMakeRequest(
+            (path, requestBuilder) -> {
+              Request request = requestBuilder.url(SERVER + path).build();
+              String range = request.header("Range");
+              ranges.add(range);
+              if (request.header("If-Range") != null) {
+                ifRanges.add(request.header("If-Range"));
+              }
+              Matcher matcher = rangePattern.matcher(range);
+              assertTrue(matcher.matches());
+              int start = Integer.parseInt(matcher.group(1));
+              int end = Math.min(Integer.parseInt(matcher.group(2)), body.length - 1);
+              // Cut the first response for every chunk short, forcing a resume.
+              int sentEnd = start % 16 == 0 && failedChunks.add(start) ? start + 4 : end;
+              Response response =
+                  new Response.Builder()
+                      .request(request)
+                      .protocol(Protocol.HTTP_1_1)
+                      .code(HttpURLConnection.HTTP_PARTIAL)
+                      .header(
+                          "Content-Range", String.format("bytes %d-%d/%d", start, end, body.length))
+                      .header("ETag", "\"v1\"")
+                      .body(
+                          ResponseBody.create(
+                              OCTET_STREAM, Arrays.copyOfRange(body, start, sentEnd + 1)))
+                      .message("")
+                      .build();
+              return new OkHttpResponseWrapper(response);
+            }));
+
+    HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build());
+    CacheResult result =
+        Futures.getUnchecked(cache.fetchAsync(null, ruleKey, LazyPath.ofInstance(output)));
+    assertEquals(result.cacheError().orElse(""), CacheResultType.HIT, result.getType());
+    assertEquals(Optional.of(data), filesystem.readFileIfItExists(output));
+    assertEquals(Optional.of((long) data.length()), result.artifactSizeBytes());
+    assertEquals("bytes=0-15", ranges.get(0));
+    assertThat(ranges, Matchers.hasItems("bytes=5-15", "bytes=16-31", "bytes=21-31"));
+    // Every range after the first one is only requested from the same version of the artifact.
+    assertEquals(ranges.size() - 1, ifRanges.size());
+    assertThat(ifRanges, Matchers.everyItem(Matchers.equalTo("\"v1\"")));
+    cache.close();
+  }
+
+  @Test
+  public void testChunkedFetchFailsIfArtifactChanges() throws Exception {
+    Path output = Paths.get("output/file");
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    byte[] oldBody =
+        createResponseBody(
+                ImmutableSet.of(ruleKey),
+                ImmutableMap.of(),
+                ByteSource.wrap(Strings.repeat("old", 30).getBytes(Charsets.UTF_8)),
+                "data")
+            .bytes();
+    byte[] newBody =
+        createResponseBody(
+                ImmutableSet.of(ruleKey),
+                ImmutableMap.of(),
+                ByteSource.wrap(Strings.repeat("new", 30).getBytes(Charsets.UTF_8)),
+                "data")
+            .bytes();
+    argsBuilder.setProjectFilesystem(filesystem);
+    argsBuilder.setFetchChunkSizeBytes(16L);
+    argsBuilder.setFetchClient(
+        withMakeRequest(
+            (path, requestBuilder) -> {
+              Request request = requestBuilder.url(SERVER + path).build();
+              Response.Builder response =
+                  new Response.Builder()
+                      .request(request)
+                      .protocol(Protocol.HTTP_1_1)
+                      .message("");
+              if (request.header("If-Range") == null) {
+                response
+                    .code(HttpURLConnection.HTTP_PARTIAL)
+                    .header("Content-Range", String.format("bytes 0-15/%d", oldBody.length))
+                    .header("ETag", "\"v1\"")
+                    .body(ResponseBody.create(OCTET_STREAM, Arrays.copyOf(oldBody, 16)));
+              } else {
+                // The artifact was replaced, so the server ignores the range.
+                assertEquals("\"v1\"", request.header("If-Range"));
+                response
+                    .code(HttpURLConnection.HTTP_OK)
+                    .header("ETag", "\"v2\"")
+                    .body(ResponseBody.create(OCTET_STREAM, newBody));
+              }
+              return new OkHttpResponseWrapper(response.build());
+            }));
+
+    HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build());
+    CacheResult result =
+        Futures.getUnchecked(cache.fetchAsync(null, ruleKey, LazyPath.ofInstance(output)));
+    assertEquals(CacheResultType.ERROR, result.getType());
+    assertEquals(Optional.empty(), filesystem.readFileIfItExists(output));
+    cache.close();
+  }
+
   @Test
   public void testFetchUrl() {
     RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
@@ -31,6 +31,7 @@ import com.google.caliper.Benchmark;
 import com.google.caliper.Param;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
@@ -95,6 +96,7 @@ public class SQLiteArtifactCacheBenchmark {
   @BeforeExperiment
   private void setUpBenchmark() throws IOException, SQLException {
     artifactCache = cache(Optional.of(1024 * 1024 * 1024L));
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
     byte[] randomRuleKey = new byte[16];
 
     ruleKeys = new ArrayList<>(opCount);
@@ -143,6 +145,7 @@ public class SQLiteArtifactCacheBenchmark {
   @Ignore
   @Test
   public void testSingleThreaded() {
+    executor.shutdown();
     executor = MoreExecutors.newDirectExecutorService();
     runAllBenchmarks();
   }
@@ -150,10 +153,15 @@ public class SQLiteArtifactCacheBenchmark {
   @Ignore
   @Test
   public void testMultiThreaded() {
-    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
     runAllBenchmarks();
   }
 
+  @Ignore
+  @Test
+  public void testMixedWorkload() {
+    benchMixedWorkload();
+  }
+
   private void runAllBenchmarks() {
     benchMetadataStore();
     benchMetadataFetch();
@@ -192,4 +200,44 @@ public class SQLiteArtifactCacheBenchmark {
       Futures.getUnchecked(artifactCache.fetchAsync(null, key, output));
     }
   }
+
+  /**
+   * Fetches and stores metadata and artifacts from all threads at once, with three fetches for
+   * every two stores, to measure how well concurrent accesses scale.
+   */
+  @Benchmark
+  private void benchMixedWorkload() {
+    List<ListenableFuture<?>> futures = new ArrayList<>(opCount);
+    for (int i = 0; i < opCount; i++) {
+      int index = i;
+      // Fetch keys stored by earlier iterations, so that fetches are a mix of hits and misses.
+      int stored = i / 5 * 5;
+      LazyPath fetchOutput = LazyPath.ofInstance(cacheDir.resolve(".output" + i));
+      Runnable op;
+      switch (i % 5) {
+        case 0:
+          op = () -> store(metadataInfo.get(index), emptyFile);
+          break;
+        case 1:
+          op = () -> store(contentInfo.get(index), inlinedFile);
+          break;
+        case 2:
+          op = () -> fetch(contentHashes.get(stored + 1), fetchOutput);
+          break;
+        default:
+          op = () -> fetch(ruleKeys.get(stored), fetchOutput);
+          break;
+      }
+      futures.add(executor.submit(op));
+    }
+    Futures.getUnchecked(Futures.allAsList(futures));
+  }
+
+  private void store(ArtifactInfo info, Path file) {
+    artifactCache.store(info, BorrowablePath.notBorrowablePath(file));
+  }
+
+  private void fetch(RuleKey key, LazyPath fetchOutput) {
+    Futures.getUnchecked(artifactCache.fetchAsync(null, key, fetchOutput));
+  }
 }
@@ -38,6 +38,9 @@ import com.facebook.buck.testutil.TemporaryPaths;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -46,7 +49,12 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Before;
@@ -434,6 +442,85 @@ public class SQLiteArtifactCacheTest {
     assertArrayEquals(Files.readAllBytes(output.get()), Files.readAllBytes(fileA));
   }
 
+  @Test
+  public void testStoresAreCommittedWhenFutureCompletes() throws Exception {
+    artifactCache = cache(Optional.empty());
+    writeInlinedArtifact(fileA);
+    artifactCache.store(artifactInfoA, BorrowablePath.notBorrowablePath(fileA)).get();
+
+    // A fresh cache only sees what has been committed to the database.
+    artifactCache.close();
+    artifactCache = cache(Optional.empty());
+    CacheResult result = Futures.getUnchecked(artifactCache.fetchAsync(null, contentHashA, output));
+    assertEquals(CacheResultType.HIT, result.getType());
+  }
+
+  @Test
+  public void testConcurrentStoresAndFetches() throws Exception {
+    artifactCache = cache(Optional.empty());
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(8));
+    try {
+      List<ListenableFuture<CacheResult>> fetches = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        RuleKey ruleKey = new RuleKey(String.format("%016x", i));
+        ArtifactInfo info =
+            ArtifactInfo.builder()
+                .addRuleKeys(ruleKey)
+                .putMetadata(METADATA_KEY, contentHashA.toString())
+                .build();
+        LazyPath fetchOutput = LazyPath.ofInstance(cacheDir.resolve(".output" + i));
+        fetches.add(
+            executor.submit(
+                () -> {
+                  artifactCache.store(info, BorrowablePath.notBorrowablePath(emptyFile));
+                  return Futures.getUnchecked(
+                      artifactCache.fetchAsync(null, ruleKey, fetchOutput));
+                }));
+      }
+      for (CacheResult result : Futures.allAsList(fetches).get()) {
+        assertEquals(CacheResultType.HIT, result.getType());
+      }
+      assertThat(artifactCache.metadataRuleKeys(), Matchers.hasSize(200));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testStoresRacingCloseAllComplete() throws Exception {
+    artifactCache = cache(Optional.empty());
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(8));
+    try {
+      List<ListenableFuture<ListenableFuture<Void>>> stores = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        ArtifactInfo info =
+            ArtifactInfo.builder()
+                .addRuleKeys(new RuleKey(String.format("%016x", i)))
+                .putMetadata(METADATA_KEY, contentHashA.toString())
+                .build();
+        SQLiteArtifactCache cache = artifactCache;
+        stores.add(
+            executor.submit(
+                () -> cache.store(info, BorrowablePath.notBorrowablePath(emptyFile))));
+      }
+      artifactCache.close();
+      artifactCache = null;
+
+      // Stores either made it in before the cache was closed or failed, none are left hanging.
+      for (ListenableFuture<ListenableFuture<Void>> store : stores) {
+        try {
+          store.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+          assertThat(e.getCause(), Matchers.instanceOf(SQLException.class));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void testMarshalMetadata() throws IOException {
     byte[] expected = new byte[4];
@@ -65,6 +65,7 @@ import java.nio.ByteOrder;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 import org.apache.thrift.TBase;
@@ -222,6 +223,11 @@ public class ThriftArtifactCacheTest {
       return "";
     }
 
+    @Override
+    public Optional<String> header(String name) {
+      return Optional.empty();
+    }
+
     @Override
     public void close() throws IOException {}
   }
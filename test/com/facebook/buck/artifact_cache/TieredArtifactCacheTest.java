@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode.CacheType;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.event.FakeBuckEventListener;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.timing.IncrementingFakeClock;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TieredArtifactCacheTest {
+
+  private static final RuleKey RULE_KEY = new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
+  private static final byte[] CONTENTS = "artifact".getBytes(StandardCharsets.UTF_8);
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private BuckEventBus eventBus;
+  private FakeBuckEventListener listener;
+  private InMemoryArtifactCache localCache;
+  private InMemoryArtifactCache remoteCache;
+
+  @Before
+  public void setUp() {
+    eventBus = BuckEventBusForTests.newInstance();
+    listener = new FakeBuckEventListener();
+    eventBus.register(listener);
+    localCache = new InMemoryArtifactCache();
+    remoteCache = new InMemoryArtifactCache();
+  }
+
+  private TieredArtifactCache newTieredCache(long maxPendingPromotionBytes) {
+    return new TieredArtifactCache(
+        eventBus,
+        localCache,
+        remoteCache,
+        MoreExecutors.newDirectExecutorService(),
+        new IncrementingFakeClock(),
+        maxPendingPromotionBytes);
+  }
+
+  private CacheResult fetch(TieredArtifactCache cache, Path output) {
+    return Futures.getUnchecked(cache.fetchAsync(null, RULE_KEY, LazyPath.ofInstance(output)));
+  }
+
+  private ImmutableList<Pair<CacheType, CacheResultType>> tierResults() {
+    return listener
+        .getEvents()
+        .stream()
+        .filter(CacheTierFetchEvent.class::isInstance)
+        .map(CacheTierFetchEvent.class::cast)
+        .map(event -> new Pair<>(event.getTier(), event.getResultType()))
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  @Test
+  public void localHitDoesNotQueryRemote() throws IOException {
+    localCache.store(ArtifactInfo.builder().addRuleKeys(RULE_KEY).build(), CONTENTS);
+    Path output = tmp.getRoot().resolve("output");
+
+    try (TieredArtifactCache cache = newTieredCache(1024)) {
+      assertEquals(CacheResultType.HIT, fetch(cache, output).getType());
+    }
+
+    assertArrayEquals(CONTENTS, Files.readAllBytes(output));
+    assertEquals(ImmutableList.of(new Pair<>(CacheType.local, CacheResultType.HIT)), tierResults());
+  }
+
+  @Test
+  public void remoteHitIsPromotedToLocal() throws IOException {
+    remoteCache.store(
+        ArtifactInfo.builder()
+            .addRuleKeys(RULE_KEY)
+            .setMetadata(ImmutableMap.of("key", "value"))
+            .build(),
+        CONTENTS);
+    Path output = tmp.getRoot().resolve("output");
+
+    try (TieredArtifactCache cache = newTieredCache(1024)) {
+      assertEquals(CacheResultType.HIT, fetch(cache, output).getType());
+      assertEquals(1, cache.getPromotedCount());
+    }
+
+    assertEquals(
+        ImmutableList.of(
+            new Pair<>(CacheType.local, CacheResultType.MISS),
+            new Pair<>(CacheType.remote, CacheResultType.HIT)),
+        tierResults());
+    // The staged copy used for the promotion must not be left behind.
+    try (Stream<Path> files = Files.list(tmp.getRoot())) {
+      assertEquals(ImmutableList.of(output), files.collect(ImmutableList.toImmutableList()));
+    }
+
+    Path promoted = tmp.getRoot().resolve("promoted");
+    CacheResult localResult =
+        Futures.getUnchecked(localCache.fetchAsync(null, RULE_KEY, LazyPath.ofInstance(promoted)));
+    assertEquals(CacheResultType.HIT, localResult.getType());
+    assertEquals(ImmutableMap.of("key", "value"), localResult.getMetadata());
+    assertArrayEquals(CONTENTS, Files.readAllBytes(promoted));
+  }
+
+  @Test
+  public void promotionsOverBudgetAreDropped() throws IOException {
+    remoteCache.store(ArtifactInfo.builder().addRuleKeys(RULE_KEY).build(), CONTENTS);
+    Path output = tmp.getRoot().resolve("output");
+
+    try (TieredArtifactCache cache = newTieredCache(CONTENTS.length - 1)) {
+      assertEquals(CacheResultType.HIT, fetch(cache, output).getType());
+      assertEquals(0, cache.getPromotedCount());
+      assertEquals(1, cache.getDroppedPromotionCount());
+    }
+
+    assertFalse(localCache.hasArtifact(RULE_KEY));
+    assertArrayEquals(CONTENTS, Files.readAllBytes(output));
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rulekey.calculator.ParallelRuleKeyCalculator;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.keys.FakeRuleKeyFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheContainsPrefetcherTest {
+
+  private static final RuleDepsCache BUILD_DEPS =
+      new RuleDepsCache() {
+        @Override
+        public SortedSet<BuildRule> get(BuildRule rule) {
+          return rule.getBuildDeps();
+        }
+
+        @Override
+        public SortedSet<BuildRule> getRuntimeDeps(BuildRule rule) {
+          return ImmutableSortedSet.of();
+        }
+      };
+
+  private BuildRule cachedLeaf;
+  private BuildRule leaf;
+  private BuildRule middle;
+  private BuildRule top;
+  private BuildRule otherTop;
+  private CacheContainsPrefetcher prefetcher;
+
+  @Before
+  public void setUp() {
+    cachedLeaf = new FakeBuildRule("//:cached_leaf");
+    leaf = new FakeBuildRule("//:leaf");
+    middle = new FakeBuildRule("//:middle", cachedLeaf);
+    top = new FakeBuildRule("//:top", middle, leaf);
+    otherTop = new FakeBuildRule("//:other_top", leaf);
+    ImmutableMap.Builder<BuildTarget, RuleKey> ruleKeys = ImmutableMap.builder();
+    for (BuildRule rule : ImmutableList.of(cachedLeaf, leaf, middle, top, otherTop)) {
+      ruleKeys.put(rule.getBuildTarget(), ruleKey(rule));
+    }
+    prefetcher =
+        new CacheContainsPrefetcher(
+            new ParallelRuleKeyCalculator<>(
+                MoreExecutors.newDirectExecutorService(),
+                new FakeRuleKeyFactory(ruleKeys.build()),
+                BUILD_DEPS,
+                (eventBus, rule) -> () -> {}),
+            BUILD_DEPS,
+            MoreExecutors.newDirectExecutorService(),
+            /* maxRuleKeysPerRequest */ 2);
+  }
+
+  private static RuleKey ruleKey(BuildRule rule) {
+    return new RuleKey(String.format("%040x", rule.getBuildTarget().hashCode() & 0xffffffffL));
+  }
+
+  private Optional<CacheResult> getContainsResult(BuildRule rule) {
+    return Futures.getUnchecked(prefetcher.getContainsResult(rule));
+  }
+
+  @Test
+  public void checksRulesInBatches() {
+    RecordingArtifactCache cache = new RecordingArtifactCache();
+    cache.store(ArtifactInfo.builder().addRuleKeys(ruleKey(cachedLeaf)).build(), new byte[0]);
+
+    prefetcher.prefetch(BuckEventBusForTests.newInstance(), cache, top);
+    assertEquals(ImmutableList.of(2, 2), cache.requestSizes);
+    assertFalse(CacheContainsPrefetcher.isKnownMiss(getContainsResult(cachedLeaf)));
+    assertTrue(getContainsResult(cachedLeaf).get().getType().isSuccess());
+    assertTrue(CacheContainsPrefetcher.isKnownMiss(getContainsResult(leaf)));
+    assertTrue(CacheContainsPrefetcher.isKnownMiss(getContainsResult(middle)));
+    assertTrue(CacheContainsPrefetcher.isKnownMiss(getContainsResult(top)));
+    assertEquals(Optional.empty(), getContainsResult(otherTop));
+
+    // Rules which were already checked aren't checked again.
+    prefetcher.prefetch(BuckEventBusForTests.newInstance(), cache, otherTop);
+    assertEquals(ImmutableList.of(2, 2, 1), cache.requestSizes);
+    assertTrue(CacheContainsPrefetcher.isKnownMiss(getContainsResult(otherTop)));
+  }
+
+  @Test
+  public void fetchesAsUsualWhenCacheCannotCheckContains() {
+    RecordingArtifactCache cache =
+        new RecordingArtifactCache() {
+          @Override
+          public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+              ImmutableSet<RuleKey> ruleKeys) {
+            throw new UnsupportedOperationException("multiContains is not supported");
+          }
+        };
+
+    prefetcher.prefetch(BuckEventBusForTests.newInstance(), cache, top);
+    for (BuildRule rule : ImmutableList.of(cachedLeaf, leaf, middle, top)) {
+      assertEquals(Optional.empty(), getContainsResult(rule));
+    }
+  }
+
+  private static class RecordingArtifactCache extends InMemoryArtifactCache {
+    private final List<Integer> requestSizes = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+        ImmutableSet<RuleKey> ruleKeys) {
+      requestSizes.add(ruleKeys.size());
+      return super.multiContainsAsync(ruleKeys);
+    }
+  }
+}
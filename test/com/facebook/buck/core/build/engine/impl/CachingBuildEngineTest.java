@@ -192,6 +192,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -1961,6 +1962,8 @@ public class CachingBuildEngineTest {
       private static class FakeStrategy implements BuildRuleStrategy {
         boolean closed = false;
         boolean canBuild = false;
+        boolean materializesOutputsOnDemand = false;
+        List<BuildRule> materialized = Collections.synchronizedList(new ArrayList<>());
         Optional<Builder> builder = Optional.empty();
 
         @Override
@@ -1975,6 +1978,16 @@ public class CachingBuildEngineTest {
           return canBuild;
         }
 
+        @Override
+        public boolean materializesOutputsOnDemand(BuildRule instance) {
+          return materializesOutputsOnDemand;
+        }
+
+        @Override
+        public void materializeOutputs(BuildRule instance) {
+          materialized.add(instance);
+        }
+
         @Override
         public void close() throws IOException {
           Preconditions.checkState(!closed);
@@ -2057,6 +2070,27 @@ public class CachingBuildEngineTest {
                             stepRunner) -> {}));
         runVerifiedBuild(rule);
       }
+
+      @Test
+      public void testCustomBuildRuleStrategyMaterializesOutputsOfTopLevelRules()
+          throws Exception {
+        strategy.canBuild = true;
+        strategy.materializesOutputsOnDemand = true;
+        strategy.builder =
+            Optional.of(
+                (service, rule, executorRunner) ->
+                    executorRunner.runWithExecutor(
+                        (executionContext,
+                            buildRuleBuildContext,
+                            buildableContext,
+                            stepRunner) -> {}));
+        runVerifiedBuild(rule);
+        assertEquals(ImmutableList.of(rule), strategy.materialized);
+        // The outputs may not exist, so the next build mustn't consider the rule built.
+        OnDiskBuildInfo onDiskBuildInfo =
+            buildContext.createOnDiskBuildInfoFor(target, filesystem, buildInfoStore);
+        assertFalse(onDiskBuildInfo.getRuleKey(BuildInfo.MetadataKey.RULE_KEY).isPresent());
+      }
     }
 
     @Test
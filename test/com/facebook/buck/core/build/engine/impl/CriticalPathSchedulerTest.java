@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.build.stats.BuildRuleDurationHistory;
+import com.facebook.buck.core.build.stats.BuildRuleDurationTracker;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CriticalPathSchedulerTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path historyPath;
+  private BuildRule slowLeaf;
+  private BuildRule fastLeaf;
+  private BuildRule middle;
+  private BuildRule other;
+  private BuildRule top;
+
+  @Before
+  public void setUp() {
+    historyPath = tmp.getRoot().resolve("durations");
+    slowLeaf = new FakeBuildRule("//:slow_leaf");
+    fastLeaf = new FakeBuildRule("//:fast_leaf");
+    middle = new FakeBuildRule("//:middle", slowLeaf);
+    other = new FakeBuildRule("//:other", fastLeaf);
+    top = new FakeBuildRule("//:top", middle, other);
+  }
+
+  private void recordHistory(long slowLeafMillis, long otherMillis) {
+    BuildRuleDurationHistory history = BuildRuleDurationHistory.load(historyPath);
+    history.record(slowLeaf.getBuildTarget(), slowLeafMillis);
+    history.record(fastLeaf.getBuildTarget(), 10);
+    history.record(middle.getBuildTarget(), 10);
+    history.record(other.getBuildTarget(), otherMillis);
+    history.record(top.getBuildTarget(), 10);
+    history.save();
+  }
+
+  @Test
+  public void prioritizesDepsWithLongestEstimatedPaths() {
+    recordHistory(1000, 100);
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(BuildRuleDurationHistory.load(historyPath));
+
+    assertEquals(1010, scheduler.getPredictedPathMillis(middle));
+    assertEquals(110, scheduler.getPredictedPathMillis(other));
+    assertEquals(1020, scheduler.getPredictedPathMillis(top));
+    assertEquals(ImmutableList.of(middle, other), scheduler.prioritize(top.getBuildDeps()));
+  }
+
+  @Test
+  public void prioritizesWorkWithLongestRemainingPaths() {
+    recordHistory(1000, 100);
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(BuildRuleDurationHistory.load(historyPath));
+    scheduler.registerTopLevelRule(top);
+
+    assertEquals(ImmutableList.of(middle, other), scheduler.prioritizeDeps(top));
+    assertEquals(20, scheduler.getRemainingPathMillis(middle));
+    assertEquals(110, scheduler.getRemainingPathMillis(other));
+
+    scheduler.prioritizeDeps(middle);
+    scheduler.prioritizeDeps(other);
+    assertEquals(1020, scheduler.getRemainingPathMillis(slowLeaf));
+    assertEquals(120, scheduler.getRemainingPathMillis(fastLeaf));
+  }
+
+  @Test
+  public void unknownRulesAreEstimatedWithMeanDuration() {
+    recordHistory(100, 1000);
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(BuildRuleDurationHistory.load(historyPath));
+
+    BuildRule unknown = new FakeBuildRule("//:unknown");
+    assertEquals(226, scheduler.getPredictedPathMillis(unknown));
+    assertEquals(
+        ImmutableList.of(other, unknown, middle),
+        scheduler.prioritize(ImmutableList.of(middle, unknown, other)));
+  }
+
+  @Test
+  public void deepChainsDoNotOverflowTheStack() {
+    BuildRule rule = new FakeBuildRule("//:rule0");
+    BuildRuleDurationHistory history = BuildRuleDurationHistory.load(historyPath);
+    history.record(rule.getBuildTarget(), 10);
+    history.save();
+    for (int i = 1; i < 100_000; i++) {
+      rule = new FakeBuildRule("//:rule" + i, rule);
+    }
+
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(BuildRuleDurationHistory.load(historyPath));
+    scheduler.registerTopLevelRule(rule);
+    assertEquals(100_000 * 10L, scheduler.getPredictedPathMillis(rule));
+    scheduler.finishBuild(new BuildRuleDurationTracker());
+  }
+
+  @Test
+  public void finishBuildRecordsActualDurations() {
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(BuildRuleDurationHistory.load(historyPath));
+    scheduler.registerTopLevelRule(top);
+
+    BuildRuleDurationTracker tracker = new BuildRuleDurationTracker();
+    for (BuildRule rule : ImmutableList.of(slowLeaf, middle, top)) {
+      tracker.doBeginning(rule, 0, 0);
+      tracker.doEnding(rule, 50, 50_000_000, 0);
+    }
+    scheduler.finishBuild(tracker);
+
+    BuildRuleDurationHistory history = BuildRuleDurationHistory.load(historyPath);
+    assertEquals(OptionalLong.of(50), history.getWallMillis(slowLeaf.getBuildTarget()));
+    assertEquals(OptionalLong.of(50), history.getWallMillis(top.getBuildTarget()));
+    assertEquals(OptionalLong.empty(), history.getWallMillis(other.getBuildTarget()));
+  }
+}
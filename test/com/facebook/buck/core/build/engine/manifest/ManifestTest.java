@@ -31,13 +31,16 @@ import com.facebook.buck.rules.FakeSourcePath;
 import com.facebook.buck.testutil.FakeFileHashCache;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -76,6 +79,141 @@ public class ManifestTest {
     assertThat(ManifestUtil.toMap(deserialized), Matchers.equalTo(entries));
   }
 
+  @Test
+  public void deserializeLegacyFormat() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(byteArrayOutputStream)) {
+      output.writeInt(0);
+      output.writeUTF("cc");
+      output.writeInt(1);
+      output.writeUTF("foo/bar.h");
+      output.writeInt(1);
+      output.writeInt(0);
+      output.writeUTF(HashCode.fromInt(20).toString());
+      output.writeInt(1);
+      output.writeInt(1);
+      output.writeInt(0);
+      output.writeUTF("aa");
+    }
+    Manifest deserialized =
+        new Manifest(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    assertThat(deserialized.getKey(), Matchers.equalTo(new RuleKey("cc")));
+    assertThat(
+        ManifestUtil.toMap(deserialized),
+        Matchers.equalTo(
+            ImmutableMap.of(
+                new RuleKey("aa"), ImmutableMap.of("foo/bar.h", HashCode.fromInt(20)))));
+
+    ByteArrayOutputStream mappable = new ByteArrayOutputStream();
+    MappedManifest.copyMappable(
+        new ByteArrayInputStream(byteArrayOutputStream.toByteArray()), mappable);
+    MappedManifest mapped = MappedManifest.of(ByteBuffer.wrap(mappable.toByteArray()));
+    assertThat(mapped.getKey(), Matchers.equalTo(new RuleKey("cc")));
+    assertThat(mapped.getStats(), Matchers.equalTo(deserialized.getStats()));
+  }
+
+  @Test
+  public void mappedLookup() throws IOException {
+    SourcePath foo = FakeSourcePath.of("foo.h");
+    SourcePath bar = FakeSourcePath.of("bar.h");
+    SourcePath baz = FakeSourcePath.of("baz.h");
+    String fooPath = RESOLVER.getRelativePath(foo).toString();
+    String barPath = RESOLVER.getRelativePath(bar).toString();
+    Manifest manifest =
+        ManifestUtil.fromMap(
+            new RuleKey("cc"),
+            ImmutableMap.of(
+                new RuleKey("aa"),
+                ImmutableMap.of(fooPath, HashCode.fromInt(1), barPath, HashCode.fromInt(2)),
+                new RuleKey("bb"),
+                ImmutableMap.of(fooPath, HashCode.fromInt(1), barPath, HashCode.fromInt(3)),
+                new RuleKey("dd"),
+                ImmutableMap.of(fooPath, HashCode.fromInt(4))));
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    manifest.serialize(byteArrayOutputStream);
+    MappedManifest mapped =
+        MappedManifest.of(ByteBuffer.wrap(byteArrayOutputStream.toByteArray()));
+    assertThat(mapped.getKey(), Matchers.equalTo(new RuleKey("cc")));
+    assertThat(mapped.getStats(), Matchers.equalTo(manifest.getStats()));
+
+    ImmutableSet<SourcePath> universe = ImmutableSet.of(foo, bar, baz);
+    for (int barHash = 1; barHash <= 3; barHash++) {
+      FileHashCache fileHashCache =
+          new FakeFileHashCache(
+              ImmutableMap.of(
+                  RESOLVER.getAbsolutePath(foo),
+                  HashCode.fromInt(1),
+                  RESOLVER.getAbsolutePath(bar),
+                  HashCode.fromInt(barHash)));
+      assertThat(
+          mapped.lookup(fileHashCache, RESOLVER, universe),
+          Matchers.equalTo(manifest.lookup(fileHashCache, RESOLVER, universe)));
+    }
+    assertThat(
+        mapped.lookup(
+            new FakeFileHashCache(
+                ImmutableMap.of(RESOLVER.getAbsolutePath(foo), HashCode.fromInt(4))),
+            RESOLVER,
+            universe),
+        Matchers.equalTo(Optional.of(new RuleKey("dd"))));
+  }
+
+  @Test(expected = IOException.class)
+  public void mappedTruncatedManifest() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    ManifestUtil.fromMap(
+            new RuleKey("cc"),
+            ImmutableMap.of(new RuleKey("aa"), ImmutableMap.of("foo.h", HashCode.fromInt(1))))
+        .serialize(byteArrayOutputStream);
+    byte[] bytes = byteArrayOutputStream.toByteArray();
+    MappedManifest.of(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+  }
+
+  @Test
+  public void compact() {
+    Manifest manifest =
+        ManifestUtil.fromMap(
+            new RuleKey("cc"),
+            ImmutableMap.of(
+                new RuleKey("aa"),
+                ImmutableMap.of("foo.h", HashCode.fromInt(1)),
+                new RuleKey("bb"),
+                ImmutableMap.of("bar.h", HashCode.fromInt(2)),
+                new RuleKey("dd"),
+                ImmutableMap.of("foo.h", HashCode.fromInt(3))));
+    assertThat(manifest.compact(3).getStats(), Matchers.equalTo(manifest.getStats()));
+
+    Manifest compacted = manifest.compact(2);
+    assertThat(
+        ManifestUtil.toMap(compacted),
+        Matchers.equalTo(
+            ImmutableMap.of(
+                new RuleKey("bb"),
+                ImmutableMap.of("bar.h", HashCode.fromInt(2)),
+                new RuleKey("dd"),
+                ImmutableMap.of("foo.h", HashCode.fromInt(3)))));
+    assertThat(
+        compacted.getStats(),
+        Matchers.equalTo(
+            ManifestStats.builder().setNumDepFiles(2).setNumInputs(2).setNumHashes(2).build()));
+
+    assertThat(manifest.compact(0).size(), Matchers.equalTo(0));
+    assertThat(manifest.compact(0).getStats().getNumHashes(), Matchers.equalTo(0));
+  }
+
+  @Test
+  public void compactKeepsNewestEntryForRuleKey() {
+    Manifest manifest = new Manifest(new RuleKey("cc"));
+    manifest.entries.add(
+        new Pair<>(new RuleKey("aa"), new int[] {manifest.addHash("foo.h", HashCode.fromInt(1))}));
+    manifest.entries.add(
+        new Pair<>(new RuleKey("aa"), new int[] {manifest.addHash("foo.h", HashCode.fromInt(2))}));
+    assertThat(
+        ManifestUtil.toMap(manifest.compact(2)),
+        Matchers.equalTo(
+            ImmutableMap.of(new RuleKey("aa"), ImmutableMap.of("foo.h", HashCode.fromInt(2)))));
+  }
+
   @Test
   public void addEntry() throws IOException {
     Manifest manifest = new Manifest(new RuleKey("cc"));
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.TemporaryPaths;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BuildRuleDurationHistoryTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void durationsArePersistedAndAveraged() {
+    Path path = tmp.getRoot().resolve("durations");
+    BuildTarget foo = BuildTargetFactory.newInstance("//foo:foo");
+    BuildTarget bar = BuildTargetFactory.newInstance("//bar:bar");
+
+    BuildRuleDurationHistory history = BuildRuleDurationHistory.load(path);
+    assertEquals(OptionalLong.empty(), history.getWallMillis(foo));
+    assertEquals(0, history.getMeanWallMillis());
+    history.record(foo, 100);
+    history.record(bar, 50);
+    history.save();
+
+    history = BuildRuleDurationHistory.load(path);
+    assertEquals(OptionalLong.of(100), history.getWallMillis(foo));
+    assertEquals(75, history.getMeanWallMillis());
+    history.record(foo, 300);
+    assertEquals(OptionalLong.of(200), history.getWallMillis(foo));
+  }
+
+  @Test
+  public void malformedLinesAreIgnored() throws Exception {
+    Path path = tmp.getRoot().resolve("durations");
+    Files.write(
+        path, "//foo:foo\t12\t0\n//bar:bar\tabc\t0\ngarbage\n".getBytes(StandardCharsets.UTF_8));
+
+    BuildRuleDurationHistory history = BuildRuleDurationHistory.load(path);
+    assertEquals(
+        OptionalLong.of(12), history.getWallMillis(BuildTargetFactory.newInstance("//foo:foo")));
+    assertEquals(
+        OptionalLong.empty(), history.getWallMillis(BuildTargetFactory.newInstance("//bar:bar")));
+  }
+
+  @Test
+  public void targetsWhichAreNoLongerBuiltAreDropped() {
+    Path path = tmp.getRoot().resolve("durations");
+    BuildTarget foo = BuildTargetFactory.newInstance("//foo:foo");
+    BuildTarget bar = BuildTargetFactory.newInstance("//bar:bar");
+
+    BuildRuleDurationHistory history = BuildRuleDurationHistory.load(path);
+    history.record(foo, 100);
+    history.record(bar, 50);
+    history.save();
+
+    // Only foo is built from now on, as bar was deleted.
+    for (int i = 0; i < BuildRuleDurationHistory.MAX_BUILDS_WITHOUT_RECORD; i++) {
+      history = BuildRuleDurationHistory.load(path);
+      history.record(foo, 100);
+      history.save();
+    }
+    history = BuildRuleDurationHistory.load(path);
+    assertEquals(OptionalLong.of(50), history.getWallMillis(bar));
+    history.record(foo, 100);
+    history.save();
+
+    history = BuildRuleDurationHistory.load(path);
+    assertEquals(OptionalLong.of(100), history.getWallMillis(foo));
+    assertEquals(OptionalLong.empty(), history.getWallMillis(bar));
+  }
+}
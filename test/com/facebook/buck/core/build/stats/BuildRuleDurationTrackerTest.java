@@ -21,6 +21,7 @@ import static org.junit.Assert.assertEquals;
 import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.rules.FakeBuildRule;
 import com.facebook.buck.util.timing.ClockDuration;
+import java.util.Optional;
 import org.junit.Test;
 
 public class BuildRuleDurationTrackerTest {
@@ -52,6 +53,13 @@ public class BuildRuleDurationTrackerTest {
     assertEquals(new ClockDuration(16, 16000, 1300), tracker.doEnding(rule1, 31, 31000, 100));
     assertEquals(new ClockDuration(18, 18000, 1500), tracker.doEnding(rule1, 33, 33000, 200));
     assertEquals(new ClockDuration(12, 12000, 42), tracker.doEnding(rule2, 35, 35000, 42));
+    assertEquals(Optional.empty(), tracker.getDuration(rule1.getBuildTarget()));
     assertEquals(new ClockDuration(22, 22000, 1900), tracker.doEnding(rule1, 37, 37000, 400));
+
+    assertEquals(
+        Optional.of(new ClockDuration(22, 22000, 1900)),
+        tracker.getDuration(rule1.getBuildTarget()));
+    assertEquals(
+        Optional.of(new ClockDuration(12, 12000, 42)), tracker.getDuration(rule2.getBuildTarget()));
   }
 }
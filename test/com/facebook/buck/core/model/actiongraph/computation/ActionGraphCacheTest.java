@@ -30,6 +30,7 @@ import static org.junit.Assert.assertThat;
 import com.facebook.buck.config.ActionGraphParallelizationMode;
 import com.facebook.buck.config.IncrementalActionGraphMode;
 import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.core.model.BuildId;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
 import com.facebook.buck.core.model.targetgraph.FakeTargetNodeBuilder;
@@ -59,6 +60,7 @@ import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.timing.IncrementingFakeClock;
 import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.Subscribe;
@@ -229,6 +231,27 @@ public class ActionGraphCacheTest {
     runAndCheckExpectedHitMissCount(cache, runList);
   }
 
+  @Test
+  public void graphsUnusedByRecentCommandsEvicted() {
+    ActionGraphCache cache = new ActionGraphCache(2, 2);
+
+    // First run for graph 1 should be a miss.
+    runAndCheckExpectedHitMissCount(
+        cache, ImmutableList.of(new Pair<>(targetGraph1, new Pair<>(0, 1))));
+    // A command which doesn't use action graphs.
+    cache.onCommandStarted(new BuildId("other1"));
+    // Graph 1 was used by one of the last two commands.
+    runAndCheckExpectedHitMissCount(
+        cache, ImmutableList.of(new Pair<>(targetGraph1, new Pair<>(1, 1))));
+    cache.onCommandStarted(new BuildId("other2"));
+    // Starting the same command again doesn't count.
+    cache.onCommandStarted(new BuildId("other2"));
+    cache.onCommandStarted(new BuildId("other3"));
+    // Graph 1 wasn't used by any of the last two commands, so it should have been evicted.
+    runAndCheckExpectedHitMissCount(
+        cache, ImmutableList.of(new Pair<>(targetGraph1, new Pair<>(1, 2))));
+  }
+
   private void runAndCheckExpectedHitMissCount(
       ActionGraphCache cache, List<Pair<TargetGraph, Pair<Integer, Integer>>> runList) {
     for (Pair<TargetGraph, Pair<Integer, Integer>> run : runList) {
@@ -17,6 +17,7 @@
 package com.facebook.buck.core.model.actiongraph.computation;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -44,6 +45,8 @@ import com.facebook.buck.event.BuckEventBusForTests;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.rules.FakeBuildRule;
 import com.facebook.buck.util.timing.IncrementingFakeClock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.Subscribe;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -286,6 +289,33 @@ public class IncrementalActionGraphGeneratorTest {
     assertSame(originalChildRule2, graphBuilder.getRule(newChildNode2.getBuildTarget()));
   }
 
+  @Test
+  public void changedNodeInvalidatesTransitiveDependentsOnly() {
+    TargetNode<?, ?> originalLeafNode = createTargetNode("leaf");
+    TargetNode<?, ?> originalMiddleNode = createTargetNode("middle", originalLeafNode);
+    TargetNode<?, ?> originalTopNode = createTargetNode("top", originalMiddleNode);
+    TargetNode<?, ?> otherNode = createTargetNode("other");
+    setUpTargetGraphAndResolver(originalTopNode, originalMiddleNode, originalLeafNode, otherNode);
+
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    BuildRule originalMiddleRule = graphBuilder.requireRule(originalMiddleNode.getBuildTarget());
+    BuildRule originalTopRule = graphBuilder.requireRule(originalTopNode.getBuildTarget());
+    BuildRule otherRule = graphBuilder.requireRule(otherNode.getBuildTarget());
+
+    TargetNode<?, ?> newLeafNode = createTargetNode("leaf", "new_label");
+    TargetNode<?, ?> newMiddleNode = createTargetNode("middle", newLeafNode);
+    TargetNode<?, ?> newTopNode = createTargetNode("top", newMiddleNode);
+    setUpTargetGraphAndResolver(newTopNode, newMiddleNode, newLeafNode, otherNode);
+
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    graphBuilder.requireRule(newTopNode.getBuildTarget());
+    graphBuilder.requireRule(otherNode.getBuildTarget());
+
+    assertNotSame(originalMiddleRule, graphBuilder.getRule(newMiddleNode.getBuildTarget()));
+    assertNotSame(originalTopRule, graphBuilder.getRule(newTopNode.getBuildTarget()));
+    assertSame(otherRule, graphBuilder.getRule(otherNode.getBuildTarget()));
+  }
+
   @Test
   public void uncacheableNodeInvalidatesParentChain() {
     TargetNode<?, ?> originalChildNode1 = createUncacheableTargetNode("child1");
@@ -500,6 +530,54 @@ public class IncrementalActionGraphGeneratorTest {
     oldRuleResolver.getRuleOptional(node.getBuildTarget());
   }
 
+  @Test
+  public void lastActionGraphBuilderUpdatedInPlace() {
+    TargetNode<?, ?> unchangedNode = createTargetNode("unchanged");
+    TargetNode<?, ?> changedNode = createTargetNode("changed", "before");
+    TargetNode<?, ?> rootNode = createTargetNode("root", unchangedNode, changedNode);
+    setUpTargetGraphAndResolver(rootNode, unchangedNode, changedNode);
+
+    generator.populateActionGraphBuilderWithCachedRules(eventBus, targetGraph, graphBuilder);
+    BuildRule unchangedBuildRule = graphBuilder.requireRule(unchangedNode.getBuildTarget());
+    BuildRule changedBuildRule = graphBuilder.requireRule(changedNode.getBuildTarget());
+    graphBuilder.requireRule(rootNode.getBuildTarget());
+
+    SingleThreadedActionGraphBuilder lastGraphBuilder =
+        generator.getLastActionGraphBuilder(SingleThreadedActionGraphBuilder.class).get();
+    assertSame(graphBuilder, lastGraphBuilder);
+
+    TargetNode<?, ?> newChangedNode = createTargetNode("changed", "after");
+    TargetNode<?, ?> addedNode = createTargetNode("added");
+    TargetNode<?, ?> newRootNode =
+        createTargetNode("root", unchangedNode, newChangedNode, addedNode);
+    TargetGraph newTargetGraph =
+        TargetGraphFactory.newInstance(newRootNode, unchangedNode, newChangedNode, addedNode);
+    ImmutableList<TargetNode<?, ?>> nodesToTransform =
+        generator.updateLastActionGraphBuilder(
+            eventBus,
+            newTargetGraph,
+            isUnchanged ->
+                lastGraphBuilder.updateTargetGraph(
+                    newTargetGraph, new TestCellBuilder().build().getCellProvider(), isUnchanged));
+
+    // Only the changed and added nodes and their dependents are left to transform, dependencies
+    // first.
+    assertEquals(3, nodesToTransform.size());
+    assertEquals(
+        ImmutableSet.of(newChangedNode, addedNode),
+        ImmutableSet.copyOf(nodesToTransform.subList(0, 2)));
+    assertSame(newRootNode, nodesToTransform.get(2));
+    assertSame(unchangedBuildRule, graphBuilder.getRule(unchangedNode.getBuildTarget()));
+    assertFalse(graphBuilder.getRuleOptional(changedNode.getBuildTarget()).isPresent());
+    assertFalse(graphBuilder.getRuleOptional(rootNode.getBuildTarget()).isPresent());
+
+    for (TargetNode<?, ?> node : nodesToTransform) {
+      graphBuilder.requireRule(node.getBuildTarget());
+    }
+    assertNotSame(changedBuildRule, graphBuilder.getRule(newChangedNode.getBuildTarget()));
+    assertTrue(graphBuilder.getRuleOptional(addedNode.getBuildTarget()).isPresent());
+  }
+
   @Test
   public void actionGraphEventsRaised() throws InterruptedException {
     TargetNode<?, ?> node = createTargetNode("test1");
@@ -45,6 +45,7 @@ import com.google.common.util.concurrent.MoreExecutors;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Map;
+import java.util.Optional;
 import org.junit.Test;
 
 public class TargetGraphHashingTest {
@@ -241,6 +242,108 @@ public class TargetGraphHashingTest {
     assertThat(resultA.get(depTarget), not(equalTo(resultB.get(depTarget))));
   }
 
+  @Test
+  public void cachedHashesAreReusedUntilInputsChange() throws InterruptedException {
+    FakeProjectFilesystem projectFilesystem = new FakeProjectFilesystem();
+    BuckEventBus eventBus = new DefaultBuckEventBus(new IncrementingFakeClock(), new BuildId());
+
+    TargetNode<?, ?> dep =
+        createJavaLibraryTargetNodeWithSrcs(
+            BuildTargetFactory.newInstance("//foo:dep"),
+            HashCode.fromLong(12345),
+            ImmutableSet.of(Paths.get("foo/Dep.java")));
+    TargetNode<?, ?> node =
+        createJavaLibraryTargetNodeWithSrcs(
+            BuildTargetFactory.newInstance("//foo:lib"),
+            HashCode.fromLong(64738),
+            ImmutableSet.of(Paths.get("foo/FooLib.java")),
+            dep);
+    TargetGraph targetGraph = TargetGraphFactory.newInstance(node, dep);
+
+    FileHashCache baseCache =
+        new FakeFileHashCache(
+            ImmutableMap.of(
+                projectFilesystem.resolve("foo/FooLib.java"), HashCode.fromString("abcdef"),
+                projectFilesystem.resolve("foo/Dep.java"), HashCode.fromString("123456")));
+    FileHashCache modifiedCache =
+        new FakeFileHashCache(
+            ImmutableMap.of(
+                projectFilesystem.resolve("foo/FooLib.java"), HashCode.fromString("abcdef"),
+                projectFilesystem.resolve("foo/Dep.java"), HashCode.fromString("123457")));
+    // Fails if any file is hashed.
+    FileHashCache emptyCache = new FakeFileHashCache(ImmutableMap.of());
+
+    TargetGraphHashCache targetGraphHashCache = new TargetGraphHashCache();
+    Map<BuildTarget, HashCode> baseResult =
+        new TargetGraphHashing(
+                eventBus,
+                targetGraph,
+                baseCache,
+                ImmutableList.of(node),
+                MoreExecutors.newDirectExecutorService(),
+                Optional.of(targetGraphHashCache))
+            .hashTargetGraph();
+    Map<BuildTarget, HashCode> cachedResult =
+        new TargetGraphHashing(
+                eventBus,
+                targetGraph,
+                emptyCache,
+                ImmutableList.of(node),
+                MoreExecutors.newDirectExecutorService(),
+                Optional.of(targetGraphHashCache))
+            .hashTargetGraph();
+    assertThat(cachedResult, equalTo(baseResult));
+
+    targetGraphHashCache.invalidatePath(projectFilesystem.resolve("foo/Dep.java"));
+    Map<BuildTarget, HashCode> modifiedResult =
+        new TargetGraphHashing(
+                eventBus,
+                targetGraph,
+                modifiedCache,
+                ImmutableList.of(node),
+                MoreExecutors.newDirectExecutorService(),
+                Optional.of(targetGraphHashCache))
+            .hashTargetGraph();
+    Map<BuildTarget, HashCode> uncachedModifiedResult =
+        new TargetGraphHashing(
+                eventBus,
+                targetGraph,
+                modifiedCache,
+                ImmutableList.of(node),
+                MoreExecutors.newDirectExecutorService())
+            .hashTargetGraph();
+    assertThat(modifiedResult, equalTo(uncachedModifiedResult));
+    assertThat(
+        modifiedResult.get(node.getBuildTarget()),
+        not(equalTo(baseResult.get(node.getBuildTarget()))));
+  }
+
+  @Test
+  public void cachedHashesOnlyKeepTrackOfTheirCurrentInputs() {
+    BuildTarget target = BuildTargetFactory.newInstance("//foo:lib");
+    TargetNode<?, ?> node =
+        createJavaLibraryTargetNodeWithSrcs(
+            target, HashCode.fromLong(1), ImmutableSet.of(Paths.get("foo/A.java")));
+    TargetNode<?, ?> changedNode =
+        createJavaLibraryTargetNodeWithSrcs(
+            target,
+            HashCode.fromLong(2),
+            ImmutableSet.of(Paths.get("foo/B.java"), Paths.get("foo/C.java")));
+
+    TargetGraphHashCache targetGraphHashCache = new TargetGraphHashCache();
+    targetGraphHashCache.put(node, ImmutableList.of(), HashCode.fromLong(3));
+    assertThat(targetGraphHashCache.inputsSize(), equalTo(1));
+
+    // Hashing the target again replaces the inputs it had before.
+    targetGraphHashCache.put(changedNode, ImmutableList.of(), HashCode.fromLong(4));
+    assertThat(targetGraphHashCache.inputsSize(), equalTo(2));
+
+    // Invalidating the target through one input drops it from its other inputs as well.
+    targetGraphHashCache.invalidatePath(changedNode.getFilesystem().resolve("foo/B.java"));
+    assertThat(targetGraphHashCache.size(), equalTo(0));
+    assertThat(targetGraphHashCache.inputsSize(), equalTo(0));
+  }
+
   @Test(expected = Throwable.class)
   public void hashingSourceThrowsError() throws Exception {
     BuckEventBus eventBus = new DefaultBuckEventBus(new IncrementingFakeClock(), new BuildId());
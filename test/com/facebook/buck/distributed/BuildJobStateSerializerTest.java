@@ -17,8 +17,16 @@
 package com.facebook.buck.distributed;
 
 import com.facebook.buck.distributed.thrift.BuildJobState;
+import com.facebook.buck.distributed.thrift.BuildJobStateTargetGraph;
+import com.facebook.buck.distributed.thrift.BuildJobStateTargetNode;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -38,4 +46,81 @@ public class BuildJobStateSerializerTest {
       Assert.assertEquals(state, actual);
     }
   }
+
+  @Test
+  public void testChunkedSerializationIsSymmetrical() throws IOException {
+    BuildJobState state = createLargeState();
+    InMemoryChunkStore chunkStore = new InMemoryChunkStore();
+
+    byte[] manifest = BuildJobStateSerializer.serializeInChunks(state, chunkStore);
+    Assert.assertTrue(BuildJobStateSerializer.isChunked(manifest));
+    Assert.assertTrue(chunkStore.chunks.size() > 1);
+    Assert.assertTrue(manifest.length < 1024);
+
+    Assert.assertEquals(state, BuildJobStateSerializer.deserialize(manifest, chunkStore));
+  }
+
+  @Test
+  public void testOnlyChangedChunksAreStored() throws IOException {
+    BuildJobState state = createLargeState();
+    InMemoryChunkStore chunkStore = new InMemoryChunkStore();
+    BuildJobStateSerializer.serializeInChunks(state, chunkStore);
+    int chunkCount = chunkStore.chunks.size();
+
+    chunkStore.storedChunks = 0;
+    state.getTargetGraph().getNodes().get(500).setRawNode("changed");
+    byte[] manifest = BuildJobStateSerializer.serializeInChunks(state, chunkStore);
+
+    Assert.assertTrue(chunkStore.storedChunks > 0);
+    Assert.assertTrue(chunkStore.storedChunks <= 2);
+    Assert.assertTrue(chunkCount > 10);
+    Assert.assertEquals(state, BuildJobStateSerializer.deserialize(manifest, chunkStore));
+  }
+
+  @Test
+  public void testUnchunkedStatesAreDeserializedWithChunkStore() throws IOException {
+    BuildJobState state = createLargeState();
+    byte[] data = BuildJobStateSerializer.serialize(state);
+    Assert.assertFalse(BuildJobStateSerializer.isChunked(data));
+    Assert.assertEquals(
+        state, BuildJobStateSerializer.deserialize(data, new InMemoryChunkStore()));
+  }
+
+  private static BuildJobState createLargeState() {
+    Random random = new Random(42);
+    BuildJobStateTargetGraph graph = new BuildJobStateTargetGraph();
+    for (int i = 0; i < 1000; i++) {
+      StringBuilder rawNode = new StringBuilder();
+      for (int j = 0; j < 2000; j++) {
+        rawNode.append((char) ('a' + random.nextInt(26)));
+      }
+      graph.addToNodes(new BuildJobStateTargetNode().setRawNode(rawNode.toString()));
+    }
+    return new BuildJobState().setTargetGraph(graph);
+  }
+
+  private static class InMemoryChunkStore implements BuildJobStateSerializer.ChunkStore {
+    private final Map<String, byte[]> chunks = new HashMap<>();
+    private int storedChunks = 0;
+
+    @Override
+    public Set<String> findMissingChunks(List<String> hashes) {
+      Set<String> missingHashes = new HashSet<>(hashes);
+      missingHashes.removeAll(chunks.keySet());
+      return missingHashes;
+    }
+
+    @Override
+    public void storeChunks(Map<String, byte[]> chunksByHash) {
+      chunks.putAll(chunksByHash);
+      storedChunks += chunksByHash.size();
+    }
+
+    @Override
+    public Map<String, byte[]> fetchChunks(Set<String> hashes) {
+      Map<String, byte[]> result = new HashMap<>();
+      hashes.forEach(hash -> result.put(hash, chunks.get(hash)));
+      return result;
+    }
+  }
 }
@@ -94,6 +94,7 @@ public class CoordinatorAndMinionModeRunnerIntegrationTest {
             MINION_TYPE,
             new BuildSlaveRunId().setId("sl7"),
             new SingleBuildCapacityTracker(MAX_PARALLEL_WORK_UNITS),
+            0,
             EasyMock.createNiceMock(MinionModeRunner.BuildCompletionChecker.class),
             POLL_LOOP_INTERVAL_MILLIS,
             new NoOpMinionBuildProgressTracker(),
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed.build_slave;
+
+import com.facebook.buck.distributed.build_slave.DistributableBuildGraph.DistributableNode;
+import com.facebook.buck.distributed.thrift.MinionType;
+import com.facebook.buck.distributed.thrift.StampedeId;
+import com.facebook.buck.distributed.thrift.WorkUnit;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Simulates distributed builds of a random build graph to compare how well the coordinator keeps
+ * the minions busy. Minions poll the coordinator for work at a fixed interval, so without a
+ * backlog of work units their build slots sit idle between polls. Work units stolen from a minion
+ * are only dropped from its queue when it next polls, so it may build them as well. Building a
+ * target again takes its full cost, and fetching a target another minion built takes a tick.
+ *
+ * <p>The benchmark itself measures the cost of scheduling, while the tests check that a backlog of
+ * work units makes better use of the minions' build slots without building much twice.
+ */
+public class DistBuildSchedulingBenchmark {
+  @Param({"5000"})
+  private int nodeCount = 2000;
+
+  @Param({"false", "true"})
+  private boolean useRuleCosts = true;
+
+  @Param({"0", "2"})
+  private int workUnitLookahead = 2;
+
+  private static final int MINION_COUNT = 8;
+  private static final int SLOTS_PER_MINION = 4;
+  private static final int POLL_INTERVAL = 20;
+  private static final int CACHE_FETCH_COST = 1;
+  private static final int MAX_DEPENDENCIES = 4;
+  private static final int MAX_DEPENDENCY_DISTANCE = 500;
+
+  private ImmutableMap<String, ImmutableSet<String>> dependencies;
+  private ImmutableMap<String, Long> ruleCosts;
+
+  @Before
+  public void setUpTest() {
+    setUpBenchmark();
+  }
+
+  /**
+   * Creates a graph in which each rule depends on a few earlier ones, with costs spanning two
+   * orders of magnitude, so that some chains of rules take much longer to build than others.
+   */
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    Random random = new Random(123);
+    ImmutableMap.Builder<String, ImmutableSet<String>> dependenciesBuilder =
+        ImmutableMap.builder();
+    ImmutableMap.Builder<String, Long> ruleCostsBuilder = ImmutableMap.builder();
+    for (int i = 0; i < nodeCount; i++) {
+      ImmutableSet.Builder<String> deps = ImmutableSet.builder();
+      int depCount = i == 0 ? 0 : random.nextInt(MAX_DEPENDENCIES + 1);
+      for (int dep = 0; dep < depCount; dep++) {
+        // Prefer recent rules, so that the graph has chains of rules rather than being flat.
+        deps.add(target(i - 1 - random.nextInt(Math.min(i, MAX_DEPENDENCY_DISTANCE))));
+      }
+      dependenciesBuilder.put(target(i), deps.build());
+      ruleCostsBuilder.put(target(i), (long) Math.pow(100, random.nextDouble()));
+    }
+    dependencies = dependenciesBuilder.build();
+    ruleCosts = ruleCostsBuilder.build();
+  }
+
+  @Test
+  public void simulatedBuildFinishes() {
+    Assert.assertTrue(simulateBuild().utilization > 0);
+  }
+
+  @Test
+  public void workUnitLookaheadImprovesUtilization() {
+    for (boolean withRuleCosts : new boolean[] {false, true}) {
+      useRuleCosts = withRuleCosts;
+      workUnitLookahead = 0;
+      Result withoutLookahead = simulateBuild();
+      workUnitLookahead = 2;
+      Result withLookahead = simulateBuild();
+      Assert.assertTrue(withLookahead.utilization > withoutLookahead.utilization);
+      Assert.assertTrue(withLookahead.duration < withoutLookahead.duration);
+      Assert.assertEquals(0, withoutLookahead.duplication, 0);
+      Assert.assertTrue(withLookahead.duplication < 0.1);
+    }
+  }
+
+  @Benchmark
+  public double simulateDistributedBuild() {
+    return simulateBuild().utilization;
+  }
+
+  private static String target(int index) {
+    return "//:rule_" + index;
+  }
+
+  /** The outcome of a simulated build. */
+  private static class Result {
+    final long duration;
+    final double utilization;
+    final double duplication;
+
+    Result(long duration, double utilization, double duplication) {
+      this.duration = duration;
+      this.utilization = utilization;
+      this.duplication = duplication;
+    }
+  }
+
+  /** A minion which builds the targets of each work unit in order, one work unit per slot. */
+  private static class Minion {
+    final String id;
+    final Queue<List<String>> workUnits = new ArrayDeque<>();
+    final List<List<String>> slots = new ArrayList<>();
+    final long[] remainingCosts = new long[SLOTS_PER_MINION];
+    final boolean[] fetching = new boolean[SLOTS_PER_MINION];
+    final List<String> finishedTargets = new ArrayList<>();
+
+    Minion(String id) {
+      this.id = id;
+      for (int slot = 0; slot < SLOTS_PER_MINION; slot++) {
+        slots.add(new ArrayList<>());
+      }
+    }
+
+    int getHeldWorkUnits() {
+      int held = workUnits.size();
+      for (List<String> slot : slots) {
+        held += slot.isEmpty() ? 0 : 1;
+      }
+      return held;
+    }
+
+    void dropStolenWorkUnits(List<String> stolenTargets) {
+      workUnits.removeIf(workUnit -> workUnit.stream().anyMatch(stolenTargets::contains));
+    }
+  }
+
+  private Result simulateBuild() {
+    RuleCostEstimator estimator =
+        useRuleCosts ? new HistoricRuleCostEstimator(ruleCosts) : target -> 0;
+    MinionWorkloadAllocator allocator =
+        new MinionWorkloadAllocator(
+            new ReverseDepBuildTargetsQueue(createGraph(), 100, estimator),
+            new DistBuildTraceTracker(new StampedeId().setId("simulation")),
+            workUnitLookahead);
+
+    List<Minion> minions = new ArrayList<>();
+    for (int i = 0; i < MINION_COUNT; i++) {
+      minions.add(new Minion("minion_" + i));
+    }
+
+    // Targets which have been built by any minion, and so are cache hits for the others.
+    Set<String> builtTargets = new HashSet<>();
+    // Time spent building targets for the first time, as opposed to building them again.
+    long usefulSlotTime = 0;
+    long duplicatedSlotTime = 0;
+    long time = 0;
+    while (!allocator.isBuildFinished()
+        || minions.stream().anyMatch(minion -> minion.getHeldWorkUnits() > 0)) {
+      for (int i = 0; i < minions.size(); i++) {
+        Minion minion = minions.get(i);
+        // Minions poll at the same interval, but not all at once.
+        if ((time + i * POLL_INTERVAL / MINION_COUNT) % POLL_INTERVAL == 0) {
+          int maxWorkUnits =
+              Math.max(0, SLOTS_PER_MINION + workUnitLookahead - minion.getHeldWorkUnits());
+          for (WorkUnit workUnit :
+              allocator.dequeueZeroDependencyNodes(
+                  minion.id,
+                  MinionType.STANDARD_SPEC,
+                  new ArrayList<>(minion.finishedTargets),
+                  maxWorkUnits)) {
+            // The allocator updates the work units it hands out as their targets finish.
+            minion.workUnits.add(new ArrayList<>(workUnit.getBuildTargets()));
+          }
+          minion.dropStolenWorkUnits(allocator.takeStolenTargets(minion.id));
+          minion.finishedTargets.clear();
+        }
+
+        for (int slot = 0; slot < SLOTS_PER_MINION; slot++) {
+          List<String> targets = minion.slots.get(slot);
+          if (!targets.isEmpty() && --minion.remainingCosts[slot] > 0) {
+            continue;
+          }
+          if (!targets.isEmpty()) {
+            String target = targets.remove(0);
+            if (builtTargets.add(target)) {
+              usefulSlotTime += ruleCosts.get(target);
+            } else if (!minion.fetching[slot]) {
+              duplicatedSlotTime += ruleCosts.get(target);
+            }
+            minion.finishedTargets.add(target);
+          }
+          // Start on the next target, fetching those which another minion already built.
+          if (targets.isEmpty() && !minion.workUnits.isEmpty()) {
+            targets.addAll(minion.workUnits.remove());
+          }
+          if (!targets.isEmpty()) {
+            minion.fetching[slot] = builtTargets.contains(targets.get(0));
+            minion.remainingCosts[slot] =
+                minion.fetching[slot] ? CACHE_FETCH_COST : ruleCosts.get(targets.get(0));
+          }
+        }
+      }
+      time++;
+    }
+
+    long slotTime = time * MINION_COUNT * SLOTS_PER_MINION;
+    return new Result(
+        time, (double) usefulSlotTime / slotTime, (double) duplicatedSlotTime / slotTime);
+  }
+
+  private DistributableBuildGraph createGraph() {
+    Map<String, Set<String>> dependents = new HashMap<>();
+    dependencies.forEach(
+        (target, deps) ->
+            deps.forEach(
+                dep -> dependents.computeIfAbsent(dep, key -> new HashSet<>()).add(target)));
+
+    ImmutableMap.Builder<String, DistributableNode> allNodes = ImmutableMap.builder();
+    ImmutableSet.Builder<DistributableNode> leafNodes = ImmutableSet.builder();
+    dependencies.forEach(
+        (target, deps) -> {
+          DistributableNode node =
+              new DistributableNode(
+                  target,
+                  ImmutableSet.copyOf(dependents.getOrDefault(target, ImmutableSet.of())),
+                  deps,
+                  false);
+          allNodes.put(target, node);
+          if (deps.isEmpty()) {
+            leafNodes.add(node);
+          }
+        });
+    return new DistributableBuildGraph(allNodes.build(), leafNodes.build());
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.distributed.build_slave;
+
+import com.facebook.buck.distributed.thrift.WorkUnit;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MinionLocalBuildStateTrackerTest {
+
+  private static final int MAX_PARALLEL_WORK_UNITS = 2;
+  private static final int WORK_UNIT_LOOKAHEAD = 2;
+
+  private SingleBuildCapacityTracker capacityTracker;
+  private MinionLocalBuildStateTracker buildTracker;
+
+  @Before
+  public void setUp() {
+    capacityTracker =
+        new SingleBuildCapacityTracker(MAX_PARALLEL_WORK_UNITS + WORK_UNIT_LOOKAHEAD);
+    buildTracker =
+        new MinionLocalBuildStateTracker(
+            new NoOpMinionBuildProgressTracker(), capacityTracker, WORK_UNIT_LOOKAHEAD);
+  }
+
+  @Test
+  public void testWorkUnitsBeyondParallelismStayQueued() {
+    Assert.assertEquals(4, buildTracker.reserveAllAvailableCapacity());
+    buildTracker.enqueueWorkUnitsForBuildingAndCommitCapacity(
+        ImmutableList.of(
+            createWorkUnit("a1", "a2"),
+            createWorkUnit("b1"),
+            createWorkUnit("c1"),
+            createWorkUnit("d1")));
+
+    Assert.assertTrue(buildTracker.outstandingWorkUnitsToBuild());
+    Assert.assertEquals(ImmutableList.of("a1", "a2", "b1"), buildTracker.getTargetsToBuild());
+    Assert.assertFalse(buildTracker.outstandingWorkUnitsToBuild());
+    Assert.assertEquals(0, buildTracker.getTargetsToBuild().size());
+  }
+
+  @Test
+  public void testStolenWorkUnitsAreDroppedUnlessStarted() {
+    buildTracker.reserveAllAvailableCapacity();
+    buildTracker.enqueueWorkUnitsForBuildingAndCommitCapacity(
+        ImmutableList.of(
+            createWorkUnit("a1"),
+            createWorkUnit("b1"),
+            createWorkUnit("c1", "c2"),
+            createWorkUnit("d1")));
+    buildTracker.getTargetsToBuild();
+
+    // Work unit "a" is being built already, so only "c" is dropped.
+    buildTracker.dropStolenWorkUnits(ImmutableList.of("a1", "c1", "c2"));
+
+    // The capacity of the dropped work unit can be used to fetch more work.
+    Assert.assertEquals(1, capacityTracker.reserveAllAvailableCapacity());
+    capacityTracker.commitCapacity(0);
+    Assert.assertFalse(buildTracker.outstandingWorkUnitsToBuild());
+  }
+
+  private static WorkUnit createWorkUnit(String... targets) {
+    WorkUnit workUnit = new WorkUnit();
+    workUnit.setBuildTargets(new ArrayList<>(ImmutableList.copyOf(targets)));
+    return workUnit;
+  }
+}
@@ -85,6 +85,7 @@ public class MinionModeRunnerIntegrationTest {
             MINION_TYPE,
             new BuildSlaveRunId().setId("sl1"),
             new SingleBuildCapacityTracker(MAX_PARALLEL_WORK_UNITS),
+            0,
             checker,
             POLL_LOOP_INTERVAL_MILLIS,
             new NoOpMinionBuildProgressTracker(),
@@ -123,6 +124,7 @@ public class MinionModeRunnerIntegrationTest {
             MINION_TYPE,
             new BuildSlaveRunId().setId("sl2"),
             new SingleBuildCapacityTracker(MAX_PARALLEL_WORK_UNITS),
+            0,
             checker,
             POLL_LOOP_INTERVAL_MILLIS,
             new NoOpMinionBuildProgressTracker(),
@@ -270,6 +272,7 @@ public class MinionModeRunnerIntegrationTest {
               MINION_TYPE,
               new BuildSlaveRunId().setId("sl3"),
               new SingleBuildCapacityTracker(MAX_PARALLEL_WORK_UNITS),
+              0,
               checker,
               POLL_LOOP_INTERVAL_MILLIS,
               unexpectedCacheMissTracker,
@@ -30,6 +30,9 @@ import com.facebook.buck.distributed.thrift.WorkUnit;
 import com.facebook.buck.event.listener.NoOpCoordinatorBuildRuleEventsPublisher;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
@@ -255,6 +258,73 @@ public class MinionWorkloadAllocatorTest {
     Assert.assertTrue(allocator.isBuildFinished());
   }
 
+  @Test
+  public void testIdleMinionsStealFromBacklogs() {
+    // Graph structure:
+    //          root
+    //       /  |  |  \
+    //      a   b  c   d
+    ImmutableMap<String, ImmutableSet<String>> dependencies =
+        ImmutableMap.of(
+            "root", ImmutableSet.of("a", "b", "c", "d"),
+            "a", ImmutableSet.of(),
+            "b", ImmutableSet.of(),
+            "c", ImmutableSet.of(),
+            "d", ImmutableSet.of());
+    MinionWorkloadAllocator allocator =
+        new MinionWorkloadAllocator(
+            new ReverseDepBuildTargetsQueue(
+                ReverseDepBuildTargetsQueueTest.createGraph(dependencies), MAX_WORK_UNITS),
+            new DistBuildTraceTracker(STAMPEDE_ID),
+            2);
+
+    // Minion one builds two work units at once, and fetches another two.
+    List<WorkUnit> minionOneWorkUnits =
+        allocator.dequeueZeroDependencyNodes(MINION_ONE, STANDARD_SPEC, ImmutableList.of(), 4);
+    Assert.assertEquals(4, minionOneWorkUnits.size());
+
+    // Minion two steals the work units minion one hasn't started yet.
+    List<WorkUnit> minionTwoWorkUnits =
+        allocator.dequeueZeroDependencyNodes(MINION_TWO, STANDARD_SPEC, ImmutableList.of(), 4);
+    Assert.assertEquals(
+        ImmutableList.of(minionOneWorkUnits.get(3), minionOneWorkUnits.get(2)),
+        minionTwoWorkUnits);
+
+    // Minion one is told to drop the stolen targets, once.
+    List<String> stolenTargets = new ArrayList<>();
+    stolenTargets.addAll(minionOneWorkUnits.get(3).getBuildTargets());
+    stolenTargets.addAll(minionOneWorkUnits.get(2).getBuildTargets());
+    Assert.assertEquals(stolenTargets, allocator.takeStolenTargets(MINION_ONE));
+    Assert.assertEquals(0, allocator.takeStolenTargets(MINION_ONE).size());
+    Assert.assertEquals(0, allocator.takeStolenTargets(MINION_TWO).size());
+
+    // Nothing is left to steal once the backlog is gone.
+    Assert.assertEquals(
+        0,
+        allocator
+            .dequeueZeroDependencyNodes(MINION_THREE, STANDARD_SPEC, ImmutableList.of(), 4)
+            .size());
+
+    // Minion one may have started the stolen work units already, and whichever minion finishes
+    // first wins.
+    List<WorkUnit> rootWorkUnits =
+        allocator.dequeueZeroDependencyNodes(
+            MINION_ONE, STANDARD_SPEC, ImmutableList.of("a", "b", "c", "d"), 4);
+    Assert.assertEquals(1, rootWorkUnits.size());
+    Assert.assertEquals(ImmutableList.of("root"), rootWorkUnits.get(0).getBuildTargets());
+
+    Assert.assertEquals(
+        0,
+        allocator
+            .dequeueZeroDependencyNodes(MINION_TWO, STANDARD_SPEC, ImmutableList.of("d", "c"), 4)
+            .size());
+    Assert.assertFalse(allocator.isBuildFinished());
+
+    allocator.dequeueZeroDependencyNodes(
+        MINION_ONE, STANDARD_SPEC, ImmutableList.of("root"), MAX_WORK_UNITS);
+    Assert.assertTrue(allocator.isBuildFinished());
+  }
+
   private static void simulateAndAssertMinionFailure(
       MinionWorkloadAllocator allocator, String minionId) {
     allocator.handleMinionFailure(minionId);
@@ -34,6 +34,7 @@ import com.facebook.buck.core.rules.BuildRuleResolver;
 import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
 import com.facebook.buck.distributed.ArtifactCacheByBuildRule;
 import com.facebook.buck.distributed.NoopArtifactCacheByBuildRule;
+import com.facebook.buck.distributed.build_slave.DistributableBuildGraph.DistributableNode;
 import com.facebook.buck.distributed.testutil.CustomActiongGraphBuilderFactory;
 import com.facebook.buck.distributed.thrift.CoordinatorBuildProgress;
 import com.facebook.buck.distributed.thrift.WorkUnit;
@@ -42,8 +43,14 @@ import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.parser.exceptions.NoSuchBuildTargetException;
 import com.facebook.buck.testutil.TemporaryPaths;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.easymock.EasyMock;
 import org.junit.Assert;
 import org.junit.Rule;
@@ -387,6 +394,79 @@ public class ReverseDepBuildTargetsQueueTest {
     EasyMock.verify(artifactCache);
   }
 
+  @Test
+  public void testNodesOnLongestChainsAreScheduledFirst() {
+    // Graph structure:
+    //        root
+    //       /    \
+    //    short   mid
+    //             |
+    //           long
+    ImmutableMap<String, ImmutableSet<String>> dependencies =
+        ImmutableMap.of(
+            "root", ImmutableSet.of("short", "mid"),
+            "short", ImmutableSet.of(),
+            "mid", ImmutableSet.of("long"),
+            "long", ImmutableSet.of());
+
+    List<WorkUnit> workUnits =
+        new ReverseDepBuildTargetsQueue(createGraph(dependencies), 100)
+            .dequeueZeroDependencyNodes(ImmutableList.of(), 1);
+    Assert.assertEquals(1, workUnits.size());
+    Assert.assertEquals(ImmutableList.of("long", "mid"), workUnits.get(0).getBuildTargets());
+
+    // A single expensive rule outweighs a longer chain of cheap ones.
+    workUnits =
+        new ReverseDepBuildTargetsQueue(
+                createGraph(dependencies),
+                100,
+                new HistoricRuleCostEstimator(ImmutableMap.of("short", 10L, "long", 1L)))
+            .dequeueZeroDependencyNodes(ImmutableList.of(), 1);
+    Assert.assertEquals(1, workUnits.size());
+    Assert.assertEquals(ImmutableList.of("short"), workUnits.get(0).getBuildTargets());
+  }
+
+  @Test
+  public void testCriticalPathCosts() {
+    DistributableBuildGraph graph =
+        createGraph(
+            ImmutableMap.of(
+                "root", ImmutableSet.of("left", "right"),
+                "left", ImmutableSet.of("leaf"),
+                "right", ImmutableSet.of("leaf"),
+                "leaf", ImmutableSet.of()));
+
+    Assert.assertEquals(
+        ImmutableMap.of("root", 1L, "left", 2L, "right", 10L, "leaf", 11L),
+        graph.computeCriticalPathCosts(target -> target.equals("right") ? 9 : 1));
+  }
+
+  /** Creates a graph of cacheable nodes from the dependencies of each node. */
+  static DistributableBuildGraph createGraph(Map<String, ImmutableSet<String>> dependencies) {
+    Map<String, Set<String>> dependents = new HashMap<>();
+    dependencies.forEach(
+        (target, deps) ->
+            deps.forEach(
+                dep -> dependents.computeIfAbsent(dep, key -> new HashSet<>()).add(target)));
+
+    ImmutableMap.Builder<String, DistributableNode> allNodes = ImmutableMap.builder();
+    ImmutableSet.Builder<DistributableNode> leafNodes = ImmutableSet.builder();
+    dependencies.forEach(
+        (target, deps) -> {
+          DistributableNode node =
+              new DistributableNode(
+                  target,
+                  ImmutableSet.copyOf(dependents.getOrDefault(target, ImmutableSet.of())),
+                  deps,
+                  false);
+          allNodes.put(target, node);
+          if (deps.isEmpty()) {
+            leafNodes.add(node);
+          }
+        });
+    return new DistributableBuildGraph(allNodes.build(), leafNodes.build());
+  }
+
   public static BuildTargetsQueue createDiamondDependencyQueue() throws NoSuchBuildTargetException {
     return createQueueWithoutRemoteCache(
         CustomActiongGraphBuilderFactory.createDiamondDependencyGraph(),
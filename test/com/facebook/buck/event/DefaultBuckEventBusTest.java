@@ -19,13 +19,19 @@ package com.facebook.buck.event;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.facebook.buck.util.timing.DefaultClock;
 import com.facebook.buck.util.timing.SettableFakeClock;
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
@@ -115,6 +121,77 @@ public class DefaultBuckEventBusTest {
     assertEquals(event.getNanoTime(), 64738);
   }
 
+  @Test
+  public void perListenerDispatchDeliversEventsInOrderToEachListener() throws IOException {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(),
+            true,
+            BuckEventBusForTests.BUILD_ID_FOR_TEST,
+            timeoutMillis,
+            DefaultBuckEventBus.DispatchMode.PER_LISTENER);
+    CollectingSubscriber first = new CollectingSubscriber();
+    CollectingSubscriber second = new CollectingSubscriber();
+    eb.register(first);
+    eb.register(second);
+    List<TestEvent> events = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      TestEvent event = new TestEvent();
+      events.add(event);
+      eb.post(event);
+    }
+    assertTrue(eb.waitEvents(timeoutMillis));
+    eb.close();
+    assertEquals(events, first.events);
+    assertEquals(events, second.events);
+  }
+
+  @Test
+  public void perListenerDispatchIsNotHeldUpBySlowListeners() throws Exception {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(),
+            true,
+            BuckEventBusForTests.BUILD_ID_FOR_TEST,
+            timeoutMillis,
+            DefaultBuckEventBus.DispatchMode.PER_LISTENER);
+    CountDownLatch received = new CountDownLatch(1);
+    eb.register(new SleepSubscriber());
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void receive(TestEvent event) {
+            received.countDown();
+          }
+        });
+    eb.post(new SleepEvent(timeoutMillis * 3));
+    eb.post(new TestEvent());
+    assertTrue(received.await(timeoutMillis, TimeUnit.MILLISECONDS));
+    assertFalse(eb.waitEvents(1));
+    eb.close();
+  }
+
+  @Test
+  public void perListenerDispatchStopsDeliveringToUnregisteredListeners() throws IOException {
+    DefaultBuckEventBus eb =
+        new DefaultBuckEventBus(
+            new DefaultClock(),
+            true,
+            BuckEventBusForTests.BUILD_ID_FOR_TEST,
+            timeoutMillis,
+            DefaultBuckEventBus.DispatchMode.PER_LISTENER);
+    CollectingSubscriber subscriber = new CollectingSubscriber();
+    eb.register(subscriber);
+    TestEvent event = new TestEvent();
+    eb.post(event);
+    assertTrue(eb.waitEvents(timeoutMillis));
+    eb.unregister(subscriber);
+    eb.post(new TestEvent());
+    assertTrue(eb.waitEvents(timeoutMillis));
+    eb.close();
+    assertEquals(ImmutableList.of(event), subscriber.events);
+  }
+
   private static class SleepEvent extends AbstractBuckEvent {
     public final long milliseconds;
 
@@ -141,6 +218,15 @@ public class DefaultBuckEventBusTest {
     }
   }
 
+  private static class CollectingSubscriber {
+    private final List<TestEvent> events = new ArrayList<>();
+
+    @Subscribe
+    public void collect(TestEvent event) {
+      events.add(event);
+    }
+  }
+
   private static class TestEvent extends AbstractBuckEvent {
 
     public TestEvent() {
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.util.json.ObjectMappers;
+import com.facebook.buck.util.timing.DefaultClock;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures how many events per second reach a set of listeners modelled after the ones registered
+ * for every build: a console which aggregates events, and trace and machine readable log writers
+ * which serialize every event.
+ */
+public class EventBusBenchmark {
+
+  @Param({"SINGLE_THREAD", "PER_LISTENER"})
+  private DefaultBuckEventBus.DispatchMode mode = DefaultBuckEventBus.DispatchMode.PER_LISTENER;
+
+  @Param({"1", "8"})
+  private int producers = 4;
+
+  private DefaultBuckEventBus eventBus;
+
+  @Before
+  public void setUpTest() {
+    setUpBenchmark();
+  }
+
+  @After
+  public void tearDownTest() throws IOException {
+    tearDownBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    eventBus =
+        new DefaultBuckEventBus(
+            new DefaultClock(),
+            true,
+            BuckEventBusForTests.BUILD_ID_FOR_TEST,
+            DefaultBuckEventBus.DEFAULT_SHUTDOWN_TIMEOUT_MS,
+            mode);
+    eventBus.register(new ConsoleListener());
+    eventBus.register(new SerializingListener("["));
+    eventBus.register(new SerializingListener(""));
+  }
+
+  @AfterExperiment
+  public void tearDownBenchmark() throws IOException {
+    eventBus.close();
+  }
+
+  @Test
+  public void postEventsPerformance() throws Exception {
+    postEvents(10);
+  }
+
+  @Benchmark
+  public void postEvents(int reps) throws Exception {
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < producers; i++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int j = 0; j < reps * 1000; j++) {
+                  BenchmarkEvent started = new BenchmarkEvent(j, "started");
+                  eventBus.post(started);
+                  eventBus.post(new BenchmarkEvent(j, "finished"), started);
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(eventBus.waitEvents(0));
+  }
+
+  private static class BenchmarkEvent extends AbstractBuckEvent {
+    private final String state;
+
+    private BenchmarkEvent(int key, String state) {
+      super(EventKey.slowValueKey("BenchmarkEvent", key));
+      this.state = state;
+    }
+
+    public String getState() {
+      return state;
+    }
+
+    @Override
+    protected String getValueString() {
+      return state;
+    }
+
+    @Override
+    public String getEventName() {
+      return "BenchmarkEvent." + state;
+    }
+  }
+
+  /** Keeps track of the events in progress, like the super console does. */
+  public static class ConsoleListener {
+    private final ConcurrentMap<EventKey, BuckEvent> inProgress = new ConcurrentHashMap<>();
+    private final LongAdder finished = new LongAdder();
+
+    @Subscribe
+    public void onEvent(BenchmarkEvent event) {
+      if (event.getState().equals("started")) {
+        inProgress.put(event.getEventKey(), event);
+      } else {
+        inProgress.remove(event.getEventKey());
+        finished.increment();
+      }
+    }
+  }
+
+  /** Writes every event as JSON, like the trace and machine readable log writers do. */
+  public static class SerializingListener {
+    private final String prefix;
+    private final OutputStream output = new BufferedOutputStream(ByteStreams.nullOutputStream());
+
+    private SerializingListener(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Subscribe
+    public void onEvent(BenchmarkEvent event) throws IOException {
+      output.write(prefix.getBytes());
+      output.write(event.getEventName().getBytes());
+      output.write(' ');
+      output.write(ObjectMappers.WRITER.writeValueAsBytes(event));
+      output.write('\n');
+    }
+  }
+}
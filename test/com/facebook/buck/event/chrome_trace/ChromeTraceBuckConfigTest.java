@@ -36,4 +36,16 @@ public class ChromeTraceBuckConfigTest {
             FakeBuckConfig.builder().setSections("[log]", "max_traces = 42").build());
     assertEquals(42, config.getMaxTraces());
   }
+
+  @Test
+  public void testGetTraceFormat() {
+    assertEquals(
+        ChromeTraceBuckConfig.TraceFormat.JSON,
+        ChromeTraceBuckConfig.of(FakeBuckConfig.builder().build()).getTraceFormat());
+
+    ChromeTraceBuckConfig config =
+        ChromeTraceBuckConfig.of(
+            FakeBuckConfig.builder().setSections("[log]", "chrome_trace_format = compact").build());
+    assertEquals(ChromeTraceBuckConfig.TraceFormat.COMPACT, config.getTraceFormat());
+  }
 }
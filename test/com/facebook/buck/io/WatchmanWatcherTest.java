@@ -211,6 +211,36 @@ public class WatchmanWatcherTest {
         BuckEventBusForTests.newInstance(FakeClock.doNotCare()),
         WatchmanWatcher.FreshInstanceAction.NONE);
     assertThat(eventBuffer.getOnlyEvent(), instanceOf(WatchmanOverflowEvent.class));
+    assertEquals(
+        Optional.of(ImmutableSet.of(Paths.get("foo/bar"))),
+        ((WatchmanOverflowEvent) eventBuffer.getOnlyEvent()).getChangedPaths());
+  }
+
+  @Test
+  public void changedPathsAreCoalescedIntoPrefixes() {
+    ImmutableList<Path> paths =
+        ImmutableList.of(
+            Paths.get("foo/a/One.java"),
+            Paths.get("foo/a/Two.java"),
+            Paths.get("foo/b/Three.java"),
+            Paths.get("foo/b"),
+            Paths.get("bar/Four.java"));
+    assertEquals(
+        Optional.of(
+            ImmutableSet.of(
+                Paths.get("foo/a/One.java"),
+                Paths.get("foo/a/Two.java"),
+                Paths.get("foo/b"),
+                Paths.get("bar/Four.java"))),
+        WatchmanWatcher.coalesceChangedPaths(paths, 5));
+    assertEquals(
+        Optional.of(
+            ImmutableSet.of(Paths.get("foo/a"), Paths.get("foo/b"), Paths.get("bar/Four.java"))),
+        WatchmanWatcher.coalesceChangedPaths(paths, 4));
+    assertEquals(
+        Optional.of(ImmutableSet.of(Paths.get("foo"), Paths.get("bar"))),
+        WatchmanWatcher.coalesceChangedPaths(paths, 2));
+    assertEquals(Optional.empty(), WatchmanWatcher.coalesceChangedPaths(paths, 1));
   }
 
   @Test
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.jvm.java;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.util.zip.CustomZipEntry;
@@ -24,19 +25,27 @@ import com.facebook.buck.util.zip.JarEntryContainer;
 import com.facebook.buck.util.zip.JarEntrySupplier;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import javax.annotation.Nullable;
 import org.junit.Rule;
 import org.junit.Test;
@@ -170,6 +179,64 @@ public class JarBuilderTest {
     }
   }
 
+  @Test
+  public void testCompressingOnManyThreadsCreatesTheSameJar() throws IOException {
+    File serialJar = temporaryFolder.newFile();
+    File parallelJar = temporaryFolder.newFile();
+    for (File jar : new File[] {serialJar, parallelJar}) {
+      JarBuilder jarBuilder =
+          new JarBuilder()
+              .setShouldHashEntries(true)
+              .setCompressionThreads(jar == serialJar ? 1 : 4);
+      for (int i = 0; i < 500; i++) {
+        addEntry(jarBuilder, String.format("foo/bar%d/Entry%d.txt", i % 7, i), "Contents " + i);
+      }
+      addEntry(jarBuilder, "META-INF/services/com.example.Foo", "com.example.Bar");
+      jarBuilder.createJarFile(jar.toPath());
+    }
+
+    assertArrayEquals(
+        Files.readAllBytes(serialJar.toPath()), Files.readAllBytes(parallelJar.toPath()));
+  }
+
+  @Test
+  public void testCopiesDeflatedEntriesFromJarsWithoutRecompressing() throws IOException {
+    File sourceJar = temporaryFolder.newFile();
+    Random random = new Random(0);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(sourceJar))) {
+      // Deflate with a different level than the one of the output jar, so that re-deflating the
+      // entries would change their compressed sizes.
+      out.setLevel(Deflater.BEST_SPEED);
+      for (int i = 0; i < 100; i++) {
+        out.putNextEntry(new ZipEntry("com/example/Entry" + i + ".txt"));
+        for (int word = 0; word < 500; word++) {
+          out.write(("word" + random.nextInt(500) + " ").getBytes(StandardCharsets.UTF_8));
+        }
+        out.closeEntry();
+      }
+    }
+
+    for (int compressionThreads : new int[] {1, 4}) {
+      File tempFile = temporaryFolder.newFile();
+      new JarBuilder()
+          .setEntriesToJar(ImmutableList.of(sourceJar.toPath()))
+          .setCompressionThreads(compressionThreads)
+          .createJarFile(tempFile.toPath());
+
+      try (JarFile source = new JarFile(sourceJar);
+          JarFile jarFile = new JarFile(tempFile)) {
+        for (JarEntry sourceEntry : Collections.list(source.entries())) {
+          JarEntry entry = jarFile.getJarEntry(sourceEntry.getName());
+          assertEquals(sourceEntry.getCompressedSize(), entry.getCompressedSize());
+          assertEquals(sourceEntry.getCrc(), entry.getCrc());
+          assertArrayEquals(
+              ByteStreams.toByteArray(source.getInputStream(sourceEntry)),
+              ByteStreams.toByteArray(jarFile.getInputStream(entry)));
+        }
+      }
+    }
+  }
+
   private void addEntry(JarBuilder builder, String name, String contents) {
     builder.addEntry(
         new JarEntrySupplier(
@@ -16,8 +16,10 @@
 
 package com.facebook.buck.parser;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.config.FakeBuckConfig;
@@ -30,17 +32,26 @@ import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.parser.DaemonicCellState.Cache;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TemporaryPaths;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 
 public class DaemonicCellStateTest {
 
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
   private ProjectFilesystem filesystem;
   private Cell rootCell;
   private Cell childCell;
@@ -123,4 +134,120 @@ public class DaemonicCellStateTest {
         Optional.empty(),
         cache.lookupComputedNode(target));
   }
+
+  @Test
+  public void testSnapshotRoundTrip() throws BuildTargetException, IOException {
+    BuildTarget target =
+        BuildTargetFactory.newInstance(filesystem.getRootPath(), "//path/to:target");
+    Path buildFile = filesystem.resolve("path/to/BUCK");
+    Path include = filesystem.resolve("defs.bzl");
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        ImmutableSet.of(ImmutableMap.of("name", "target", "buck.base_path", "path/to")),
+        ImmutableSet.of(include),
+        ImmutableMap.of("A", Optional.of("a"), "B", Optional.empty()));
+
+    Path snapshot = tmp.getRoot().resolve("snapshot");
+    try (ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer(snapshot)) {
+      state.writeSnapshot(writer);
+      writer.commit();
+    }
+    assertTrue(ParserStateSnapshot.isSnapshot(snapshot));
+    DaemonicCellState restored =
+        DaemonicCellState.readSnapshot(ParserStateSnapshot.Reader.open(snapshot), rootCell, 1);
+
+    assertEquals(state.lookupRawNodes(buildFile), restored.lookupRawNodes(buildFile));
+
+    // Targets of restored raw nodes are invalidated once decoded.
+    Cache<Boolean> cache = restored.getOrCreateCache(Boolean.class);
+    cache.putComputedNodeIfNotPresent(target, true);
+    assertEquals(1, restored.invalidatePath(include));
+    assertEquals(Optional.empty(), cache.lookupComputedNode(target));
+    assertEquals(Optional.empty(), restored.lookupRawNodes(buildFile));
+  }
+
+  @Test
+  public void testSnapshotMappedInWindows() throws IOException {
+    ImmutableSet.Builder<Path> buildFiles = ImmutableSet.builder();
+    for (int i = 0; i < 10; i++) {
+      Path buildFile = filesystem.resolve("path/to" + i + "/BUCK");
+      state.putRawNodesIfNotPresentAndStripMetaEntries(
+          buildFile,
+          ImmutableSet.of(ImmutableMap.of("name", "target", "buck.base_path", "path/to" + i)),
+          ImmutableSet.of(),
+          ImmutableMap.of());
+      buildFiles.add(buildFile);
+    }
+
+    Path snapshot = tmp.getRoot().resolve("snapshot");
+    try (ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer(snapshot)) {
+      state.writeSnapshot(writer);
+      writer.commit();
+    }
+    // Windows which hold the data of a few build files each, and windows which are smaller than
+    // the data of a single one.
+    for (int windowSize : new int[] {256, 16}) {
+      DaemonicCellState restored =
+          DaemonicCellState.readSnapshot(
+              ParserStateSnapshot.Reader.open(snapshot, windowSize), rootCell, 1);
+      for (Path buildFile : buildFiles.build()) {
+        assertEquals(state.lookupRawNodes(buildFile), restored.lookupRawNodes(buildFile));
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidatingRestoredRawNodesBeforeDecodingThem() throws IOException {
+    Path buildFile = filesystem.resolve("path/to/BUCK");
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        ImmutableSet.of(ImmutableMap.of("name", "target", "buck.base_path", "path/to")),
+        ImmutableSet.of(),
+        ImmutableMap.of());
+
+    Path snapshot = tmp.getRoot().resolve("snapshot");
+    try (ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer(snapshot)) {
+      state.writeSnapshot(writer);
+      writer.commit();
+    }
+    DaemonicCellState restored =
+        DaemonicCellState.readSnapshot(ParserStateSnapshot.Reader.open(snapshot), rootCell, 1);
+
+    restored.invalidatePath(buildFile);
+    assertEquals(Optional.empty(), restored.lookupRawNodes(buildFile));
+  }
+
+  @Test
+  public void testFailedSnapshotLeavesPreviousSnapshotInPlace() throws IOException {
+    Path buildFile = filesystem.resolve("path/to/BUCK");
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        ImmutableSet.of(ImmutableMap.of("name", "target", "buck.base_path", "path/to")),
+        ImmutableSet.of(),
+        ImmutableMap.of());
+
+    Path snapshot = tmp.getRoot().resolve("snapshot");
+    try (ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer(snapshot)) {
+      state.writeSnapshot(writer);
+      writer.commit();
+    }
+    byte[] committed = Files.readAllBytes(snapshot);
+
+    try (ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer(snapshot)) {
+      writer.writeData(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+      // Closed without committing, as when writing the snapshot throws.
+    }
+    assertArrayEquals(committed, Files.readAllBytes(snapshot));
+    assertFalse(Files.exists(snapshot.resolveSibling("snapshot.tmp")));
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadingStringWithCorruptLengthFails() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeInt(Integer.MAX_VALUE);
+    output.write(new byte[] {'a', 'b'});
+    ParserStateSnapshot.readString(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.facebook.buck.core.model.targetgraph.FakeTargetNodeBuilder;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
+import com.facebook.buck.core.model.targetgraph.TargetGraphFactory;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.InstrumentingCacheStatsTracker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRuleKeyCacheTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path storePath;
+  private Map<Path, HashCode> hashes;
+  private RuleKeyInput depInput;
+  private RuleKeyInput ruleInput;
+  private BuildRule dep;
+  private BuildRule rule;
+  private TargetGraph targetGraph;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    storePath = tmp.getRoot().resolve("buck-out/.rule_keys");
+    depInput = RuleKeyInput.of(filesystem, Paths.get("dep.txt"));
+    ruleInput = RuleKeyInput.of(filesystem, Paths.get("rule.txt"));
+    hashes = new HashMap<>();
+    hashes.put(filesystem.resolve(depInput.getPath()), HashCode.fromString("aaaa"));
+    hashes.put(filesystem.resolve(ruleInput.getPath()), HashCode.fromString("bbbb"));
+    dep = new FakeBuildRule(BuildTargetFactory.newInstance("//:dep"), filesystem);
+    rule = new FakeBuildRule(BuildTargetFactory.newInstance("//:rule"), filesystem, dep);
+    TargetNode<?, ?> depNode = FakeTargetNodeBuilder.build(dep);
+    targetGraph =
+        TargetGraphFactory.newInstance(
+            depNode, FakeTargetNodeBuilder.newBuilder(rule).setDeps(depNode).build());
+  }
+
+  private PersistentRuleKeyCache newCache(TargetGraph graph) throws IOException {
+    PersistentRuleKeyCache cache =
+        new PersistentRuleKeyCache(
+            PersistentRuleKeyStore.open(storePath, "fingerprint"),
+            new FakeFileHashCache(hashes),
+            ImmutableSet.of(filesystem));
+    cache.setTargetGraph(Optional.of(graph));
+    return cache;
+  }
+
+  /** Computes rule keys for the test rules, counting the number of computations. */
+  private class Calculator implements Function<BuildRule, RuleKeyResult<RuleKey>> {
+
+    private final PersistentRuleKeyCache cache;
+    private final AtomicInteger computations = new AtomicInteger();
+
+    private Calculator(PersistentRuleKeyCache cache) {
+      this.cache = cache;
+    }
+
+    @Override
+    public RuleKeyResult<RuleKey> apply(BuildRule buildRule) {
+      computations.incrementAndGet();
+      if (buildRule == dep) {
+        return new RuleKeyResult<>(
+            new RuleKey(hashes.get(filesystem.resolve(depInput.getPath()))),
+            ImmutableList.of(),
+            ImmutableList.of(depInput));
+      }
+      RuleKey depKey = get(dep);
+      return new RuleKeyResult<>(
+          new RuleKey(depKey.toString() + hashes.get(filesystem.resolve(ruleInput.getPath()))),
+          ImmutableList.of(dep),
+          ImmutableList.of(ruleInput));
+    }
+
+    private RuleKey get(BuildRule buildRule) {
+      return cache.get(buildRule, this, new InstrumentingCacheStatsTracker());
+    }
+  }
+
+  private RuleKey buildAndPersist() throws IOException {
+    PersistentRuleKeyCache cache = newCache(targetGraph);
+    RuleKey ruleKey = new Calculator(cache).get(rule);
+    cache.flush();
+    return ruleKey;
+  }
+
+  @Test
+  public void persistedRuleKeysAreReusedByNewCache() throws IOException {
+    RuleKey ruleKey = buildAndPersist();
+
+    Calculator calculator = new Calculator(newCache(targetGraph));
+    assertEquals(ruleKey, calculator.get(rule));
+    assertEquals(0, calculator.computations.get());
+  }
+
+  @Test
+  public void changedInputInvalidatesPersistedRuleKey() throws IOException {
+    buildAndPersist();
+    hashes.put(filesystem.resolve(ruleInput.getPath()), HashCode.fromString("cccc"));
+
+    Calculator calculator = new Calculator(newCache(targetGraph));
+    assertEquals(new RuleKey("aaaacccc"), calculator.get(rule));
+    assertEquals(1, calculator.computations.get());
+  }
+
+  @Test
+  public void changedDependencyInvalidatesPersistedRuleKey() throws IOException {
+    buildAndPersist();
+    hashes.put(filesystem.resolve(depInput.getPath()), HashCode.fromString("cccc"));
+
+    Calculator calculator = new Calculator(newCache(targetGraph));
+    assertEquals(new RuleKey("ccccbbbb"), calculator.get(rule));
+    assertEquals(2, calculator.computations.get());
+  }
+
+  @Test
+  public void changedTargetGraphInvalidatesPersistedRuleKey() throws IOException {
+    buildAndPersist();
+    TargetGraph changedGraph =
+        TargetGraphFactory.newInstance(
+            FakeTargetNodeBuilder.build(dep), FakeTargetNodeBuilder.build(rule));
+
+    Calculator calculator = new Calculator(newCache(changedGraph));
+    calculator.get(rule);
+    assertEquals(1, calculator.computations.get());
+  }
+
+  @Test
+  public void reusedRuleKeysAreInvalidatedByTheirInputs() throws IOException {
+    buildAndPersist();
+
+    PersistentRuleKeyCache cache = newCache(targetGraph);
+    new Calculator(cache).get(rule);
+    cache.invalidateInputs(ImmutableList.of(depInput), new InstrumentingCacheStatsTracker());
+    assertNull(cache.get(dep, new InstrumentingCacheStatsTracker()));
+    assertNull(cache.get(rule, new InstrumentingCacheStatsTracker()));
+  }
+
+  @Test
+  public void ruleKeysWithInputsOutsideOfCellsAreNotPersisted() throws IOException {
+    ruleInput = RuleKeyInput.of(filesystem, tmp.getRoot().getParent().resolve("sdk/tool"));
+    hashes.put(filesystem.resolve(ruleInput.getPath()), HashCode.fromString("bbbb"));
+    RuleKey ruleKey = buildAndPersist();
+
+    Calculator calculator = new Calculator(newCache(targetGraph));
+    assertEquals(ruleKey, calculator.get(rule));
+    // Only the rule key of the dependency was persisted.
+    assertEquals(1, calculator.computations.get());
+  }
+
+  @Test
+  public void nothingIsPersistedWithoutTargetGraph() throws IOException {
+    PersistentRuleKeyCache cache = newCache(targetGraph);
+    cache.setTargetGraph(Optional.empty());
+    new Calculator(cache).get(rule);
+    cache.flush();
+
+    assertEquals(
+        ImmutableMap.of(),
+        ImmutableMap.copyOf(
+            PersistentRuleKeyStore.open(storePath, "fingerprint")
+                .get("//:rule")
+                .map(e -> ImmutableMap.of(e.target, e))
+                .orElse(ImmutableMap.of())));
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRuleKeyStoreTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static PersistentRuleKeyStore.Entry entry(String target, String key) {
+    return new PersistentRuleKeyStore.Entry(
+        target,
+        "fake_rule",
+        HashCode.fromString("abcd"),
+        new RuleKey(key),
+        ImmutableList.of(
+            new PersistentRuleKeyStore.InputHash(
+                Paths.get("/cell"), Paths.get("src/Foo.java"), HashCode.fromString("1234"))),
+        ImmutableMap.of("//:dep", new RuleKey("cafe")));
+  }
+
+  @Test
+  public void entriesSurviveReopening() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    store.put(entry("//:a", "aaaa"));
+    store.put(entry("//:b", "bbbb"));
+    store.flush();
+
+    PersistentRuleKeyStore reopened = PersistentRuleKeyStore.open(path, "fingerprint");
+    PersistentRuleKeyStore.Entry a = reopened.get("//:a").get();
+    assertEquals(new RuleKey("aaaa"), a.ruleKey);
+    assertEquals("fake_rule", a.ruleType);
+    assertEquals(HashCode.fromString("abcd"), a.nodeIdentity);
+    assertEquals(Paths.get("src/Foo.java"), a.inputs.get(0).path);
+    assertEquals(HashCode.fromString("1234"), a.inputs.get(0).hashCode);
+    assertEquals(ImmutableMap.of("//:dep", new RuleKey("cafe")), a.deps);
+    assertEquals(new RuleKey("bbbb"), reopened.get("//:b").get().ruleKey);
+    assertFalse(reopened.get("//:c").isPresent());
+  }
+
+  @Test
+  public void laterEntriesSupersedeEarlierOnes() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    store.put(entry("//:a", "aaaa"));
+    store.flush();
+    store.put(entry("//:a", "bbbb"));
+    store.flush();
+    assertEquals(new RuleKey("bbbb"), store.get("//:a").get().ruleKey);
+
+    PersistentRuleKeyStore reopened = PersistentRuleKeyStore.open(path, "fingerprint");
+    assertEquals(new RuleKey("bbbb"), reopened.get("//:a").get().ruleKey);
+    assertEquals(1, reopened.getMappedSize());
+  }
+
+  @Test
+  public void fingerprintMismatchDiscardsEntries() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    store.put(entry("//:a", "aaaa"));
+    store.flush();
+
+    PersistentRuleKeyStore reopened = PersistentRuleKeyStore.open(path, "other");
+    assertFalse(reopened.get("//:a").isPresent());
+  }
+
+  @Test
+  public void truncatedTrailingRecordIsDropped() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    store.put(entry("//:a", "aaaa"));
+    store.flush();
+    long size = Files.size(path);
+    store.put(entry("//:b", "bbbb"));
+    store.flush();
+    byte[] bytes = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(bytes, bytes.length - 3));
+
+    PersistentRuleKeyStore reopened = PersistentRuleKeyStore.open(path, "fingerprint");
+    assertTrue(reopened.get("//:a").isPresent());
+    assertFalse(reopened.get("//:b").isPresent());
+    assertEquals(size, Files.size(path));
+
+    // New records are appended after the last complete record.
+    reopened.put(entry("//:c", "cccc"));
+    reopened.flush();
+    assertTrue(PersistentRuleKeyStore.open(path, "fingerprint").get("//:c").isPresent());
+  }
+
+  @Test
+  public void corruptStoreIsDiscarded() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    Files.write(path, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9}, StandardOpenOption.CREATE);
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    assertFalse(store.get("//:a").isPresent());
+    store.put(entry("//:a", "aaaa"));
+    store.flush();
+    assertTrue(PersistentRuleKeyStore.open(path, "fingerprint").get("//:a").isPresent());
+  }
+
+  @Test
+  public void corruptLengthDiscardsStore() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    store.put(entry("//:a", "aaaa"));
+    store.flush();
+
+    // Overwrite the length of the target of the first record, which follows the header (magic,
+    // version and fingerprint) and the length of the record.
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(
+          (ByteBuffer) ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).flip(),
+          4 + 4 + 4 + "fingerprint".length() + 4);
+    }
+
+    PersistentRuleKeyStore reopened = PersistentRuleKeyStore.open(path, "fingerprint");
+    assertFalse(reopened.get("//:a").isPresent());
+  }
+
+  @Test
+  public void flushedEntriesAreReadFromTheLog() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    store.put(entry("//:a", "aaaa"));
+    assertEquals(0, store.getMappedSize());
+    store.flush();
+    assertEquals(1, store.getMappedSize());
+    assertEquals(new RuleKey("aaaa"), store.get("//:a").get().ruleKey);
+
+    store.put(entry("//:b", "bbbb"));
+    store.flush();
+    assertEquals(2, store.getMappedSize());
+    assertEquals(new RuleKey("aaaa"), store.get("//:a").get().ruleKey);
+    assertEquals(new RuleKey("bbbb"), store.get("//:b").get().ruleKey);
+  }
+
+  @Test
+  public void recordsAreMappedInSegments() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    // Small enough for every segment to hold just a few records.
+    int maxSegmentSize = 256;
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint", maxSegmentSize);
+    for (int i = 0; i < 20; i++) {
+      store.put(entry("//:" + i, String.format("%04x", i)));
+    }
+    store.flush();
+    store.put(entry("//:last", "ffff"));
+    store.flush();
+    assertTrue(store.getSegmentCount() > 2);
+
+    PersistentRuleKeyStore reopened =
+        PersistentRuleKeyStore.open(path, "fingerprint", maxSegmentSize);
+    assertTrue(reopened.getSegmentCount() > 2);
+    for (int i = 0; i < 20; i++) {
+      RuleKey ruleKey = new RuleKey(String.format("%04x", i));
+      assertEquals(ruleKey, store.get("//:" + i).get().ruleKey);
+      assertEquals(ruleKey, reopened.get("//:" + i).get().ruleKey);
+    }
+    assertEquals(new RuleKey("ffff"), reopened.get("//:last").get().ruleKey);
+  }
+
+  @Test
+  public void staleRecordsAreCompactedAwayOnFlush() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    store.put(entry("//:a", "aaaa"));
+    store.flush();
+    long size = Files.size(path);
+
+    for (int i = 0; i < 2048; i++) {
+      store.put(entry("//:a", String.format("%04x", i)));
+      store.flush();
+    }
+    // Without compaction, the log would hold all 2049 records.
+    assertTrue(Files.size(path) < 100 * size);
+    assertEquals(new RuleKey("07ff"), store.get("//:a").get().ruleKey);
+    assertEquals(
+        new RuleKey("07ff"),
+        PersistentRuleKeyStore.open(path, "fingerprint").get("//:a").get().ruleKey);
+  }
+
+  @Test
+  public void entriesAreKeptWhenFlushFails() throws IOException {
+    Path path = tmp.getRoot().resolve("store");
+    PersistentRuleKeyStore store = PersistentRuleKeyStore.open(path, "fingerprint");
+    store.put(entry("//:a", "aaaa"));
+    store.flush();
+    byte[] bytes = Files.readAllBytes(path);
+
+    // Make the log impossible to append to.
+    Files.delete(path);
+    Files.createDirectory(path);
+    store.put(entry("//:b", "bbbb"));
+    try {
+      store.flush();
+      fail("flush should fail");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertEquals(new RuleKey("bbbb"), store.get("//:b").get().ruleKey);
+
+    Files.delete(path);
+    Files.write(path, bytes);
+    store.flush();
+    PersistentRuleKeyStore reopened = PersistentRuleKeyStore.open(path, "fingerprint");
+    assertEquals(new RuleKey("aaaa"), reopened.get("//:a").get().ruleKey);
+    assertEquals(new RuleKey("bbbb"), reopened.get("//:b").get().ruleKey);
+  }
+}
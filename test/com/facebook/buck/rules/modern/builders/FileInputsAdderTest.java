@@ -18,6 +18,7 @@ package com.facebook.buck.rules.modern.builders;
 
 import static org.junit.Assert.assertEquals;
 
+import com.facebook.buck.rules.modern.builders.FileTreeBuilder.InputFile;
 import com.facebook.buck.rules.modern.builders.FileTreeBuilder.TreeBuilder;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.facebook.buck.testutil.TemporaryPaths;
@@ -44,6 +45,7 @@ public class FileInputsAdderTest {
   @Rule public TemporaryPaths tmp = new TemporaryPaths();
 
   private final Map<Path, HashCode> fileHashes = new HashMap<>();
+  private final Map<Path, InputFile> unmaterializedFiles = new HashMap<>();
   private final FileTreeBuilder builder = new FileTreeBuilder();
   private FileInputsAdder adder;
 
@@ -102,7 +104,8 @@ public class FileInputsAdderTest {
                 return listing.collect(Collectors.toList());
               }
             },
-            link -> Files.isSymbolicLink(link) ? Files.readSymbolicLink(link) : null);
+            link -> Files.isSymbolicLink(link) ? Files.readSymbolicLink(link) : null,
+            unmaterializedFiles::get);
   }
 
   @Test
@@ -220,6 +223,35 @@ public class FileInputsAdderTest {
         .assertSame(result);
   }
 
+  @Test
+  public void testAddUnmaterializedOutput() throws IOException {
+    Path file1 = tmp.getRoot().resolve("out/file1");
+    Path file2 = tmp.newFile("file2");
+    Files.createSymbolicLink(tmp.getRoot().resolve("stale"), file2);
+    unmaterializedFiles.put(file1, newInputFile(1));
+    unmaterializedFiles.put(tmp.getRoot().resolve("stale"), newInputFile(2));
+
+    adder.addInput(file1);
+    adder.addInput(tmp.getRoot().resolve("stale"));
+
+    Directory result = getTree();
+
+    new Directory()
+        .addChild("out", new Directory().addFile("file1", 1))
+        .addFile("stale", 2)
+        .assertSame(result);
+  }
+
+  private static InputFile newInputFile(int hash) {
+    return new InputFile(
+        HashCode.fromInt(hash).toString(),
+        0,
+        false,
+        () -> {
+          throw new UnsupportedOperationException();
+        });
+  }
+
   private Directory getTree() {
     return builder.buildTree(getTreeBuilder(new Directory()));
   }
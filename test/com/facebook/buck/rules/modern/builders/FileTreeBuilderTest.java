@@ -19,6 +19,7 @@ package com.facebook.buck.rules.modern.builders;
 import static org.junit.Assert.*;
 
 import com.facebook.buck.rules.modern.builders.FileTreeBuilder.InputFile;
+import com.facebook.buck.rules.modern.builders.FileTreeBuilder.ProtocolTreeBuilder;
 import com.facebook.buck.rules.modern.builders.FileTreeBuilder.TreeBuilder;
 import com.facebook.buck.testutil.TemporaryPaths;
 import com.facebook.buck.util.function.ThrowingSupplier;
@@ -34,6 +35,7 @@ import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
@@ -113,6 +115,48 @@ public class FileTreeBuilderTest {
         toDebugMap(digestBuilder));
   }
 
+  @Test
+  public void testDirectoryDigestCacheSharesDirectoriesAcrossTrees() throws IOException {
+    Protocol protocol = new ThriftProtocol();
+    DirectoryDigestCache cache = new DirectoryDigestCache();
+
+    FileTreeBuilder first = new FileTreeBuilder();
+    first.addFile(Paths.get("shared/lib/a.jar"), () -> newFileNode("a", false));
+    first.addFile(Paths.get("shared/lib/b.jar"), () -> newFileNode("b", false));
+    first.addFile(Paths.get("first.txt"), () -> newFileNode("first", false));
+    Map<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> firstData = new HashMap<>();
+    Protocol.Digest firstDigest =
+        first.buildTree(new ProtocolTreeBuilder(firstData::put, dir -> {}, protocol, cache));
+
+    Map<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> uncachedData =
+        new HashMap<>();
+    assertEquals(
+        first.buildTree(new ProtocolTreeBuilder(uncachedData::put, dir -> {}, protocol)),
+        firstDigest);
+    assertEquals(uncachedData.keySet(), firstData.keySet());
+    cache.markPresent(firstData.keySet());
+
+    FileTreeBuilder second = new FileTreeBuilder();
+    second.addFile(Paths.get("shared/lib/a.jar"), () -> newFileNode("a", false));
+    second.addFile(Paths.get("shared/lib/b.jar"), () -> newFileNode("b", false));
+    second.addFile(Paths.get("second.txt"), () -> newFileNode("second", false));
+    Map<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> secondData =
+        new HashMap<>();
+    Protocol.Digest secondDigest =
+        second.buildTree(new ProtocolTreeBuilder(secondData::put, dir -> {}, protocol, cache));
+
+    assertEquals(
+        second.buildTree(new ProtocolTreeBuilder((digest, data) -> {}, dir -> {}, protocol)),
+        secondDigest);
+    // Only the new file and the root directory are missing, the shared directory is known to be
+    // in the CAS along with everything under it.
+    assertEquals(2, secondData.size());
+    assertTrue(secondData.containsKey(secondDigest));
+    assertTrue(
+        secondData.containsKey(
+            protocol.newDigest(newFileNode("second", false).hash, "second".length())));
+  }
+
   private InputFile newFileNode(String content, boolean isExecutable) {
     byte[] bytes = content.getBytes(Charsets.UTF_8);
     return new InputFile(
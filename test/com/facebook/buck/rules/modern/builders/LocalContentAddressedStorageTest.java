@@ -24,17 +24,22 @@ import com.facebook.buck.rules.modern.builders.Protocol.Digest;
 import com.facebook.buck.testutil.TemporaryPaths;
 import com.facebook.buck.util.function.ThrowingSupplier;
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -109,6 +114,87 @@ public class LocalContentAddressedStorageTest {
     assertDataEquals(otherData, Files.readAllBytes(inputsDir.resolve(otherPath)));
   }
 
+  @Test
+  public void evictsLeastRecentlyUsedData() throws IOException {
+    storage = new LocalContentAddressedStorage(storageDir, protocol, Optional.of(20L));
+    Digest first = addData("first data");
+    Digest second = addData("secnd data");
+    getBytes(first);
+    Digest third = addData("third data");
+
+    assertEquals(20, storage.getSizeBytes());
+    assertEquals(
+        ImmutableList.of(second),
+        storage.findMissing(ImmutableList.of(first, second, third)).collect(Collectors.toList()));
+    assertDataEquals("first data".getBytes(Charsets.UTF_8), getBytes(first));
+
+    // Evicted data can be added again.
+    addData("secnd data");
+    assertEquals(
+        ImmutableList.of(third),
+        storage.findMissing(ImmutableList.of(first, second, third)).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void evictedInputsCanBeAddedAgain() throws IOException {
+    storage = new LocalContentAddressedStorage(storageDir, protocol, Optional.of(1000L));
+    FileTreeBuilder inputsBuilder = new FileTreeBuilder();
+    Path somePath = Paths.get("some.path");
+    byte[] someData = "hello world!".getBytes(Charsets.UTF_8);
+    inputsBuilder.addFile(somePath, () -> newFileNode(someData, false));
+    ImmutableMap.Builder<Digest, ThrowingSupplier<InputStream, IOException>> requiredData =
+        ImmutableMap.builder();
+    Digest rootDigest =
+        inputsBuilder.buildTree(new ProtocolTreeBuilder(requiredData::put, dir -> {}, protocol));
+    storage.addMissing(requiredData.build());
+
+    // Storing more data evicts the inputs, which were used less recently.
+    addData(Strings.repeat("0123456789", 100));
+    Path inputsDir = tmp.getRoot().resolve("inputs");
+    try {
+      storage.materializeInputs(inputsDir, rootDigest, Optional.empty());
+      fail("Expected the evicted inputs to be missing.");
+    } catch (MissingInputsException e) {
+      // Expected.
+    }
+
+    storage.recheckAndAddMissing(requiredData.build());
+    storage.materializeInputs(inputsDir, rootDigest, Optional.empty());
+    assertDataEquals(someData, Files.readAllBytes(inputsDir.resolve(somePath)));
+  }
+
+  @Test
+  public void indexesExistingData() throws IOException {
+    addData("first data");
+    addData("secnd data");
+
+    storage = new LocalContentAddressedStorage(storageDir, protocol, Optional.of(20L));
+    assertEquals(20, storage.getSizeBytes());
+  }
+
+  @Test
+  public void largeDataIsReadCorrectly() throws IOException {
+    byte[] data = Strings.repeat("0123456789", 100 * 1024).getBytes(Charsets.UTF_8);
+    Digest digest = protocol.newDigest(hasher.hashBytes(data).toString(), data.length);
+    storage.addMissing(ImmutableMap.of(digest, () -> new ByteArrayInputStream(data)));
+
+    ByteBuffer buffer = storage.readData(digest);
+    byte[] read = new byte[buffer.remaining()];
+    buffer.get(read);
+    assertArrayEquals(data, read);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    storage.transferData(digest, output);
+    assertArrayEquals(data, output.toByteArray());
+  }
+
+  private Digest addData(String content) throws IOException {
+    byte[] data = content.getBytes(Charsets.UTF_8);
+    Digest digest = protocol.newDigest(hasher.hashBytes(data).toString(), data.length);
+    storage.addMissing(ImmutableMap.of(digest, () -> new ByteArrayInputStream(data)));
+    return digest;
+  }
+
   private InputFile newFileNode(byte[] bytes, boolean isExecutable) {
     return new InputFile(
         hasher.hashBytes(bytes).toString(),
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.modern.builders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class OutputsMaterializerTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private final Protocol protocol = new ThriftProtocol();
+  private final Map<String, byte[]> blobs = new HashMap<>();
+  private final Multiset<String> fetches = HashMultiset.create();
+  private OutputsMaterializer materializer;
+
+  @Before
+  public void setUp() {
+    materializer =
+        new OutputsMaterializer(
+            new AsyncBlobFetcher() {
+              @Override
+              public ListenableFuture<ByteBuffer> fetch(Protocol.Digest digest) {
+                fetches.add(digest.getHash());
+                return Futures.immediateFuture(ByteBuffer.wrap(blobs.get(digest.getHash())));
+              }
+
+              @Override
+              public void fetchToStream(Protocol.Digest digest, OutputStream outputStream) {
+                throw new UnsupportedOperationException();
+              }
+            },
+            protocol);
+  }
+
+  @Test
+  public void onlyFetchesMissingContents() throws IOException {
+    Protocol.Digest unchanged = addBlob("unchanged");
+    Protocol.Digest changed = addBlob("changed");
+    Path root = tmp.getRoot();
+    Files.write(root.resolve("unchanged"), "unchanged".getBytes(Charsets.UTF_8));
+    Files.write(root.resolve("changed"), "previous contents".getBytes(Charsets.UTF_8));
+
+    materializer.materialize(
+        ImmutableList.of(),
+        ImmutableList.of(
+            newOutputFile("unchanged", unchanged),
+            newOutputFile("changed", changed),
+            newOutputFile("copy", changed)),
+        root);
+
+    assertEquals("unchanged", read(root.resolve("unchanged")));
+    assertEquals("changed", read(root.resolve("changed")));
+    assertEquals("changed", read(root.resolve("copy")));
+    assertEquals(ImmutableMultiset.of(changed.getHash()), fetches);
+  }
+
+  @Test
+  public void replacesStaleDirectoryContents() throws IOException {
+    Protocol.Digest kept = addBlob("kept");
+    Protocol.Digest added = addBlob("added");
+    Protocol.Directory subdir =
+        protocol.newDirectory(
+            ImmutableList.of(),
+            ImmutableList.of(protocol.newFileNode(added, "added", false)),
+            ImmutableList.of());
+    Protocol.Directory outputDir =
+        protocol.newDirectory(
+            ImmutableList.of(protocol.newDirectoryNode("sub", protocol.computeDigest(subdir))),
+            ImmutableList.of(protocol.newFileNode(kept, "kept", false)),
+            ImmutableList.of());
+    byte[] treeData = protocol.toByteArray(protocol.newTree(outputDir, ImmutableList.of(subdir)));
+    Protocol.Digest treeDigest = protocol.computeDigest(treeData);
+    blobs.put(treeDigest.getHash(), treeData);
+
+    Path dir = tmp.newFolder("out");
+    Files.write(dir.resolve("kept"), "kept".getBytes(Charsets.UTF_8));
+    Files.write(dir.resolve("stale"), "stale".getBytes(Charsets.UTF_8));
+    Files.createDirectories(dir.resolve("stale_dir"));
+    Files.write(dir.resolve("sub"), "not a directory".getBytes(Charsets.UTF_8));
+
+    materializer.materialize(
+        ImmutableList.of(
+            protocol.newOutputDirectory(
+                Paths.get("out"), protocol.computeDigest(outputDir), treeDigest)),
+        ImmutableList.of(),
+        tmp.getRoot());
+
+    assertEquals("kept", read(dir.resolve("kept")));
+    assertEquals("added", read(dir.resolve("sub/added")));
+    assertFalse(Files.exists(dir.resolve("stale")));
+    assertFalse(Files.exists(dir.resolve("stale_dir")));
+    assertEquals(ImmutableMultiset.of(treeDigest.getHash(), added.getHash()), fetches);
+  }
+
+  private Protocol.Digest addBlob(String content) {
+    byte[] data = content.getBytes(Charsets.UTF_8);
+    Protocol.Digest digest = protocol.computeDigest(data);
+    blobs.put(digest.getHash(), data);
+    return digest;
+  }
+
+  private Protocol.OutputFile newOutputFile(String path, Protocol.Digest digest)
+      throws IOException {
+    return protocol.newOutputFile(
+        Paths.get(path),
+        digest,
+        false,
+        () -> {
+          throw new UnsupportedOperationException();
+        });
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.modern.builders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.modern.builders.FileTreeBuilder.InputFile;
+import com.facebook.buck.rules.modern.builders.Protocol.OutputDirectory;
+import com.facebook.buck.rules.modern.builders.Protocol.OutputFile;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.function.ThrowingSupplier;
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class UnmaterializedOutputsTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private final Protocol protocol = new ThriftProtocol();
+  private final Map<String, byte[]> blobs = new HashMap<>();
+  private final Multiset<String> fetches = HashMultiset.create();
+  private final BuildTarget target = BuildTargetFactory.newInstance("//foo:bar");
+  private final UnmaterializedOutputs outputs = new UnmaterializedOutputs();
+  private ContentAddressedStorage storage;
+
+  @Before
+  public void setUp() {
+    AsyncBlobFetcher fetcher =
+        new AsyncBlobFetcher() {
+          @Override
+          public ListenableFuture<ByteBuffer> fetch(Protocol.Digest digest) {
+            fetches.add(digest.getHash());
+            return Futures.immediateFuture(ByteBuffer.wrap(blobs.get(digest.getHash())));
+          }
+
+          @Override
+          public void fetchToStream(Protocol.Digest digest, OutputStream outputStream) {
+            throw new UnsupportedOperationException();
+          }
+        };
+    OutputsMaterializer materializer = new OutputsMaterializer(fetcher, protocol);
+    storage =
+        new ContentAddressedStorage() {
+          @Override
+          public void addMissing(
+              ImmutableMap<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> data) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public void recheckAndAddMissing(
+              ImmutableMap<Protocol.Digest, ThrowingSupplier<InputStream, IOException>> data) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public ListenableFuture<ByteBuffer> fetch(Protocol.Digest digest) {
+            return fetcher.fetch(digest);
+          }
+
+          @Override
+          public void materializeOutputs(
+              List<OutputDirectory> outputDirectories, List<OutputFile> outputFiles, Path root)
+              throws IOException {
+            materializer.materialize(outputDirectories, outputFiles, root);
+          }
+        };
+  }
+
+  @Test
+  public void onlyMaterializesOutputsOnDemand() throws IOException {
+    Protocol.Digest jar = addBlob("jar");
+    Protocol.Digest nested = addBlob("nested");
+    Protocol.Directory outputDir =
+        protocol.newDirectory(
+            ImmutableList.of(),
+            ImmutableList.of(protocol.newFileNode(nested, "nested", false)),
+            ImmutableList.of());
+    byte[] treeData = protocol.toByteArray(protocol.newTree(outputDir, ImmutableList.of()));
+    Protocol.Digest treeDigest = protocol.computeDigest(treeData);
+    blobs.put(treeDigest.getHash(), treeData);
+    Path root = tmp.getRoot();
+    Files.createDirectories(root.resolve("gen/dir"));
+    Files.write(root.resolve("gen/dir/stale"), "stale".getBytes(Charsets.UTF_8));
+
+    outputs.add(
+        target,
+        storage,
+        protocol,
+        ImmutableList.of(
+            protocol.newOutputDirectory(
+                Paths.get("gen/dir"), protocol.computeDigest(outputDir), treeDigest)),
+        ImmutableList.of(
+            newOutputFile("gen/out.jar", jar, null),
+            newOutputFile("gen/small", addBlob("small"), "small")),
+        root);
+
+    assertTrue(outputs.isPending(target));
+    assertFalse(Files.exists(root.resolve("gen/out.jar")));
+    assertFalse(Files.exists(root.resolve("gen/dir")));
+    assertEquals("small", read(root.resolve("gen/small")));
+    assertEquals(ImmutableMultiset.of(treeDigest.getHash()), fetches);
+    assertEquals(
+        ImmutableSet.of(root.resolve("gen/out.jar"), root.resolve("gen/dir")),
+        outputs.getDirectoryEntries(root.resolve("gen")));
+    assertEquals(
+        ImmutableSet.of(root.resolve("gen/dir/nested")),
+        outputs.getDirectoryEntries(root.resolve("gen/dir")));
+    assertNull(outputs.getInputFile(root.resolve("gen/small")));
+
+    InputFile input = outputs.getInputFile(root.resolve("gen/dir/nested"));
+    assertEquals(nested.getHash(), input.hash);
+    assertEquals(nested.getSize(), input.size);
+
+    outputs.materialize(target);
+
+    assertFalse(outputs.isPending(target));
+    assertEquals("jar", read(root.resolve("gen/out.jar")));
+    assertEquals("nested", read(root.resolve("gen/dir/nested")));
+    assertFalse(Files.exists(root.resolve("gen/dir/stale")));
+
+    // Materializing again doesn't fetch anything.
+    fetches.clear();
+    outputs.materialize(target);
+    assertEquals(ImmutableMultiset.of(), fetches);
+  }
+
+  @Test
+  public void inputFilesFetchTheirDataFromTheCas() throws IOException {
+    Protocol.Digest jar = addBlob("jar");
+    outputs.add(
+        target,
+        storage,
+        protocol,
+        ImmutableList.of(),
+        ImmutableList.of(newOutputFile("out.jar", jar, null)),
+        tmp.getRoot());
+
+    InputFile input = outputs.getInputFile(tmp.getRoot().resolve("out.jar"));
+    try (InputStream stream = input.dataSupplier.get()) {
+      assertEquals("jar", new String(ByteStreams.toByteArray(stream), Charsets.UTF_8));
+    }
+    assertFalse(Files.exists(tmp.getRoot().resolve("out.jar")));
+  }
+
+  private Protocol.Digest addBlob(String content) {
+    byte[] data = content.getBytes(Charsets.UTF_8);
+    Protocol.Digest digest = protocol.computeDigest(data);
+    blobs.put(digest.getHash(), data);
+    return digest;
+  }
+
+  private static OutputFile newOutputFile(
+      String path, Protocol.Digest digest, @Nullable String inlinedContent) {
+    return new OutputFile() {
+      @Override
+      public String getPath() {
+        return path;
+      }
+
+      @Override
+      public Protocol.Digest getDigest() {
+        return digest;
+      }
+
+      @Nullable
+      @Override
+      public ByteBuffer getContent() {
+        return inlinedContent == null
+            ? null
+            : ByteBuffer.wrap(inlinedContent.getBytes(Charsets.UTF_8));
+      }
+
+      @Override
+      public boolean getIsExecutable() {
+        return false;
+      }
+    };
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), Charsets.UTF_8);
+  }
+}
@@ -22,6 +22,7 @@ import com.facebook.buck.distributed.thrift.FrontendResponse;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 import okhttp3.Request;
 import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
@@ -116,6 +117,11 @@ public class ThriftOverHttpServiceTest {
             return "super url";
           }
 
+          @Override
+          public Optional<String> header(String name) {
+            return Optional.empty();
+          }
+
           @Override
           public void close() {
             // do nothing.
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.util.concurrent.MostExecutors;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.SeekableInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZInputStream;
+
+public class ParallelXzOutputStreamTest {
+
+  private static final int BLOCK_SIZE = 10000;
+
+  @Test
+  public void compressedStreamHasOneBlockPerBlockSize() throws IOException {
+    byte[] data = getData(BLOCK_SIZE * 5 + 123);
+    byte[] compressed = compress(data, 4);
+
+    assertArrayEquals(
+        data, ByteStreams.toByteArray(new XZInputStream(new ByteArrayInputStream(compressed))));
+    try (SeekableXZInputStream in =
+        new SeekableXZInputStream(new SeekableByteArrayInputStream(compressed))) {
+      assertEquals(1, in.getStreamCount());
+      assertEquals(6, in.getBlockCount());
+      assertEquals(1 << XZ.CHECK_CRC32, in.getCheckTypes());
+    }
+  }
+
+  @Test
+  public void outputDoesNotDependOnTheNumberOfThreads() throws IOException {
+    byte[] data = getData(BLOCK_SIZE * 8);
+    assertArrayEquals(compress(data, 1), compress(data, 4));
+  }
+
+  @Test
+  public void emptyInputIsAValidStream() throws IOException {
+    byte[] compressed = compress(new byte[0], 2);
+    assertEquals(
+        0, ByteStreams.toByteArray(new XZInputStream(new ByteArrayInputStream(compressed))).length);
+  }
+
+  private static byte[] getData(int length) {
+    Random random = new Random(0);
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return data;
+  }
+
+  private static byte[] compress(byte[] data, int threads) throws IOException {
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(MostExecutors.newMultiThreadExecutor("xz", threads));
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (ParallelXzOutputStream out =
+        new ParallelXzOutputStream(
+            compressed, new LZMA2Options(0), XZ.CHECK_CRC32, BLOCK_SIZE, executor, threads)) {
+      // Write in chunks that do not line up with the blocks.
+      for (int offset = 0; offset < data.length; offset += 777) {
+        out.write(data, offset, Math.min(777, data.length - offset));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return compressed.toByteArray();
+  }
+
+  private static class SeekableByteArrayInputStream extends SeekableInputStream {
+    private final byte[] bytes;
+    private int position = 0;
+
+    private SeekableByteArrayInputStream(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int read() {
+      return position < bytes.length ? bytes[position++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (position >= bytes.length) {
+        return -1;
+      }
+      int read = Math.min(len, bytes.length - position);
+      System.arraycopy(bytes, position, b, off, read);
+      position += read;
+      return read;
+    }
+
+    @Override
+    public long length() {
+      return bytes.length;
+    }
+
+    @Override
+    public long position() {
+      return position;
+    }
+
+    @Override
+    public void seek(long pos) {
+      position = (int) pos;
+    }
+  }
+}
@@ -30,13 +30,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.Random;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
 import org.tukaani.xz.XZ;
 import org.tukaani.xz.XZInputStream;
 
@@ -66,7 +70,8 @@ public class XzStepTest {
             destinationFile.toPath(),
             /* compressionLevel -- for faster testing */ 1,
             /* keep */ true,
-            XZ.CHECK_CRC32);
+            XZ.CHECK_CRC32,
+            /* multiThreaded */ false);
 
     ExecutionContext context = TestExecutionContext.newInstance();
 
@@ -101,7 +106,8 @@ public class XzStepTest {
             destinationFile.toPath(),
             /* compressionLevel -- for faster testing */ 1,
             /* keep */ false,
-            XZ.CHECK_CRC32);
+            XZ.CHECK_CRC32,
+            /* multiThreaded */ false);
 
     ExecutionContext context = TestExecutionContext.newInstance();
 
@@ -120,4 +126,53 @@ public class XzStepTest {
     assertTrue(
         "Decompressed file must be identical to original.", original.contentEquals(decompressed));
   }
+
+  @Test
+  public void testXzStepMultiThreaded() throws InterruptedException, IOException {
+    Path sourceFile = tmp.newFile("xzstep.data").toPath();
+    File destinationFile = tmp.newFile("xzstep.data.xz");
+
+    XzStep step =
+        new XzStep(
+            TestProjectFilesystems.createProjectFilesystem(tmp.getRoot().toPath()),
+            sourceFile,
+            destinationFile.toPath(),
+            /* compressionLevel -- for faster testing */ 0,
+            /* keep */ true,
+            XZ.CHECK_CRC32,
+            /* multiThreaded */ true);
+
+    // Write a little more than three blocks of compressible data.
+    Random random = new Random(0);
+    byte[] line = new byte[64];
+    try (OutputStream out = Files.newOutputStream(sourceFile)) {
+      for (int written = 0; written < step.getBlockSize() * 3 + 1000; written += line.length) {
+        for (int i = 0; i < line.length; i++) {
+          line[i] = (byte) ('a' + random.nextInt(4));
+        }
+        out.write(line);
+      }
+    }
+
+    ExecutionContext context = TestExecutionContext.newInstance();
+
+    assertEquals(0, step.execute(context).getExitCode());
+
+    ByteSource original = PathByteSource.asByteSource(sourceFile);
+    ByteSource decompressed =
+        new ByteSource() {
+          @Override
+          public InputStream openStream() throws IOException {
+            return new XZInputStream(new FileInputStream(destinationFile));
+          }
+        };
+
+    assertTrue(
+        "Decompressed file must be identical to original.", original.contentEquals(decompressed));
+    try (SeekableXZInputStream in =
+        new SeekableXZInputStream(new SeekableFileInputStream(destinationFile))) {
+      assertEquals(1, in.getStreamCount());
+      assertEquals(4, in.getBlockCount());
+    }
+  }
 }
@@ -16,6 +16,9 @@
 
 package com.facebook.buck.util.cache.impl;
 
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
 import com.facebook.buck.io.WatchmanPathEvent;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.cache.FileHashCacheMode;
@@ -27,7 +30,10 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,6 +42,9 @@ public class CacheBenchmark {
   @Param({"10000", "100000", "250000"})
   private int leavesCount = 100;
 
+  @Param({"PREFIX_TREE", "LOADING_CACHE", "COMPACT"})
+  private FileHashCacheMode mode = FileHashCacheMode.DEFAULT;
+
   private static final Random random = new Random(123);
   private List<String> folders = Lists.newArrayList("");
   private List<String> leaves = Lists.newArrayList();
@@ -45,7 +54,6 @@ public class CacheBenchmark {
   @Before
   public void setUpTest() throws Exception {
     setUpBenchmark();
-    cache = new WatchedFileHashCache(new FakeProjectFilesystem(), FileHashCacheMode.DEFAULT);
   }
 
   private static String generateRandomString() {
@@ -59,6 +67,7 @@ public class CacheBenchmark {
 
   @BeforeExperiment
   public void setUpBenchmark() {
+    cache = new WatchedFileHashCache(new FakeProjectFilesystem(), mode);
     while (leaves.size() < leavesCount) {
       String path = folders.get(random.nextInt(folders.size()));
       // create a folder? 25% chance of doing so.
@@ -113,4 +122,59 @@ public class CacheBenchmark {
                 WatchmanPathEvent.of(
                     Paths.get(leaf), WatchmanPathEvent.Kind.CREATE, Paths.get(leaf))));
   }
+
+  @Test
+  public void lookupMultipleEntries() throws Exception {
+    addEntries();
+    lookupEntries();
+  }
+
+  @Benchmark
+  public void lookupEntries() throws Exception {
+    for (String leaf : leaves) {
+      cache.get(Paths.get(leaf));
+    }
+  }
+
+  /**
+   * Measures the heap each engine retains after being populated with the same paths. The limited
+   * engines are left out, as they stat every path they store. The compact engine keeps its hashes
+   * in direct memory, which isn't counted, as keeping them off the heap is the point of it.
+   */
+  @Test
+  public void retainedHeapPerEngine() throws Exception {
+    leavesCount = 100000;
+    setUpBenchmark();
+    Map<FileHashCacheMode, Long> retainedHeap = new EnumMap<>(FileHashCacheMode.class);
+    for (FileHashCacheMode engine :
+        EnumSet.of(
+            FileHashCacheMode.LOADING_CACHE,
+            FileHashCacheMode.PREFIX_TREE,
+            FileHashCacheMode.COMPACT)) {
+      cache = null;
+      long heapBefore = usedHeap();
+      cache = new WatchedFileHashCache(new FakeProjectFilesystem(), engine);
+      addEntries();
+      retainedHeap.put(engine, (usedHeap() - heapBefore) / leaves.size());
+    }
+
+    String message = "Bytes retained per path: " + retainedHeap;
+    assertThat(
+        message,
+        retainedHeap.get(FileHashCacheMode.COMPACT),
+        lessThan(retainedHeap.get(FileHashCacheMode.LOADING_CACHE)));
+    assertThat(
+        message,
+        retainedHeap.get(FileHashCacheMode.COMPACT),
+        lessThan(retainedHeap.get(FileHashCacheMode.PREFIX_TREE)));
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
 }
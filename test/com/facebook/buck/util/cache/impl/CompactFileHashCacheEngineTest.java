@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactFileHashCacheEngineTest {
+
+  private AtomicInteger loads;
+  private CompactFileHashCacheEngine engine;
+
+  @Before
+  public void setUp() {
+    loads = new AtomicInteger();
+    engine =
+        new CompactFileHashCacheEngine(
+            path -> {
+              loads.incrementAndGet();
+              return HashCodeAndFileType.ofFile(sha1(path.toString()));
+            },
+            path -> (long) path.toString().length(),
+            new FakeProjectFilesystem());
+  }
+
+  private static HashCode sha1(String string) {
+    return Hashing.sha1().hashString(string, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void storesAndReturnsValues() throws Exception {
+    Path file = Paths.get("foo/bar/Baz.java");
+    Path dir = Paths.get("foo/bar");
+    engine.put(file, HashCodeAndFileType.ofFile(sha1("file")));
+    engine.put(dir, HashCodeAndFileType.ofDirectory(sha1("dir")));
+    engine.putSize(file, 42);
+
+    assertEquals(HashCodeAndFileType.ofFile(sha1("file")), engine.getIfPresent(file));
+    assertEquals(HashCodeAndFileType.ofDirectory(sha1("dir")), engine.getIfPresent(dir));
+    assertEquals(Long.valueOf(42), engine.getSizeIfPresent(file));
+    assertThat(engine.getSizeIfPresent(dir), nullValue());
+    assertThat(engine.getIfPresent(Paths.get("foo")), nullValue());
+    assertEquals(0, loads.get());
+  }
+
+  @Test
+  public void loadsMissingValuesOnce() throws Exception {
+    Path file = Paths.get("foo/Bar.java");
+    assertEquals(sha1("foo/Bar.java"), engine.get(file));
+    assertEquals(sha1("foo/Bar.java"), engine.get(file));
+    assertEquals(1, loads.get());
+    assertEquals("foo/Bar.java".length(), engine.getSize(file));
+  }
+
+  @Test
+  public void keepsHashesOfOtherLengthsOnHeap() throws Exception {
+    Path file = Paths.get("Foo.java");
+    engine.put(file, HashCodeAndFileType.ofFile(HashCode.fromInt(42)));
+    assertEquals(HashCodeAndFileType.ofFile(HashCode.fromInt(42)), engine.getIfPresent(file));
+    engine.put(file, HashCodeAndFileType.ofFile(sha1("file")));
+    assertEquals(HashCodeAndFileType.ofFile(sha1("file")), engine.getIfPresent(file));
+  }
+
+  @Test
+  public void invalidateDropsChildrenAndAncestors() throws Exception {
+    Path root = Paths.get("foo");
+    Path dir = Paths.get("foo/bar");
+    Path child = Paths.get("foo/bar/Baz.java");
+    Path sibling = Paths.get("foo/Qux.java");
+    for (Path path : new Path[] {root, dir, child, sibling}) {
+      engine.put(path, HashCodeAndFileType.ofFile(sha1(path.toString())));
+    }
+
+    engine.invalidate(dir);
+
+    assertThat(engine.getIfPresent(root), nullValue());
+    assertThat(engine.getIfPresent(dir), nullValue());
+    assertThat(engine.getIfPresent(child), nullValue());
+    assertEquals(HashCodeAndFileType.ofFile(sha1("foo/Qux.java")), engine.getIfPresent(sibling));
+  }
+
+  @Test
+  public void invalidateOfUnknownPathDropsAncestors() throws Exception {
+    Path dir = Paths.get("foo");
+    engine.put(dir, HashCodeAndFileType.ofDirectory(sha1("dir")));
+    engine.invalidate(Paths.get("foo/bar/New.java"));
+    assertThat(engine.getIfPresent(dir), nullValue());
+  }
+
+  @Test
+  public void invalidateAllDropsEverything() throws Exception {
+    Path file = Paths.get("foo/Bar.java");
+    engine.put(file, HashCodeAndFileType.ofFile(sha1("file")));
+    engine.putSize(file, 42);
+    engine.invalidateAll();
+    assertThat(engine.getIfPresent(file), nullValue());
+    assertThat(engine.getSizeIfPresent(file), nullValue());
+    assertEquals(1, engine.getInternedPathCount());
+  }
+
+  @Test
+  public void growsPastInitialCapacity() throws Exception {
+    ImmutableMap.Builder<Path, HashCodeAndFileType> expected = ImmutableMap.builder();
+    for (int i = 0; i < 10000; i++) {
+      Path path = Paths.get("dir" + (i % 37), "file" + i);
+      HashCodeAndFileType value = HashCodeAndFileType.ofFile(sha1(path.toString()));
+      engine.put(path, value);
+      expected.put(path, value);
+    }
+    assertEquals(expected.build(), engine.asMap());
+  }
+}
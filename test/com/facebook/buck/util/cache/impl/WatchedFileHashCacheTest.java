@@ -32,6 +32,7 @@ import com.facebook.buck.util.cache.FileHashCacheMode;
 import com.facebook.buck.util.cache.HashCodeAndFileType;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import java.io.File;
 import java.io.IOException;
@@ -40,6 +41,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Optional;
 import org.hamcrest.junit.ExpectedException;
 import org.junit.Rule;
 import org.junit.Test;
@@ -85,6 +87,33 @@ public class WatchedFileHashCacheTest {
         nullValue());
   }
 
+  @Test
+  public void whenNotifiedOfOverflowEventWithChangedPathsOnlyThoseAreRemoved()
+      throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    WatchedFileHashCache cache = new WatchedFileHashCache(filesystem, fileHashCacheMode);
+    Path changed = Paths.get("foo/bar/SomeClass.java");
+    Path unchanged = Paths.get("baz/OtherClass.java");
+    filesystem.touch(changed);
+    filesystem.touch(unchanged);
+
+    HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
+    cache.fileHashCacheEngine.put(changed, value);
+    cache.fileHashCacheEngine.putSize(changed, 1234L);
+    cache.fileHashCacheEngine.put(unchanged, value);
+    cache.fileHashCacheEngine.putSize(unchanged, 1234L);
+    cache.onFileSystemChange(
+        WatchmanOverflowEvent.of(filesystem.getRootPath(), "")
+            .withChangedPaths(Optional.of(ImmutableSet.of(Paths.get("foo")))));
+
+    assertFalse("Cache should not contain path", cache.getIfPresent(changed).isPresent());
+    assertThat(
+        "Cache should not contain path",
+        cache.fileHashCacheEngine.getSizeIfPresent(changed),
+        nullValue());
+    assertTrue("Cache should contain path", cache.getIfPresent(unchanged).isPresent());
+  }
+
   @Test
   public void whenNotifiedOfCreateEventCacheEntryIsRemoved() throws IOException {
     ProjectFilesystem filesystem = new FakeProjectFilesystem();
@@ -25,6 +25,8 @@ import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.filesystem.FileSystemMap.Entry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import org.junit.Test;
@@ -139,6 +141,22 @@ public class FileSystemMapTest {
     assertEquals(0, fsMap.map.size());
   }
 
+  @Test
+  public void testRemoveAllPathsInBatch() {
+    Path usr = Paths.get("usr");
+    Path file1 = Paths.get("usr/HelloWorld.java");
+    Path file2 = Paths.get("usr/lib/Yo.java");
+    Path file3 = Paths.get("opt/Keep.java");
+    FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
+    fsMap.put(file1, true);
+    fsMap.put(file2, true);
+    fsMap.put(file3, true);
+
+    fsMap.removeAll(ImmutableList.of(file2, usr));
+    assertFalse(fsMap.root.subLevels.containsKey(usr));
+    assertEquals(ImmutableSet.of(file3), fsMap.map.keySet());
+  }
+
   @Test
   public void testRemovePathThatExistsAndIntermediateIsNotRemovedButValueIsRemoved() {
     Path parent = Paths.get("usr");
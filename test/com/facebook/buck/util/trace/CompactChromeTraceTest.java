@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.util.json.ObjectMappers;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.Test;
+
+public class CompactChromeTraceTest {
+
+  @Test
+  public void eventsRoundTrip() throws IOException {
+    String longValue = Strings.repeat("x", 1000);
+    byte[] trace =
+        writeTrace(
+            writer -> {
+              writer.writeEvent(
+                  "buck",
+                  "build",
+                  "B",
+                  1,
+                  2,
+                  1000,
+                  500,
+                  ImmutableMap.of("command", "build //:foo", "long", longValue));
+              // Events aren't necessarily written in order, so times can go backwards.
+              writer.writeEvent(
+                  "buck",
+                  "rule",
+                  "E",
+                  1,
+                  3,
+                  900,
+                  0,
+                  ImmutableMap.of(
+                      "count",
+                      -42,
+                      "success",
+                      true,
+                      "ratio",
+                      0.5,
+                      "nested",
+                      ImmutableMap.of("a", ImmutableList.of(1, 2))));
+              writer.writeEvent("buck", "build", "E", 1, 2, 2000, 1500, ImmutableMap.of());
+            });
+
+    CompactChromeTrace.Reader reader =
+        new CompactChromeTrace.Reader(new ByteArrayInputStream(trace));
+
+    ImmutableMap<String, Object> first = reader.readEvent();
+    assertEquals("buck", first.get("cat"));
+    assertEquals("build", first.get("name"));
+    assertEquals("B", first.get("ph"));
+    assertEquals(1L, first.get("pid"));
+    assertEquals(2L, first.get("tid"));
+    assertEquals(1000L, first.get("ts"));
+    assertEquals(500L, first.get("tts"));
+    assertEquals(
+        ImmutableMap.of("command", "build //:foo", "long", longValue), first.get("args"));
+
+    ImmutableMap<String, Object> second = reader.readEvent();
+    assertEquals("rule", second.get("name"));
+    assertEquals(900L, second.get("ts"));
+    assertEquals(0L, second.get("tts"));
+    Map<?, ?> args = (Map<?, ?>) second.get("args");
+    assertEquals(-42L, args.get("count"));
+    assertEquals(true, args.get("success"));
+    assertEquals(0.5, args.get("ratio"));
+    assertEquals(ImmutableMap.of("a", ImmutableList.of(1, 2)), args.get("nested"));
+
+    ImmutableMap<String, Object> third = reader.readEvent();
+    assertEquals("E", third.get("ph"));
+    assertEquals(2000L, third.get("ts"));
+    assertEquals(ImmutableMap.of(), third.get("args"));
+
+    assertNull(reader.readEvent());
+  }
+
+  @Test
+  public void repeatedStringsAreInterned() throws IOException {
+    byte[] once =
+        writeTrace(
+            writer ->
+                writer.writeEvent(
+                    "buck", "rule_name", "B", 0, 0, 0, 0, ImmutableMap.of("rule", "//:foo")));
+    byte[] twice =
+        writeTrace(
+            writer -> {
+              for (int i = 0; i < 2; i++) {
+                writer.writeEvent(
+                    "buck", "rule_name", "B", 0, 0, 0, 0, ImmutableMap.of("rule", "//:foo"));
+              }
+            });
+
+    // The second event only refers to the strings defined for the first one.
+    assertTrue(twice.length - once.length < 16);
+  }
+
+  @Test
+  public void detectsCompactTraces() throws IOException {
+    byte[] trace = writeTrace(writer -> {});
+    BufferedInputStream compact = new BufferedInputStream(new ByteArrayInputStream(trace));
+    assertTrue(CompactChromeTrace.isCompactTrace(compact));
+    // The stream is left where it was.
+    assertNull(new CompactChromeTrace.Reader(compact).readEvent());
+
+    assertFalse(
+        CompactChromeTrace.isCompactTrace(
+            new BufferedInputStream(
+                new ByteArrayInputStream("[{}]".getBytes(StandardCharsets.UTF_8)))));
+    assertFalse(
+        CompactChromeTrace.isCompactTrace(
+            new BufferedInputStream(new ByteArrayInputStream(new byte[0]))));
+  }
+
+  @Test
+  public void convertsToJson() throws IOException {
+    byte[] trace =
+        writeTrace(
+            writer -> {
+              writer.writeEvent(
+                  "buck", "build", "B", 0, 1, 10, 5, ImmutableMap.of("command", "build"));
+              writer.writeEvent("buck", "build", "E", 0, 1, 20, 15, ImmutableMap.of());
+            });
+
+    JsonNode json =
+        ObjectMappers.READER.readTree(CompactChromeTrace.toJson(new ByteArrayInputStream(trace)));
+
+    assertTrue(json.isArray());
+    assertEquals(2, json.size());
+    assertEquals("build", json.get(0).get("name").asText());
+    assertEquals("B", json.get(0).get("ph").asText());
+    assertEquals(10, json.get(0).get("ts").asLong());
+    assertEquals("build", json.get(0).get("args").get("command").asText());
+    assertEquals("E", json.get(1).get("ph").asText());
+    assertEquals(15, json.get(1).get("tts").asLong());
+  }
+
+  private interface TraceWriter {
+    void write(CompactChromeTrace.Writer writer) throws IOException;
+  }
+
+  private static byte[] writeTrace(TraceWriter traceWriter) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (CompactChromeTrace.Writer writer = new CompactChromeTrace.Writer(output)) {
+      traceWriter.write(writer);
+    }
+    return output.toByteArray();
+  }
+}
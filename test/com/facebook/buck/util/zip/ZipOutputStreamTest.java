@@ -39,6 +39,9 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -53,6 +56,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
@@ -293,6 +297,68 @@ public class ZipOutputStreamTest {
       assertArrayEquals(expected, seen);
     }
 
+    @Test
+    public void deflatingEntriesAheadGeneratesTheSameOutput() throws IOException {
+      Path reference = Files.createTempFile("reference", ".zip");
+      String packageName = getClass().getPackage().getName().replace('.', '/');
+      URL sample = Resources.getResource(packageName + "/macbeth.properties");
+      byte[] input = Resources.toByteArray(sample);
+
+      try (CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output, mode);
+          CustomZipOutputStream ref = ZipOutputStreams.newOutputStream(reference, mode)) {
+        for (String name : ImmutableList.of("dir/", "empty.txt", "macbeth.properties")) {
+          byte[] contents = name.startsWith("macbeth") ? input : new byte[0];
+          CustomZipEntry entry = new CustomZipEntry(name);
+          entry.setCompressionLevel(BEST_COMPRESSION);
+          ref.putNextEntry(entry);
+          ref.write(contents);
+          ref.closeEntry();
+
+          CustomZipEntry aheadEntry = new CustomZipEntry(name);
+          aheadEntry.setCompressionLevel(BEST_COMPRESSION);
+          out.writeDeflatedEntry(
+              DeflatedEntry.deflate(
+                  aheadEntry, () -> new ByteArrayInputStream(contents), /* hashContents */ false));
+        }
+      }
+
+      assertArrayEquals(Files.readAllBytes(reference), Files.readAllBytes(output));
+    }
+
+    @Test
+    public void boundingPendingBytesStillWritesEveryEntryInOrder() throws Exception {
+      Path reference = Files.createTempFile("reference", ".zip");
+      String packageName = getClass().getPackage().getName().replace('.', '/');
+      URL sample = Resources.getResource(packageName + "/macbeth.properties");
+      byte[] input = Resources.toByteArray(sample);
+
+      ListeningExecutorService executor =
+          MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+      try (CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output, mode);
+          CustomZipOutputStream ref = ZipOutputStreams.newOutputStream(reference, mode)) {
+        // Every deflated entry exceeds the byte bound on its own, so the writer can never have
+        // more than one of them waiting.
+        ParallelZipEntryWriter writer =
+            new ParallelZipEntryWriter(
+                out, executor, 100, /* maxPendingBytes */ 1, /* hashContents */ false);
+        for (int i = 0; i < 20; i++) {
+          CustomZipEntry entry = new CustomZipEntry("macbeth" + i + ".properties");
+          ref.putNextEntry(entry);
+          ref.write(input);
+          ref.closeEntry();
+
+          writer.putEntry(
+              new CustomZipEntry("macbeth" + i + ".properties"),
+              () -> new ByteArrayInputStream(input));
+        }
+        writer.flush();
+      } finally {
+        executor.shutdownNow();
+      }
+
+      assertArrayEquals(Files.readAllBytes(reference), Files.readAllBytes(output));
+    }
+
     @Test
     public void testThatExternalAttributesFieldIsFunctional() throws IOException {
 